@@ -72,6 +72,13 @@ android {
         sourceCompatibility = JavaVersion.VERSION_11
         targetCompatibility = JavaVersion.VERSION_11
     }
+
+    testOptions {
+        // The DFU implementations and ArchiveInputStream log using android.util.Log.
+        unitTests.isReturnDefaultValues = true
+        // JMH benchmarks are run only with -Pbenchmark, see DfuBenchmarks.
+        unitTests.all { it.systemProperty("benchmark", project.hasProperty("benchmark")) }
+    }
 }
 
 dependencies {
@@ -81,4 +88,9 @@ dependencies {
     implementation(libs.androidx.localbroadcastmanager)
 
     implementation(libs.gson)
+
+    testImplementation(libs.test.junit4)
+    testImplementation(libs.test.mockito)
+    testImplementation(libs.test.jmh.core)
+    testAnnotationProcessor(libs.test.jmh.generator)
 }
\ No newline at end of file
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.dfu;
+
+import androidx.annotation.IntRange;
+
+/**
+ * Adjusts the number of packets sent before a Packet Receipt Notification (PRN) in Secure DFU,
+ * based on losses and throughput measured for each data object.
+ * <p>
+ * The window grows by one packet after each object sent without losses, and is halved
+ * when bytes were lost (additive increase, multiplicative decrease). The window never grows
+ * above the initial value, or, if PRNs were initially disabled, they are disabled again when
+ * the window reaches the number of packets in an object. If the throughput dropped after
+ * the last increase, that increase is reverted.
+ * <p>
+ * An object in which bytes were lost never increases the window, and after each decrease
+ * the window is kept for {@link #HOLD_OFF_OBJECTS} objects, so that it does not swing
+ * between two values.
+ */
+/* package */ class AdaptivePrnController {
+	private static final int ADDITIVE_INCREASE = 1;
+	/** The window is not increased if the speed dropped below this fraction of the previous one. */
+	private static final float SPEED_DROP_THRESHOLD = 0.9f;
+	/** Number of objects sent without increasing the window after it was decreased. */
+	private static final int HOLD_OFF_OBJECTS = 3;
+
+	private final int mMaxPrn;
+	private final int mPacketsPerObject;
+	private int mPrn;
+	private boolean mIncreased;
+	private boolean mLossInObject;
+	private int mHoldOff;
+	private float mLastSpeed;
+
+	/**
+	 * Creates the controller.
+	 *
+	 * @param initialPrn       the initial PRN value, 0 if PRNs are disabled.
+	 * @param packetsPerObject the number of packets required to send a whole data object.
+	 */
+	AdaptivePrnController(@IntRange(from = 0) final int initialPrn,
+						  @IntRange(from = 1) final int packetsPerObject) {
+		mMaxPrn = initialPrn;
+		mPacketsPerObject = Math.max(1, packetsPerObject);
+		mPrn = initialPrn;
+	}
+
+	/**
+	 * Returns the current PRN value, 0 if PRNs are disabled.
+	 */
+	int getPrn() {
+		return mPrn;
+	}
+
+	/**
+	 * Updates the window after some bytes were lost.
+	 *
+	 * @return The new PRN value.
+	 */
+	int onBytesLost() {
+		final int window = mPrn > 0 ? mPrn : mPacketsPerObject;
+		mPrn = Math.max(1, window / 2);
+		mIncreased = false;
+		mLossInObject = true;
+		mHoldOff = HOLD_OFF_OBJECTS;
+		mLastSpeed = 0;
+		return mPrn;
+	}
+
+	/**
+	 * Updates the window after a data object was sent and its checksum was validated.
+	 * The window is not increased if bytes were lost while sending this object.
+	 *
+	 * @param bytes    number of bytes in the object.
+	 * @param duration time it took to send the object and validate the checksum, in milliseconds.
+	 * @return The new PRN value.
+	 */
+	int onObjectSent(final int bytes, final long duration) {
+		final float speed = duration > 0 ? (float) bytes / duration : 0;
+		final boolean speedDropped = mIncreased && speed < mLastSpeed * SPEED_DROP_THRESHOLD;
+		final boolean lossInObject = mLossInObject;
+		mLastSpeed = speed;
+		mIncreased = false;
+		mLossInObject = false;
+
+		if (speedDropped) {
+			// The last increase did not help, go back and wait before trying again
+			mPrn = Math.max(1, mPrn - ADDITIVE_INCREASE);
+			mHoldOff = HOLD_OFF_OBJECTS;
+			return mPrn;
+		}
+		if (mPrn == 0 || lossInObject)
+			return mPrn;
+		if (mHoldOff > 0) {
+			mHoldOff--;
+			return mPrn;
+		}
+
+		final int prn = mPrn + ADDITIVE_INCREASE;
+		if (mMaxPrn == 0 && prn >= mPacketsPerObject) {
+			mPrn = 0;
+		} else if (mMaxPrn == 0 || prn <= mMaxPrn) {
+			mPrn = prn;
+			mIncreased = true;
+		}
+		return mPrn;
+	}
+
+	/**
+	 * Returns the speed measured for the last object, in bytes per millisecond.
+	 */
+	float getLastSpeed() {
+		return mLastSpeed;
+	}
+}
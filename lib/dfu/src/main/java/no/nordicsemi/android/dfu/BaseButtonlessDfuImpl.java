@@ -43,7 +43,8 @@ import androidx.annotation.NonNull;
 		public void onCharacteristicChanged(@NonNull final BluetoothGatt gatt,
 											@NonNull final BluetoothGattCharacteristic characteristic,
 											@NonNull final  byte[] value) {
-			mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_INFO, "Notification received from " + characteristic.getUuid() + ", value (0x): " + parse(value));
+			if (mService.isLogLevelEnabled(DfuBaseService.LOG_LEVEL_INFO))
+				mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_INFO, "Notification received from " + characteristic.getUuid() + ", value (0x): " + parse(value));
 			mReceivedData = characteristic.getValue();
 			notifyLock();
 		}
@@ -51,7 +52,8 @@ import androidx.annotation.NonNull;
 		@Override
 		public void onCharacteristicWrite(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
 			// Despite the status code the Enter bootloader request has completed.
-			mRequestCompleted = true;
+			mRequestQueue.onCompleted(GattRequest.TYPE_WRITE_CHARACTERISTIC, characteristic.getUuid(),
+					BluetoothGatt.GATT_SUCCESS, null);
 			notifyLock();
 		}
 	}
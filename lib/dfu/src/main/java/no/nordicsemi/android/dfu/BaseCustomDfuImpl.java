@@ -30,6 +30,7 @@ import android.bluetooth.BluetoothGattCharacteristic;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Build;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 
 import androidx.annotation.NonNull;
@@ -45,6 +46,11 @@ import no.nordicsemi.android.dfu.internal.exception.UploadAbortedException;
 
 @SuppressLint("MissingPermission")
 /* package */ abstract class BaseCustomDfuImpl extends BaseDfuImpl {
+	/**
+	 * The number of bytes sent between notifications when the PRN value is sized from the link,
+	 * the size of a Secure DFU data object on most targets.
+	 */
+	private static final int BYTES_BETWEEN_NOTIFICATIONS = 4096;
 	/**
 	 * Flag indicating whether the init packet has been already transferred or not.
 	 */
@@ -58,10 +64,26 @@ import no.nordicsemi.android.dfu.internal.exception.UploadAbortedException;
 	 * receipt notification. 0 disables the packets notifications.
 	 */
 	int mPacketsBeforeNotification;
+	/**
+	 * True if the number of packets before a notification should be sized from the negotiated
+	 * packet size, see {@link DfuBaseService#EXTRA_PACKET_RECEIPT_NOTIFICATIONS_FROM_LINK}.
+	 */
+	private boolean mPacketsBeforeNotificationFromLink;
 	/**
 	 * The number of packets sent since last notification.
 	 */
 	private int mPacketsSentSinceNotification;
+	/**
+	 * The time when the last packet before an expected Packet Receipt Notification was written.
+	 */
+	private long mPrnWaitStartTime;
+	/**
+	 * The maximum time without a packet written or a PRN received while streaming firmware,
+	 * or 0 if the watchdog is disabled.
+	 */
+	private final long mPacketStallTimeout;
+	/** The time when the last packet was written or a PRN received. */
+	private volatile long mLastPacketTime;
 	/**
 	 * <p>
 	 * Flag set to <code>true</code> when the DFU target had send a notification with status other
@@ -99,8 +121,8 @@ import no.nordicsemi.android.dfu.internal.exception.UploadAbortedException;
 
 				/*
 				 * This method is called when either a CONTROL POINT or PACKET characteristic has been written.
-				 * If it is the CONTROL POINT characteristic, just set the {@link mRequestCompleted}
-				 * flag to true. The main thread will continue its task when notified.
+				 * If it is the CONTROL POINT characteristic, the pending request is completed
+				 * below. The main thread will continue its task when notified.
 				 * If the PACKET characteristic was written we must:
 				 * - if the image size was written in DFU Start procedure, just set flag to true
 				 * otherwise
@@ -114,6 +136,7 @@ import no.nordicsemi.android.dfu.internal.exception.UploadAbortedException;
 						mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_INFO, "Data written to " + uuid);
 						mInitPacketInProgress = false;
 					} else if (mFirmwareUploadInProgress) {
+						mLastPacketTime = SystemClock.elapsedRealtime();
 						mPacketsSentSinceNotification++;
 
 						final boolean notificationExpected = mPacketsBeforeNotification > 0 && mPacketsSentSinceNotification >= mPacketsBeforeNotification;
@@ -122,8 +145,10 @@ import no.nordicsemi.android.dfu.internal.exception.UploadAbortedException;
 
 						// When a Packet Receipt Notification notification is expected
 						// we must not call notifyLock() as the process will resume after notification is received.
-						if (notificationExpected)
+						if (notificationExpected) {
+							mPrnWaitStartTime = SystemClock.elapsedRealtime();
 							return;
+						}
 
 						// In Secure DFU we (usually, depends on the page size and PRN value) do not get any notification after the object is completed,
 						// therefore the lock must be notified here to resume the main process.
@@ -145,10 +170,7 @@ import no.nordicsemi.android.dfu.internal.exception.UploadAbortedException;
 								return;
 							}
 
-							final int available = mProgressInfo.getAvailableObjectSizeIsBytes();
-							byte[] buffer = mBuffer;
-							if (available < buffer.length)
-								buffer = new byte[available];
+							final byte[] buffer = obtainPacketBuffer();
 							final int size = mFirmwareStream.read(buffer);
 							writePacket(gatt, characteristic, buffer, size);
 							return;
@@ -164,10 +186,9 @@ import no.nordicsemi.android.dfu.internal.exception.UploadAbortedException;
 						onPacketCharacteristicWrite();
 					}
 				} else {
-					// If the CONTROL POINT characteristic was written just set the flag to true.
+					// If the CONTROL POINT characteristic was written the request is completed below.
 					// The main thread will continue its task when notified.
 					mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_INFO, "Data written to " + uuid);
-					mRequestCompleted = true;
 				}
 			} else {
 				/*
@@ -176,13 +197,12 @@ import no.nordicsemi.android.dfu.internal.exception.UploadAbortedException;
 				 * any ACK to the controller and error 133 is thrown here. This bug should be fixed
 				 * in SDK 8.0+ where the target would gracefully disconnect before restarting.
 				 */
-				if (mResetRequestSent)
-					mRequestCompleted = true;
-				else {
+				if (!mResetRequestSent) {
 					loge("Characteristic write error: " + status);
 					mError = DfuBaseService.ERROR_CONNECTION_MASK | status;
 				}
 			}
+			mRequestQueue.onCompleted(GattRequest.TYPE_WRITE_CHARACTERISTIC, characteristic.getUuid(), status, null);
 			notifyLock();
 		}
 
@@ -196,6 +216,11 @@ import no.nordicsemi.android.dfu.internal.exception.UploadAbortedException;
 
 			final BluetoothGattCharacteristic packetCharacteristic =
 					gatt.getService(getDfuServiceUUID()).getCharacteristic(getPacketCharacteristicUUID());
+			mLastPacketTime = SystemClock.elapsedRealtime();
+			if (mPrnWaitStartTime > 0) {
+				mMetrics.addPrnWaitTime(SystemClock.elapsedRealtime() - mPrnWaitStartTime);
+				mPrnWaitStartTime = 0;
+			}
 			try {
 				mPacketsSentSinceNotification = 0;
 
@@ -217,10 +242,7 @@ import no.nordicsemi.android.dfu.internal.exception.UploadAbortedException;
 					return;
 				}
 
-				final int available = mProgressInfo.getAvailableObjectSizeIsBytes();
-				byte[] buffer = mBuffer;
-				if (available < buffer.length)
-					buffer = new byte[available];
+				final byte[] buffer = obtainPacketBuffer();
 				final int size = mFirmwareStream.read(buffer);
 				writePacket(gatt, packetCharacteristic, buffer, size);
 			} catch (final HexFileValidationException e) {
@@ -234,8 +256,9 @@ import no.nordicsemi.android.dfu.internal.exception.UploadAbortedException;
 
 		@SuppressWarnings("unused")
 		void handleNotification(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final byte[] value) {
-			mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_INFO,
-					"Notification received from " + characteristic.getUuid() + ", value (0x): " + parse(value));
+			if (mService.isLogLevelEnabled(DfuBaseService.LOG_LEVEL_INFO))
+				mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_INFO,
+						"Notification received from " + characteristic.getUuid() + ", value (0x): " + parse(value));
 			mReceivedData = value;
 			mFirmwareUploadInProgress = false;
 		}
@@ -244,6 +267,7 @@ import no.nordicsemi.android.dfu.internal.exception.UploadAbortedException;
 	@SuppressWarnings("deprecation")
 	BaseCustomDfuImpl(@NonNull final Intent intent, final DfuBaseService service) {
 		super(intent, service);
+		mPacketStallTimeout = intent.getLongExtra(DfuBaseService.EXTRA_PACKET_STALL_TIMEOUT, 0);
 
 		if (intent.hasExtra(DfuBaseService.EXTRA_PACKET_RECEIPT_NOTIFICATIONS_ENABLED)) {
 			// Read from intent
@@ -273,6 +297,31 @@ import no.nordicsemi.android.dfu.internal.exception.UploadAbortedException;
 				numberOfPackets = 0;
 			mPacketsBeforeNotification = numberOfPackets;
 		}
+		mPacketsBeforeNotificationFromLink = intent.getBooleanExtra(DfuBaseService.EXTRA_PACKET_RECEIPT_NOTIFICATIONS_FROM_LINK, false);
+	}
+
+	/**
+	 * Negotiates the link parameters and, if PRNs are enabled and sizing them from the link
+	 * was requested, sizes the number of packets before a notification from the packet size.
+	 * <p>
+	 * A notification is then expected after about {@link #BYTES_BETWEEN_NOTIFICATIONS} bytes,
+	 * but never after fewer packets than the configured value, so sizing never adds round trips.
+	 */
+	@Override
+	void negotiateLinkParameters(@NonNull final Intent intent)
+			throws DeviceDisconnectedException, UploadAbortedException {
+		super.negotiateLinkParameters(intent);
+
+		if (mPacketsBeforeNotificationFromLink && mPacketsBeforeNotification > 0) {
+			final int prn = Math.min(0xFFFF, Math.max(mPacketsBeforeNotification,
+					BYTES_BETWEEN_NOTIFICATIONS / mBuffer.length));
+			if (prn != mPacketsBeforeNotification) {
+				logi("Packet Receipt Notification value sized from the link: " + prn);
+				mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_INFO,
+						"PRN value set to %d for %d-byte packets", prn, mBuffer.length);
+				mPacketsBeforeNotification = prn;
+			}
+		}
 	}
 
 	@SuppressWarnings("unused")
@@ -323,19 +372,17 @@ import no.nordicsemi.android.dfu.internal.exception.UploadAbortedException;
 			throws DeviceDisconnectedException, DfuException, UploadAbortedException {
 		if (mAborted)
 			throw new UploadAbortedException();
-		byte[] locBuffer = buffer;
-		if (buffer.length != size) {
-			locBuffer = new byte[size];
-			System.arraycopy(buffer, 0, locBuffer, 0, size);
-		}
+		final byte[] locBuffer = mPacketPool.copyOf(buffer, size);
 		mReceivedData = null;
 		mError = 0;
 		mInitPacketInProgress = true;
 
 		logi("Sending init packet (size: " + locBuffer.length + ", value: 0x" + parse(locBuffer) + ")");
-		mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_VERBOSE, "Writing to characteristic " + characteristic.getUuid() + " value (0x): " + parse(locBuffer));
+		if (mService.isLogLevelEnabled(DfuBaseService.LOG_LEVEL_VERBOSE))
+			mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_VERBOSE, "Writing to characteristic " + characteristic.getUuid() + " value (0x): " + parse(locBuffer));
 		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
-			mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_DEBUG, "gatt.writeCharacteristic(" + characteristic.getUuid() + ", value=0x" + parse(locBuffer) + ", WRITE_TYPE_NO_RESPONSE)");
+			if (mService.isLogLevelEnabled(DfuBaseService.LOG_LEVEL_DEBUG))
+				mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_DEBUG, "gatt.writeCharacteristic(" + characteristic.getUuid() + ", value=0x" + parse(locBuffer) + ", WRITE_TYPE_NO_RESPONSE)");
 			mGatt.writeCharacteristic(characteristic, locBuffer, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
 		} else {
 			characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
@@ -345,14 +392,8 @@ import no.nordicsemi.android.dfu.internal.exception.UploadAbortedException;
 		}
 
 		// We have to wait for confirmation
-		try {
-			synchronized (mLock) {
-				while ((mInitPacketInProgress && mConnected && mError == 0) || mPaused)
-					mLock.wait();
-			}
-		} catch (final InterruptedException e) {
-			loge("Sleeping interrupted", e);
-		}
+		awaitOperation(() -> (mInitPacketInProgress && mConnected && mError == 0) || mPaused,
+				"Writing Init packet");
 		if (!mConnected)
 			throw new DeviceDisconnectedException("Unable to write Init DFU Parameters: device disconnected", mError);
 		if (mError != 0)
@@ -378,12 +419,13 @@ import no.nordicsemi.android.dfu.internal.exception.UploadAbortedException;
 		mError = 0;
 		mFirmwareUploadInProgress = true;
 		mPacketsSentSinceNotification = 0;
+		mPrnWaitStartTime = 0;
+		mLastPacketTime = SystemClock.elapsedRealtime();
+		// The response to the last Op Code will come after the data are sent
+		mOpCodeSentTime = 0;
 
 		try {
-			final int available = mProgressInfo.getAvailableObjectSizeIsBytes();
-			byte[] buffer = mBuffer;
-			if (available < buffer.length)
-				buffer = new byte[available];
+			final byte[] buffer = obtainPacketBuffer();
 			final int size = mFirmwareStream.read(buffer);
 			mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_VERBOSE,
                     "Sending firmware to characteristic " + packetCharacteristic.getUuid() + "...");
@@ -394,13 +436,24 @@ import no.nordicsemi.android.dfu.internal.exception.UploadAbortedException;
 			throw new DfuException("Error while reading file", DfuBaseService.ERROR_FILE_IO_EXCEPTION);
 		}
 
-		try {
-			synchronized (mLock) {
-				while ((mFirmwareUploadInProgress && mReceivedData == null && mConnected && mError == 0) || mPaused)
-					mLock.wait();
+		final PendingCondition uploadInProgress = () ->
+				(mFirmwareUploadInProgress && mReceivedData == null && mConnected && mError == 0) || mPaused;
+		if (mPacketStallTimeout > 0) {
+			// The watchdog wakes up every timeout and checks whether any packet was sent since
+			while (!waitWhile(uploadInProgress, mPacketStallTimeout)) {
+				final long idle = SystemClock.elapsedRealtime() - mLastPacketTime;
+				if (idle < mPacketStallTimeout)
+					continue;
+				synchronized (mLock) {
+					// Stop sending. A late PRN will be handled as a notification.
+					mFirmwareUploadInProgress = false;
+				}
+				logw("Upload stalled: no progress for " + idle + " ms");
+				mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_WARNING, "Upload stalled");
+				throw new DfuException("Upload stalled", DfuBaseService.ERROR_OPERATION_TIMEOUT);
 			}
-		} catch (final InterruptedException e) {
-			loge("Sleeping interrupted", e);
+		} else {
+			waitWhile(uploadInProgress);
 		}
 
 		if (!mConnected)
@@ -409,6 +462,19 @@ import no.nordicsemi.android.dfu.internal.exception.UploadAbortedException;
 			throw new DfuException("Uploading Firmware Image failed", mError);
 	}
 
+	/**
+	 * Returns a buffer for the next packet of firmware. The buffer length is equal to the number
+	 * of bytes that may be sent in a single packet, but not greater than the number of bytes
+	 * remaining in the current object. The buffer is taken from the {@link PacketBufferPool}
+	 * so no allocation is done when sending the firmware.
+	 *
+	 * @return The buffer to read the firmware packet to.
+	 */
+	private byte[] obtainPacketBuffer() {
+		final int available = mProgressInfo.getAvailableObjectSizeIsBytes();
+		return mPacketPool.obtain(Math.min(available, mBuffer.length));
+	}
+
 	/**
 	 * Writes the buffer to the characteristic. The maximum size of the buffer is dependent on MTU.
 	 * This method is ASYNCHRONOUS and returns immediately after adding the data to TX queue.
@@ -418,13 +484,10 @@ import no.nordicsemi.android.dfu.internal.exception.UploadAbortedException;
 	 * @param size           the number of bytes from the buffer to send.
 	 */
 	private void writePacket(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final byte[] buffer, final int size) {
-		byte[] locBuffer = buffer;
 		if (size <= 0) // This should never happen
 			return;
-		if (buffer.length != size) {
-			locBuffer = new byte[size];
-			System.arraycopy(buffer, 0, locBuffer, 0, size);
-		}
+		// The stream may have returned less bytes than requested (end of the HEX file)
+		final byte[] locBuffer = mPacketPool.copyOf(buffer, size);
 		// If the PACKET characteristic was written with image data, update counters
 		mProgressInfo.addBytesSent(size);
 
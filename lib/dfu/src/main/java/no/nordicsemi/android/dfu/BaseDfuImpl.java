@@ -29,8 +29,10 @@ import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothStatusCodes;
 import android.content.Intent;
 import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.InputStream;
@@ -59,6 +61,11 @@ import no.nordicsemi.android.dfu.internal.scanner.BootloaderScannerFactory;
 
 	private static final char[] HEX_ARRAY = "0123456789ABCDEF".toCharArray();
 	private static final int MAX_PACKET_SIZE_DEFAULT = 20; // the default maximum number of bytes in one packet is 20.
+	/**
+	 * Some phones do not call onPhyUpdate(...) when the PHY has not changed, so the PHY request
+	 * does not wait longer than this, unless the operation timeout is set.
+	 */
+	private static final long PHY_UPDATE_TIMEOUT = 2000; // ms
 
 	/**
 	 * Lock used in synchronization purposes.
@@ -89,7 +96,7 @@ import no.nordicsemi.android.dfu.internal.scanner.BootloaderScannerFactory;
 	 */
 	boolean mConnected;
 	/**
-	 * Flag indicating whether the request was completed or not
+	 * Flag set when the bond state has changed while bonding or removing the bond.
 	 */
 	boolean mRequestCompleted;
 	/**
@@ -107,11 +114,34 @@ import no.nordicsemi.android.dfu.internal.scanner.BootloaderScannerFactory;
 	 */
 	byte[] mReceivedData = null;
 	byte[] mBuffer = new byte[MAX_PACKET_SIZE_DEFAULT];
+	/**
+	 * Buffers used to send firmware packets. See {@link PacketBufferPool}.
+	 */
+	final PacketBufferPool mPacketPool = new PacketBufferPool();
+	/**
+	 * The queue of GATT requests. The DFU thread is notified whenever a request completes.
+	 */
+	final GattRequestQueue mRequestQueue = new GattRequestQueue(request -> notifyLock());
 	DfuBaseService mService;
 	DfuProgressInfo mProgressInfo;
+	DfuMetrics mMetrics;
 	int mImageSizeInBytes;
 	int mInitPacketSizeInBytes;
 	private int mCurrentMtu;
+	/** The TX and RX PHY in use, one of BluetoothDevice.PHY_LE_* constants. */
+	private int mTxPhy = BluetoothDevice.PHY_LE_1M, mRxPhy = BluetoothDevice.PHY_LE_1M;
+	/** Flag set to true when the PHY was requested and the result is awaited. */
+	private boolean mPhyUpdatePending;
+	/**
+	 * The time when the last Op Code was written, used to measure the control point round trip
+	 * time, or 0 if no response is awaited.
+	 */
+	long mOpCodeSentTime;
+	/**
+	 * The maximum time to wait for a single GATT operation, in milliseconds, or 0 to wait
+	 * until the device disconnects.
+	 */
+	private final long mOperationTimeout;
 
 	protected class BaseBluetoothGattCallback extends DfuGattCallback {
 		// The Implementation object is created depending on device services, so after the device
@@ -123,6 +153,7 @@ import no.nordicsemi.android.dfu.internal.scanner.BootloaderScannerFactory;
 		public void onDisconnected(int error) {
 			mConnected = false;
 			mError = error;
+			mRequestQueue.cancelAll();
 			notifyLock();
 		}
 
@@ -142,14 +173,15 @@ import no.nordicsemi.android.dfu.internal.scanner.BootloaderScannerFactory;
 				/*
 				 * This method is called when the DFU Version characteristic has been read.
 				 */
-				mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_INFO,
-						"Read Response received from " + characteristic.getUuid() + ", value (0x): " + parse(value));
+				if (mService.isLogLevelEnabled(DfuBaseService.LOG_LEVEL_INFO))
+					mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_INFO,
+							"Read Response received from " + characteristic.getUuid() + ", value (0x): " + parse(value));
 				mReceivedData = value;
-				mRequestCompleted = true;
 			} else {
 				loge("Characteristic read error: " + status);
 				mError = DfuBaseService.ERROR_CONNECTION_MASK | status;
 			}
+			mRequestQueue.onCompleted(GattRequest.TYPE_READ_CHARACTERISTIC, characteristic.getUuid(), status, value);
 			notifyLock();
 		}
 
@@ -163,12 +195,10 @@ import no.nordicsemi.android.dfu.internal.scanner.BootloaderScannerFactory;
 				final UUID parentUuid = descriptor.getCharacteristic().getUuid();
 				mReceivedData = value;
 				if (CLIENT_CHARACTERISTIC_CONFIG.equals(uuid)) {
-					mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_INFO,
-							"Read Response received from descr." + parentUuid + ", value (0x): " + parse(value));
-					if (SERVICE_CHANGED_UUID.equals(parentUuid)) {
-						// We have enabled indications for the Service Changed characteristic
-						mRequestCompleted = true;
-					} else {
+					if (mService.isLogLevelEnabled(DfuBaseService.LOG_LEVEL_INFO))
+						mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_INFO,
+								"Read Response received from descr." + parentUuid + ", value (0x): " + parse(value));
+					if (!SERVICE_CHANGED_UUID.equals(parentUuid)) {
 						// reading other descriptor is not supported
 						loge("Unknown descriptor read"); // this have to be implemented if needed
 					}
@@ -177,6 +207,8 @@ import no.nordicsemi.android.dfu.internal.scanner.BootloaderScannerFactory;
 				loge("Descriptor read error: " + status);
 				mError = DfuBaseService.ERROR_CONNECTION_MASK | status;
 			}
+			mRequestQueue.onCompleted(GattRequest.TYPE_READ_DESCRIPTOR,
+					descriptor.getCharacteristic().getUuid(), status, value);
 			notifyLock();
 		}
 
@@ -198,11 +230,12 @@ import no.nordicsemi.android.dfu.internal.scanner.BootloaderScannerFactory;
                                 "Notifications enabled for " + parentUuid);
 					}
 				}
-				mRequestCompleted = true;
 			} else {
 				loge("Descriptor write error: " + status);
 				mError = DfuBaseService.ERROR_CONNECTION_MASK | status;
 			}
+			mRequestQueue.onCompleted(GattRequest.TYPE_WRITE_DESCRIPTOR,
+					descriptor.getCharacteristic().getUuid(), status, null);
 			notifyLock();
 		}
 
@@ -210,17 +243,20 @@ import no.nordicsemi.android.dfu.internal.scanner.BootloaderScannerFactory;
 		public void onMtuChanged(final BluetoothGatt gatt, final int mtu, final int status) {
 			if (status == BluetoothGatt.GATT_SUCCESS) {
 				mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_INFO, "MTU changed to: " + mtu);
-				if (mtu - 3 > mBuffer.length)
+				if (mtu - 3 > mBuffer.length) {
 					mBuffer = new byte[mtu - 3]; // Maximum payload size is MTU - 3 bytes
+					mPacketPool.preallocate(mBuffer.length);
+				}
 				logi("MTU changed to: " + mtu);
 			} else {
 				logw("Changing MTU failed: " + status + " (mtu: " + mtu + ")");
 				if (status == 4 /* Invalid PDU */ && mCurrentMtu > 23 && mCurrentMtu - 3 > mBuffer.length) {
 					mBuffer = new byte[mCurrentMtu - 3]; // Maximum payload size is MTU - 3 bytes
+					mPacketPool.preallocate(mBuffer.length);
 					logi("MTU restored to: " + mCurrentMtu);
 				}
 			}
-			mRequestCompleted = true;
+			mRequestQueue.onCompleted(GattRequest.TYPE_MTU, null, status, null);
 			notifyLock();
 		}
 
@@ -230,9 +266,16 @@ import no.nordicsemi.android.dfu.internal.scanner.BootloaderScannerFactory;
 				mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_INFO,
                         "PHY updated (TX: " + phyToString(txPhy) + ", RX: " + phyToString(rxPhy) + ")");
 				logi("PHY updated (TX: " + phyToString(txPhy) + ", RX: " + phyToString(rxPhy) + ")");
+				mTxPhy = txPhy;
+				mRxPhy = rxPhy;
 			} else {
 				logw("Updating PHY failed: " + status + " (txPhy: " + txPhy + ", rxPhy: " + rxPhy + ")");
 			}
+			// This callback may also be called when the PHY was changed by the remote device
+			if (mPhyUpdatePending) {
+				mPhyUpdatePending = false;
+				notifyLock();
+			}
 		}
 
 		@Override
@@ -293,6 +336,8 @@ import no.nordicsemi.android.dfu.internal.scanner.BootloaderScannerFactory;
     BaseDfuImpl(@NonNull final Intent intent, @NonNull final DfuBaseService service) {
 		mService = service;
 		mProgressInfo = service.mProgressInfo;
+		mMetrics = service.mMetrics;
+		mOperationTimeout = intent.getLongExtra(DfuBaseService.EXTRA_OPERATION_TIMEOUT, 0);
 		mConnected = true; // the device is connected when impl object it created
 	}
 
@@ -424,14 +469,105 @@ import no.nordicsemi.android.dfu.internal.scanner.BootloaderScannerFactory;
 	}
 
 	void waitIfPaused() {
+		waitWhile(() -> mPaused);
+	}
+
+	/**
+	 * A condition of a pending GATT operation. The condition is always checked while holding
+	 * {@link #mLock}, so it may read fields modified in the GATT callbacks.
+	 */
+	interface PendingCondition {
+		/**
+		 * Returns true if the calling thread should keep waiting.
+		 */
+		boolean isPending();
+	}
+
+	/**
+	 * Blocks the calling thread as long as the condition is pending. The condition is re-evaluated
+	 * each time the lock is notified using {@link #notifyLock()}, which the GATT callbacks
+	 * do when a response is received, the connection state changes or an error occurs.
+	 * <p>
+	 * This is the only place where the DFU implementations wait for a GATT request, a notification
+	 * or a state change.
+	 *
+	 * @param condition the condition to wait for.
+	 */
+	void waitWhile(@NonNull final PendingCondition condition) {
+		waitWhile(condition, 0);
+	}
+
+	/**
+	 * Blocks the calling thread as long as the condition is pending, but not longer than
+	 * the given timeout. The time when the upload is paused is not counted.
+	 *
+	 * @param condition the condition to wait for.
+	 * @param timeout   the timeout in milliseconds, or 0 to wait without a deadline.
+	 * @return true if the condition is no longer pending, false if the timeout has elapsed.
+	 */
+	boolean waitWhile(@NonNull final PendingCondition condition, final long timeout) {
 		try {
 			synchronized (mLock) {
-				while (mPaused)
-					mLock.wait();
+				long deadline = SystemClock.elapsedRealtime() + timeout;
+				while (condition.isPending()) {
+					if (timeout <= 0) {
+						mLock.wait();
+						continue;
+					}
+					final long now = SystemClock.elapsedRealtime();
+					if (mPaused)
+						deadline = now + timeout;
+					if (now >= deadline)
+						return false;
+					mLock.wait(deadline - now);
+				}
 			}
 		} catch (final InterruptedException e) {
 			loge("Sleeping interrupted", e);
 		}
+		return true;
+	}
+
+	/**
+	 * Waits for a GATT operation to complete, but not longer than the operation timeout set using
+	 * {@link DfuServiceInitiator#setOperationTimeout(long)}.
+	 *
+	 * @param condition the condition to wait for.
+	 * @param operation the name of the operation, used in the log.
+	 * @throws DfuException with {@link DfuBaseService#ERROR_OPERATION_TIMEOUT} when the timeout
+	 *                      has elapsed.
+	 */
+	void awaitOperation(@NonNull final PendingCondition condition, @NonNull final String operation)
+			throws DfuException {
+		if (!waitWhile(condition, mOperationTimeout)) {
+			loge(operation + " timed out after " + mOperationTimeout + " ms");
+			mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_ERROR, operation + " timed out");
+			throw new DfuException(operation + " timed out", DfuBaseService.ERROR_OPERATION_TIMEOUT);
+		}
+	}
+
+	/**
+	 * Adds the request to the {@link #mRequestQueue} and waits until it completes, but not longer
+	 * than the operation timeout. The wait also ends when the device disconnects or an error
+	 * occurs. A request that has not completed by then is cancelled, so that it does not block
+	 * the requests enqueued after it.
+	 *
+	 * @param request the request to be executed.
+	 * @return The same request. Check {@link GattRequest#isSuccessful()} for the result.
+	 * @throws DfuException with {@link DfuBaseService#ERROR_OPERATION_TIMEOUT} when the timeout
+	 *                      has elapsed.
+	 */
+	@NonNull
+	GattRequest execute(@NonNull final GattRequest request) throws DfuException {
+		mRequestQueue.enqueue(request);
+		try {
+			awaitOperation(() -> (!request.isCompleted() && mConnected && mError == 0) || mPaused,
+					request.getName());
+		} finally {
+			if (!request.isCompleted())
+				mRequestQueue.cancel(request);
+		}
+		return request;
 	}
 
 	/**
@@ -457,10 +593,10 @@ import no.nordicsemi.android.dfu.internal.scanner.BootloaderScannerFactory;
 		if (mAborted)
 			throw new UploadAbortedException();
 
-		mRequestCompleted = false;
 		mReceivedData = null;
 		mError = 0;
 		final BluetoothGattDescriptor descriptor = characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG);
+		final byte[] value = type == NOTIFICATIONS ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE : BluetoothGattDescriptor.ENABLE_INDICATION_VALUE;
 
 		logi("Enabling " + debugString + "...");
 		mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_VERBOSE,
@@ -474,27 +610,22 @@ import no.nordicsemi.android.dfu.internal.scanner.BootloaderScannerFactory;
 		// enable notifications on the device
 		mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_DEBUG,
                 "gatt.writeDescriptor(" + descriptor.getUuid() + (type == NOTIFICATIONS ? ", value=0x01-00)" : ", value=0x02-00)"));
-		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
-			gatt.writeDescriptor(descriptor, type == NOTIFICATIONS ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE : BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
-		} else {
-			descriptor.setValue(type == NOTIFICATIONS ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE : BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
-			gatt.writeDescriptor(descriptor);
-		}
+		final GattRequest request = new GattRequest(GattRequest.TYPE_WRITE_DESCRIPTOR, characteristic.getUuid(),
+				"Setting " + debugString + " state", () -> {
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU)
+				return gatt.writeDescriptor(descriptor, value) == BluetoothStatusCodes.SUCCESS;
+			descriptor.setValue(value);
+			return gatt.writeDescriptor(descriptor);
+		});
 
 		// We have to wait until device receives a response or an error occur
-		try {
-			synchronized (mLock) {
-				while ((!mRequestCompleted && mConnected && mError == 0) || mPaused) {
-					mLock.wait();
-				}
-			}
-		} catch (final InterruptedException e) {
-			loge("Sleeping interrupted", e);
-		}
+		execute(request);
 		if (!mConnected)
 			throw new DeviceDisconnectedException("Unable to set " + debugString + " state: device disconnected", mError);
 		if (mError != 0)
 			throw new DfuException("Unable to set " + debugString + " state", mError);
+		if (!request.isSuccessful())
+			throw new DfuException("Unable to set " + debugString + " state", DfuBaseService.ERROR_CONNECTION_MASK | request.getStatus());
 	}
 
 	/**
@@ -527,31 +658,26 @@ import no.nordicsemi.android.dfu.internal.scanner.BootloaderScannerFactory;
 		if (descriptor == null)
 			return false;
 
-		mRequestCompleted = false;
 		mReceivedData = null;
 		mError = 0;
 
 		logi("Reading Service Changed CCCD value...");
 		mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_VERBOSE, "Reading Service Changed CCCD value...");
 		mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_DEBUG, "gatt.readDescriptor(" + descriptor.getUuid() + ")");
-		gatt.readDescriptor(descriptor);
+		final GattRequest request = new GattRequest(GattRequest.TYPE_READ_DESCRIPTOR, SERVICE_CHANGED_UUID,
+				"Reading Service Changed CCCD", () -> gatt.readDescriptor(descriptor));
 
 		// We have to wait until device receives a response or an error occur
-		try {
-			synchronized (mLock) {
-				while ((!mRequestCompleted && mConnected && mError == 0) || mPaused)
-					mLock.wait();
-			}
-		} catch (final InterruptedException e) {
-			loge("Sleeping interrupted", e);
-		}
+		execute(request);
 		if (!mConnected)
 			throw new DeviceDisconnectedException("Unable to read Service Changed CCCD: device disconnected", mError);
 		if (mError != 0)
 			throw new DfuException("Unable to read Service Changed CCCD", mError);
+		if (!request.isSuccessful())
+			throw new DfuException("Unable to read Service Changed CCCD", DfuBaseService.ERROR_CONNECTION_MASK | request.getStatus());
 
 		// Return true if the CCCD value is
-		final byte[] value = mReceivedData;
+		final byte[] value = request.getValue();
 		return value != null &&
 			   value.length == 2 &&
 			   value[0] == BluetoothGattDescriptor.ENABLE_INDICATION_VALUE[0] &&
@@ -575,11 +701,37 @@ import no.nordicsemi.android.dfu.internal.scanner.BootloaderScannerFactory;
 	 */
 	void writeOpCode(@NonNull final BluetoothGattCharacteristic characteristic, @NonNull final byte[] value, final boolean reset)
             throws DeviceDisconnectedException, DfuException, UploadAbortedException {
+		final GattRequest request = createOpCodeRequest(characteristic, value, reset);
+
+		// We have to wait for confirmation
+		execute(request);
+		if (!mResetRequestSent && !mConnected)
+			throw new DeviceDisconnectedException("Unable to write Op Code " + value[0] + ": device disconnected", mError);
+		if (!mResetRequestSent && mError != 0)
+			throw new DfuException("Unable to write Op Code " + value[0], mError);
+		if (!mResetRequestSent && !request.isSuccessful())
+			throw new DfuException("Unable to write Op Code " + value[0], DfuBaseService.ERROR_CONNECTION_MASK | request.getStatus());
+	}
+
+	/**
+	 * Creates a request writing the operation code to the characteristic. The request is not
+	 * enqueued. Use {@link #execute(GattRequest)} to wait for the confirmation, or enqueue it
+	 * in {@link #mRequestQueue} to send another request right after it.
+	 *
+	 * @param characteristic the characteristic to write to. Should be the DFU CONTROL POINT
+	 * @param value          the value to write to the characteristic
+	 * @param reset          whether the command trigger restarting the device
+	 * @return The request.
+	 * @throws UploadAbortedException Thrown if DFU operation was aborted by user.
+	 */
+	@NonNull
+	GattRequest createOpCodeRequest(@NonNull final BluetoothGattCharacteristic characteristic,
+									@NonNull final byte[] value, final boolean reset)
+			throws UploadAbortedException {
 		if (mAborted)
 			throw new UploadAbortedException();
 		mReceivedData = null;
 		mError = 0;
-		mRequestCompleted = false;
 		/*
 		 * Sending a command that will make the DFU target to reboot may cause an error 133
 		 * (0x85 - Gatt Error). If so, with this flag set, the error will not be shown to the user
@@ -587,31 +739,25 @@ import no.nordicsemi.android.dfu.internal.scanner.BootloaderScannerFactory;
 		 * See: mGattCallback#onCharacteristicWrite(...) method
 		 */
 		mResetRequestSent = reset;
+		mOpCodeSentTime = SystemClock.elapsedRealtime();
 
-		mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_VERBOSE, "Writing to characteristic " + characteristic.getUuid()+ ", value (0x): " + parse(value));
+		if (mService.isLogLevelEnabled(DfuBaseService.LOG_LEVEL_VERBOSE))
+			mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_VERBOSE, "Writing to characteristic " + characteristic.getUuid()+ ", value (0x): " + parse(value));
 		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
-			mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_DEBUG, "gatt.writeCharacteristic(" + characteristic.getUuid() + ", value=0x" + parse(value) + ", WRITE_TYPE_DEFAULT)");
-			mGatt.writeCharacteristic(characteristic, value, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+			if (mService.isLogLevelEnabled(DfuBaseService.LOG_LEVEL_DEBUG))
+				mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_DEBUG, "gatt.writeCharacteristic(" + characteristic.getUuid() + ", value=0x" + parse(value) + ", WRITE_TYPE_DEFAULT)");
 		} else {
-			characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
-			characteristic.setValue(value);
 			mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_DEBUG, "gatt.writeCharacteristic(" + characteristic.getUuid() + ")");
-			mGatt.writeCharacteristic(characteristic);
-		}
-
-		// We have to wait for confirmation
-		try {
-			synchronized (mLock) {
-				while ((!mRequestCompleted && mConnected && mError == 0) || mPaused)
-					mLock.wait();
-			}
-		} catch (final InterruptedException e) {
-			loge("Sleeping interrupted", e);
 		}
-		if (!mResetRequestSent && !mConnected)
-			throw new DeviceDisconnectedException("Unable to write Op Code " + value[0] + ": device disconnected", mError);
-		if (!mResetRequestSent && mError != 0)
-			throw new DfuException("Unable to write Op Code " + value[0], mError);
+		final BluetoothGatt gatt = mGatt;
+		return new GattRequest(GattRequest.TYPE_WRITE_CHARACTERISTIC, characteristic.getUuid(),
+				"Writing Op Code " + value[0], () -> {
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU)
+				return gatt.writeCharacteristic(characteristic, value, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT) == BluetoothStatusCodes.SUCCESS;
+			characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+			characteristic.setValue(value);
+			return gatt.writeCharacteristic(characteristic);
+		});
 	}
 
 	/**
@@ -636,14 +782,8 @@ import no.nordicsemi.android.dfu.internal.scanner.BootloaderScannerFactory;
 		}
 
 		// We have to wait until device is bounded
-		try {
-			synchronized (mLock) {
-				while (result && !mRequestCompleted && !mAborted)
-					mLock.wait();
-			}
-		} catch (final InterruptedException e) {
-			loge("Sleeping interrupted", e);
-		}
+		if (result)
+			waitWhile(() -> !mRequestCompleted && !mAborted);
 		return result;
 	}
 
@@ -696,14 +836,7 @@ import no.nordicsemi.android.dfu.internal.scanner.BootloaderScannerFactory;
 			logw("Bond information " + (result ? "removed" : "NOT removed"));
 
             // We have to wait until device is unbounded
-            try {
-                synchronized (mLock) {
-                    while (!mRequestCompleted && !mAborted)
-                        mLock.wait();
-                }
-            } catch (final InterruptedException e) {
-                loge("Sleeping interrupted", e);
-            }
+			waitWhile(() -> !mRequestCompleted && !mAborted);
 		} catch (final Exception e) {
 			loge("An exception occurred while removing bond information", e);
 		}
@@ -752,26 +885,83 @@ import no.nordicsemi.android.dfu.internal.scanner.BootloaderScannerFactory;
 		}
 		if (mAborted)
 			throw new UploadAbortedException();
-		mRequestCompleted = false;
 
 		mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_VERBOSE, "Requesting new MTU...");
 		mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_DEBUG, "gatt.requestMtu(" + mtu + ")");
-		if (!mGatt.requestMtu(mtu))
+		final BluetoothGatt gatt = mGatt;
+		final GattRequest request = mRequestQueue.enqueue(
+				new GattRequest(GattRequest.TYPE_MTU, null, "MTU request", () -> gatt.requestMtu(mtu)));
+		if (request.isCompleted() && !request.isStarted())
 			return;
 
 		// We have to wait until the MTU exchange finishes
-		try {
-			synchronized (mLock) {
-				while ((!mRequestCompleted && mConnected && mError == 0) || mPaused)
-					mLock.wait();
-			}
-		} catch (final InterruptedException e) {
-			loge("Sleeping interrupted", e);
+		mMetrics.startPhase(DfuMetrics.PHASE_MTU_REQUEST);
+		if (!waitWhile(() -> (!request.isCompleted() && mConnected && mError == 0) || mPaused, mOperationTimeout)) {
+			// The MTU request is optional, let's try to continue with the current MTU
+			mRequestQueue.cancel(request);
+			logw("MTU request timed out");
+			mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_WARNING, "MTU request timed out");
 		}
+		mMetrics.endPhase(DfuMetrics.PHASE_MTU_REQUEST);
 		if (!mConnected)
 			throw new DeviceDisconnectedException("Unable to request MTU: device disconnected", mError);
 	}
 
+	/**
+	 * Requests the preferred PHY and waits for the result. This method is only supported on
+	 * Android Oreo or newer versions. If the PHY is not supported by any of the sides,
+	 * the current PHY will be kept.
+	 *
+	 * @param phyMask the PHY mask, a combination of BluetoothDevice.PHY_LE_*_MASK constants.
+	 */
+	@RequiresApi(api = Build.VERSION_CODES.O)
+	void requestPhy(final int phyMask)
+			throws DeviceDisconnectedException, UploadAbortedException {
+		if (mAborted)
+			throw new UploadAbortedException();
+		synchronized (mLock) {
+			mPhyUpdatePending = true;
+		}
+
+		mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_VERBOSE, "Requesting preferred PHY...");
+		mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_DEBUG, "gatt.setPreferredPhy(" + phyMask + ", " + phyMask + ", PHY_OPTION_NO_PREFERRED)");
+		mGatt.setPreferredPhy(phyMask, phyMask, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+
+		final long timeout = mOperationTimeout > 0 ? mOperationTimeout : PHY_UPDATE_TIMEOUT;
+		if (!waitWhile(() -> (mPhyUpdatePending && mConnected && mError == 0) || mPaused, timeout)) {
+			mPhyUpdatePending = false;
+			logw("PHY update not received");
+		}
+		if (!mConnected)
+			throw new DeviceDisconnectedException("Unable to request PHY: device disconnected", mError);
+	}
+
+	/**
+	 * Requests the MTU and the PHY set in the intent, waits for the results and records the
+	 * negotiated parameters. The size of the data packets is based on the negotiated MTU.
+	 * Unless disabled, the highest MTU supported by Android is requested.
+	 *
+	 * @param intent the intent used to start the service.
+	 */
+	void negotiateLinkParameters(@NonNull final Intent intent)
+			throws DeviceDisconnectedException, UploadAbortedException {
+		// Let's request the MTU requested by the user. It may be that a lower MTU will be used.
+		final int requiredMtu = intent.getIntExtra(DfuBaseService.EXTRA_MTU, DfuServiceInitiator.MAX_MTU);
+		if (requiredMtu > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+			logi("Requesting MTU = " + requiredMtu);
+			requestMtu(requiredMtu);
+		}
+		if (intent.hasExtra(DfuBaseService.EXTRA_PREFERRED_PHY) && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+			final int phyMask = intent.getIntExtra(DfuBaseService.EXTRA_PREFERRED_PHY, BluetoothDevice.PHY_LE_2M_MASK);
+			logi("Requesting PHY mask = " + phyMask);
+			requestPhy(phyMask);
+		}
+		final int mtu = mBuffer.length + 3;
+		mMetrics.setLinkParameters(mtu, mTxPhy, mRxPhy);
+		mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_INFO,
+				"Link parameters: MTU %d, TX PHY %d, RX PHY %d", mtu, mTxPhy, mRxPhy);
+	}
+
 	/**
 	 * Waits until the notification will arrive. Returns the data returned by the notification.
      * This method will block the thread until response is not ready or the device gets disconnected.
@@ -786,20 +976,18 @@ import no.nordicsemi.android.dfu.internal.scanner.BootloaderScannerFactory;
 	byte[] readNotificationResponse()
             throws DeviceDisconnectedException, DfuException, UploadAbortedException {
 		// do not clear the mReceiveData here. The response might already be obtained. Clear it in write request instead.
-		try {
-			synchronized (mLock) {
-				while ((mReceivedData == null && mConnected && mError == 0 && !mAborted) || mPaused)
-					mLock.wait();
-			}
-		} catch (final InterruptedException e) {
-			loge("Sleeping interrupted", e);
-		}
+		awaitOperation(() -> (mReceivedData == null && mConnected && mError == 0 && !mAborted) || mPaused,
+				"Waiting for a notification");
 		if (mAborted)
 			throw new UploadAbortedException();
 		if (!mConnected)
 			throw new DeviceDisconnectedException("Response not received: device disconnected", mError);
 		if (mError != 0)
 			throw new DfuException("Response not received", mError);
+		if (mOpCodeSentTime > 0) {
+			mMetrics.addControlPointRtt(SystemClock.elapsedRealtime() - mOpCodeSentTime);
+			mOpCodeSentTime = 0;
+		}
 		return mReceivedData;
 	}
 
@@ -816,12 +1004,28 @@ import no.nordicsemi.android.dfu.internal.scanner.BootloaderScannerFactory;
 			final long delay = intent.getLongExtra(DfuBaseService.EXTRA_SCAN_DELAY, 0);
 			final long timeout = intent.getLongExtra(DfuBaseService.EXTRA_SCAN_TIMEOUT, DfuServiceInitiator.DEFAULT_SCAN_TIMEOUT);
 			mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_VERBOSE, "Scanning for the DFU Bootloader... (timeout " + timeout + " ms)");
-			if (delay > 0)
-				mService.waitFor(delay);
-			logi("Scanning for the DFU Bootloader... (timeout " + timeout + " ms)");
-			newAddress = BootloaderScannerFactory
-					.getScanner(mGatt.getDevice().getAddress(), serviceUuid)
-					.searchUsing(mService.getDeviceSelector(), timeout);
+			final DfuDeviceSelector selector = mService.getDeviceSelector();
+			if (delay > 0) {
+				// Advertising packets with the original address may still come from the
+				// application, but the incremented address may only be used by the bootloader.
+				// Look for it during the reboot time, so the connection may start as soon as
+				// the bootloader advertises.
+				logi("Scanning for the DFU Bootloader with incremented address... (timeout " + delay + " ms)");
+				final long scanStart = SystemClock.elapsedRealtime();
+				newAddress = BootloaderScannerFactory
+						.getScanner(mGatt.getDevice().getAddress(), serviceUuid)
+						.searchUsing((device, rssi, scanRecord, originalAddress, incrementedAddress) ->
+								incrementedAddress.equals(device.getAddress()) &&
+								selector.matches(device, rssi, scanRecord, originalAddress, incrementedAddress), delay);
+				if (newAddress != null)
+					mMetrics.addReconnectTimeSaved(delay - (SystemClock.elapsedRealtime() - scanStart));
+			}
+			if (newAddress == null) {
+				logi("Scanning for the DFU Bootloader... (timeout " + timeout + " ms)");
+				newAddress = BootloaderScannerFactory
+						.getScanner(mGatt.getDevice().getAddress(), serviceUuid)
+						.searchUsing(selector, timeout);
+			}
 			logi("Scanning for new address finished with: " + newAddress);
 			if (newAddress != null)
 				mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_INFO, "DFU Bootloader found with address " + newAddress);
@@ -835,6 +1039,8 @@ import no.nordicsemi.android.dfu.internal.scanner.BootloaderScannerFactory;
 
 		// Reset the DFU attempt counter
 		intent.putExtra(DfuBaseService.EXTRA_DFU_ATTEMPT, 0);
+		// The device has switched to the bootloader mode
+		intent.putExtra(DfuBaseService.EXTRA_BOOTLOADER_RESTART, true);
 
 		final boolean foregroundService = intent.getBooleanExtra(DfuBaseService.EXTRA_FOREGROUND_SERVICE, true);
 		if (foregroundService && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
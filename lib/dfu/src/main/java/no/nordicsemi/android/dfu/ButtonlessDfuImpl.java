@@ -25,6 +25,7 @@ package no.nordicsemi.android.dfu;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.content.Intent;
+import android.os.SystemClock;
 
 import java.util.Locale;
 
@@ -136,7 +137,10 @@ import no.nordicsemi.android.error.SecureDfuError;
 				// "supervision timeout" seconds, which may be 5 more seconds.
 				if (shouldScanForBootloader()) {
 					// Why waiting? See: https://github.com/NordicSemiconductor/Android-DFU-Library/issues/444
-					mService.waitFor(500);
+					// If the device disconnects on its own earlier, there is no need to wait longer.
+					final long waitStart = SystemClock.elapsedRealtime();
+					if (mService.waitUntilDisconnected(500))
+						mMetrics.addReconnectTimeSaved(500 - (SystemClock.elapsedRealtime() - waitStart));
 
 					// If the device will use a different address in bootloader mode, there is no
 					// reason to wait for that. The library will immediately start scanning for the
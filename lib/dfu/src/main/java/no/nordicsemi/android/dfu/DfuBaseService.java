@@ -25,6 +25,7 @@ package no.nordicsemi.android.dfu;
 import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.app.IntentService;
+import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.bluetooth.BluetoothAdapter;
@@ -45,6 +46,9 @@ import android.graphics.Color;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.provider.MediaStore;
@@ -57,14 +61,19 @@ import androidx.core.content.ContextCompat;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
 import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import no.nordicsemi.android.dfu.internal.ArchiveInputStream;
+import no.nordicsemi.android.dfu.internal.FirmwareCache;
 import no.nordicsemi.android.dfu.internal.HexInputStream;
 import no.nordicsemi.android.dfu.internal.exception.DeviceDisconnectedException;
 import no.nordicsemi.android.dfu.internal.exception.DfuException;
@@ -100,6 +109,8 @@ import no.nordicsemi.android.error.GattError;
 @SuppressWarnings("deprecation")
 public abstract class DfuBaseService extends IntentService implements DfuProgressInfo.ProgressListener {
 	private static final String TAG = "DfuBaseService";
+	/** The name of the firmware cache directory in the app cache directory. */
+	private static final String FIRMWARE_CACHE_DIRECTORY = "dfu_firmware";
 
 	/* package */ static boolean DEBUG = false;
 
@@ -119,6 +130,25 @@ public abstract class DfuBaseService extends IntentService implements DfuProgres
 	 * Defaults to false.
 	 */
 	public static final String EXTRA_DISABLE_NOTIFICATION = "no.nordicsemi.android.dfu.extra.EXTRA_DISABLE_NOTIFICATION";
+	/**
+	 * A boolean indicating whether to disable {@link #BROADCAST_PROGRESS} and {@link #BROADCAST_ERROR}
+	 * broadcasts. Listeners registered using {@link DfuServiceListenerHelper} are notified
+	 * directly and do not require the broadcasts. Defaults to false.
+	 */
+	public static final String EXTRA_DISABLE_PROGRESS_BROADCASTS = "no.nordicsemi.android.dfu.extra.EXTRA_DISABLE_PROGRESS_BROADCASTS";
+	/**
+	 * The minimum time between progress reports while sending firmware, in milliseconds.
+	 * Defaults to 0.
+	 *
+	 * @see DfuServiceInitiator#setProgressReportingThresholds(long, int)
+	 */
+	public static final String EXTRA_PROGRESS_REPORT_INTERVAL = "no.nordicsemi.android.dfu.extra.EXTRA_PROGRESS_REPORT_INTERVAL";
+	/**
+	 * The minimum number of bytes sent between progress reports. Defaults to 0.
+	 *
+	 * @see DfuServiceInitiator#setProgressReportingThresholds(long, int)
+	 */
+	public static final String EXTRA_PROGRESS_REPORT_BYTES = "no.nordicsemi.android.dfu.extra.EXTRA_PROGRESS_REPORT_BYTES";
 	/**
 	 * A boolean indicating whether the DFU service should be set as a foreground service.
 	 * It is recommended to have it as a background service at least on Android Oreo or newer as
@@ -139,6 +169,11 @@ public abstract class DfuBaseService extends IntentService implements DfuProgres
 	 * retry to connect and continue. In case of Legacy DFU it will reconnect and restart process.
 	 */
 	/* package */ static final String EXTRA_DFU_ATTEMPT = "no.nordicsemi.android.dfu.extra.EXTRA_DFU_ATTEMPT";
+	/**
+	 * An extra private field indicating that the service was restarted after the target device
+	 * has switched to the bootloader mode, so the Service Changed indication may be expected.
+	 */
+	/* package */ static final String EXTRA_BOOTLOADER_RESTART = "no.nordicsemi.android.dfu.extra.EXTRA_BOOTLOADER_RESTART";
 	/**
 	 * Maximum number of DFU attempts. Default value is 0.
 	 */
@@ -225,6 +260,24 @@ public abstract class DfuBaseService extends IntentService implements DfuProgres
 	 * <a href="https://github.com/NordicSemiconductor/Android-DFU-Library/issues/71">#71</a>.
 	 */
 	public static final String EXTRA_DISABLE_RESUME = "no.nordicsemi.android.dfu.extra.EXTRA_DISABLE_RESUME";
+	/**
+	 * When set to true, Secure DFU keeps a resume journal for each device and firmware in the
+	 * app files directory. The journal holds the offset and CRC of the last executed data object, so that
+	 * an upload resumed in a new session doesn't have to read and hash the data sent before.
+	 * The default value is false.
+	 * <p>
+	 * It is ignored when Legacy DFU is used or resume is disabled.
+	 *
+	 * @see #EXTRA_DISABLE_RESUME
+	 */
+	public static final String EXTRA_RESUME_JOURNAL = "no.nordicsemi.android.dfu.extra.EXTRA_RESUME_JOURNAL";
+	/**
+	 * The maximum time, in milliseconds, to wait for a Service Changed indication after
+	 * connecting to a bonded device, before starting service discovery. Default: 4000 ms.
+	 *
+	 * @see DfuServiceInitiator#setServiceChangedWaitTime(long)
+	 */
+	public static final String EXTRA_SERVICE_CHANGED_WAIT_TIME = "no.nordicsemi.android.dfu.extra.EXTRA_SERVICE_CHANGED_WAIT_TIME";
 	/**
 	 * The MBR size.
 	 *
@@ -233,8 +286,9 @@ public abstract class DfuBaseService extends IntentService implements DfuProgres
 	public static final String EXTRA_MBR_SIZE = "no.nordicsemi.android.dfu.extra.EXTRA_MBR_SIZE";
 	/**
 	 * This extra allows you to control the MTU that will be requested (on Lollipop or newer devices).
-	 * If the field is null, the service will not request higher MTU and will use MTU = 23
-	 * (even if it has been set to a higher value before).
+	 * If the field is not set, the highest MTU supported by Android,
+	 * {@link DfuServiceInitiator#MAX_MTU}, is requested. If it is 0, the service will not request
+	 * higher MTU and will use MTU = 23 (even if it has been set to a higher value before).
 	 */
 	public static final String EXTRA_MTU = "no.nordicsemi.android.dfu.extra.EXTRA_MTU";
 	/**
@@ -242,6 +296,15 @@ public abstract class DfuBaseService extends IntentService implements DfuProgres
 	 * MTU has been requested before and may not be changed again. This value will be used instead.
 	 */
 	public static final String EXTRA_CURRENT_MTU = "no.nordicsemi.android.dfu.extra.EXTRA_CURRENT_MTU";
+	/**
+	 * The PHY mask (a combination of {@link BluetoothDevice#PHY_LE_1M_MASK},
+	 * {@link BluetoothDevice#PHY_LE_2M_MASK} and {@link BluetoothDevice#PHY_LE_CODED_MASK})
+	 * that will be requested (on Android Oreo or newer devices) before sending the firmware.
+	 * If not set, the PHY will not be requested.
+	 *
+	 * @see DfuServiceInitiator#setPreferredPhy(int)
+	 */
+	public static final String EXTRA_PREFERRED_PHY = "no.nordicsemi.android.dfu.extra.EXTRA_PREFERRED_PHY";
 	/**
 	 * Set this flag to true to enable experimental buttonless feature in Secure DFU from SDK 12.
 	 * When the experimental Buttonless DFU Service is found on a device, the service will use it to
@@ -278,6 +341,39 @@ public abstract class DfuBaseService extends IntentService implements DfuProgres
 	 * in milliseconds. This defaults to 0 for backwards compatibility reason.
 	 */
 	public static final String EXTRA_DATA_OBJECT_DELAY = "no.nordicsemi.android.dfu.extra.EXTRA_DATA_OBJECT_DELAY";
+	/**
+	 * A boolean indicating whether the Create request for the next data object should be sent
+	 * right after the Execute request for the previous one, without waiting for the Execute
+	 * response first. This saves one round trip per data object in Secure DFU. Default: false.
+	 * <p>
+	 * Only bootloaders that handle control point requests in order support this mode.
+	 */
+	public static final String EXTRA_PIPELINE_DATA_OBJECTS = "no.nordicsemi.android.dfu.extra.EXTRA_PIPELINE_DATA_OBJECTS";
+	/**
+	 * The maximum time, in milliseconds, to wait for a confirmation or a response to a single
+	 * GATT operation, e.g. writing an Op Code or receiving a control point notification.
+	 * When the time elapses, the DFU fails with {@link #ERROR_OPERATION_TIMEOUT}.
+	 * This defaults to 0, which disables the timeout.
+	 */
+	public static final String EXTRA_OPERATION_TIMEOUT = "no.nordicsemi.android.dfu.extra.EXTRA_OPERATION_TIMEOUT";
+	/**
+	 * The maximum time, in milliseconds, without a packet being sent or a Packet Receipt
+	 * Notification received while streaming firmware. When it elapses, Secure DFU resumes
+	 * the upload from the offset reported by the target, and Legacy DFU fails with
+	 * {@link #ERROR_OPERATION_TIMEOUT}. This defaults to 0, which disables the watchdog.
+	 */
+	public static final String EXTRA_PACKET_STALL_TIMEOUT = "no.nordicsemi.android.dfu.extra.EXTRA_PACKET_STALL_TIMEOUT";
+	/**
+	 * The maximum size of the firmware cache, in bytes. ZIP files extracted and converted to BIN
+	 * are kept in the app cache directory, so that they don't have to be parsed again when
+	 * the same file is sent to another device. This defaults to 0, which disables the cache.
+	 */
+	public static final String EXTRA_FIRMWARE_CACHE_SIZE = "no.nordicsemi.android.dfu.extra.EXTRA_FIRMWARE_CACHE_SIZE";
+	/**
+	 * An extra private field indicating that the firmware may be sent to other devices at
+	 * the same time by other services, see {@link DfuServicePool}.
+	 */
+	/* package */ static final String EXTRA_FIRMWARE_SHARED = "no.nordicsemi.android.dfu.extra.EXTRA_FIRMWARE_SHARED";
 	/**
 	 * This property must contain a boolean value.
 	 * <p>
@@ -316,6 +412,43 @@ public abstract class DfuBaseService extends IntentService implements DfuProgres
 	 * @see #EXTRA_PACKET_RECEIPT_NOTIFICATIONS_ENABLED
 	 */
 	public static final String EXTRA_PACKET_RECEIPT_NOTIFICATIONS_VALUE = "no.nordicsemi.android.dfu.extra.EXTRA_PRN_VALUE";
+	/**
+	 * A boolean indicating whether the Packet Receipt Notification value should be adjusted
+	 * during the update in Secure DFU. When enabled, the PRN value is halved each time some bytes
+	 * were lost and increased again after data objects sent without losses, instead of being set
+	 * to 1 for the rest of the update. Default: false.
+	 *
+	 * @see #EXTRA_PACKET_RECEIPT_NOTIFICATIONS_VALUE
+	 */
+	public static final String EXTRA_PACKET_RECEIPT_NOTIFICATIONS_ADAPTIVE = "no.nordicsemi.android.dfu.extra.EXTRA_PRN_ADAPTIVE";
+	/**
+	 * A boolean indicating whether the Packet Receipt Notification value should be sized from
+	 * the negotiated packet size, so that about 4 kB of firmware is sent between notifications,
+	 * but no fewer packets than {@link #EXTRA_PACKET_RECEIPT_NOTIFICATIONS_VALUE}. Default: false.
+	 *
+	 * @see #EXTRA_PACKET_RECEIPT_NOTIFICATIONS_VALUE
+	 */
+	public static final String EXTRA_PACKET_RECEIPT_NOTIFICATIONS_FROM_LINK = "no.nordicsemi.android.dfu.extra.EXTRA_PRN_FROM_LINK";
+	/**
+	 * A boolean indicating whether the Legacy DFU fast mode is enabled. In this mode the
+	 * Packet Receipt Notification value is increased from update to update, for each device
+	 * model, until the bootloader reports Operation Failed. The upload is then restarted with the
+	 * highest value that worked, and values between the two are tried after following successful
+	 * updates. The packets are still written without response. Default: false.
+	 * <p>
+	 * It is ignored in Secure DFU, or when the PRNs are disabled.
+	 *
+	 * @see #EXTRA_LEGACY_DFU_DEVICE_MODEL
+	 */
+	public static final String EXTRA_LEGACY_DFU_FAST_MODE = "no.nordicsemi.android.dfu.extra.EXTRA_LEGACY_DFU_FAST_MODE";
+	/**
+	 * An optional String identifying the device model in the Legacy DFU fast mode, for example
+	 * the model number and hardware revision. The PRN values learned are shared by devices
+	 * with the same model and DFU Version.
+	 *
+	 * @see #EXTRA_LEGACY_DFU_FAST_MODE
+	 */
+	public static final String EXTRA_LEGACY_DFU_DEVICE_MODEL = "no.nordicsemi.android.dfu.extra.EXTRA_LEGACY_DFU_DEVICE_MODEL";
 	/**
 	 * A path to the file with the new firmware. It may point to a HEX, BIN or a ZIP file.
 	 * Some file manager applications return the path as a String while other return a Uri.
@@ -642,6 +775,12 @@ public abstract class DfuBaseService extends IntentService implements DfuProgres
 	 * Check <a href="https://github.com/NordicSemiconductor/Android-DFU-Library/issues/229">Issue 229</a>
 	 */
 	public static final int ERROR_PROGRESS_LOST = ERROR_MASK | 0x0F;
+	/**
+	 * Thrown when the DFU target did not respond to a request, or the firmware upload stalled,
+	 * within the time set using {@link DfuServiceInitiator#setOperationTimeout(long)} or
+	 * {@link DfuServiceInitiator#setPacketStallTimeout(long)}.
+	 */
+	public static final int ERROR_OPERATION_TIMEOUT = ERROR_MASK | 0x10;
 	/**
 	 * Flag set when the DFU target returned a DFU error. Look for DFU specification to get error
 	 * codes. The error code is binary OR-ed with one of: {@link #ERROR_REMOTE_TYPE_LEGACY},
@@ -672,10 +811,30 @@ public abstract class DfuBaseService extends IntentService implements DfuProgres
 	 * {@link #LOG_LEVEL_WARNING}, {@link #LOG_LEVEL_ERROR}</li>
 	 * <li>{@link #EXTRA_LOG_MESSAGE} - The log message</li>
 	 * </ul>
+	 * If batching was enabled with {@link #EXTRA_LOG_BATCHING}, each broadcast contains
+	 * one or more events in {@link #EXTRA_LOG_LEVELS} and {@link #EXTRA_LOG_MESSAGES} instead.
+	 * Events below the level set with {@link #EXTRA_LOG_MIN_LEVEL} are not broadcast.
 	 */
 	public static final String BROADCAST_LOG = "no.nordicsemi.android.dfu.broadcast.BROADCAST_LOG";
 	public static final String EXTRA_LOG_MESSAGE = "no.nordicsemi.android.dfu.extra.EXTRA_LOG_INFO";
 	public static final String EXTRA_LOG_LEVEL = "no.nordicsemi.android.dfu.extra.EXTRA_LOG_LEVEL";
+	/** An array of log messages sent in a batched {@link #BROADCAST_LOG} broadcast. */
+	public static final String EXTRA_LOG_MESSAGES = "no.nordicsemi.android.dfu.extra.EXTRA_LOG_MESSAGES";
+	/** An array of log levels of messages sent in a batched {@link #BROADCAST_LOG} broadcast. */
+	public static final String EXTRA_LOG_LEVELS = "no.nordicsemi.android.dfu.extra.EXTRA_LOG_LEVELS";
+	/**
+	 * The lowest level of log events that are broadcast. Events below it are ignored before
+	 * the message is created. The default value is {@link #LOG_LEVEL_DEBUG}, that is all events
+	 * are broadcast.
+	 */
+	public static final String EXTRA_LOG_MIN_LEVEL = "no.nordicsemi.android.dfu.extra.EXTRA_LOG_MIN_LEVEL";
+	/**
+	 * When set to true, log events are queued and sent from a background thread, with multiple
+	 * events in a single {@link #BROADCAST_LOG} broadcast. If more than 256 events are queued,
+	 * the oldest ones are dropped. The default value is false, that is each event is broadcast
+	 * immediately with {@link #EXTRA_LOG_LEVEL} and {@link #EXTRA_LOG_MESSAGE} extras.
+	 */
+	public static final String EXTRA_LOG_BATCHING = "no.nordicsemi.android.dfu.extra.EXTRA_LOG_BATCHING";
 	/*
 	 * Note:
 	 * The nRF Logger API library has been excluded from the DfuLibrary.
@@ -719,6 +878,14 @@ public abstract class DfuBaseService extends IntentService implements DfuProgres
 	 * {@link #ACTION_RESUME}, {@link #ACTION_ABORT}.
 	 */
 	public static final String EXTRA_ACTION = "no.nordicsemi.android.dfu.extra.EXTRA_ACTION";
+	/**
+	 * The name of the service class that sent the progress or error broadcast. When added to
+	 * the {@link #BROADCAST_ACTION}, only the service with this class will handle the action.
+	 * Otherwise, the action is handled by all running DFU services.
+	 *
+	 * @see DfuServicePool
+	 */
+	public static final String EXTRA_SERVICE_CLASS_NAME = "no.nordicsemi.android.dfu.extra.EXTRA_SERVICE_CLASS_NAME";
 	/**
 	 * Pauses the upload. The service will wait for broadcasts with the action set to
 	 * {@link #ACTION_RESUME} or {@link #ACTION_ABORT}.
@@ -754,6 +921,25 @@ public abstract class DfuBaseService extends IntentService implements DfuProgres
 	private String mDeviceAddress;
 	private String mDeviceName;
 	private boolean mDisableNotification;
+	private boolean mDisableProgressBroadcasts;
+	/** The maximum time to wait for the Service Changed indication on bonded devices. */
+	private long mServiceChangedWaitTime;
+	/** The time when waiting for the Service Changed indication was started, or 0. */
+	private long mServiceChangedWaitStart;
+	/** True if service discovery was started without receiving the Service Changed indication. */
+	private boolean mServiceChangedWaitTimedOut;
+	/** True if the service was restarted after the device has switched to the bootloader mode. */
+	private boolean mBootloaderRestart;
+	/**
+	 * True if services will be discovered again when the current service discovery completes,
+	 * after a late Service Changed indication. Guarded by {@link #mLock}.
+	 */
+	private boolean mServiceRediscoveryPending;
+	/**
+	 * True if the discovered services are used by the DFU implementation and may not be
+	 * discovered again. Guarded by {@link #mLock}.
+	 */
+	private boolean mServicesInUse;
 
 	/**
 	 * The handler running on the main looper.
@@ -774,23 +960,52 @@ public abstract class DfuBaseService extends IntentService implements DfuProgres
 	 * The number of the last error that has occurred or 0 if there was no error
 	 */
 	private int mError;
+	/* package */ DfuProgressInfo mProgressInfo;
+	/** Timings of the current service run. */
+	/* package */ DfuMetrics mMetrics;
 	/**
-	 * Stores the last progress percent. Used to prevent from sending progress notifications with
-	 * the same value.
+	 * The thread on which notifications are posted to the Notification Manager, so that the
+	 * caller, which may be the GATT callback thread sending packets, does not wait for it.
 	 */
-	private int mLastProgress = 0;
-	/* package */ DfuProgressInfo mProgressInfo;
+	private HandlerThread mNotificationThread;
+	private Handler mNotificationHandler;
+	/** The lock guarding the notification fields below. */
+	private final Object mNotificationLock = new Object();
 	private long mLastNotificationTime;
+	/** The latest notification waiting to be posted, or null. */
+	private Notification mPendingNotification;
+	/** The builder reused for progress notifications of the current run. */
+	private NotificationCompat.Builder mProgressNotificationBuilder;
+	/** The cached content intent of the progress notification and the progress state it was created for. */
+	private PendingIntent mProgressNotificationIntent;
+	private int mProgressNotificationIntentProgress;
+	/** The cached Abort action intent. */
+	private PendingIntent mAbortPendingIntent;
 
 	/** Flag set to true if sending was aborted. */
 	private boolean mAborted;
 
 	private DfuCallback mDfuServiceImpl;
 	private InputStream mFirmwareInputStream, mInitFileInputStream;
+	/** The cache of extracted ZIP files, or null if disabled and the firmware is not shared. */
+	@Nullable
+	private FirmwareCache mFirmwareCache;
+	/**
+	 * The queue of log events to be broadcast, created only for the time of a DFU operation
+	 * with batching enabled.
+	 */
+	private volatile LogBroadcastQueue mLogQueue;
+	/** The lowest level of log events that are broadcast. */
+	private volatile int mLogMinLevel = LOG_LEVEL_DEBUG;
 
 	private final BroadcastReceiver mDfuActionReceiver = new BroadcastReceiver() {
 		@Override
 		public void onReceive(final Context context, final Intent intent) {
+			// Ignore actions sent to other DFU services
+			final String target = intent.getStringExtra(EXTRA_SERVICE_CLASS_NAME);
+			if (target != null && !target.equals(DfuBaseService.this.getClass().getName()))
+				return;
+
 			final int action = intent.getIntExtra(EXTRA_ACTION, 0);
 
 			logi("User action received: " + action);
@@ -903,9 +1118,15 @@ public abstract class DfuBaseService extends IntentService implements DfuProgres
 					 * On bonded devices the Service Changed indication will be sent to
 					 * indicate that the services has changed.
 					 *
-					 * The code below will wait 4 seconds for the indication, or continue
+					 * The code below will wait 4 seconds (by default) for the indication, or continue
 					 * with service discovery immediately when the indication is received.
-					 * See "onServiceChanged" method below.
+					 * See "onServiceChanged" method below. The wait is limited to the time learned
+					 * from previous connections to the device, if it sent the indication before,
+					 * or shortened if it didn't send it a few times in a row after switching to
+					 * the bootloader mode. If the indication comes later, services are discovered
+					 * again. See ServiceChangedWaitCache. The indication is reported to the app only
+					 * since Android 12 (see onServiceChanged below), so on older versions the wait
+					 * can't be learned and the fixed wait time is used.
 					 *
 					 * It was tested using Pixel 7 with Android 15 using SDK 11 and 17.1, that
 					 * at least around 4 seconds are required. When service discovery is started
@@ -913,15 +1134,31 @@ public abstract class DfuBaseService extends IntentService implements DfuProgres
 					 * On SDK 11 the SC indication is received after service discovery is started,
 					 * but this seems not to cause any issues.
 					 */
-					if (gatt.getDevice().getBondState() == BluetoothDevice.BOND_BONDED) {
-						logi("Waiting 4000 ms for a possible Service Changed indication...");
+					mMetrics.endPhase(DfuMetrics.PHASE_CONNECT);
+					final boolean learnWaitTime = Build.VERSION.SDK_INT >= Build.VERSION_CODES.S;
+					final long waitTime = learnWaitTime ?
+							ServiceChangedWaitCache.getWaitTime(gatt.getDevice().getAddress(), mServiceChangedWaitTime) :
+							mServiceChangedWaitTime;
+					if (gatt.getDevice().getBondState() == BluetoothDevice.BOND_BONDED && waitTime > 0) {
+						logi("Waiting " + waitTime + " ms for a possible Service Changed indication...");
+						mMetrics.startPhase(DfuMetrics.PHASE_SERVICE_CHANGED_WAIT);
+						mServiceChangedWaitStart = SystemClock.elapsedRealtime();
+						mServiceChangedWaitTimedOut = false;
 						mHandler.postDelayed(() -> {
 							if (mConnectionState != STATE_CONNECTING)
 								return;
+							// The start time is kept to detect a late indication
+							mServiceChangedWaitTimedOut = true;
+							// In the app mode the indication isn't expected, so only connections
+							// to the bootloader are counted
+							if (learnWaitTime && mBootloaderRestart)
+								ServiceChangedWaitCache.onNoIndication(gatt.getDevice().getAddress());
 							mConnectionState = STATE_CONNECTED;
 							discoverServices(gatt);
-						}, 4000);
+						}, waitTime);
 					} else {
+						mServiceChangedWaitStart = 0;
+						mServiceChangedWaitTimedOut = false;
 						mConnectionState = STATE_CONNECTED;
 						discoverServices(gatt);
 					}
@@ -953,6 +1190,16 @@ public abstract class DfuBaseService extends IntentService implements DfuProgres
 
 		@Override
 		public void onServicesDiscovered(final BluetoothGatt gatt, final int status) {
+			mMetrics.endPhase(DfuMetrics.PHASE_SERVICE_DISCOVERY);
+			final boolean rediscoveryPending;
+			synchronized (mLock) {
+				rediscoveryPending = mServiceRediscoveryPending && status == BluetoothGatt.GATT_SUCCESS;
+				mServiceRediscoveryPending = false;
+			}
+			if (rediscoveryPending) {
+				startRediscovery(gatt);
+				return;
+			}
 			if (status == BluetoothGatt.GATT_SUCCESS) {
 				logi("Services discovered");
 				mConnectionState = STATE_CONNECTED_AND_READY;
@@ -976,16 +1223,64 @@ public abstract class DfuBaseService extends IntentService implements DfuProgres
 		// https://cs.android.com/android/_/android/platform/packages/modules/Bluetooth/+/f36b9b5d686e8bf02a1d9fd482324037ebf2310f
 		@Override
 		public void onServiceChanged(@NonNull final BluetoothGatt gatt) {
-			if (mConnectionState != STATE_CONNECTING)
+			if (mConnectionState != STATE_CONNECTING) {
+				// The indication came after the wait has ended, the next wait must be longer
+				if (mServiceChangedWaitTimedOut && mServiceChangedWaitStart > 0) {
+					final long delay = SystemClock.elapsedRealtime() - mServiceChangedWaitStart;
+					logw("Service Changed indication received after " + delay + " ms, too late");
+					ServiceChangedWaitCache.onLateIndication(gatt.getDevice().getAddress(), delay);
+					mServiceChangedWaitStart = 0;
+					mServiceChangedWaitTimedOut = false;
+					rediscoverServices(gatt);
+				}
 				return;
+			}
 			logi("Service Changed indication received");
 			sendLogBroadcast(LOG_LEVEL_INFO, "Service Changed indication received");
+			if (mServiceChangedWaitStart > 0) {
+				ServiceChangedWaitCache.onIndicationReceived(gatt.getDevice().getAddress(),
+						SystemClock.elapsedRealtime() - mServiceChangedWaitStart);
+				mServiceChangedWaitStart = 0;
+			}
 			mConnectionState = STATE_CONNECTED;
 			// Apparently, adding a delay here solves a connectivity issue for micro:bit v1.
 			// See: https://github.com/NordicSemiconductor/Android-DFU-Library/issues/500
 			mHandler.postDelayed(() -> discoverServices(gatt), 1000); // minimum 550 ms
 		}
 
+		/**
+		 * Discovers services again, unless the DFU implementation is already using them.
+		 * If service discovery is in progress, it's repeated when it completes.
+		 * The service thread waits until services are discovered.
+		 */
+		private void rediscoverServices(@NonNull final BluetoothGatt gatt) {
+			synchronized (mLock) {
+				if (mServicesInUse)
+					return;
+				if (mConnectionState == STATE_CONNECTED) {
+					mServiceRediscoveryPending = true;
+					return;
+				}
+				if (mConnectionState != STATE_CONNECTED_AND_READY)
+					return;
+				mConnectionState = STATE_CONNECTED;
+			}
+			startRediscovery(gatt);
+		}
+
+		/**
+		 * Refreshes the device cache and starts service discovery, with the same delay as after
+		 * the Service Changed indication received in time.
+		 */
+		private void startRediscovery(@NonNull final BluetoothGatt gatt) {
+			sendLogBroadcast(LOG_LEVEL_INFO, "Services have changed, discovering services again");
+			refreshDeviceCache(gatt, true);
+			mHandler.postDelayed(() -> {
+				if (mConnectionState == STATE_CONNECTED)
+					discoverServices(gatt);
+			}, 1000);
+		}
+
 		/**
 		 * Initiates service discovery on the target device.
 		 * <p>
@@ -993,6 +1288,8 @@ public abstract class DfuBaseService extends IntentService implements DfuProgres
 		 * @param gatt the GATT client
 		 */
 		private void discoverServices(@NonNull final BluetoothGatt gatt) {
+			mMetrics.endPhase(DfuMetrics.PHASE_SERVICE_CHANGED_WAIT);
+			mMetrics.startPhase(DfuMetrics.PHASE_SERVICE_DISCOVERY);
 			sendLogBroadcast(LOG_LEVEL_VERBOSE, "Discovering services...");
 			sendLogBroadcast(LOG_LEVEL_DEBUG, "gatt.discoverServices()");
 			final boolean success = gatt.discoverServices();
@@ -1069,6 +1366,9 @@ public abstract class DfuBaseService extends IntentService implements DfuProgres
 		super.onCreate();
 
 		mHandler = new Handler();
+		mNotificationThread = new HandlerThread("DfuNotificationThread", Process.THREAD_PRIORITY_BACKGROUND);
+		mNotificationThread.start();
+		mNotificationHandler = new Handler(mNotificationThread.getLooper());
 
 		DEBUG = isDebug();
 		logi("DFU service created. Version: " + BuildConfig.VERSION_NAME);
@@ -1124,6 +1424,10 @@ public abstract class DfuBaseService extends IntentService implements DfuProgres
 		unregisterReceiver(mBondStateBroadcastReceiver);
 		unregisterReceiver(mBluetoothStateBroadcastReceiver);
 
+		mNotificationThread.quitSafely();
+		mNotificationThread = null;
+		mNotificationHandler = null;
+
 		try {
 			// Ensure that input stream is always closed
 			if (mFirmwareInputStream != null)
@@ -1143,17 +1447,29 @@ public abstract class DfuBaseService extends IntentService implements DfuProgres
 	protected void onHandleIntent(@Nullable final Intent intent) {
 		if (intent == null)
 			return;
+		mLogMinLevel = intent.getIntExtra(EXTRA_LOG_MIN_LEVEL, LOG_LEVEL_DEBUG);
+		if (intent.getBooleanExtra(EXTRA_LOG_BATCHING, false))
+			mLogQueue = new LogBroadcastQueue(this);
+		try {
+			handleDfuIntent(intent);
+		} finally {
+			final LogBroadcastQueue queue = mLogQueue;
+			mLogQueue = null;
+			if (queue != null)
+				queue.close();
+		}
+	}
+
+	private void handleDfuIntent(@NonNull final Intent intent) {
 		// Read input parameters
 		final String deviceAddress = intent.getStringExtra(EXTRA_DEVICE_ADDRESS);
 		final String deviceName = intent.getStringExtra(EXTRA_DEVICE_NAME);
 		final boolean disableNotification = intent.getBooleanExtra(EXTRA_DISABLE_NOTIFICATION, false);
+		final boolean disableProgressBroadcasts = intent.getBooleanExtra(EXTRA_DISABLE_PROGRESS_BROADCASTS, false);
 		final boolean foregroundService = intent.getBooleanExtra(EXTRA_FOREGROUND_SERVICE, true);
 		final String filePath = intent.getStringExtra(EXTRA_FILE_PATH);
 		final Uri fileUri = intent.getParcelableExtra(EXTRA_FILE_URI);
 		final int fileResId = intent.getIntExtra(EXTRA_FILE_RES_ID, 0);
-		final String initFilePath = intent.getStringExtra(EXTRA_INIT_FILE_PATH);
-		final Uri initFileUri = intent.getParcelableExtra(EXTRA_INIT_FILE_URI);
-		final int initFileResId = intent.getIntExtra(EXTRA_INIT_FILE_RES_ID, 0);
 		int fileType = intent.getIntExtra(EXTRA_FILE_TYPE, TYPE_AUTO);
 		if (filePath != null && fileType == TYPE_AUTO)
 			fileType = filePath.toLowerCase(Locale.US).endsWith("zip") ? TYPE_AUTO : TYPE_APPLICATION;
@@ -1196,8 +1512,20 @@ public abstract class DfuBaseService extends IntentService implements DfuProgres
 		mDeviceAddress = deviceAddress;
 		mDeviceName = deviceName;
 		mDisableNotification = disableNotification;
+		mDisableProgressBroadcasts = disableProgressBroadcasts;
+		mServiceChangedWaitTime = intent.getLongExtra(EXTRA_SERVICE_CHANGED_WAIT_TIME, DfuServiceInitiator.DEFAULT_SERVICE_CHANGED_WAIT_TIME);
+		mBootloaderRestart = intent.getBooleanExtra(EXTRA_BOOTLOADER_RESTART, false);
+		synchronized (mLock) {
+			mServiceRediscoveryPending = false;
+			mServicesInUse = false;
+		}
 		mConnectionState = STATE_DISCONNECTED;
 		mError = 0;
+		mMetrics = new DfuMetrics(deviceAddress);
+		// The content intent of the progress notification contains the device address
+		synchronized (mNotificationLock) {
+			mProgressNotificationIntent = null;
+		}
 
 		// The Soft Device starts where MBR ends (by default from the address 0x1000).
 		// Before there is a MBR section, which should not be transmitted over DFU.
@@ -1220,121 +1548,28 @@ public abstract class DfuBaseService extends IntentService implements DfuProgres
 				mbrSize = 0;
 		}
 
+		final long firmwareCacheSize = intent.getLongExtra(EXTRA_FIRMWARE_CACHE_SIZE, 0);
+		// Firmware from ZIP files is saved on disk, if enabled, and shared with other DFU
+		// services in this process. Otherwise, the ZIP file is read directly, as it does not
+		// have to be hashed.
+		if (firmwareCacheSize > 0)
+			mFirmwareCache = new FirmwareCache(new File(getCacheDir(), FIRMWARE_CACHE_DIRECTORY), firmwareCacheSize);
+		else if (intent.getBooleanExtra(EXTRA_FIRMWARE_SHARED, false))
+			mFirmwareCache = new FirmwareCache();
+		else
+			mFirmwareCache = null;
+
 		sendLogBroadcast(LOG_LEVEL_VERBOSE, "DFU service started");
 
-		/*
-		 * First the service is trying to read the firmware and init packet files.
-		 */
-		InputStream is = mFirmwareInputStream;
-		InputStream initIs = mInitFileInputStream;
+		final String firmwareMimeType = mimeType;
+		final int firmwareMbrSize = mbrSize;
+		final int firmwareFileType = fileType;
+		FutureTask<PreparedFirmware> preparation = null;
 		try {
-			final boolean firstRun = mFirmwareInputStream == null;
-
-			// Prepare data to send, calculate stream size
-			try {
-				if (firstRun) {
-					// The files are opened only once, when DFU service is first started.
-					// In case the service needs to be restarted (for example a buttonless service
-					// was found or to send Application in the second connection) the input stream
-					// is kept as a global service field. This is to avoid SecurityException
-					// when the URI was granted with one-time read permission.
-					// See: Intent#FLAG_GRANT_READ_URI_PERMISSION (https://developer.android.com/reference/android/content/Intent.html#FLAG_GRANT_READ_URI_PERMISSION).
-					sendLogBroadcast(LOG_LEVEL_VERBOSE, "Opening file...");
-					if (fileUri != null) {
-						is = openInputStream(fileUri, mimeType, mbrSize, fileType);
-					} else if (filePath != null) {
-						is = openInputStream(filePath, mimeType, mbrSize, fileType);
-					} else if (fileResId > 0) {
-						is = openInputStream(fileResId, mimeType, mbrSize, fileType);
-					}
-					assert is != null;
-
-					// The Init file Input Stream is kept global only in case it was provided
-					// as an argument (separate file for HEX/BIN and DAT files).
-					// If a ZIP file was given with DAT file(s) inside it will be taken from the ZIP
-					// ~20 lines below.
-					if (initFileUri != null) {
-						// Try to read the Init Packet file from URI
-						initIs = getContentResolver().openInputStream(initFileUri);
-					} else if (initFilePath != null) {
-						// Try to read the Init Packet file from path
-						initIs = new FileInputStream(initFilePath);
-					} else if (initFileResId > 0) {
-						// Try to read the Init Packet file from given resource
-						initIs = getResources().openRawResource(initFileResId);
-					}
-
-					final int imageSizeInBytes = is.available();
-					if ((imageSizeInBytes % 4) != 0)
-						throw new SizeValidationException("The new firmware is not word-aligned.");
-				}
-
-				// Update the file type bit field basing on the ZIP content
-				if (MIME_TYPE_ZIP.equals(mimeType)) {
-					final ArchiveInputStream zhis = (ArchiveInputStream) is;
-					if (fileType == TYPE_AUTO) {
-						fileType = zhis.getContentType();
-					} else {
-						fileType = zhis.setContentType(fileType);
-					}
-
-					// Validate sizes
-					if ((fileType & TYPE_APPLICATION) > 0 && (zhis.applicationImageSize() % 4) != 0)
-						throw new SizeValidationException("Application firmware is not word-aligned.");
-					if ((fileType & TYPE_BOOTLOADER) > 0 && (zhis.bootloaderImageSize() % 4) != 0)
-						throw new SizeValidationException("Bootloader firmware is not word-aligned.");
-					if ((fileType & TYPE_SOFT_DEVICE) > 0 && (zhis.softDeviceImageSize() % 4) != 0)
-						throw new SizeValidationException("Soft Device firmware is not word-aligned.");
-
-					if (fileType == TYPE_APPLICATION) {
-						if (zhis.getApplicationInit() != null)
-							initIs = new ByteArrayInputStream(zhis.getApplicationInit());
-					} else {
-						if (zhis.getSystemInit() != null)
-							initIs = new ByteArrayInputStream(zhis.getSystemInit());
-					}
-				}
-
-				// Mark the beginning of the streams. In case the service is restarted, it should
-				// re-upload again the whole file.
-				if (firstRun) {
-					// The input streams will be reset in initialize(), keep
-					is.mark(is.available());
-					if (initIs != null)
-						initIs.mark(initIs.available());
-				}
-
-				mFirmwareInputStream = is;
-				mInitFileInputStream = initIs;
-				sendLogBroadcast(LOG_LEVEL_INFO, "Firmware file opened successfully");
-			} catch (final SecurityException e) {
-				loge("A security exception occurred while opening file", e);
-				sendLogBroadcast(LOG_LEVEL_ERROR, "Opening file failed: Permission required");
-				report(ERROR_FILE_NOT_FOUND);
-				return;
-			} catch (final FileNotFoundException e) {
-				loge("An exception occurred while opening file", e);
-				sendLogBroadcast(LOG_LEVEL_ERROR, "Opening file failed: File not found");
-				report(ERROR_FILE_NOT_FOUND);
-				return;
-			} catch (final SizeValidationException e) {
-				loge("Firmware not word-aligned", e);
-				sendLogBroadcast(LOG_LEVEL_ERROR, "Opening file failed: Firmware size must be word-aligned");
-				report(ERROR_FILE_SIZE_INVALID);
-				return;
-			} catch (final IOException e) {
-				loge("An exception occurred while calculating file size", e);
-				sendLogBroadcast(LOG_LEVEL_ERROR, "Opening file failed: " + e.getLocalizedMessage());
-				report(ERROR_FILE_ERROR);
-				return;
-			} catch (final Exception e) {
-				loge("An exception occurred while opening files. Did you set the firmware file?", e);
-				sendLogBroadcast(LOG_LEVEL_ERROR, "Opening file failed: " + e.getLocalizedMessage());
-				report(ERROR_FILE_ERROR);
-				return;
-			}
-
 			mProgressInfo = new DfuProgressInfo(this);
+			mProgressInfo.setReportingThresholds(
+					intent.getLongExtra(EXTRA_PROGRESS_REPORT_INTERVAL, 0),
+					intent.getIntExtra(EXTRA_PROGRESS_REPORT_BYTES, 0));
 
 			if (mAborted) {
 				logw("Upload aborted");
@@ -1343,6 +1578,14 @@ public abstract class DfuBaseService extends IntentService implements DfuProgres
 				return;
 			}
 
+			/*
+			 * The firmware and init packet files are read on a background thread, while connecting
+			 * to the device, as both may take some time.
+			 */
+			preparation = new FutureTask<>(() ->
+					prepareFirmware(intent, firmwareMimeType, firmwareMbrSize, firmwareFileType));
+			new Thread(preparation, "DfuFilePreparation").start();
+
 			/*
 			 * Now let's connect to the device.
 			 * All the methods below are synchronous. The mLock object is used to wait for asynchronous calls.
@@ -1351,8 +1594,35 @@ public abstract class DfuBaseService extends IntentService implements DfuProgres
 			mProgressInfo.setProgress(PROGRESS_CONNECTING);
 
 			final long before = SystemClock.elapsedRealtime();
+			mMetrics.startPhase(DfuMetrics.PHASE_CONNECT);
 			final BluetoothGatt gatt = connect(deviceAddress);
 			final long after = SystemClock.elapsedRealtime();
+
+			// Wait until the firmware is ready. The result is needed also when the service is
+			// restarted after a connection error, as the files are opened only once.
+			final PreparedFirmware firmware;
+			try {
+				firmware = preparation.get();
+			} catch (final ExecutionException | InterruptedException e) {
+				final int error = onFilePreparationFailed(e instanceof ExecutionException ? e.getCause() : e);
+				if (gatt != null) {
+					terminateConnection(gatt, error);
+				} else {
+					report(error);
+				}
+				return;
+			}
+			// Services may have been discovered again after a late Service Changed indication.
+			// From now on they will be used and are not discovered again.
+			try {
+				synchronized (mLock) {
+					while (mConnectionState == STATE_CONNECTED && mError == 0 && !mAborted)
+						mLock.wait();
+					mServicesInUse = true;
+				}
+			} catch (final InterruptedException e) {
+				loge("Sleeping interrupted", e);
+			}
 			// Are we connected?
 			if (gatt == null) {
 				loge("Bluetooth adapter disabled");
@@ -1457,7 +1727,7 @@ public abstract class DfuBaseService extends IntentService implements DfuProgres
 				}
 
 				// Begin the DFU depending on the implementation
-				if (dfuService.initialize(intent, gatt, fileType, is, initIs)) {
+				if (dfuService.initialize(intent, gatt, firmware.fileType, firmware.firmwareStream, firmware.initPacketStream)) {
 					dfuService.performDfu(intent);
 				}
 			} catch (final UploadAbortedException e) {
@@ -1503,6 +1773,10 @@ public abstract class DfuBaseService extends IntentService implements DfuProgres
 				}
 			}
 		} finally {
+			// The files are not needed if the service has ended while they were being prepared
+			if (preparation != null)
+				preparation.cancel(true);
+			DfuEventBus.post(mMetrics.finish());
 			if (foregroundService) {
 				// This will stop foreground state and, if the progress notifications were disabled
 				// it will also remove the notification indicating foreground service.
@@ -1511,6 +1785,161 @@ public abstract class DfuBaseService extends IntentService implements DfuProgres
 		}
 	}
 
+	/**
+	 * The firmware and Init packet streams, ready to be sent.
+	 */
+	private static final class PreparedFirmware {
+		@NonNull
+		final InputStream firmwareStream;
+		@Nullable
+		final InputStream initPacketStream;
+		/** The file type, updated based on the ZIP content. */
+		final int fileType;
+
+		PreparedFirmware(@NonNull final InputStream firmwareStream,
+						 @Nullable final InputStream initPacketStream, final int fileType) {
+			this.firmwareStream = firmwareStream;
+			this.initPacketStream = initPacketStream;
+			this.fileType = fileType;
+		}
+	}
+
+	/**
+	 * Opens the firmware and Init packet files and validates them. This method is called on
+	 * a background thread while the service is connecting to the device.
+	 *
+	 * @param intent   the intent with the file locations.
+	 * @param mimeType the firmware file MIME type.
+	 * @param mbrSize  the size of MBR.
+	 * @param fileType the requested file type, or {@link #TYPE_AUTO}.
+	 * @return The prepared streams.
+	 * @throws Exception when opening or validating the files failed.
+	 */
+	@NonNull
+	private PreparedFirmware prepareFirmware(@NonNull final Intent intent, @NonNull final String mimeType,
+											 final int mbrSize, int fileType) throws Exception {
+		final String filePath = intent.getStringExtra(EXTRA_FILE_PATH);
+		final Uri fileUri = intent.getParcelableExtra(EXTRA_FILE_URI);
+		final int fileResId = intent.getIntExtra(EXTRA_FILE_RES_ID, 0);
+		final String initFilePath = intent.getStringExtra(EXTRA_INIT_FILE_PATH);
+		final Uri initFileUri = intent.getParcelableExtra(EXTRA_INIT_FILE_URI);
+		final int initFileResId = intent.getIntExtra(EXTRA_INIT_FILE_RES_ID, 0);
+
+		mMetrics.startPhase(DfuMetrics.PHASE_FILE_PREPARATION);
+		InputStream is = mFirmwareInputStream;
+		InputStream initIs = mInitFileInputStream;
+		final boolean firstRun = mFirmwareInputStream == null;
+
+		// Prepare data to send, calculate stream size
+		if (firstRun) {
+			// The files are opened only once, when DFU service is first started.
+			// In case the service needs to be restarted (for example a buttonless service
+			// was found or to send Application in the second connection) the input stream
+			// is kept as a global service field. This is to avoid SecurityException
+			// when the URI was granted with one-time read permission.
+			// See: Intent#FLAG_GRANT_READ_URI_PERMISSION (https://developer.android.com/reference/android/content/Intent.html#FLAG_GRANT_READ_URI_PERMISSION).
+			sendLogBroadcast(LOG_LEVEL_VERBOSE, "Opening file...");
+			if (fileUri != null) {
+				is = openInputStream(fileUri, mimeType, mbrSize, fileType);
+			} else if (filePath != null) {
+				is = openInputStream(filePath, mimeType, mbrSize, fileType);
+			} else if (fileResId > 0) {
+				is = openInputStream(fileResId, mimeType, mbrSize, fileType);
+			}
+			assert is != null;
+
+			// The Init file Input Stream is kept global only in case it was provided
+			// as an argument (separate file for HEX/BIN and DAT files).
+			// If a ZIP file was given with DAT file(s) inside it will be taken from the ZIP
+			// ~20 lines below.
+			if (initFileUri != null) {
+				// Try to read the Init Packet file from URI
+				initIs = getContentResolver().openInputStream(initFileUri);
+			} else if (initFilePath != null) {
+				// Try to read the Init Packet file from path
+				initIs = new FileInputStream(initFilePath);
+			} else if (initFileResId > 0) {
+				// Try to read the Init Packet file from given resource
+				initIs = getResources().openRawResource(initFileResId);
+			}
+
+			final int imageSizeInBytes = is.available();
+			if ((imageSizeInBytes % 4) != 0)
+				throw new SizeValidationException("The new firmware is not word-aligned.");
+		}
+
+		// Update the file type bit field basing on the ZIP content
+		if (MIME_TYPE_ZIP.equals(mimeType)) {
+			final ArchiveInputStream zhis = (ArchiveInputStream) is;
+			if (fileType == TYPE_AUTO) {
+				fileType = zhis.getContentType();
+			} else {
+				fileType = zhis.setContentType(fileType);
+			}
+
+			// Validate sizes
+			if ((fileType & TYPE_APPLICATION) > 0 && (zhis.applicationImageSize() % 4) != 0)
+				throw new SizeValidationException("Application firmware is not word-aligned.");
+			if ((fileType & TYPE_BOOTLOADER) > 0 && (zhis.bootloaderImageSize() % 4) != 0)
+				throw new SizeValidationException("Bootloader firmware is not word-aligned.");
+			if ((fileType & TYPE_SOFT_DEVICE) > 0 && (zhis.softDeviceImageSize() % 4) != 0)
+				throw new SizeValidationException("Soft Device firmware is not word-aligned.");
+
+			if (fileType == TYPE_APPLICATION) {
+				if (zhis.getApplicationInit() != null)
+					initIs = new ByteArrayInputStream(zhis.getApplicationInit());
+			} else {
+				if (zhis.getSystemInit() != null)
+					initIs = new ByteArrayInputStream(zhis.getSystemInit());
+			}
+		}
+
+		// Mark the beginning of the streams. In case the service is restarted, it should
+		// re-upload again the whole file.
+		if (firstRun) {
+			// The input streams will be reset in initialize(), keep
+			is.mark(is.available());
+			if (initIs != null)
+				initIs.mark(initIs.available());
+		}
+
+		mFirmwareInputStream = is;
+		mInitFileInputStream = initIs;
+		mMetrics.endPhase(DfuMetrics.PHASE_FILE_PREPARATION);
+		sendLogBroadcast(LOG_LEVEL_INFO, "Firmware file opened successfully");
+		return new PreparedFirmware(is, initIs, fileType);
+	}
+
+	/**
+	 * Logs the reason why preparing the firmware has failed.
+	 *
+	 * @param e the exception thrown by {@link #prepareFirmware(Intent, String, int, int)}.
+	 * @return The error to be reported.
+	 */
+	private int onFilePreparationFailed(@Nullable final Throwable e) {
+		if (e instanceof SecurityException) {
+			loge("A security exception occurred while opening file", e);
+			sendLogBroadcast(LOG_LEVEL_ERROR, "Opening file failed: Permission required");
+			return ERROR_FILE_NOT_FOUND;
+		} else if (e instanceof FileNotFoundException) {
+			loge("An exception occurred while opening file", e);
+			sendLogBroadcast(LOG_LEVEL_ERROR, "Opening file failed: File not found");
+			return ERROR_FILE_NOT_FOUND;
+		} else if (e instanceof SizeValidationException) {
+			loge("Firmware not word-aligned", e);
+			sendLogBroadcast(LOG_LEVEL_ERROR, "Opening file failed: Firmware size must be word-aligned");
+			return ERROR_FILE_SIZE_INVALID;
+		} else if (e instanceof IOException) {
+			loge("An exception occurred while calculating file size", e);
+			sendLogBroadcast(LOG_LEVEL_ERROR, "Opening file failed: " + e.getLocalizedMessage());
+			return ERROR_FILE_ERROR;
+		} else {
+			loge("An exception occurred while opening files. Did you set the firmware file?", e);
+			sendLogBroadcast(LOG_LEVEL_ERROR, "Opening file failed: " + (e != null ? e.getLocalizedMessage() : null));
+			return ERROR_FILE_ERROR;
+		}
+	}
+
 	/**
 	 * Opens the binary input stream that returns the firmware image content.
 	 * A Path to the file is given.
@@ -1523,9 +1952,9 @@ public abstract class DfuBaseService extends IntentService implements DfuProgres
 	 */
 	private InputStream openInputStream(@NonNull final String filePath, final String mimeType, final int mbrSize, final int types)
 			throws IOException {
-		final InputStream is = new FileInputStream(filePath);
+		final FileInputStream is = new FileInputStream(filePath);
 		if (MIME_TYPE_ZIP.equals(mimeType))
-			return new ArchiveInputStream(is, mbrSize, types);
+			return openArchive(is.getChannel(), mbrSize, types);
 		if (filePath.toLowerCase(Locale.US).endsWith("hex"))
 			return new HexInputStream(is, mbrSize);
 		return is;
@@ -1542,12 +1971,17 @@ public abstract class DfuBaseService extends IntentService implements DfuProgres
 	 */
 	private InputStream openInputStream(@NonNull final Uri stream, final String mimeType, final int mbrSize, final int types)
 			throws IOException {
+		if (MIME_TYPE_ZIP.equals(mimeType)) {
+			final InputStream archive = openSeekableArchive(stream, mbrSize, types);
+			if (archive != null)
+				return archive;
+		}
 		final InputStream is = stream.toString().startsWith("file:///android_asset/") ?
 				getAssets().open(stream.getPath().substring(15)) :
 				getContentResolver().openInputStream(stream);
 		assert is != null;
 		if (MIME_TYPE_ZIP.equals(mimeType))
-			return new ArchiveInputStream(is, mbrSize, types);
+			return openArchive(is, mbrSize, types);
 
 		final String[] projection = {MediaStore.Images.Media.DISPLAY_NAME};
 		try (Cursor cursor = getContentResolver().query(stream, projection, null, null, null)) {
@@ -1561,6 +1995,63 @@ public abstract class DfuBaseService extends IntentService implements DfuProgres
 		return is;
 	}
 
+	/**
+	 * Opens the ZIP file using a file descriptor, if the content provider returns a seekable one.
+	 * Such files are read using the central directory and only required files are decompressed.
+	 *
+	 * @param stream  the Uri to the ZIP file.
+	 * @param mbrSize the size of MBR, by default 0x1000.
+	 * @param types   the content files types in ZIP.
+	 * @return The input stream with binary image content, or <code>null</code> if the file
+	 * cannot be opened as a seekable file. In that case it should be read as a stream.
+	 */
+	@Nullable
+	private InputStream openSeekableArchive(@NonNull final Uri stream, final int mbrSize, final int types)
+			throws IOException {
+		if (stream.toString().startsWith("file:///android_asset/"))
+			return null;
+
+		final ParcelFileDescriptor pfd;
+		try {
+			pfd = getContentResolver().openFileDescriptor(stream, "r");
+		} catch (final FileNotFoundException | SecurityException e) {
+			return null;
+		}
+		if (pfd == null)
+			return null;
+		// Pipes and sockets return -1
+		if (pfd.getStatSize() < 0) {
+			pfd.close();
+			return null;
+		}
+		final FileInputStream is = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+		return openArchive(is.getChannel(), mbrSize, types);
+	}
+
+	/**
+	 * Opens the ZIP file from a seekable channel, using the firmware cache, if enabled.
+	 */
+	@NonNull
+	private ArchiveInputStream openArchive(@NonNull final FileChannel channel, final int mbrSize, final int types)
+			throws IOException {
+		final FirmwareCache cache = mFirmwareCache;
+		if (cache == null)
+			return new ArchiveInputStream(channel, mbrSize, types);
+		return cache.open(channel, mbrSize, types);
+	}
+
+	/**
+	 * Opens the ZIP file from a stream, using the firmware cache, if enabled.
+	 */
+	@NonNull
+	private ArchiveInputStream openArchive(@NonNull final InputStream stream, final int mbrSize, final int types)
+			throws IOException {
+		final FirmwareCache cache = mFirmwareCache;
+		if (cache == null)
+			return new ArchiveInputStream(stream, mbrSize, types);
+		return cache.open(stream, mbrSize, types);
+	}
+
 	/**
 	 * Opens the binary input stream that returns the firmware image content.
 	 * A resource id in the res/raw is given.
@@ -1575,7 +2066,7 @@ public abstract class DfuBaseService extends IntentService implements DfuProgres
 			throws IOException {
 		final InputStream is = getResources().openRawResource(resId);
 		if (MIME_TYPE_ZIP.equals(mimeType))
-			return new ArchiveInputStream(is, mbrSize, types);
+			return openArchive(is, mbrSize, types);
 		is.mark(2);
 		int firstByte = is.read();
 		is.reset();
@@ -1690,6 +2181,31 @@ public abstract class DfuBaseService extends IntentService implements DfuProgres
 		}
 	}
 
+	/**
+	 * Wait until the connection state will change to {@link #STATE_DISCONNECTED}, an error occurs
+	 * or the timeout elapses, whichever happens first.
+	 *
+	 * @param timeout the maximum waiting period in milliseconds.
+	 * @return True if the device got disconnected or an error occurred, false on timeout.
+	 */
+	protected boolean waitUntilDisconnected(final long timeout) {
+		final long deadline = SystemClock.elapsedRealtime() + timeout;
+		try {
+			synchronized (mLock) {
+				sendLogBroadcast(DfuBaseService.LOG_LEVEL_DEBUG, "wait(" + timeout + ") for disconnection");
+				while (mConnectionState != STATE_DISCONNECTED && mError == 0) {
+					final long remaining = deadline - SystemClock.elapsedRealtime();
+					if (remaining <= 0)
+						return false;
+					mLock.wait(remaining);
+				}
+			}
+		} catch (final InterruptedException e) {
+			loge("Sleeping interrupted", e);
+		}
+		return true;
+	}
+
 	/**
 	 * Wait for given number of milliseconds.
 	 *
@@ -1758,37 +2274,83 @@ public abstract class DfuBaseService extends IntentService implements DfuProgres
 	}
 
 	/**
-	 * Creates or updates the notification in the Notification Manager. Sends broadcast with
-	 * given progress state to the activity.
+	 * Sends broadcast with given progress state to the activity and updates the notification.
+	 * <p>
+	 * The notification is created on the calling thread at most every 250 ms, except for end
+	 * states, and posted to the Notification Manager on a background thread.
 	 */
 	@Override
 	public void updateProgressNotification() {
 		final DfuProgressInfo info = mProgressInfo;
 		final int progress = info.getProgress();
-		if (mLastProgress == progress && progress >= 0 && progress <= 100)
-			return;
-
-		mLastProgress = progress;
 
 		// send progress or error broadcast
 		sendProgressBroadcast(info);
 
-		if (mDisableNotification)
+		final Handler handler = mNotificationHandler;
+		if (mDisableNotification || !info.isPercentChanged() || handler == null)
 			return;
 
-		// the notification may not be refreshed too quickly as the ABORT button becomes not clickable
-		// If new state is an end-state, update regardless so it will not stick around in "Disconnecting" state
-		final long now = SystemClock.elapsedRealtime();
-		if (now - mLastNotificationTime < 250 && !(PROGRESS_COMPLETED == progress || PROGRESS_ABORTED == progress))
-			return;
-		mLastNotificationTime = now;
+		final Notification notification;
+		synchronized (mNotificationLock) {
+			// the notification may not be refreshed too quickly as the ABORT button becomes not clickable
+			// If new state is an end-state, update regardless so it will not stick around in "Disconnecting" state
+			final long now = SystemClock.elapsedRealtime();
+			if (now - mLastNotificationTime < 250 && !(PROGRESS_COMPLETED == progress || PROGRESS_ABORTED == progress))
+				return;
+			mLastNotificationTime = now;
+
+			notification = createProgressNotification(progress, info.getCurrentPart(), info.getTotalParts());
+		}
+		postNotification(handler, notification);
+	}
 
+	/**
+	 * Posts the notification to the Notification Manager on the notification thread. If the
+	 * previous notification has not been posted yet, it is replaced.
+	 */
+	private void postNotification(@NonNull final Handler handler, @NonNull final Notification notification) {
+		synchronized (mNotificationLock) {
+			final boolean scheduled = mPendingNotification != null;
+			mPendingNotification = notification;
+			if (scheduled)
+				return;
+		}
+		handler.post(mNotificationPoster);
+	}
+
+	private final Runnable mNotificationPoster = () -> {
+		final Notification notification;
+		synchronized (mNotificationLock) {
+			notification = mPendingNotification;
+			mPendingNotification = null;
+		}
+		final NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+		if (notification != null && manager != null) {
+			manager.notify(NOTIFICATION_ID, notification);
+		}
+	};
+
+	/**
+	 * Creates the progress notification using the cached builder. This method is called
+	 * holding {@link #mNotificationLock}.
+	 */
+	@NonNull
+	private Notification createProgressNotification(final int progress, final int currentPart, final int totalParts) {
 		// create or update notification:
 		final String deviceAddress = mDeviceAddress;
 		final String deviceName = mDeviceName != null ? mDeviceName : getString(R.string.dfu_unknown_name);
 
-		final NotificationCompat.Builder builder = new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL_DFU)
-				.setSmallIcon(android.R.drawable.stat_sys_upload).setOnlyAlertOnce(true);//.setLargeIcon(largeIcon);
+		NotificationCompat.Builder builder = mProgressNotificationBuilder;
+		if (builder == null) {
+			builder = mProgressNotificationBuilder = new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL_DFU)
+					.setOnlyAlertOnce(true);//.setLargeIcon(largeIcon);
+		}
+		// Reset the values that not all states set
+		builder.clearActions()
+				.setSmallIcon(android.R.drawable.stat_sys_upload)
+				.setAutoCancel(false)
+				.setProgress(0, 0, false);
 		// Android 5
 		builder.setColor(Color.GRAY);
 
@@ -1840,9 +2402,9 @@ public abstract class DfuBaseService extends IntentService implements DfuProgres
 				break;
 			default: {
 				// progress is in percents
-				final String title = info.getTotalParts() == 1 ?
+				final String title = totalParts == 1 ?
 						getString(R.string.dfu_status_uploading) :
-						getString(R.string.dfu_status_uploading_part, info.getCurrentPart(), info.getTotalParts());
+						getString(R.string.dfu_status_uploading_part, currentPart, totalParts);
 				final String text = getString(R.string.dfu_status_uploading_msg, deviceName);
 				builder.setOngoing(true).setContentTitle(title).setContentText(text)
 						.setProgress(100, progress, false);
@@ -1851,46 +2413,55 @@ public abstract class DfuBaseService extends IntentService implements DfuProgres
 		}
 
 		// update the notification
-		final Intent intent = new Intent(this, getNotificationTarget());
-		intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-		intent.putExtra(EXTRA_DEVICE_ADDRESS, deviceAddress);
-		intent.putExtra(EXTRA_DEVICE_NAME, deviceName);
-		intent.putExtra(EXTRA_PROGRESS, progress);
+		// The content intent contains the progress, so it is recreated when the progress changes,
+		// but not when the notification is rendered again with the same progress, e.g. for a new part
+		if (mProgressNotificationIntent == null || mProgressNotificationIntentProgress != progress) {
+			final Intent intent = new Intent(this, getNotificationTarget());
+			intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+			intent.putExtra(EXTRA_DEVICE_ADDRESS, deviceAddress);
+			intent.putExtra(EXTRA_DEVICE_NAME, deviceName);
+			intent.putExtra(EXTRA_PROGRESS, progress);
 
-		int flags = PendingIntent.FLAG_UPDATE_CURRENT;
-		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-			flags |= PendingIntent.FLAG_IMMUTABLE;
+			int flags = PendingIntent.FLAG_UPDATE_CURRENT;
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+				flags |= PendingIntent.FLAG_IMMUTABLE;
+			}
+			mProgressNotificationIntent = PendingIntent.getActivity(this, 0, intent, flags);
+			mProgressNotificationIntentProgress = progress;
 		}
-		final PendingIntent pendingIntent = PendingIntent.getActivity(this, 0, intent, flags);
-		builder.setContentIntent(pendingIntent);
+		builder.setContentIntent(mProgressNotificationIntent);
 
 		// Any additional configuration?
 		updateProgressNotification(builder, progress);
-
-		final NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-		if (manager != null) {
-			manager.notify(NOTIFICATION_ID, builder.build());
-		}
+		return builder.build();
 	}
 
 	/**
 	 * This method allows you to update the notification showing the upload progress.
+	 * <p>
+	 * Calls are throttled, so not every progress value is reported.
+	 * <p>
+	 * The same builder is reused for subsequent updates. Before each call its actions are cleared
+	 * and the small icon, auto cancel flag, progress and color are reset, but other values
+	 * set here are kept until overwritten. Don't use the builder outside of this method.
 	 *
-	 * @param builder notification builder.
+	 * @param builder  notification builder.
+	 * @param progress the current progress in percent, or one of the PROGRESS_* states.
 	 */
 	protected void updateProgressNotification(@NonNull final NotificationCompat.Builder builder, final int progress) {
 		// Add Abort action to the notification
 		if (progress != PROGRESS_ABORTED && progress != PROGRESS_COMPLETED) {
-			final Intent abortIntent = new Intent(BROADCAST_ACTION);
-			abortIntent.putExtra(EXTRA_ACTION, ACTION_ABORT);
+			if (mAbortPendingIntent == null) {
+				final Intent abortIntent = new Intent(BROADCAST_ACTION);
+				abortIntent.putExtra(EXTRA_ACTION, ACTION_ABORT);
 
-			int flags = PendingIntent.FLAG_UPDATE_CURRENT;
-			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-				flags |= PendingIntent.FLAG_IMMUTABLE;
+				int flags = PendingIntent.FLAG_UPDATE_CURRENT;
+				if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+					flags |= PendingIntent.FLAG_IMMUTABLE;
+				}
+				mAbortPendingIntent = PendingIntent.getBroadcast(this, 1, abortIntent, flags);
 			}
-
-			final PendingIntent pendingAbortIntent = PendingIntent.getBroadcast(this, 1, abortIntent, flags);
-			builder.addAction(R.drawable.ic_action_notify_cancel, getString(R.string.dfu_action_abort), pendingAbortIntent);
+			builder.addAction(R.drawable.ic_action_notify_cancel, getString(R.string.dfu_action_abort), mAbortPendingIntent);
 		}
 	}
 
@@ -1938,9 +2509,15 @@ public abstract class DfuBaseService extends IntentService implements DfuProgres
 		// Any additional configuration?
 		updateErrorNotification(builder);
 
-		final NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-		if (manager != null) {
-			manager.notify(NOTIFICATION_ID, builder.build());
+		// The error replaces a progress notification that has not been posted yet
+		final Handler handler = mNotificationHandler;
+		if (handler != null) {
+			postNotification(handler, builder.build());
+		} else {
+			final NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+			if (manager != null) {
+				manager.notify(NOTIFICATION_ID, builder.build());
+			}
 		}
 	}
 
@@ -2072,36 +2649,73 @@ public abstract class DfuBaseService extends IntentService implements DfuProgres
 	}
 
 	private void sendProgressBroadcast(final DfuProgressInfo info) {
+		final DfuProgressSnapshot event = new DfuProgressSnapshot(
+				mDeviceAddress, getClass().getName(), info);
+		DfuEventBus.post(event);
+
+		// Broadcasts are sent only when the percentage or state changes, as before
+		if (mDisableProgressBroadcasts || !event.isPercentChanged())
+			return;
+
 		final Intent broadcast = new Intent(BROADCAST_PROGRESS);
-		broadcast.putExtra(EXTRA_DATA, info.getProgress());
-		broadcast.putExtra(EXTRA_DEVICE_ADDRESS, mDeviceAddress);
-		broadcast.putExtra(EXTRA_PART_CURRENT, info.getCurrentPart());
-		broadcast.putExtra(EXTRA_PARTS_TOTAL, info.getTotalParts());
-		broadcast.putExtra(EXTRA_SPEED_B_PER_MS, info.getSpeed());
-		broadcast.putExtra(EXTRA_AVG_SPEED_B_PER_MS, info.getAverageSpeed());
+		broadcast.putExtra(EXTRA_DATA, event.getProgress());
+		broadcast.putExtra(EXTRA_DEVICE_ADDRESS, event.getDeviceAddress());
+		broadcast.putExtra(EXTRA_PART_CURRENT, event.getCurrentPart());
+		broadcast.putExtra(EXTRA_PARTS_TOTAL, event.getPartsTotal());
+		broadcast.putExtra(EXTRA_SPEED_B_PER_MS, event.getSpeed());
+		broadcast.putExtra(EXTRA_AVG_SPEED_B_PER_MS, event.getAverageSpeed());
+		broadcast.putExtra(EXTRA_SERVICE_CLASS_NAME, event.getServiceClassName());
 		LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
 	}
 
 	private void sendErrorBroadcast(final int error) {
-		final Intent broadcast = new Intent(BROADCAST_ERROR);
+		final int errorNumber, errorType;
 		if ((error & ERROR_CONNECTION_MASK) > 0) {
-			broadcast.putExtra(EXTRA_DATA, error & ~ERROR_CONNECTION_MASK);
-			broadcast.putExtra(EXTRA_ERROR_TYPE, ERROR_TYPE_COMMUNICATION);
+			errorNumber = error & ~ERROR_CONNECTION_MASK;
+			errorType = ERROR_TYPE_COMMUNICATION;
 		} else if ((error & ERROR_CONNECTION_STATE_MASK) > 0) {
-			broadcast.putExtra(EXTRA_DATA, error & ~ERROR_CONNECTION_STATE_MASK);
-			broadcast.putExtra(EXTRA_ERROR_TYPE, ERROR_TYPE_COMMUNICATION_STATE);
+			errorNumber = error & ~ERROR_CONNECTION_STATE_MASK;
+			errorType = ERROR_TYPE_COMMUNICATION_STATE;
 		} else if ((error & ERROR_REMOTE_MASK) > 0) {
-			broadcast.putExtra(EXTRA_DATA, error & ~ERROR_REMOTE_MASK);
-			broadcast.putExtra(EXTRA_ERROR_TYPE, ERROR_TYPE_DFU_REMOTE);
+			errorNumber = error & ~ERROR_REMOTE_MASK;
+			errorType = ERROR_TYPE_DFU_REMOTE;
 		} else {
-			broadcast.putExtra(EXTRA_DATA, error);
-			broadcast.putExtra(EXTRA_ERROR_TYPE, ERROR_TYPE_OTHER);
+			errorNumber = error;
+			errorType = ERROR_TYPE_OTHER;
 		}
+		if (mMetrics != null)
+			mMetrics.setError(error);
+		DfuEventBus.post(new DfuEventBus.ErrorEvent(mDeviceAddress, getClass().getName(), errorNumber, errorType));
+
+		if (mDisableProgressBroadcasts)
+			return;
+
+		final Intent broadcast = new Intent(BROADCAST_ERROR);
+		broadcast.putExtra(EXTRA_DATA, errorNumber);
+		broadcast.putExtra(EXTRA_ERROR_TYPE, errorType);
 		broadcast.putExtra(EXTRA_DEVICE_ADDRESS, mDeviceAddress);
+		broadcast.putExtra(EXTRA_SERVICE_CLASS_NAME, getClass().getName());
 		LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
 	}
 
+	/**
+	 * Returns true if log events with the given level are broadcast, see
+	 * {@link #EXTRA_LOG_MIN_LEVEL}. Use it to avoid creating log messages that would be ignored.
+	 *
+	 * @param level the log level.
+	 */
+	/* package */ boolean isLogLevelEnabled(final int level) {
+		return level >= mLogMinLevel;
+	}
+
 	/* package */ void sendLogBroadcast(final int level, final String message) {
+		if (!isLogLevelEnabled(level))
+			return;
+		final LogBroadcastQueue queue = mLogQueue;
+		if (queue != null) {
+			queue.add(mDeviceAddress, level, message);
+			return;
+		}
 		final String fullMessage = "[DFU] " + message;
 		final Intent broadcast = new Intent(BROADCAST_LOG);
 		broadcast.putExtra(EXTRA_LOG_MESSAGE, fullMessage);
@@ -2110,6 +2724,19 @@ public abstract class DfuBaseService extends IntentService implements DfuProgres
 		LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
 	}
 
+	/**
+	 * Sends the log event. The message is formatted only when the log level is enabled.
+	 *
+	 * @param level  the log level.
+	 * @param format the message format, see {@link String#format(Locale, String, Object...)}.
+	 * @param args   the format arguments.
+	 */
+	/* package */ void sendLogBroadcast(final int level, final String format, final Object... args) {
+		if (!isLogLevelEnabled(level))
+			return;
+		sendLogBroadcast(level, String.format(Locale.US, format, args));
+	}
+
 	/**
 	 * Initializes bluetooth adapter.
 	 *
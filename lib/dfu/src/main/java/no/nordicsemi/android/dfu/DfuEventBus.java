@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.dfu;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Delivers progress and error events from DFU services running in the same process directly
+ * to registered listeners, without creating and parsing an {@link android.content.Intent}
+ * for each event. Events are delivered on the main thread, like local broadcasts.
+ * <p>
+ * Listeners are kept in an array which is copied on every change, so the events may be
+ * dispatched without locking.
+ */
+/* package */ final class DfuEventBus {
+
+	interface Listener {
+		/**
+		 * Called when the DFU service reported progress or changed state.
+		 *
+		 * @param event the progress snapshot.
+		 */
+		void onProgressEvent(@NonNull DfuProgressSnapshot event);
+
+		/**
+		 * Called when the DFU service failed with an error.
+		 *
+		 * @param event the error event.
+		 */
+		void onErrorEvent(@NonNull ErrorEvent event);
+
+		/**
+		 * Called when the DFU service has finished and the metrics are available.
+		 *
+		 * @param metrics the metrics of the finished run.
+		 */
+		default void onMetricsEvent(@NonNull DfuMetrics metrics) {
+			// empty default implementation
+		}
+	}
+
+	/**
+	 * An immutable error event.
+	 */
+	static final class ErrorEvent {
+		@Nullable final String deviceAddress;
+		@NonNull final String serviceClassName;
+		/** The error number, without the type mask. */
+		final int error;
+		/** One of the ERROR_TYPE_* constants from {@link DfuBaseService}. */
+		final int errorType;
+
+		ErrorEvent(@Nullable final String deviceAddress, @NonNull final String serviceClassName,
+				   final int error, final int errorType) {
+			this.deviceAddress = deviceAddress;
+			this.serviceClassName = serviceClassName;
+			this.error = error;
+			this.errorType = errorType;
+		}
+	}
+
+	private static final Listener[] EMPTY = new Listener[0];
+	private static final Object sLock = new Object();
+	private static volatile Listener[] sListeners = EMPTY;
+	private static Handler sHandler;
+
+	private DfuEventBus() {
+		// empty
+	}
+
+	/**
+	 * Registers the listener. Registering the same listener again has no effect.
+	 */
+	static void register(@NonNull final Listener listener) {
+		synchronized (sLock) {
+			final Listener[] listeners = sListeners;
+			for (final Listener l : listeners) {
+				if (l == listener)
+					return;
+			}
+			final Listener[] copy = new Listener[listeners.length + 1];
+			System.arraycopy(listeners, 0, copy, 0, listeners.length);
+			copy[listeners.length] = listener;
+			sListeners = copy;
+		}
+	}
+
+	/**
+	 * Unregisters the listener.
+	 */
+	static void unregister(@NonNull final Listener listener) {
+		synchronized (sLock) {
+			final Listener[] listeners = sListeners;
+			for (int i = 0; i < listeners.length; ++i) {
+				if (listeners[i] == listener) {
+					final Listener[] copy = new Listener[listeners.length - 1];
+					System.arraycopy(listeners, 0, copy, 0, i);
+					System.arraycopy(listeners, i + 1, copy, i, listeners.length - i - 1);
+					sListeners = copy.length > 0 ? copy : EMPTY;
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns true if there is at least one listener registered.
+	 */
+	static boolean hasListeners() {
+		return sListeners.length > 0;
+	}
+
+	/**
+	 * Posts the progress event to all listeners on the main thread.
+	 */
+	static void post(@NonNull final DfuProgressSnapshot event) {
+		if (!hasListeners())
+			return;
+		getHandler().post(() -> {
+			for (final Listener listener : sListeners)
+				listener.onProgressEvent(event);
+		});
+	}
+
+	/**
+	 * Posts the error event to all listeners on the main thread.
+	 */
+	static void post(@NonNull final ErrorEvent event) {
+		if (!hasListeners())
+			return;
+		getHandler().post(() -> {
+			for (final Listener listener : sListeners)
+				listener.onErrorEvent(event);
+		});
+	}
+
+	/**
+	 * Posts the metrics of a finished run to all listeners on the main thread.
+	 */
+	static void post(@NonNull final DfuMetrics metrics) {
+		if (!hasListeners())
+			return;
+		getHandler().post(() -> {
+			for (final Listener listener : sListeners)
+				listener.onMetricsEvent(metrics);
+		});
+	}
+
+	@NonNull
+	private static Handler getHandler() {
+		synchronized (sLock) {
+			if (sHandler == null)
+				sHandler = new Handler(Looper.getMainLooper());
+			return sHandler;
+		}
+	}
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.dfu;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Timing and reliability metrics collected by the DFU service during a single run.
+ * <p>
+ * The metrics contain the wall-clock time of each phase of the update (connection, service
+ * discovery, MTU request, sending the Init packet and the firmware) and histograms of
+ * control point round trip times, data object upload times, bytes lost and time spent waiting
+ * for Packet Receipt Notifications.
+ * <p>
+ * Metrics are delivered to the {@link DfuMetricsListener} registered using
+ * {@link DfuServiceListenerHelper#registerMetricsListener(DfuMetricsListener)} when the service
+ * finishes, and may be exported using {@link #toJson()}.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public final class DfuMetrics {
+	/** Time of opening and validating the firmware files, done in parallel with connecting. */
+	public static final String PHASE_FILE_PREPARATION = "filePreparation";
+	/** Time from starting the connection until the device got connected. */
+	public static final String PHASE_CONNECT = "connect";
+	/** Time waiting for the Service Changed indication on bonded devices. */
+	public static final String PHASE_SERVICE_CHANGED_WAIT = "serviceChangedWait";
+	/** Time of the service discovery. */
+	public static final String PHASE_SERVICE_DISCOVERY = "serviceDiscovery";
+	/** Time of the MTU exchange. */
+	public static final String PHASE_MTU_REQUEST = "mtuRequest";
+	/** Time of sending the Init packet, including the control point requests. */
+	public static final String PHASE_INIT_PACKET = "initPacket";
+	/** Time of sending the firmware, including the control point requests. */
+	public static final String PHASE_FIRMWARE_UPLOAD = "firmwareUpload";
+
+	/**
+	 * A histogram of values with exponential buckets. Bucket 0 counts values equal to 0,
+	 * bucket <i>i</i> counts values in range [2<sup>i-1</sup>, 2<sup>i</sup>), and the last
+	 * bucket counts all greater values.
+	 */
+	public static final class Histogram {
+		private static final int BUCKETS = 20;
+
+		private final long[] buckets = new long[BUCKETS];
+		private long count;
+		private long sum;
+		private long min = Long.MAX_VALUE;
+		private long max = Long.MIN_VALUE;
+
+		private Histogram() {
+			// empty
+		}
+
+		private Histogram(@NonNull final Histogram other) {
+			System.arraycopy(other.buckets, 0, buckets, 0, BUCKETS);
+			count = other.count;
+			sum = other.sum;
+			min = other.min;
+			max = other.max;
+		}
+
+		private void add(final long value) {
+			final long v = Math.max(0, value);
+			final int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(v));
+			buckets[bucket]++;
+			count++;
+			sum += v;
+			min = Math.min(min, v);
+			max = Math.max(max, v);
+		}
+
+		/** Returns the number of recorded values. */
+		public long getCount() {
+			return count;
+		}
+
+		/** Returns the sum of recorded values. */
+		public long getSum() {
+			return sum;
+		}
+
+		/** Returns the lowest recorded value, or 0 if empty. */
+		public long getMin() {
+			return count > 0 ? min : 0;
+		}
+
+		/** Returns the highest recorded value, or 0 if empty. */
+		public long getMax() {
+			return count > 0 ? max : 0;
+		}
+
+		/** Returns the mean of recorded values, or 0 if empty. */
+		public double getMean() {
+			return count > 0 ? (double) sum / count : 0;
+		}
+
+		/** Returns a copy of bucket counters. */
+		@NonNull
+		public long[] getBuckets() {
+			return buckets.clone();
+		}
+
+		@NonNull
+		private JSONObject toJsonObject() throws JSONException {
+			final JSONArray array = new JSONArray();
+			for (final long bucket : buckets)
+				array.put(bucket);
+			final JSONObject json = new JSONObject();
+			json.put("count", count);
+			json.put("sum", sum);
+			json.put("min", getMin());
+			json.put("max", getMax());
+			json.put("buckets", array);
+			return json;
+		}
+	}
+
+	@Nullable private final String deviceAddress;
+	private final long startTime;
+	private long duration = -1;
+	private int error;
+	private final Map<String, Long> phases = new LinkedHashMap<>();
+	private final Map<String, Long> phaseStartTimes = new HashMap<>();
+	private final Histogram controlPointRtt;
+	private final Histogram objectUploadTime;
+	private final Histogram bytesLost;
+	private final Histogram prnWaitTime;
+	private int retries;
+	private long reconnectTimeSaved;
+	private int mtu = 23;
+	private int txPhy = 1, rxPhy = 1; // BluetoothDevice.PHY_LE_1M
+
+	/* package */ DfuMetrics(@Nullable final String deviceAddress) {
+		this.deviceAddress = deviceAddress;
+		this.startTime = SystemClock.elapsedRealtime();
+		this.controlPointRtt = new Histogram();
+		this.objectUploadTime = new Histogram();
+		this.bytesLost = new Histogram();
+		this.prnWaitTime = new Histogram();
+	}
+
+	private DfuMetrics(@NonNull final DfuMetrics other) {
+		deviceAddress = other.deviceAddress;
+		startTime = other.startTime;
+		duration = other.duration;
+		error = other.error;
+		phases.putAll(other.phases);
+		controlPointRtt = new Histogram(other.controlPointRtt);
+		objectUploadTime = new Histogram(other.objectUploadTime);
+		bytesLost = new Histogram(other.bytesLost);
+		prnWaitTime = new Histogram(other.prnWaitTime);
+		retries = other.retries;
+		reconnectTimeSaved = other.reconnectTimeSaved;
+		mtu = other.mtu;
+		txPhy = other.txPhy;
+		rxPhy = other.rxPhy;
+	}
+
+	/* package */ synchronized void startPhase(@NonNull final String phase) {
+		phaseStartTimes.put(phase, SystemClock.elapsedRealtime());
+	}
+
+	/**
+	 * Adds the time since the phase was started to the phase duration. Does nothing if the phase
+	 * was not started.
+	 */
+	/* package */ synchronized void endPhase(@NonNull final String phase) {
+		final Long start = phaseStartTimes.remove(phase);
+		if (start == null)
+			return;
+		final Long previous = phases.get(phase);
+		final long time = SystemClock.elapsedRealtime() - start;
+		phases.put(phase, previous != null ? previous + time : time);
+	}
+
+	/* package */ synchronized void addControlPointRtt(final long millis) {
+		controlPointRtt.add(millis);
+	}
+
+	/* package */ synchronized void addObjectUploadTime(final long millis) {
+		objectUploadTime.add(millis);
+	}
+
+	/* package */ synchronized void addBytesLost(final int bytes) {
+		bytesLost.add(bytes);
+	}
+
+	/* package */ synchronized void addPrnWaitTime(final long millis) {
+		prnWaitTime.add(millis);
+	}
+
+	/* package */ synchronized void addRetry() {
+		retries++;
+	}
+
+	/* package */ synchronized void addReconnectTimeSaved(final long millis) {
+		reconnectTimeSaved += Math.max(0, millis);
+	}
+
+	/* package */ synchronized void setLinkParameters(final int mtu, final int txPhy, final int rxPhy) {
+		this.mtu = mtu;
+		this.txPhy = txPhy;
+		this.rxPhy = rxPhy;
+	}
+
+	/* package */ synchronized void setError(final int error) {
+		this.error = error;
+	}
+
+	/**
+	 * Marks the end of the service run and returns an immutable copy of the metrics.
+	 */
+	/* package */ synchronized DfuMetrics finish() {
+		this.duration = SystemClock.elapsedRealtime() - startTime;
+		return new DfuMetrics(this);
+	}
+
+	/** Returns the address of the target device. */
+	@Nullable
+	public String getDeviceAddress() {
+		return deviceAddress;
+	}
+
+	/** Returns the total duration of the service run in milliseconds. */
+	public long getDuration() {
+		return duration;
+	}
+
+	/** Returns the error number reported by the service, or 0 if there was no error. */
+	public int getError() {
+		return error;
+	}
+
+	/**
+	 * Returns the wall-clock duration of each phase in milliseconds. Phases which were not
+	 * performed are not included.
+	 *
+	 * @see #PHASE_CONNECT
+	 */
+	@NonNull
+	public Map<String, Long> getPhases() {
+		return Collections.unmodifiableMap(phases);
+	}
+
+	/** Returns the histogram of control point round trip times, in milliseconds. */
+	@NonNull
+	public Histogram getControlPointRtt() {
+		return controlPointRtt;
+	}
+
+	/** Returns the histogram of data object upload times (Secure DFU), in milliseconds. */
+	@NonNull
+	public Histogram getObjectUploadTime() {
+		return objectUploadTime;
+	}
+
+	/** Returns the histogram of number of bytes lost in a data object (Secure DFU). */
+	@NonNull
+	public Histogram getBytesLost() {
+		return bytesLost;
+	}
+
+	/** Returns the histogram of times waiting for a Packet Receipt Notification, in milliseconds. */
+	@NonNull
+	public Histogram getPrnWaitTime() {
+		return prnWaitTime;
+	}
+
+	/** Returns the number of data objects sent again after a CRC error. */
+	public int getRetries() {
+		return retries;
+	}
+
+	/**
+	 * Returns the time saved, in milliseconds, by continuing as soon as the device disconnected
+	 * or the bootloader was found, instead of waiting for the configured delays.
+	 */
+	public long getReconnectTimeSaved() {
+		return reconnectTimeSaved;
+	}
+
+	/** Returns the MTU used to send the firmware. */
+	public int getMtu() {
+		return mtu;
+	}
+
+	/**
+	 * Returns the TX PHY used to send the firmware, one of {@link android.bluetooth.BluetoothDevice}
+	 * PHY_LE_* constants.
+	 */
+	public int getTxPhy() {
+		return txPhy;
+	}
+
+	/**
+	 * Returns the RX PHY used to send the firmware, one of {@link android.bluetooth.BluetoothDevice}
+	 * PHY_LE_* constants.
+	 */
+	public int getRxPhy() {
+		return rxPhy;
+	}
+
+	/**
+	 * Returns the metrics as a JSON string.
+	 */
+	@NonNull
+	public String toJson() {
+		try {
+			final JSONObject phasesJson = new JSONObject();
+			for (final Map.Entry<String, Long> entry : phases.entrySet())
+				phasesJson.put(entry.getKey(), (long) entry.getValue());
+
+			final JSONObject json = new JSONObject();
+			json.put("deviceAddress", deviceAddress);
+			json.put("duration", duration);
+			json.put("error", error);
+			json.put("phases", phasesJson);
+			json.put("controlPointRtt", controlPointRtt.toJsonObject());
+			json.put("objectUploadTime", objectUploadTime.toJsonObject());
+			json.put("bytesLost", bytesLost.toJsonObject());
+			json.put("prnWaitTime", prnWaitTime.toJsonObject());
+			json.put("retries", retries);
+			json.put("reconnectTimeSaved", reconnectTimeSaved);
+			json.put("mtu", mtu);
+			json.put("txPhy", txPhy);
+			json.put("rxPhy", rxPhy);
+			return json.toString();
+		} catch (final JSONException e) {
+			// This should never happen, as all values are finite
+			return "{}";
+		}
+	}
+
+	@NonNull
+	@Override
+	public String toString() {
+		return toJson();
+	}
+}
@@ -30,7 +30,16 @@ import androidx.annotation.NonNull;
 		void updateProgressNotification();
 	}
 
+	/** The time constant of the smoothed speed, in milliseconds. */
+	private static final float SPEED_TIME_CONSTANT = 2000.0f;
+
 	private final ProgressListener mListener;
+	private long reportInterval;
+	private int reportBytes;
+	private int reportedProgress = Integer.MIN_VALUE;
+	private boolean percentChanged;
+	private float speed, smoothedSpeed;
+	private long etaMillis = -1;
 	private int progress;
 	private int bytesSent;
 	private int initialBytesSent;
@@ -59,18 +68,38 @@ import androidx.annotation.NonNull;
 		return this;
 	}
 
+	/**
+	 * Sets how often the progress should be reported while sending data. When both values
+	 * are 0, the progress is reported each time the percentage changes.
+	 *
+	 * @param intervalMillis minimum time between progress reports, in milliseconds.
+	 * @param bytes          minimum number of bytes sent between progress reports.
+	 */
+	void setReportingThresholds(final long intervalMillis, final int bytes) {
+		this.reportInterval = Math.max(0, intervalMillis);
+		this.reportBytes = Math.max(0, bytes);
+	}
+
 	void setProgress(final int progress) {
 		this.progress = progress;
+		// State changes are always reported
+		this.percentChanged = true;
+		this.reportedProgress = progress;
 		mListener.updateProgressNotification();
 	}
 
 	void setBytesSent(final int bytesSent) {
+		final long now = SystemClock.elapsedRealtime();
 		if (timeStart == 0) {
-			timeStart = SystemClock.elapsedRealtime();
-			initialBytesSent = bytesSent;
+			timeStart = now;
+			initialBytesSent = lastBytesSent = bytesSent;
+			lastProgressTime = now;
 		}
 		this.bytesSent = bytesSent;
 		this.progress = (int) (100.0f * bytesSent / imageSizeInBytes);
+		if (!shouldReport(now))
+			return;
+		updateEstimates(now);
 		mListener.updateProgressNotification();
 	}
 
@@ -113,19 +142,38 @@ import androidx.annotation.NonNull;
 		return bytesReceived;
 	}
 
-	@SuppressWarnings("unused")
 	int getImageSizeInBytes() {
 		return imageSizeInBytes;
 	}
 
+	/**
+	 * Returns the speed between the last two progress reports, in bytes per millisecond.
+	 */
 	float getSpeed() {
-		final long now = SystemClock.elapsedRealtime();
-		final float speed = now - timeStart != 0 ? (float) (bytesSent - lastBytesSent) / (float) (now - lastProgressTime) : 0.0f;
-		lastProgressTime = now;
-		lastBytesSent = bytesSent;
 		return speed;
 	}
 
+	/**
+	 * Returns the exponentially weighted moving average of the speed, in bytes per millisecond.
+	 */
+	float getSmoothedSpeed() {
+		return smoothedSpeed;
+	}
+
+	/**
+	 * Returns the estimated time remaining to send the current part, or -1 if unknown.
+	 */
+	long getEtaMillis() {
+		return etaMillis;
+	}
+
+	/**
+	 * Returns true if the percentage has changed since the previous progress report.
+	 */
+	boolean isPercentChanged() {
+		return percentChanged;
+	}
+
 	float getAverageSpeed() {
 		final long now = SystemClock.elapsedRealtime();
 		return now - timeStart != 0 ? (float) (bytesSent - initialBytesSent) / (float) (now - timeStart) : 0.0f;
@@ -142,4 +190,36 @@ import androidx.annotation.NonNull;
 	boolean isLastPart() {
 		return currentPart == totalParts;
 	}
+
+	private boolean shouldReport(final long now) {
+		// The last packet is always reported
+		if (bytesSent == imageSizeInBytes)
+			return bytesSent != lastBytesSent || progress != reportedProgress;
+		if (reportInterval == 0 && reportBytes == 0)
+			return progress != reportedProgress;
+		return now - lastProgressTime >= reportInterval
+				&& Math.abs(bytesSent - lastBytesSent) >= Math.max(1, reportBytes);
+	}
+
+	/**
+	 * Updates the speed and the estimated time remaining. This is called only when the
+	 * progress is to be reported, not for every packet.
+	 */
+	private void updateEstimates(final long now) {
+		final long elapsed = now - lastProgressTime;
+		if (elapsed > 0) {
+			speed = Math.max(0, (float) (bytesSent - lastBytesSent) / (float) elapsed);
+			if (smoothedSpeed == 0.0f) {
+				smoothedSpeed = speed;
+			} else {
+				final float alpha = (float) (1.0 - Math.exp(-elapsed / SPEED_TIME_CONSTANT));
+				smoothedSpeed += alpha * (speed - smoothedSpeed);
+			}
+		}
+		etaMillis = smoothedSpeed > 0 ? (long) ((imageSizeInBytes - bytesSent) / smoothedSpeed) : -1;
+		percentChanged = progress != reportedProgress;
+		reportedProgress = progress;
+		lastProgressTime = now;
+		lastBytesSent = bytesSent;
+	}
 }
@@ -89,6 +89,21 @@ public interface DfuProgressListener {
                            final float speed, final float avgSpeed,
                            final int currentPart, final int partsTotal);
 
+	/**
+	 * Method called during uploading the firmware with the detailed progress. By default it is
+	 * called together with {@link #onProgressChanged(String, int, float, float, int, int)},
+	 * but it may be called more often if thresholds were set using
+	 * {@link DfuServiceInitiator#setProgressReportingThresholds(long, int)}.
+	 *
+	 * @param deviceAddress the target device address.
+	 * @param progress      the progress snapshot with number of bytes sent, speed and estimated
+	 *                      time remaining.
+	 */
+	default void onProgressChanged(@NonNull final String deviceAddress,
+								   @NonNull final DfuProgressSnapshot progress) {
+		// empty default implementation
+	}
+
 	/**
 	 * Method called when the new firmware is being validated on the target device.
 	 *
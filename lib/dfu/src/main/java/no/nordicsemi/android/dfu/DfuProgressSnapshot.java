@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.dfu;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * An immutable snapshot of the DFU progress.
+ *
+ * @see DfuProgressListener#onProgressChanged(String, DfuProgressSnapshot)
+ */
+@SuppressWarnings("unused")
+public final class DfuProgressSnapshot {
+	@Nullable private final String deviceAddress;
+	@NonNull private final String serviceClassName;
+	private final int progress;
+	private final boolean percentChanged;
+	private final int bytesSent;
+	private final int totalBytes;
+	private final float speed;
+	private final float avgSpeed;
+	private final float smoothedSpeed;
+	private final long etaMillis;
+	private final int currentPart;
+	private final int partsTotal;
+
+	/* package */ DfuProgressSnapshot(@Nullable final String deviceAddress,
+									  @NonNull final String serviceClassName,
+									  @NonNull final DfuProgressInfo info) {
+		this.deviceAddress = deviceAddress;
+		this.serviceClassName = serviceClassName;
+		this.progress = info.getProgress();
+		this.percentChanged = info.isPercentChanged();
+		this.bytesSent = info.getBytesSent();
+		this.totalBytes = info.getImageSizeInBytes();
+		this.speed = info.getSpeed();
+		this.avgSpeed = info.getAverageSpeed();
+		this.smoothedSpeed = info.getSmoothedSpeed();
+		this.etaMillis = info.getEtaMillis();
+		this.currentPart = info.getCurrentPart();
+		this.partsTotal = info.getTotalParts();
+	}
+
+	/**
+	 * Returns the target device address.
+	 */
+	@Nullable
+	public String getDeviceAddress() {
+		return deviceAddress;
+	}
+
+	/**
+	 * Returns the upload progress in percent (0-100), or one of the PROGRESS_* states
+	 * defined in {@link DfuBaseService}, e.g. {@link DfuBaseService#PROGRESS_CONNECTING}.
+	 */
+	public int getProgress() {
+		return progress;
+	}
+
+	/**
+	 * Returns the number of bytes of the current part sent so far.
+	 */
+	public int getBytesSent() {
+		return bytesSent;
+	}
+
+	/**
+	 * Returns the size of the current part in bytes.
+	 */
+	public int getTotalBytes() {
+		return totalBytes;
+	}
+
+	/**
+	 * Returns the speed since the previous snapshot, in bytes per millisecond.
+	 */
+	public float getSpeed() {
+		return speed;
+	}
+
+	/**
+	 * Returns the average speed since the upload started, in bytes per millisecond.
+	 */
+	public float getAverageSpeed() {
+		return avgSpeed;
+	}
+
+	/**
+	 * Returns the exponentially weighted moving average of the speed, in bytes per millisecond.
+	 * It reacts to changes slower than {@link #getSpeed()}, but is more stable.
+	 */
+	public float getSmoothedSpeed() {
+		return smoothedSpeed;
+	}
+
+	/**
+	 * Returns the estimated time until the current part is sent, in milliseconds,
+	 * based on the {@link #getSmoothedSpeed() smoothed speed}, or -1 if unknown.
+	 */
+	public long getEtaMillis() {
+		return etaMillis;
+	}
+
+	/**
+	 * Returns the number of the part being sent. In case the ZIP file contains a SoftDevice
+	 * and/or a Bootloader together with the application the SD+BL are sent as part 1,
+	 * then the service starts again and send the application as part 2.
+	 */
+	public int getCurrentPart() {
+		return currentPart;
+	}
+
+	/**
+	 * Returns the total number of parts.
+	 */
+	public int getPartsTotal() {
+		return partsTotal;
+	}
+
+	@NonNull
+	/* package */ String getServiceClassName() {
+		return serviceClassName;
+	}
+
+	/**
+	 * Returns true if the progress in percent has changed since the previous snapshot.
+	 */
+	/* package */ boolean isPercentChanged() {
+		return percentChanged;
+	}
+}
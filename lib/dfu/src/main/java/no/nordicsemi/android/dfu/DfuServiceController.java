@@ -26,6 +26,7 @@ import android.content.Context;
 import android.content.Intent;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 /**
@@ -41,12 +42,26 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 public class DfuServiceController implements DfuController {
 	@SuppressWarnings("deprecation")
 	private final LocalBroadcastManager mBroadcastManager;
+	@Nullable
+	private final String mServiceClassName;
 	private boolean mPaused;
 	private boolean mAborted;
 
 	/* package */ DfuServiceController(@NonNull final Context context) {
+		this(context, null);
+	}
+
+	/**
+	 * Creates the controller that will send actions only to the service with the given class.
+	 *
+	 * @param context          the context.
+	 * @param serviceClassName the name of the service class, or null to send actions to all
+	 *                         DFU services.
+	 */
+	/* package */ DfuServiceController(@NonNull final Context context, @Nullable final String serviceClassName) {
 		//noinspection deprecation
 		mBroadcastManager = LocalBroadcastManager.getInstance(context);
+		mServiceClassName = serviceClassName;
 	}
 
 	@Override
@@ -55,6 +70,7 @@ public class DfuServiceController implements DfuController {
 			mPaused = true;
 			final Intent pauseAction = new Intent(DfuBaseService.BROADCAST_ACTION);
 			pauseAction.putExtra(DfuBaseService.EXTRA_ACTION, DfuBaseService.ACTION_PAUSE);
+			pauseAction.putExtra(DfuBaseService.EXTRA_SERVICE_CLASS_NAME, mServiceClassName);
 			mBroadcastManager.sendBroadcast(pauseAction);
 		}
 	}
@@ -65,6 +81,7 @@ public class DfuServiceController implements DfuController {
 			mPaused = false;
 			final Intent pauseAction = new Intent(DfuBaseService.BROADCAST_ACTION);
 			pauseAction.putExtra(DfuBaseService.EXTRA_ACTION, DfuBaseService.ACTION_RESUME);
+			pauseAction.putExtra(DfuBaseService.EXTRA_SERVICE_CLASS_NAME, mServiceClassName);
 			mBroadcastManager.sendBroadcast(pauseAction);
 		}
 	}
@@ -76,6 +93,7 @@ public class DfuServiceController implements DfuController {
 			mPaused = false;
 			final Intent pauseAction = new Intent(DfuBaseService.BROADCAST_ACTION);
 			pauseAction.putExtra(DfuBaseService.EXTRA_ACTION, DfuBaseService.ACTION_ABORT);
+			pauseAction.putExtra(DfuBaseService.EXTRA_SERVICE_CLASS_NAME, mServiceClassName);
 			mBroadcastManager.sendBroadcast(pauseAction);
 		}
 	}
@@ -72,10 +72,14 @@ public final class DfuServiceInitiator {
 	 * with CRC each time it receives that many packets of firmware
 	 */
 	public static final int DEFAULT_PRN_VALUE = 12;
+	/** The highest MTU supported by Android, requested by default. */
+	public static final int MAX_MTU = 517;
 	/** The default maximum size of the data block. */
 	public static final int DEFAULT_MBR_SIZE = 0x1000;
 	/** The default scan timeout in milliseconds. */
 	public static final long DEFAULT_SCAN_TIMEOUT = 5000; // ms
+	/** The default maximum time to wait for the Service Changed indication, in milliseconds. */
+	public static final long DEFAULT_SERVICE_CHANGED_WAIT_TIME = 4000; // ms
 
 	/** Constant used to narrow the scope of the update to system components (SD+BL) only. */
 	public static final int SCOPE_SYSTEM_COMPONENTS = 1;
@@ -86,6 +90,9 @@ public final class DfuServiceInitiator {
 	private String deviceName;
 
 	private boolean disableNotification = false;
+	private boolean disableProgressBroadcasts = false;
+	private long progressReportInterval = 0;
+	private int progressReportBytes = 0;
 	private boolean startAsForegroundService = true;
 
 	private Uri fileUri;
@@ -105,17 +112,31 @@ public final class DfuServiceInitiator {
 	private boolean forceScanningForNewAddressInLegacyDfu = false;
 	private boolean enableUnsafeExperimentalButtonlessDfu = false;
 	private boolean disableResume = false;
+	private boolean resumeJournal = false;
+	private int logLevel = DfuBaseService.LOG_LEVEL_DEBUG;
+	private boolean logBatching = false;
+	private long serviceChangedWaitTime = DEFAULT_SERVICE_CHANGED_WAIT_TIME; // ms
 	private int numberOfRetries = 0; // 0 to be backwards compatible
 	private int mbrSize = DEFAULT_MBR_SIZE;
 	private long dataObjectDelay = 0; // initially disabled
+	private boolean pipelineDataObjects = false;
+	private long operationTimeout = 0; // initially disabled
+	private long packetStallTimeout = 0; // initially disabled
+	private long firmwareCacheSize = 0; // initially disabled
+	private boolean firmwareShared = false;
 	private long rebootTime = 0; // ms
 	private long scanTimeout = DEFAULT_SCAN_TIMEOUT; // ms
 
 	private Boolean packetReceiptNotificationsEnabled;
 	private int numberOfPackets = 12;
+	private boolean packetReceiptNotificationsAdaptive = false;
+	private boolean packetReceiptNotificationsFromLink = false;
+	private boolean legacyDfuFastMode = false;
+	private String legacyDfuDeviceModel;
 
-	private int mtu = 517;
+	private int mtu = MAX_MTU;
 	private int currentMtu = 23;
+	private int preferredPhy = 0; // initially not requested
 
 	private Parcelable[] legacyDfuUuids;
 	private Parcelable[] secureDfuUuids;
@@ -164,6 +185,42 @@ public final class DfuServiceInitiator {
 		return this;
 	}
 
+	/**
+	 * Sets whether the progress and error broadcasts should be disabled. Listeners registered
+	 * using {@link DfuServiceListenerHelper} are notified directly and will work either way.
+	 * Disable the broadcasts if you don't listen to them using your own
+	 * {@link android.content.BroadcastReceiver}. Defaults to false.
+	 *
+	 * @param disableProgressBroadcasts whether to disable the progress and error broadcasts.
+	 * @return the builder
+	 */
+	public DfuServiceInitiator setDisableProgressBroadcasts(final boolean disableProgressBroadcasts) {
+		this.disableProgressBroadcasts = disableProgressBroadcasts;
+		return this;
+	}
+
+	/**
+	 * Sets how often the progress is reported while sending the firmware. By default, the
+	 * progress is reported each time the percentage changes.
+	 * <p>
+	 * When any of the thresholds is set, the progress is reported when at least the given time
+	 * has passed and at least the given number of bytes has been sent since the previous report.
+	 * Such reports are given to
+	 * {@link DfuProgressListener#onProgressChanged(String, DfuProgressSnapshot)}, while
+	 * {@link DfuProgressListener#onProgressChanged(String, int, float, float, int, int)} is
+	 * still called only when the percentage changes.
+	 *
+	 * @param intervalMillis minimum time between reports in milliseconds, 0 to ignore.
+	 * @param bytes          minimum number of bytes between reports, 0 to ignore.
+	 * @return the builder
+	 */
+	public DfuServiceInitiator setProgressReportingThresholds(@IntRange(from = 0) final long intervalMillis,
+															  @IntRange(from = 0) final int bytes) {
+		this.progressReportInterval = intervalMillis;
+		this.progressReportBytes = bytes;
+		return this;
+	}
+
 	/**
 	 * Sets whether the DFU service should be started as a foreground service. By default it's
 	 * <i>true</i>. According to
@@ -245,6 +302,94 @@ public final class DfuServiceInitiator {
 		return this;
 	}
 
+	/**
+	 * Enables or disables pipelining of data objects in Secure DFU.
+	 * <p>
+	 * By default, each data object is executed and only then the next one is created, which
+	 * requires two round trips on the control point between objects. With this option
+	 * enabled, the Create request for the next object is sent immediately after the Execute
+	 * request, and both responses are awaited afterwards.
+	 * <p>
+	 * The delay set with {@link #setPrepareDataObjectDelay(long)} is still applied after
+	 * each object is created.
+	 *
+	 * @param enabled true to pipeline Execute and Create requests, false to send them in
+	 *                separate round trips (default).
+	 * @return the builder
+	 */
+	public DfuServiceInitiator setDataObjectPipeliningEnabled(final boolean enabled) {
+		this.pipelineDataObjects = enabled;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum time to wait for a confirmation or a response to a single GATT operation,
+	 * like writing an Op Code, enabling notifications or receiving a response on the control
+	 * point. Without a timeout a missed notification will hang the update until the device
+	 * disconnects.
+	 * <p>
+	 * Keep in mind, that executing the last data object in Secure DFU may take a few seconds,
+	 * as the bootloader may need to erase the flash memory. The timeout does not apply to
+	 * bonding, which may require user interaction.
+	 *
+	 * @param timeout the timeout in milliseconds, or 0 to wait until the device disconnects
+	 *                (default).
+	 * @return the builder
+	 * @see DfuBaseService#ERROR_OPERATION_TIMEOUT
+	 */
+	public DfuServiceInitiator setOperationTimeout(@IntRange(from = 0) final long timeout) {
+		this.operationTimeout = timeout;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum time without progress while streaming the firmware. The progress is
+	 * made when a packet is written or a Packet Receipt Notification is received, so this
+	 * timeout detects a missed PRN within a few connection intervals.
+	 * <p>
+	 * In Secure DFU a stalled upload is resumed from the offset reported by the target.
+	 * In Legacy DFU the update fails with {@link DfuBaseService#ERROR_OPERATION_TIMEOUT}.
+	 *
+	 * @param timeout the timeout in milliseconds, or 0 to disable the watchdog (default).
+	 *                Values of a few hundred milliseconds are recommended.
+	 * @return the builder
+	 */
+	public DfuServiceInitiator setPacketStallTimeout(@IntRange(from = 0) final long timeout) {
+		this.packetStallTimeout = timeout;
+		return this;
+	}
+
+	/**
+	 * Enables the firmware cache. When enabled, firmware from ZIP files is kept in the app cache
+	 * directory after it has been extracted and converted to BIN. When the same ZIP file is sent
+	 * again, e.g. to another device, it will be read from the cache instead. The files are
+	 * identified by the SHA-256 of the ZIP file content.
+	 * <p>
+	 * When the cache exceeds the given size, the least recently used files are removed.
+	 * Services started by {@link DfuServicePool} that update devices with the same ZIP file
+	 * at the same time share the extracted firmware in memory, also when the cache is disabled.
+	 *
+	 * @param maxSize the maximum size of the cache in bytes, 0 to disable the cache (default).
+	 * @return the builder
+	 */
+	public DfuServiceInitiator setFirmwareCacheSize(@IntRange(from = 0) final long maxSize) {
+		this.firmwareCacheSize = maxSize;
+		return this;
+	}
+
+	/**
+	 * Sets whether the firmware may be sent to other devices at the same time, e.g. when
+	 * the update is started by {@link DfuServicePool}. Such firmware is shared in memory by
+	 * all services in the process.
+	 *
+	 * @param shared true if the firmware may be shared.
+	 * @return the builder
+	 */
+	/* package */ DfuServiceInitiator setFirmwareShared(final boolean shared) {
+		this.firmwareShared = shared;
+		return this;
+	}
+
 	/**
 	 * Enables or disables the Packet Receipt Notification (PRN) procedure.
 	 * <p>
@@ -260,6 +405,90 @@ public final class DfuServiceInitiator {
 		return this;
 	}
 
+	/**
+	 * Enables or disables adaptive Packet Receipt Notifications in Secure DFU.
+	 * <p>
+	 * By default, when bytes are lost during sending a data object, the service sets PRNs to 1
+	 * for the rest of the update, which makes it reliable, but very slow. With this option
+	 * enabled the PRN value is halved after each loss and increased again by one after each data
+	 * object sent without losses, up to the value set with
+	 * {@link #setPacketsReceiptNotificationsValue(int)}, or until PRNs are disabled again
+	 * if they were disabled initially.
+	 * <p>
+	 * This option is ignored in Legacy DFU.
+	 *
+	 * @param adaptive true to adjust the PRN value during the update, false to use a fixed value.
+	 * @return the builder
+	 */
+	public DfuServiceInitiator setPacketsReceiptNotificationsAdaptive(final boolean adaptive) {
+		this.packetReceiptNotificationsAdaptive = adaptive;
+		return this;
+	}
+
+	/**
+	 * Enables or disables sizing the Packet Receipt Notification value from the negotiated MTU.
+	 * <p>
+	 * By default the same number of packets is sent between notifications, whatever their size.
+	 * With this option enabled the number is chosen so that about 4 kB of firmware, the size of
+	 * a Secure DFU data object, is sent between notifications, but never fewer packets than
+	 * set with {@link #setPacketsReceiptNotificationsValue(int)}. With 20-byte packets, used
+	 * when the MTU was not increased, this results in fewer notifications and a faster upload.
+	 * The target must be able to receive that much data without a notification.
+	 * <p>
+	 * This option is ignored when the PRNs are disabled.
+	 *
+	 * @param fromLink true to size the PRN value from the link, false to use a fixed value.
+	 * @return the builder
+	 */
+	public DfuServiceInitiator setPacketsReceiptNotificationsSizedFromLink(final boolean fromLink) {
+		this.packetReceiptNotificationsFromLink = fromLink;
+		return this;
+	}
+
+	/**
+	 * Enables or disables the fast mode in Legacy DFU.
+	 * <p>
+	 * Bootloaders from SDK 6.0.0 or older require Packet Receipt Notifications, and by default
+	 * the value is limited to 10. In the fast mode, each successful update of a device model
+	 * is followed by an update with a higher PRN value, until the bootloader reports
+	 * Operation Failed (status 6) at the end of the upload. The device is then reset and the
+	 * upload is restarted automatically with the highest value that worked, so the error is not
+	 * reported. Values between the two are tried after following successful updates.
+	 * The values are kept in the app shared preferences.
+	 * <p>
+	 * Only the PRN value is changed. The packets are still written without response.
+	 * <p>
+	 * The device model is identified by the DFU Version of the bootloader and the value
+	 * set using {@link #setLegacyDfuDeviceModel(String)}, if any.
+	 * <p>
+	 * This option is ignored in Secure DFU, or when the PRNs are disabled.
+	 *
+	 * @param enabled true to enable the fast mode, false to use the default PRN values.
+	 * @return the builder
+	 */
+	public DfuServiceInitiator setLegacyDfuFastModeEnabled(final boolean enabled) {
+		this.legacyDfuFastMode = enabled;
+		return this;
+	}
+
+	/**
+	 * Sets the identifier of the device model, used in the Legacy DFU fast mode to share
+	 * the Packet Receipt Notification values learned with all devices of the same model.
+	 * Devices with different hardware may use the same bootloader, but be able to handle
+	 * different values, so the identifier should reflect the hardware, e.g. the model number
+	 * and hardware revision read from the Device Information Service before the update.
+	 * <p>
+	 * If not set, the values are shared by all devices with the same DFU Version.
+	 *
+	 * @param model the device model identifier, or null.
+	 * @return the builder
+	 * @see #setLegacyDfuFastModeEnabled(boolean)
+	 */
+	public DfuServiceInitiator setLegacyDfuDeviceModel(@Nullable final String model) {
+		this.legacyDfuDeviceModel = model;
+		return this;
+	}
+
 	/**
 	 * If Packet Receipt Notification procedure is enabled, this method sets number of packets to
 	 * be sent before receiving a PRN. A PRN is used to synchronize the transmitter and receiver.
@@ -315,6 +544,26 @@ public final class DfuServiceInitiator {
 		return this;
 	}
 
+	/**
+	 * Sets the maximum time to wait for the Service Changed indication after connecting to
+	 * a bonded device. Service discovery is started when the indication is received, or when
+	 * this time elapses. Starting service discovery before the indication is received may
+	 * cause the following operations to fail on some phones.
+	 * <p>
+	 * On Android 12 or newer, which notify about the Service Changed indication, the library
+	 * remembers how long it took each device to send the indication, and later waits only
+	 * slightly longer than that, up to this time.
+	 *
+	 * @param waitTime the maximum wait time in milliseconds, default
+	 *                 {@value #DEFAULT_SERVICE_CHANGED_WAIT_TIME} ms. 0 to start service
+	 *                 discovery immediately.
+	 * @return the builder
+	 */
+	public DfuServiceInitiator setServiceChangedWaitTime(@IntRange(from = 0) final long waitTime) {
+		this.serviceChangedWaitTime = waitTime;
+		return this;
+	}
+
 	/**
 	 * Sets the time required by the device to reboot. The library will wait for this time before
 	 * scanning for the device in bootloader mode.
@@ -381,6 +630,59 @@ public final class DfuServiceInitiator {
 		return this;
 	}
 
+	/**
+	 * Enables the resume journal in Secure DFU. When enabled, the offset and CRC of the last
+	 * executed data object, together with the Packet Receipt Notification value used, are
+	 * saved in the app files directory after each object, separately for each device and firmware. If the upload is interrupted and
+	 * resumed later, even after the app process was killed, the data sent before don't have
+	 * to be read and hashed again to validate the resume point.
+	 * <p>
+	 * The journal is removed when the firmware has been sent. It is ignored when Legacy DFU
+	 * is used or resume is disabled.
+	 *
+	 * @param enabled true to enable the journal, false to disable it (default).
+	 * @return the builder
+	 */
+	public DfuServiceInitiator setResumeJournalEnabled(final boolean enabled) {
+		this.resumeJournal = enabled;
+		return this;
+	}
+
+	/**
+	 * Sets the lowest level of log events broadcast by the DFU service. Events below this
+	 * level are ignored before the message is created, which saves time on verbose levels,
+	 * e.g. when each packet would be logged.
+	 *
+	 * @param minLevel the lowest log level, e.g. {@link DfuBaseService#LOG_LEVEL_APPLICATION}.
+	 *                 By default {@link DfuBaseService#LOG_LEVEL_DEBUG}, that is all events
+	 *                 are broadcast.
+	 * @return the builder
+	 * @see DfuBaseService#EXTRA_LOG_MIN_LEVEL
+	 */
+	public DfuServiceInitiator setLogLevel(final int minLevel) {
+		this.logLevel = minLevel;
+		return this;
+	}
+
+	/**
+	 * Enables sending log events in batches. Instead of one {@link DfuBaseService#BROADCAST_LOG}
+	 * broadcast per event, sent from the thread that created it, the events are queued and
+	 * sent from a background thread, with multiple events in a single broadcast.
+	 * <p>
+	 * Batched broadcasts use {@link DfuBaseService#EXTRA_LOG_LEVELS} and
+	 * {@link DfuBaseService#EXTRA_LOG_MESSAGES} extras, so a broadcast receiver registered by
+	 * the app must support them. Listeners registered using {@link DfuServiceListenerHelper}
+	 * support both formats.
+	 *
+	 * @param enabled true to send log events in batches, false to send each one separately (default).
+	 * @return the builder
+	 * @see DfuBaseService#EXTRA_LOG_BATCHING
+	 */
+	public DfuServiceInitiator setLogBatchingEnabled(final boolean enabled) {
+		this.logBatching = enabled;
+		return this;
+	}
+
 	/**
 	 * Sets the number of retries that the DFU service will use to complete DFU. The default
 	 * value is 0, for backwards compatibility reason.
@@ -461,6 +763,26 @@ public final class DfuServiceInitiator {
 		return this;
 	}
 
+	/**
+	 * Sets the preferred PHY that will be requested after the MTU, before sending the firmware.
+	 * LE 2M PHY doubles the raw bit rate, which may significantly shorten the update if both
+	 * the phone and the DFU bootloader support it. If not supported, the sides will keep using
+	 * LE 1M PHY.
+	 * <p>
+	 * The negotiated MTU and PHY are logged and reported in {@link DfuMetrics}.
+	 * <p>
+	 * Note: PHY may be requested on Android Oreo or newer.
+	 *
+	 * @param phyMask the PHY mask, a combination of {@link BluetoothDevice#PHY_LE_1M_MASK},
+	 *                {@link BluetoothDevice#PHY_LE_2M_MASK} and
+	 *                {@link BluetoothDevice#PHY_LE_CODED_MASK}, or 0 to not request PHY (default).
+	 * @return the builder
+	 */
+	public DfuServiceInitiator setPreferredPhy(final int phyMask) {
+		this.preferredPhy = phyMask;
+		return this;
+	}
+
 	/**
 	 * This method allows to narrow the update to selected parts from the ZIP, for example
 	 * to allow only application update from a ZIP file that has SD+BL+App. System components scope
@@ -853,6 +1175,9 @@ public final class DfuServiceInitiator {
 		intent.putExtra(DfuBaseService.EXTRA_DEVICE_ADDRESS, deviceAddress);
 		intent.putExtra(DfuBaseService.EXTRA_DEVICE_NAME, deviceName);
 		intent.putExtra(DfuBaseService.EXTRA_DISABLE_NOTIFICATION, disableNotification);
+		intent.putExtra(DfuBaseService.EXTRA_DISABLE_PROGRESS_BROADCASTS, disableProgressBroadcasts);
+		intent.putExtra(DfuBaseService.EXTRA_PROGRESS_REPORT_INTERVAL, progressReportInterval);
+		intent.putExtra(DfuBaseService.EXTRA_PROGRESS_REPORT_BYTES, progressReportBytes);
 		intent.putExtra(DfuBaseService.EXTRA_FOREGROUND_SERVICE, startAsForegroundService);
 		intent.putExtra(DfuBaseService.EXTRA_FILE_MIME_TYPE, mimeType);
 		intent.putExtra(DfuBaseService.EXTRA_FILE_TYPE, fileType);
@@ -867,15 +1192,30 @@ public final class DfuServiceInitiator {
 		intent.putExtra(DfuBaseService.EXTRA_FORCE_DFU, forceDfu);
 		intent.putExtra(DfuBaseService.EXTRA_FORCE_SCANNING_FOR_BOOTLOADER_IN_LEGACY_DFU, forceScanningForNewAddressInLegacyDfu);
 		intent.putExtra(DfuBaseService.EXTRA_DISABLE_RESUME, disableResume);
+		intent.putExtra(DfuBaseService.EXTRA_RESUME_JOURNAL, resumeJournal);
+		intent.putExtra(DfuBaseService.EXTRA_LOG_MIN_LEVEL, logLevel);
+		intent.putExtra(DfuBaseService.EXTRA_LOG_BATCHING, logBatching);
+		intent.putExtra(DfuBaseService.EXTRA_SERVICE_CHANGED_WAIT_TIME, serviceChangedWaitTime);
 		intent.putExtra(DfuBaseService.EXTRA_MAX_DFU_ATTEMPTS, numberOfRetries);
 		intent.putExtra(DfuBaseService.EXTRA_MBR_SIZE, mbrSize);
 		intent.putExtra(DfuBaseService.EXTRA_DATA_OBJECT_DELAY, dataObjectDelay);
+		intent.putExtra(DfuBaseService.EXTRA_PIPELINE_DATA_OBJECTS, pipelineDataObjects);
+		intent.putExtra(DfuBaseService.EXTRA_OPERATION_TIMEOUT, operationTimeout);
+		intent.putExtra(DfuBaseService.EXTRA_PACKET_STALL_TIMEOUT, packetStallTimeout);
+		intent.putExtra(DfuBaseService.EXTRA_FIRMWARE_CACHE_SIZE, firmwareCacheSize);
+		intent.putExtra(DfuBaseService.EXTRA_FIRMWARE_SHARED, firmwareShared);
 		intent.putExtra(DfuBaseService.EXTRA_SCAN_TIMEOUT, scanTimeout);
 		intent.putExtra(DfuBaseService.EXTRA_SCAN_DELAY, rebootTime);
-		if (mtu > 0)
-			intent.putExtra(DfuBaseService.EXTRA_MTU, mtu);
+		intent.putExtra(DfuBaseService.EXTRA_MTU, mtu);
 		intent.putExtra(DfuBaseService.EXTRA_CURRENT_MTU, currentMtu);
+		if (preferredPhy > 0)
+			intent.putExtra(DfuBaseService.EXTRA_PREFERRED_PHY, preferredPhy);
 		intent.putExtra(DfuBaseService.EXTRA_UNSAFE_EXPERIMENTAL_BUTTONLESS_DFU, enableUnsafeExperimentalButtonlessDfu);
+		intent.putExtra(DfuBaseService.EXTRA_PACKET_RECEIPT_NOTIFICATIONS_ADAPTIVE, packetReceiptNotificationsAdaptive);
+		intent.putExtra(DfuBaseService.EXTRA_PACKET_RECEIPT_NOTIFICATIONS_FROM_LINK, packetReceiptNotificationsFromLink);
+		intent.putExtra(DfuBaseService.EXTRA_LEGACY_DFU_FAST_MODE, legacyDfuFastMode);
+		if (legacyDfuDeviceModel != null)
+			intent.putExtra(DfuBaseService.EXTRA_LEGACY_DFU_DEVICE_MODEL, legacyDfuDeviceModel);
 		//noinspection StatementWithEmptyBody
 		if (packetReceiptNotificationsEnabled != null) {
 			intent.putExtra(DfuBaseService.EXTRA_PACKET_RECEIPT_NOTIFICATIONS_ENABLED, packetReceiptNotificationsEnabled);
@@ -904,7 +1244,7 @@ public final class DfuServiceInitiator {
 		} else {
 			context.startService(intent);
 		}
-		return new DfuServiceController(context);
+		return new DfuServiceController(context, service.getName());
 	}
 
 	private DfuServiceInitiator init(@Nullable final Uri initFileUri,
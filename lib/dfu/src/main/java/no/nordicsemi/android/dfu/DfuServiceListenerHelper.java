@@ -27,7 +27,9 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import androidx.annotation.NonNull;
@@ -45,22 +47,30 @@ import no.nordicsemi.android.error.GattError;
  * <p>
  * Use {@link #registerProgressListener(Context, DfuProgressListener)} or
  * {@link #registerLogListener(Context, DfuLogListener)} to register your listeners.
+ * Metrics of finished updates may be obtained using
+ * {@link #registerMetricsListener(DfuMetricsListener)}.
  * Remember about unregistering them when your context is destroyed.
  */
 @SuppressWarnings({"WeakerAccess", "unused"})
 public class DfuServiceListenerHelper {
 	private static LogBroadcastReceiver mLogBroadcastReceiver;
-	private static ProgressBroadcastsReceiver mProgressBroadcastReceiver;
+	private static ProgressEventsReceiver mProgressEventsReceiver;
+	private static MetricsEventsReceiver mMetricsEventsReceiver;
 
 	private static class LogBroadcastReceiver extends BroadcastReceiver {
 		private final Map<String, DfuLogListener> mListeners = new HashMap<>();
+		private final Map<DfuLogListener, Integer> mMinLevels = new HashMap<>();
 		private DfuLogListener mGlobalLogListener;
 
-		private void setLogListener(final DfuLogListener globalLogListener) {
+		private void setLogListener(final DfuLogListener globalLogListener, final int minLevel) {
+			if (mGlobalLogListener != null)
+				mMinLevels.remove(mGlobalLogListener);
 			this.mGlobalLogListener = globalLogListener;
+			setMinLevel(globalLogListener, minLevel);
 		}
 
-		private void setLogListener(final String deviceAddress, final DfuLogListener listener) {
+		private void setLogListener(final String deviceAddress, final DfuLogListener listener, final int minLevel) {
+			setMinLevel(listener, minLevel);
 			// When using the buttonless update and updating the SoftDevice the application will
 			// be removed to make space for the new SoftDevice.
 			// The new bootloader will afterwards advertise with the address incremented by 1.
@@ -87,9 +97,21 @@ public class DfuServiceListenerHelper {
 				}
 			}
 
+			if (mGlobalLogListener != listener && !mListeners.containsValue(listener))
+				mMinLevels.remove(listener);
+
 			return mGlobalLogListener == null && mListeners.isEmpty();
 		}
 
+		private void setMinLevel(final DfuLogListener listener, final int minLevel) {
+			mMinLevels.put(listener, minLevel);
+		}
+
+		private int getMinLevel(final DfuLogListener listener) {
+			final Integer level = mMinLevels.get(listener);
+			return level != null ? level : DfuBaseService.LOG_LEVEL_DEBUG;
+		}
+
 		@Override
 		public void onReceive(final Context context, final Intent intent) {
 			final String address = intent.getStringExtra(DfuBaseService.EXTRA_DEVICE_ADDRESS);
@@ -101,17 +123,61 @@ public class DfuServiceListenerHelper {
 			if (globalListener == null && deviceListener == null)
 				return;
 
-			final int level = intent.getIntExtra(DfuBaseService.EXTRA_LOG_LEVEL, 0);
-			final String message = intent.getStringExtra(DfuBaseService.EXTRA_LOG_MESSAGE);
+			// Batched events are sent in arrays, otherwise each event is sent separately
+			int[] levels = intent.getIntArrayExtra(DfuBaseService.EXTRA_LOG_LEVELS);
+			String[] messages = intent.getStringArrayExtra(DfuBaseService.EXTRA_LOG_MESSAGES);
+			if (levels == null || messages == null) {
+				levels = new int[] { intent.getIntExtra(DfuBaseService.EXTRA_LOG_LEVEL, 0) };
+				messages = new String[] { intent.getStringExtra(DfuBaseService.EXTRA_LOG_MESSAGE) };
+			}
 
-			if (globalListener != null)
-				globalListener.onLogEvent(address, level, message);
-			if (deviceListener != null)
-				deviceListener.onLogEvent(address, level, message);
+			final int globalMinLevel = getMinLevel(globalListener);
+			final int deviceMinLevel = getMinLevel(deviceListener);
+			for (int i = 0; i < levels.length && i < messages.length; ++i) {
+				final int level = levels[i];
+				final String message = messages[i];
+				if (globalListener != null && level >= globalMinLevel)
+					globalListener.onLogEvent(address, level, message);
+				if (deviceListener != null && level >= deviceMinLevel)
+					deviceListener.onLogEvent(address, level, message);
+			}
 		}
 	}
 
-	private static class ProgressBroadcastsReceiver extends BroadcastReceiver {
+	private static class MetricsEventsReceiver implements DfuEventBus.Listener {
+		private final List<DfuMetricsListener> mListeners = new ArrayList<>();
+
+		private void addMetricsListener(final DfuMetricsListener listener) {
+			if (!mListeners.contains(listener))
+				mListeners.add(listener);
+		}
+
+		private boolean removeMetricsListener(final DfuMetricsListener listener) {
+			mListeners.remove(listener);
+			return mListeners.isEmpty();
+		}
+
+		@Override
+		public void onProgressEvent(@NonNull final DfuProgressSnapshot event) {
+			// ignore
+		}
+
+		@Override
+		public void onErrorEvent(@NonNull final DfuEventBus.ErrorEvent event) {
+			// ignore
+		}
+
+		@Override
+		public void onMetricsEvent(@NonNull final DfuMetrics metrics) {
+			final String address = metrics.getDeviceAddress();
+			if (address == null)
+				return;
+			for (final DfuMetricsListener listener : new ArrayList<>(mListeners))
+				listener.onMetricsAvailable(address, metrics);
+		}
+	}
+
+	private static class ProgressEventsReceiver implements DfuEventBus.Listener {
 		private final Map<String, DfuProgressListener> mListeners = new HashMap<>();
 		private DfuProgressListener mGlobalProgressListener;
 
@@ -148,8 +214,8 @@ public class DfuServiceListenerHelper {
 		}
 
 		@Override
-		public void onReceive(final Context context, final Intent intent) {
-			final String address = intent.getStringExtra(DfuBaseService.EXTRA_DEVICE_ADDRESS);
+		public void onProgressEvent(@NonNull final DfuProgressSnapshot event) {
+			final String address = event.getDeviceAddress();
 			if (address == null)
 				return;
 
@@ -160,118 +226,127 @@ public class DfuServiceListenerHelper {
 			if (globalListener == null && deviceListener == null)
 				return;
 
-			final String action = intent.getAction();
-			if (action == null)
-				return;
-
-			switch (action) {
-				case DfuBaseService.BROADCAST_PROGRESS: {
-					final int progress = intent.getIntExtra(DfuBaseService.EXTRA_DATA, 0);
-					final float speed = intent.getFloatExtra(DfuBaseService.EXTRA_SPEED_B_PER_MS, 0.0f);
-					final float avgSpeed = intent.getFloatExtra(DfuBaseService.EXTRA_AVG_SPEED_B_PER_MS, 0.0f);
-					final int currentPart = intent.getIntExtra(DfuBaseService.EXTRA_PART_CURRENT, 0);
-					final int partsTotal = intent.getIntExtra(DfuBaseService.EXTRA_PARTS_TOTAL, 0);
+			final int progress = event.getProgress();
+			final float speed = event.getSpeed();
+			final float avgSpeed = event.getAverageSpeed();
+			final int currentPart = event.getCurrentPart();
+			final int partsTotal = event.getPartsTotal();
 
-					switch (progress) {
-						case DfuBaseService.PROGRESS_CONNECTING:
-							if (globalListener != null)
-								globalListener.onDeviceConnecting(address);
-							if (deviceListener != null)
-								deviceListener.onDeviceConnecting(address);
-							break;
-						case DfuBaseService.PROGRESS_STARTING:
-							if (globalListener != null) {
-								globalListener.onDeviceConnected(address);
-								globalListener.onDfuProcessStarting(address);
-							}
-							if (deviceListener != null) {
-								deviceListener.onDeviceConnected(address);
-								deviceListener.onDfuProcessStarting(address);
-							}
-							break;
-						case DfuBaseService.PROGRESS_ENABLING_DFU_MODE:
-							if (globalListener != null)
-								globalListener.onEnablingDfuMode(address);
-							if (deviceListener != null)
-								deviceListener.onEnablingDfuMode(address);
-							break;
-						case DfuBaseService.PROGRESS_VALIDATING:
-							if (globalListener != null)
-								globalListener.onFirmwareValidating(address);
-							if (deviceListener != null)
-								deviceListener.onFirmwareValidating(address);
-							break;
-						case DfuBaseService.PROGRESS_DISCONNECTING:
-							if (globalListener != null)
-								globalListener.onDeviceDisconnecting(address);
-							if (deviceListener != null)
-								deviceListener.onDeviceDisconnecting(address);
-							break;
-						case DfuBaseService.PROGRESS_COMPLETED:
-							if (globalListener != null) {
-								globalListener.onDeviceDisconnected(address);
-								globalListener.onDfuCompleted(address);
-							}
-							if (deviceListener != null) {
-								deviceListener.onDeviceDisconnected(address);
-								deviceListener.onDfuCompleted(address);
-							}
-							break;
-						case DfuBaseService.PROGRESS_ABORTED:
-							if (globalListener != null) {
-								globalListener.onDeviceDisconnected(address);
-								globalListener.onDfuAborted(address);
-							}
-							if (deviceListener != null) {
-								deviceListener.onDeviceDisconnected(address);
-								deviceListener.onDfuAborted(address);
-							}
-							break;
-						default:
-							if (progress == 0) {
-								if (globalListener != null)
-									globalListener.onDfuProcessStarted(address);
-								if (deviceListener != null)
-									deviceListener.onDfuProcessStarted(address);
-							}
-							if (globalListener != null)
-								globalListener.onProgressChanged(address, progress, speed, avgSpeed, currentPart, partsTotal);
-							if (deviceListener != null)
-								deviceListener.onProgressChanged(address, progress, speed, avgSpeed, currentPart, partsTotal);
-							break;
+			switch (progress) {
+				case DfuBaseService.PROGRESS_CONNECTING:
+					if (globalListener != null)
+						globalListener.onDeviceConnecting(address);
+					if (deviceListener != null)
+						deviceListener.onDeviceConnecting(address);
+					break;
+				case DfuBaseService.PROGRESS_STARTING:
+					if (globalListener != null) {
+						globalListener.onDeviceConnected(address);
+						globalListener.onDfuProcessStarting(address);
+					}
+					if (deviceListener != null) {
+						deviceListener.onDeviceConnected(address);
+						deviceListener.onDfuProcessStarting(address);
 					}
-
 					break;
-				}
-				case DfuBaseService.BROADCAST_ERROR: {
-					final int error = intent.getIntExtra(DfuBaseService.EXTRA_DATA, 0);
-					final int errorType = intent.getIntExtra(DfuBaseService.EXTRA_ERROR_TYPE, 0);
-
+				case DfuBaseService.PROGRESS_ENABLING_DFU_MODE:
 					if (globalListener != null)
-						globalListener.onDeviceDisconnected(address);
+						globalListener.onEnablingDfuMode(address);
 					if (deviceListener != null)
+						deviceListener.onEnablingDfuMode(address);
+					break;
+				case DfuBaseService.PROGRESS_VALIDATING:
+					if (globalListener != null)
+						globalListener.onFirmwareValidating(address);
+					if (deviceListener != null)
+						deviceListener.onFirmwareValidating(address);
+					break;
+				case DfuBaseService.PROGRESS_DISCONNECTING:
+					if (globalListener != null)
+						globalListener.onDeviceDisconnecting(address);
+					if (deviceListener != null)
+						deviceListener.onDeviceDisconnecting(address);
+					break;
+				case DfuBaseService.PROGRESS_COMPLETED:
+					if (globalListener != null) {
+						globalListener.onDeviceDisconnected(address);
+						globalListener.onDfuCompleted(address);
+					}
+					if (deviceListener != null) {
 						deviceListener.onDeviceDisconnected(address);
-					switch (errorType) {
-						case DfuBaseService.ERROR_TYPE_COMMUNICATION_STATE:
-							if (globalListener != null)
-								globalListener.onError(address, error, errorType, GattError.parseConnectionError(error));
-							if (deviceListener != null)
-								deviceListener.onError(address, error, errorType, GattError.parseConnectionError(error));
-							break;
-						case DfuBaseService.ERROR_TYPE_DFU_REMOTE:
-							if (globalListener != null)
-								globalListener.onError(address, error, errorType, GattError.parseDfuRemoteError(error));
-							if (deviceListener != null)
-								deviceListener.onError(address, error, errorType, GattError.parseDfuRemoteError(error));
-							break;
-						default:
+						deviceListener.onDfuCompleted(address);
+					}
+					break;
+				case DfuBaseService.PROGRESS_ABORTED:
+					if (globalListener != null) {
+						globalListener.onDeviceDisconnected(address);
+						globalListener.onDfuAborted(address);
+					}
+					if (deviceListener != null) {
+						deviceListener.onDeviceDisconnected(address);
+						deviceListener.onDfuAborted(address);
+					}
+					break;
+				default:
+					if (event.isPercentChanged()) {
+						if (progress == 0) {
 							if (globalListener != null)
-								globalListener.onError(address, error, errorType, GattError.parse(error));
+								globalListener.onDfuProcessStarted(address);
 							if (deviceListener != null)
-								deviceListener.onError(address, error, errorType, GattError.parse(error));
-							break;
+								deviceListener.onDfuProcessStarted(address);
+						}
+						if (globalListener != null)
+							globalListener.onProgressChanged(address, progress, speed, avgSpeed, currentPart, partsTotal);
+						if (deviceListener != null)
+							deviceListener.onProgressChanged(address, progress, speed, avgSpeed, currentPart, partsTotal);
 					}
-				}
+					if (globalListener != null)
+						globalListener.onProgressChanged(address, event);
+					if (deviceListener != null)
+						deviceListener.onProgressChanged(address, event);
+					break;
+			}
+		}
+
+		@Override
+		public void onErrorEvent(@NonNull final DfuEventBus.ErrorEvent event) {
+			final String address = event.deviceAddress;
+			if (address == null)
+				return;
+
+			// Find proper listeners
+			final DfuProgressListener globalListener = mGlobalProgressListener;
+			final DfuProgressListener deviceListener = mListeners.get(address);
+
+			if (globalListener == null && deviceListener == null)
+				return;
+
+			final int error = event.error;
+			final int errorType = event.errorType;
+
+			if (globalListener != null)
+				globalListener.onDeviceDisconnected(address);
+			if (deviceListener != null)
+				deviceListener.onDeviceDisconnected(address);
+			switch (errorType) {
+				case DfuBaseService.ERROR_TYPE_COMMUNICATION_STATE:
+					if (globalListener != null)
+						globalListener.onError(address, error, errorType, GattError.parseConnectionError(error));
+					if (deviceListener != null)
+						deviceListener.onError(address, error, errorType, GattError.parseConnectionError(error));
+					break;
+				case DfuBaseService.ERROR_TYPE_DFU_REMOTE:
+					if (globalListener != null)
+						globalListener.onError(address, error, errorType, GattError.parseDfuRemoteError(error));
+					if (deviceListener != null)
+						deviceListener.onError(address, error, errorType, GattError.parseDfuRemoteError(error));
+					break;
+				default:
+					if (globalListener != null)
+						globalListener.onError(address, error, errorType, GattError.parse(error));
+					if (deviceListener != null)
+						deviceListener.onError(address, error, errorType, GattError.parse(error));
+					break;
 			}
 		}
 	}
@@ -284,16 +359,12 @@ public class DfuServiceListenerHelper {
 	 * @param listener the listener to register.
 	 */
 	public static void registerProgressListener(@NonNull final Context context, @NonNull final DfuProgressListener listener) {
-		if (mProgressBroadcastReceiver == null) {
-			mProgressBroadcastReceiver = new ProgressBroadcastsReceiver();
-
-			final IntentFilter filter = new IntentFilter();
-			filter.addAction(DfuBaseService.BROADCAST_PROGRESS);
-			filter.addAction(DfuBaseService.BROADCAST_ERROR);
-			//noinspection deprecation
-			LocalBroadcastManager.getInstance(context).registerReceiver(mProgressBroadcastReceiver, filter);
+		if (mProgressEventsReceiver == null) {
+			mProgressEventsReceiver = new ProgressEventsReceiver();
+			// Progress events are delivered directly, without broadcasts
+			DfuEventBus.register(mProgressEventsReceiver);
 		}
-		mProgressBroadcastReceiver.setProgressListener(listener);
+		mProgressEventsReceiver.setProgressListener(listener);
 	}
 
 	/**
@@ -306,16 +377,12 @@ public class DfuServiceListenerHelper {
 	 */
 	public static void registerProgressListener(@NonNull final Context context,
                                                 @NonNull final DfuProgressListener listener, @NonNull final String deviceAddress) {
-		if (mProgressBroadcastReceiver == null) {
-			mProgressBroadcastReceiver = new ProgressBroadcastsReceiver();
-
-			final IntentFilter filter = new IntentFilter();
-			filter.addAction(DfuBaseService.BROADCAST_PROGRESS);
-			filter.addAction(DfuBaseService.BROADCAST_ERROR);
-			//noinspection deprecation
-			LocalBroadcastManager.getInstance(context).registerReceiver(mProgressBroadcastReceiver, filter);
+		if (mProgressEventsReceiver == null) {
+			mProgressEventsReceiver = new ProgressEventsReceiver();
+			// Progress events are delivered directly, without broadcasts
+			DfuEventBus.register(mProgressEventsReceiver);
 		}
-		mProgressBroadcastReceiver.setProgressListener(deviceAddress, listener);
+		mProgressEventsReceiver.setProgressListener(deviceAddress, listener);
 	}
 
 	/**
@@ -325,13 +392,12 @@ public class DfuServiceListenerHelper {
 	 * @param listener the listener to unregister.
 	 */
 	public static void unregisterProgressListener(@NonNull final Context context, @NonNull final DfuProgressListener listener) {
-		if (mProgressBroadcastReceiver != null) {
-			final boolean empty = mProgressBroadcastReceiver.removeProgressListener(listener);
+		if (mProgressEventsReceiver != null) {
+			final boolean empty = mProgressEventsReceiver.removeProgressListener(listener);
 
 			if (empty) {
-				//noinspection deprecation
-				LocalBroadcastManager.getInstance(context).unregisterReceiver(mProgressBroadcastReceiver);
-				mProgressBroadcastReceiver = null;
+				DfuEventBus.unregister(mProgressEventsReceiver);
+				mProgressEventsReceiver = null;
 			}
 		}
 	}
@@ -343,6 +409,20 @@ public class DfuServiceListenerHelper {
 	 * @param listener the listener to register.
 	 */
 	public static void registerLogListener(@NonNull final Context context, @NonNull final DfuLogListener listener) {
+		registerLogListener(context, listener, DfuBaseService.LOG_LEVEL_DEBUG);
+	}
+
+	/**
+	 * Registers the {@link DfuLogListener}. Registered listener will receive the log events
+	 * from the DFU service with the given level or higher. To prevent the service from creating
+	 * log events that no one needs, use {@link DfuServiceInitiator#setLogLevel(int)}.
+	 *
+	 * @param context  the application context.
+	 * @param listener the listener to register.
+	 * @param minLevel the lowest log level to receive, e.g. {@link DfuBaseService#LOG_LEVEL_APPLICATION}.
+	 */
+	public static void registerLogListener(@NonNull final Context context,
+										   @NonNull final DfuLogListener listener, final int minLevel) {
 		if (mLogBroadcastReceiver == null) {
 			mLogBroadcastReceiver = new LogBroadcastReceiver();
 
@@ -351,7 +431,7 @@ public class DfuServiceListenerHelper {
 			//noinspection deprecation
 			LocalBroadcastManager.getInstance(context).registerReceiver(mLogBroadcastReceiver, filter);
 		}
-		mLogBroadcastReceiver.setLogListener(listener);
+		mLogBroadcastReceiver.setLogListener(listener, minLevel);
 	}
 
 	/**
@@ -364,6 +444,21 @@ public class DfuServiceListenerHelper {
 	 */
 	public static void registerLogListener(@NonNull final Context context,
                                            @NonNull final DfuLogListener listener, @NonNull final String deviceAddress) {
+		registerLogListener(context, listener, deviceAddress, DfuBaseService.LOG_LEVEL_DEBUG);
+	}
+
+	/**
+	 * Registers the {@link DfuLogListener}. Registered listener will receive the log events
+	 * with the given level or higher from the DFU service.
+	 *
+	 * @param context       the application context.
+	 * @param listener      the listener to register.
+	 * @param deviceAddress the address of the device to receive updates from (or null if any device).
+	 * @param minLevel      the lowest log level to receive, e.g. {@link DfuBaseService#LOG_LEVEL_APPLICATION}.
+	 */
+	public static void registerLogListener(@NonNull final Context context,
+										   @NonNull final DfuLogListener listener, @NonNull final String deviceAddress,
+										   final int minLevel) {
 		if (mLogBroadcastReceiver == null) {
 			mLogBroadcastReceiver = new LogBroadcastReceiver();
 
@@ -372,7 +467,7 @@ public class DfuServiceListenerHelper {
 			//noinspection deprecation
 			LocalBroadcastManager.getInstance(context).registerReceiver(mLogBroadcastReceiver, filter);
 		}
-		mLogBroadcastReceiver.setLogListener(deviceAddress, listener);
+		mLogBroadcastReceiver.setLogListener(deviceAddress, listener, minLevel);
 	}
 
 	/**
@@ -392,4 +487,36 @@ public class DfuServiceListenerHelper {
 			}
 		}
 	}
+
+	/**
+	 * Registers the {@link DfuMetricsListener}. The listener is notified once per DFU operation,
+	 * when the service has finished, with timings of each phase of the update.
+	 * Registering listeners does not require a Context, as metrics are delivered only to
+	 * listeners in the same process as the DFU service.
+	 *
+	 * @param listener the listener to register.
+	 */
+	public static void registerMetricsListener(@NonNull final DfuMetricsListener listener) {
+		if (mMetricsEventsReceiver == null) {
+			mMetricsEventsReceiver = new MetricsEventsReceiver();
+			DfuEventBus.register(mMetricsEventsReceiver);
+		}
+		mMetricsEventsReceiver.addMetricsListener(listener);
+	}
+
+	/**
+	 * Unregisters the previously registered metrics listener.
+	 *
+	 * @param listener the listener to unregister.
+	 */
+	public static void unregisterMetricsListener(@NonNull final DfuMetricsListener listener) {
+		if (mMetricsEventsReceiver != null) {
+			final boolean empty = mMetricsEventsReceiver.removeMetricsListener(listener);
+
+			if (empty) {
+				DfuEventBus.unregister(mMetricsEventsReceiver);
+				mMetricsEventsReceiver = null;
+			}
+		}
+	}
 }
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.dfu;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.pm.ServiceInfo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Updates multiple devices at the same time.
+ * <p>
+ * Each DFU service handles one device at a time, and the {@link DfuBaseService} being an
+ * {@link android.app.IntentService}, all requests sent to the same service class are queued.
+ * To update devices in parallel, create few subclasses of {@link DfuBaseService} and declare
+ * them in the <i>AndroidManifest.xml</i> file, e.g. <code>DfuService1</code>,
+ * <code>DfuService2</code>, etc. Each of them keeps its own connection, progress and state.
+ * <p>
+ * The pool starts the DFU for enqueued devices on the first free service, and starts the next
+ * one when any of them completes, is aborted or fails. The number of concurrent updates is
+ * limited by the number of service classes and the limit given in the constructor.
+ * <p>
+ * The pool learns that an update has finished from events sent within the app process,
+ * so all services must run in the process that created the pool. Services declared with
+ * the <code>android:process</code> attribute pointing to another process are not supported,
+ * and the constructor throws an {@link IllegalArgumentException} for them.
+ * <p>
+ * Services updating devices with the same ZIP file at the same time share the extracted
+ * firmware in memory. To avoid parsing the file again for each device, enable the disk cache
+ * using {@link DfuServiceInitiator#setFirmwareCacheSize(long)}.
+ * <p>
+ * The pool must be closed using {@link #close()} when no longer needed.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class DfuServicePool {
+	private final Context mContext;
+	private final List<Class<? extends DfuBaseService>> mServices;
+	private final DfuServiceController[] mControllers;
+	private final Queue<DfuServiceInitiator> mQueue = new ArrayDeque<>();
+	private final int mMaxConcurrentUpdates;
+	private int mActiveUpdates;
+	private boolean mClosed;
+
+	private final DfuEventBus.Listener mListener = new DfuEventBus.Listener() {
+		@Override
+		public void onProgressEvent(@NonNull final DfuProgressSnapshot event) {
+			final int progress = event.getProgress();
+			if (progress == DfuBaseService.PROGRESS_COMPLETED || progress == DfuBaseService.PROGRESS_ABORTED)
+				onServiceFinished(event.getServiceClassName());
+		}
+
+		@Override
+		public void onErrorEvent(@NonNull final DfuEventBus.ErrorEvent event) {
+			onServiceFinished(event.serviceClassName);
+		}
+	};
+
+	/**
+	 * Creates the pool.
+	 *
+	 * @param context              the application context.
+	 * @param services             the DFU service classes to be used. Each of them must be
+	 *                             declared in the AndroidManifest.xml file and run in the
+	 *                             app's main process.
+	 * @param maxConcurrentUpdates the maximum number of devices updated at the same time.
+	 *                             The actual limit is not greater than the number of services.
+	 * @throws IllegalArgumentException if a service is not declared, or runs in another process.
+	 */
+	public DfuServicePool(@NonNull final Context context,
+						  @NonNull final List<Class<? extends DfuBaseService>> services,
+						  @IntRange(from = 1) final int maxConcurrentUpdates) {
+		if (services.isEmpty())
+			throw new IllegalArgumentException("At least one service class is required");
+		mContext = context.getApplicationContext();
+		for (final Class<? extends DfuBaseService> service : services)
+			checkProcess(mContext, service);
+		mServices = Collections.unmodifiableList(new ArrayList<>(services));
+		mControllers = new DfuServiceController[services.size()];
+		mMaxConcurrentUpdates = Math.max(1, Math.min(maxConcurrentUpdates, services.size()));
+		DfuEventBus.register(mListener);
+	}
+
+	/**
+	 * Adds the device to the queue. The update will start immediately if there is a free service.
+	 *
+	 * @param initiator the initiator with all DFU settings.
+	 */
+	public synchronized void enqueue(@NonNull final DfuServiceInitiator initiator) {
+		if (mClosed)
+			throw new IllegalStateException("The pool has been closed");
+		mQueue.add(initiator);
+		startNext();
+	}
+
+	/**
+	 * Returns the number of devices waiting for a free service.
+	 */
+	public synchronized int getQueuedCount() {
+		return mQueue.size();
+	}
+
+	/**
+	 * Returns the number of devices being updated.
+	 */
+	public synchronized int getActiveCount() {
+		return mActiveUpdates;
+	}
+
+	/**
+	 * Removes all devices from the queue and aborts all updates in progress.
+	 */
+	public synchronized void abortAll() {
+		mQueue.clear();
+		for (final DfuServiceController controller : mControllers) {
+			if (controller != null)
+				controller.abort();
+		}
+	}
+
+	/**
+	 * Unregisters the pool. Updates in progress are not aborted, but no more devices
+	 * from the queue will be started.
+	 */
+	public synchronized void close() {
+		if (mClosed)
+			return;
+		mClosed = true;
+		mQueue.clear();
+		DfuEventBus.unregister(mListener);
+	}
+
+	/**
+	 * Checks whether the service is declared to run in the app's main process. The pool would
+	 * not be notified when a service in another process has finished.
+	 */
+	private static void checkProcess(@NonNull final Context context,
+									 @NonNull final Class<? extends DfuBaseService> service) {
+		final ServiceInfo info;
+		try {
+			info = context.getPackageManager().getServiceInfo(new ComponentName(context, service), 0);
+		} catch (final PackageManager.NameNotFoundException e) {
+			throw new IllegalArgumentException(service.getName() + " is not declared in AndroidManifest.xml");
+		}
+		final String processName = context.getApplicationInfo().processName;
+		if (info.processName != null && !info.processName.equals(processName))
+			throw new IllegalArgumentException(service.getName() + " runs in process "
+					+ info.processName + ", DfuServicePool requires services in " + processName);
+	}
+
+	private synchronized void onServiceFinished(@NonNull final String className) {
+		final int index = indexOf(className);
+		if (index == -1 || mControllers[index] == null)
+			return;
+		mControllers[index] = null;
+		mActiveUpdates--;
+		startNext();
+	}
+
+	private void startNext() {
+		while (!mClosed && mActiveUpdates < mMaxConcurrentUpdates && !mQueue.isEmpty()) {
+			final int index = indexOf(null);
+			if (index == -1)
+				return;
+			final DfuServiceInitiator initiator = mQueue.poll();
+			initiator.setFirmwareShared(true);
+			mControllers[index] = initiator.start(mContext, mServices.get(index));
+			mActiveUpdates++;
+		}
+	}
+
+	/**
+	 * Returns the index of the service with the given class name, or of the first free service
+	 * if the name is null. Returns -1 if not found.
+	 */
+	private int indexOf(@Nullable final String className) {
+		for (int i = 0; i < mServices.size(); ++i) {
+			if (className == null ? mControllers[i] == null : mServices.get(i).getName().equals(className))
+				return i;
+		}
+		return -1;
+	}
+}
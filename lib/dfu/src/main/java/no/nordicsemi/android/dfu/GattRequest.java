@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.dfu;
+
+import android.bluetooth.BluetoothGatt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * A single GATT operation executed by the {@link GattRequestQueue}.
+ * <p>
+ * The request is completed from the GATT callback matching its type and UUID, or when it
+ * could not be started, was cancelled or the device disconnected. The result may be obtained
+ * by blocking the calling thread using {@link #await(long)}, or asynchronously using
+ * {@link #addCallback(Callback)}, e.g. to resume a suspended coroutine.
+ */
+/* package */ final class GattRequest {
+	static final int TYPE_WRITE_CHARACTERISTIC = 1;
+	static final int TYPE_READ_CHARACTERISTIC = 2;
+	static final int TYPE_WRITE_DESCRIPTOR = 3;
+	static final int TYPE_READ_DESCRIPTOR = 4;
+	static final int TYPE_MTU = 5;
+
+	/**
+	 * Starts the GATT operation, e.g. calls {@link BluetoothGatt#writeDescriptor}.
+	 */
+	interface Operation {
+		/**
+		 * Starts the operation. This method must not wait for the result.
+		 *
+		 * @return true if the operation has been started, false if it was rejected.
+		 */
+		boolean start();
+	}
+
+	/**
+	 * A callback invoked when the request has completed, on the thread that completed it.
+	 */
+	interface Callback {
+		void onCompleted(@NonNull GattRequest request);
+	}
+
+	private final int mType;
+	@Nullable
+	private final UUID mUuid;
+	@NonNull
+	private final String mName;
+	@NonNull
+	private final Operation mOperation;
+	private final List<Callback> mCallbacks = new ArrayList<>(2);
+	private boolean mStarted;
+	private boolean mCompleted;
+	private int mStatus;
+	@Nullable
+	private byte[] mValue;
+
+	/**
+	 * Creates a request.
+	 *
+	 * @param type      the request type, one of TYPE_* constants.
+	 * @param uuid      the UUID of the characteristic which value, or which descriptor,
+	 *                  is written or read, or null for requests without an attribute.
+	 * @param name      the name of the operation, used in the log.
+	 * @param operation the operation starting the request.
+	 */
+	GattRequest(final int type, @Nullable final UUID uuid,
+				@NonNull final String name, @NonNull final Operation operation) {
+		mType = type;
+		mUuid = uuid;
+		mName = name;
+		mOperation = operation;
+	}
+
+	int getType() {
+		return mType;
+	}
+
+	@NonNull
+	String getName() {
+		return mName;
+	}
+
+	/**
+	 * Returns whether the request has completed, successfully or not.
+	 */
+	synchronized boolean isCompleted() {
+		return mCompleted;
+	}
+
+	/**
+	 * Returns whether the request has been started. A request that was rejected, or cancelled
+	 * before it was started, completes without being started.
+	 */
+	synchronized boolean isStarted() {
+		return mStarted;
+	}
+
+	/**
+	 * Returns whether the request has completed with {@link BluetoothGatt#GATT_SUCCESS}.
+	 */
+	synchronized boolean isSuccessful() {
+		return mCompleted && mStatus == BluetoothGatt.GATT_SUCCESS;
+	}
+
+	/**
+	 * Returns the GATT status of a completed request. Requests that could not be started or
+	 * were cancelled complete with {@link BluetoothGatt#GATT_FAILURE}.
+	 */
+	synchronized int getStatus() {
+		return mStatus;
+	}
+
+	/**
+	 * Returns the value read by a read request, or null.
+	 */
+	@Nullable
+	synchronized byte[] getValue() {
+		return mValue;
+	}
+
+	/**
+	 * Adds a callback invoked when the request completes. If it has already completed,
+	 * the callback is invoked immediately on the calling thread.
+	 *
+	 * @param callback the callback.
+	 * @return This request.
+	 */
+	@NonNull
+	GattRequest addCallback(@NonNull final Callback callback) {
+		synchronized (this) {
+			if (!mCompleted) {
+				mCallbacks.add(callback);
+				return this;
+			}
+		}
+		callback.onCompleted(this);
+		return this;
+	}
+
+	/**
+	 * Blocks the calling thread until the request completes.
+	 *
+	 * @param timeout the timeout in milliseconds, or 0 to wait without a deadline.
+	 * @return true if the request has completed, false if the timeout has elapsed.
+	 * @throws InterruptedException when the thread was interrupted.
+	 */
+	synchronized boolean await(final long timeout) throws InterruptedException {
+		// A monotonic clock is used, so that a change of the wall clock does not affect the timeout.
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		while (!mCompleted) {
+			if (timeout <= 0) {
+				wait();
+				continue;
+			}
+			final long remaining = deadline - System.nanoTime();
+			if (remaining <= 0)
+				return false;
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return true;
+	}
+
+	/**
+	 * Returns whether the GATT callback of given type for the attribute with given UUID
+	 * completes this request.
+	 */
+	boolean matches(final int type, @Nullable final UUID uuid) {
+		return mType == type && (mUuid == null ? uuid == null : mUuid.equals(uuid));
+	}
+
+	/**
+	 * Starts the operation. Called by the queue.
+	 *
+	 * @return true if the operation has been started, false if it was rejected.
+	 */
+	boolean start() {
+		synchronized (this) {
+			if (mCompleted)
+				return false;
+			mStarted = true;
+		}
+		if (mOperation.start())
+			return true;
+		synchronized (this) {
+			mStarted = false;
+		}
+		return false;
+	}
+
+	/**
+	 * Completes the request and invokes the callbacks. Completing the request again
+	 * has no effect.
+	 *
+	 * @param status the GATT status.
+	 * @param value  the value read, or null.
+	 * @return true if the request has been completed, false if it had completed before.
+	 */
+	boolean complete(final int status, @Nullable final byte[] value) {
+		final Callback[] callbacks;
+		synchronized (this) {
+			if (mCompleted)
+				return false;
+			mCompleted = true;
+			mStatus = status;
+			mValue = value;
+			callbacks = mCallbacks.toArray(new Callback[0]);
+			mCallbacks.clear();
+			notifyAll();
+		}
+		for (final Callback callback : callbacks)
+			callback.onCompleted(this);
+		return true;
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.dfu;
+
+import android.bluetooth.BluetoothGatt;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * A queue of GATT requests.
+ * <p>
+ * Android allows only one GATT operation at a time; a request started while another one is
+ * pending is rejected. The queue starts the enqueued requests one by one, the next one as soon
+ * as the callback of the previous one has been received, so the requests may be enqueued
+ * back to back without waiting for each of them.
+ * <p>
+ * The queue does not depend on the DFU thread. The GATT callbacks complete the current request
+ * using {@link #onCompleted(int, UUID, int, byte[])} and the next request is started from the
+ * callback thread. Packets of firmware, which are written without response and flow-controlled
+ * separately, do not go through the queue.
+ */
+/* package */ final class GattRequestQueue {
+	private final ArrayDeque<GattRequest> mQueue = new ArrayDeque<>();
+	@Nullable
+	private final GattRequest.Callback mListener;
+	@Nullable
+	private GattRequest mCurrent;
+
+	/**
+	 * Creates the queue.
+	 *
+	 * @param listener an optional callback invoked when any of the requests completes,
+	 *                 before the next one is started.
+	 */
+	GattRequestQueue(@Nullable final GattRequest.Callback listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Adds the request to the queue. If no other request is pending, it is started immediately
+	 * on the calling thread.
+	 *
+	 * @param request the request to be executed.
+	 * @return The same request.
+	 */
+	@NonNull
+	GattRequest enqueue(@NonNull final GattRequest request) {
+		synchronized (this) {
+			mQueue.add(request);
+		}
+		startNext();
+		return request;
+	}
+
+	/**
+	 * Returns whether a request is being executed or waiting in the queue.
+	 */
+	synchronized boolean isBusy() {
+		return mCurrent != null || !mQueue.isEmpty();
+	}
+
+	/**
+	 * Completes the current request if it matches the callback. Call this method from every
+	 * GATT callback that may complete a request.
+	 *
+	 * @param type   the type of the callback, one of GattRequest.TYPE_* constants.
+	 * @param uuid   the UUID of the characteristic, or of the characteristic of the descriptor,
+	 *               or null.
+	 * @param status the GATT status.
+	 * @param value  the value read, or null.
+	 * @return true if the current request has been completed, false if the callback was not
+	 * for the current request.
+	 */
+	boolean onCompleted(final int type, @Nullable final UUID uuid,
+						final int status, @Nullable final byte[] value) {
+		final GattRequest request;
+		synchronized (this) {
+			request = mCurrent;
+			if (request == null || !request.matches(type, uuid))
+				return false;
+			mCurrent = null;
+		}
+		finish(request, status, value);
+		startNext();
+		return true;
+	}
+
+	/**
+	 * Cancels the request. A queued request is removed from the queue. If it is the current one,
+	 * the queue stops waiting for its callback and starts the next request. The cancelled request
+	 * completes with {@link BluetoothGatt#GATT_FAILURE}.
+	 *
+	 * @param request the request to be cancelled.
+	 */
+	void cancel(@NonNull final GattRequest request) {
+		final boolean current;
+		synchronized (this) {
+			current = mCurrent == request;
+			if (current)
+				mCurrent = null;
+			else if (!mQueue.remove(request))
+				return;
+		}
+		finish(request, BluetoothGatt.GATT_FAILURE, null);
+		if (current)
+			startNext();
+	}
+
+	/**
+	 * Cancels the current and all queued requests, e.g. when the device has disconnected.
+	 * All of them complete with {@link BluetoothGatt#GATT_FAILURE}.
+	 */
+	void cancelAll() {
+		final List<GattRequest> requests;
+		synchronized (this) {
+			requests = new ArrayList<>(mQueue.size() + 1);
+			if (mCurrent != null)
+				requests.add(mCurrent);
+			requests.addAll(mQueue);
+			mCurrent = null;
+			mQueue.clear();
+		}
+		for (final GattRequest request : requests)
+			finish(request, BluetoothGatt.GATT_FAILURE, null);
+	}
+
+	private void startNext() {
+		while (true) {
+			final GattRequest request;
+			synchronized (this) {
+				if (mCurrent != null || mQueue.isEmpty())
+					return;
+				request = mCurrent = mQueue.poll();
+			}
+			// The operation is started without holding the lock, as the callback may be
+			// called on another thread before the method returns.
+			if (request.start())
+				return;
+
+			// The request was rejected, complete it and try the next one.
+			synchronized (this) {
+				if (mCurrent != request)
+					return; // completed or cancelled in the meantime
+				mCurrent = null;
+			}
+			finish(request, BluetoothGatt.GATT_FAILURE, null);
+		}
+	}
+
+	private void finish(@NonNull final GattRequest request,
+						final int status, @Nullable final byte[] value) {
+		if (request.complete(status, value) && mListener != null)
+			mListener.onCompleted(request);
+	}
+}
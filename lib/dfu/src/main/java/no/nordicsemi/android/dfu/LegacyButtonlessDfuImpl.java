@@ -220,26 +220,20 @@ import no.nordicsemi.android.dfu.internal.exception.UploadAbortedException;
 		logi("Reading DFU version number...");
 		mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_VERBOSE, "Reading DFU version number...");
 		mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_DEBUG, "gatt.readCharacteristic(" + characteristic.getUuid() + ")");
-		gatt.readCharacteristic(characteristic);
+		final GattRequest request = new GattRequest(GattRequest.TYPE_READ_CHARACTERISTIC, characteristic.getUuid(),
+				"Reading DFU version number", () -> gatt.readCharacteristic(characteristic));
 
 		// We have to wait until device receives a response or an error occur
-		try {
-			synchronized (mLock) {
-				while (((!mRequestCompleted || mReceivedData == null) && mConnected && mError == 0 && !mAborted) || mPaused) {
-					mRequestCompleted = false;
-					mLock.wait();
-				}
-			}
-		} catch (final InterruptedException e) {
-			loge("Sleeping interrupted", e);
-		}
+		execute(request);
 		if (!mConnected)
 			throw new DeviceDisconnectedException("Unable to read version number: device disconnected", mError);
 		if (mError != 0)
 			throw new DfuException("Unable to read version number", mError);
+		if (!request.isSuccessful())
+			throw new DfuException("Unable to read version number", DfuBaseService.ERROR_CONNECTION_MASK | request.getStatus());
 
 		// The Version is encoded as UInt16
-		final byte[] value = mReceivedData;
+		final byte[] value = request.getValue();
 		if (value == null || value.length < 2)
 			return 0;
 
@@ -172,12 +172,7 @@ import no.nordicsemi.android.error.LegacyDfuError;
 		logw("Legacy DFU bootloader found");
 		mProgressInfo.setProgress(DfuBaseService.PROGRESS_STARTING);
 
-		// Let's request the MTU requested by the user. It may be that a lower MTU will be used.
-		if (intent.hasExtra(DfuBaseService.EXTRA_MTU) && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-			final int requiredMtu = intent.getIntExtra(DfuBaseService.EXTRA_MTU, 517);
-			logi("Requesting MTU = " + requiredMtu);
-			requestMtu(requiredMtu);
-		}
+		negotiateLinkParameters(intent);
 
 		final BluetoothGatt gatt = mGatt;
 
@@ -428,6 +423,7 @@ import no.nordicsemi.android.error.LegacyDfuError;
 			 */
 			// Send DFU Init Packet
 			if (mInitPacketStream != null) {
+				mMetrics.startPhase(DfuMetrics.PHASE_INIT_PACKET);
 				mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_APPLICATION, "Writing Initialize DFU Parameters...");
 
 				if (extendedInitPacketSupported) {
@@ -462,13 +458,23 @@ import no.nordicsemi.android.error.LegacyDfuError;
 				}
 				if (status != DFU_STATUS_SUCCESS)
 					throw new RemoteDfuException("Device returned error after sending init packet", status);
+				mMetrics.endPhase(DfuMetrics.PHASE_INIT_PACKET);
 			}
 
 			// Send the number of packets of firmware before receiving a receipt notification
 			// Note: DFU bootloaders from SDK 6.0.0 or older were unable to save incoming data to the flash memory with the same speed
 			//       as they are being sent from modern devices, therefore the PRNs are here force-enabled for them.
 			//       It has been tested that PRN = 10 may be the highest supported value.
-			final int numberOfPacketsBeforeNotification = extendedInitPacketSupported || (mPacketsBeforeNotification > 0 && mPacketsBeforeNotification <= 10) ? mPacketsBeforeNotification : 10;
+			int numberOfPacketsBeforeNotification = extendedInitPacketSupported || (mPacketsBeforeNotification > 0 && mPacketsBeforeNotification <= 10) ? mPacketsBeforeNotification : 10;
+			final int defaultPacketsBeforeNotification = numberOfPacketsBeforeNotification;
+			// In the fast mode a higher value is tried, based on the previous updates of the same model
+			LegacyPrnStore prnStore = null;
+			if (numberOfPacketsBeforeNotification > 0 && intent.getBooleanExtra(DfuBaseService.EXTRA_LEGACY_DFU_FAST_MODE, false)) {
+				final String model = intent.getStringExtra(DfuBaseService.EXTRA_LEGACY_DFU_DEVICE_MODEL);
+				prnStore = new LegacyPrnStore(mService, version + "_" + (model != null ? model : ""));
+				numberOfPacketsBeforeNotification = prnStore.getPrn(numberOfPacketsBeforeNotification);
+				logi("Fast mode enabled, using PRN = " + numberOfPacketsBeforeNotification);
+			}
 			if (numberOfPacketsBeforeNotification > 0) {
 				mPacketsBeforeNotification = numberOfPacketsBeforeNotification;
 				logi("Sending the number of packets before notifications (Op Code = 8, Value = " + numberOfPacketsBeforeNotification + ")");
@@ -484,6 +490,7 @@ import no.nordicsemi.android.error.LegacyDfuError;
 
 			// Send the firmware. The method below sends the first packet and waits until the whole firmware is sent.
 			final long startTime = SystemClock.elapsedRealtime();
+			mMetrics.startPhase(DfuMetrics.PHASE_FIRMWARE_UPLOAD);
 			mProgressInfo.setBytesSent(0);
 			try {
 				logi("Uploading firmware...");
@@ -494,6 +501,7 @@ import no.nordicsemi.android.error.LegacyDfuError;
 				throw e;
 			}
 			final long endTime = SystemClock.elapsedRealtime();
+			mMetrics.endPhase(DfuMetrics.PHASE_FIRMWARE_UPLOAD);
 
 			// Check the result of the operation
 			response = readNotificationResponse();
@@ -504,6 +512,21 @@ import no.nordicsemi.android.error.LegacyDfuError;
 				logw("Hint: Error 6 (OPERATION FAILED) means the date were sent too fast for the target to handle. " +
 						"Reduce the number of packets before notification (PRN) to 10 or less.");
 			}
+			if (prnStore != null) {
+				if (status == DFU_STATUS_SUCCESS) {
+					prnStore.onSuccess(numberOfPacketsBeforeNotification);
+				} else if (status == 6) {
+					prnStore.onOperationFailed(numberOfPacketsBeforeNotification, defaultPacketsBeforeNotification);
+					// The value that failed is recorded, so the restarted service will use the highest
+					// value that worked. Each failure lowers it, until the default value fails.
+					final int safePacketsBeforeNotification = prnStore.getPrn(defaultPacketsBeforeNotification);
+					if (safePacketsBeforeNotification < numberOfPacketsBeforeNotification) {
+						resetAndRestart(gatt, intent, "PRN = " + numberOfPacketsBeforeNotification +
+								" is too high for this device. Restarting with PRN = " + safePacketsBeforeNotification + "...");
+						return;
+					}
+				}
+			}
 			if (status != DFU_STATUS_SUCCESS)
 				throw new RemoteDfuException("Device returned error after sending file", status);
 
@@ -665,9 +688,11 @@ import no.nordicsemi.android.error.LegacyDfuError;
 		final byte[] value = new byte[4];
 		setImageSize(value, imageSize, 0);
 
-		mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_VERBOSE, "Writing to characteristic " + characteristic.getUuid()+ ", value (0x): " + parse(value));
+		if (mService.isLogLevelEnabled(DfuBaseService.LOG_LEVEL_VERBOSE))
+			mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_VERBOSE, "Writing to characteristic " + characteristic.getUuid()+ ", value (0x): " + parse(value));
 		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
-			mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_DEBUG, "gatt.writeCharacteristic(" + characteristic.getUuid() + ", value=" + parse(value) +", WRITE_TYPE_NO_RESPONSE)");
+			if (mService.isLogLevelEnabled(DfuBaseService.LOG_LEVEL_DEBUG))
+				mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_DEBUG, "gatt.writeCharacteristic(" + characteristic.getUuid() + ", value=" + parse(value) +", WRITE_TYPE_NO_RESPONSE)");
 			mGatt.writeCharacteristic(characteristic, value, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
 		} else {
 			characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
@@ -677,14 +702,8 @@ import no.nordicsemi.android.error.LegacyDfuError;
 		}
 
 		// We have to wait for confirmation
-		try {
-			synchronized (mLock) {
-				while ((mImageSizeInProgress && mConnected && mError == 0 && !mAborted) || mPaused)
-					mLock.wait();
-			}
-		} catch (final InterruptedException e) {
-			loge("Sleeping interrupted", e);
-		}
+		awaitOperation(() -> (mImageSizeInProgress && mConnected && mError == 0 && !mAborted) || mPaused,
+				"Writing image size");
 		if (mAborted)
 			throw new UploadAbortedException();
 		if (!mConnected)
@@ -726,9 +745,11 @@ import no.nordicsemi.android.error.LegacyDfuError;
 		setImageSize(value, bootloaderImageSize, 4);
 		setImageSize(value, appImageSize, 8);
 
-		mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_VERBOSE, "Writing to characteristic " + characteristic.getUuid()+ ", value (0x): " + parse(value));
+		if (mService.isLogLevelEnabled(DfuBaseService.LOG_LEVEL_VERBOSE))
+			mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_VERBOSE, "Writing to characteristic " + characteristic.getUuid()+ ", value (0x): " + parse(value));
 		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
-			mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_DEBUG, "gatt.writeCharacteristic(" + characteristic.getUuid() + ", value=" + parse(value) +", WRITE_TYPE_NO_RESPONSE)");
+			if (mService.isLogLevelEnabled(DfuBaseService.LOG_LEVEL_DEBUG))
+				mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_DEBUG, "gatt.writeCharacteristic(" + characteristic.getUuid() + ", value=" + parse(value) +", WRITE_TYPE_NO_RESPONSE)");
 			mGatt.writeCharacteristic(characteristic, value, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
 		} else {
 			characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
@@ -738,14 +759,8 @@ import no.nordicsemi.android.error.LegacyDfuError;
 		}
 
 		// We have to wait for confirmation
-		try {
-			synchronized (mLock) {
-				while ((mImageSizeInProgress && mConnected && mError == 0 && !mAborted) || mPaused)
-					mLock.wait();
-			}
-		} catch (final InterruptedException e) {
-			loge("Sleeping interrupted", e);
-		}
+		awaitOperation(() -> (mImageSizeInProgress && mConnected && mError == 0 && !mAborted) || mPaused,
+				"Writing image size");
 		if (mAborted)
 			throw new UploadAbortedException();
 		if (!mConnected)
@@ -766,7 +781,24 @@ import no.nordicsemi.android.error.LegacyDfuError;
 	 */
 	private void resetAndRestart(@NonNull final BluetoothGatt gatt, @NonNull final Intent intent)
 			throws DfuException, DeviceDisconnectedException, UploadAbortedException {
-		mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_WARNING, "Last upload interrupted. Restarting device...");
+		resetAndRestart(gatt, intent, "Last upload interrupted. Restarting device...");
+	}
+
+	/**
+	 * Sends Reset command to the target device to reset its state and restarts the DFU Service that will start again.
+	 *
+	 * @param gatt the GATT device.
+	 * @param intent intent used to start the service.
+	 * @param reason the warning logged before the device is reset.
+	 * @throws DeviceDisconnectedException Thrown when the device will disconnect in the middle of
+	 *                                     the transmission.
+	 * @throws DfuException                Thrown if DFU error occur.
+	 * @throws UploadAbortedException      Thrown if DFU operation was aborted by user.
+	 */
+	private void resetAndRestart(@NonNull final BluetoothGatt gatt, @NonNull final Intent intent,
+								 @NonNull final String reason)
+			throws DfuException, DeviceDisconnectedException, UploadAbortedException {
+		mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_WARNING, reason);
 		// Send 'jump to bootloader command' (Start DFU)
 		mProgressInfo.setProgress(DfuBaseService.PROGRESS_DISCONNECTING);
 		logi("Sending Reset command (Op Code = 6)");
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.dfu;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Remembers, per device model, the Packet Receipt Notification values that Legacy DFU
+ * bootloaders were able to handle, used in the Legacy DFU fast mode.
+ * <p>
+ * Old bootloaders can't write the data to the flash as fast as they may be sent and report
+ * Operation Failed (status 6) after the image was received. The fast mode starts with the value
+ * that would be used otherwise and, after each successful update, tries a higher value the next
+ * time. When an update fails with status 6 the value is remembered as too high and the next
+ * update uses the highest value that worked. After that succeeds, the value in the middle
+ * between the two is tried, until they are next to each other.
+ * <p>
+ * The values are kept in the app private shared preferences, so they survive the process.
+ */
+/* package */ final class LegacyPrnStore {
+	private static final String PREFERENCES_NAME = "no.nordicsemi.android.dfu.legacy_prn";
+	private static final String KEY_SAFE = "_safe";
+	private static final String KEY_FAILED = "_failed";
+	private static final String KEY_LAST_FAILED = "_last_failed";
+	/** The highest PRN value that will be tried. */
+	private static final int MAX_PRN = 100;
+
+	@NonNull
+	private final SharedPreferences preferences;
+	@NonNull
+	private final String model;
+
+	/**
+	 * Creates the store for the given device model.
+	 *
+	 * @param context the context.
+	 * @param model   the identifier of the device model, e.g. the DFU version and hardware revision.
+	 */
+	LegacyPrnStore(@NonNull final Context context, @NonNull final String model) {
+		this.preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+		this.model = model;
+	}
+
+	/**
+	 * Returns the PRN value to be tried in this update.
+	 *
+	 * @param defaultPrn the value used when the fast mode is disabled, known to be safe.
+	 * @return The PRN value.
+	 */
+	int getPrn(final int defaultPrn) {
+		final int safe = preferences.getInt(model + KEY_SAFE, defaultPrn);
+		// After a failure the value that worked is used, higher ones are tried only after a success
+		if (preferences.getBoolean(model + KEY_LAST_FAILED, false))
+			return safe;
+
+		final int failed = preferences.getInt(model + KEY_FAILED, 0);
+		if (failed > safe) {
+			// The highest supported value is between the two
+			return safe + (failed - safe) / 2;
+		}
+		// Try 1.5 times the value that worked
+		return Math.min(MAX_PRN, Math.max(safe, safe + Math.max(1, safe / 2)));
+	}
+
+	/**
+	 * Saves the PRN value used in an update that has completed successfully.
+	 */
+	void onSuccess(final int prn) {
+		final SharedPreferences.Editor editor = preferences.edit();
+		editor.remove(model + KEY_LAST_FAILED);
+		if (prn > preferences.getInt(model + KEY_SAFE, 0))
+			editor.putInt(model + KEY_SAFE, prn);
+		editor.apply();
+	}
+
+	/**
+	 * Saves the PRN value used in an update that has failed with Operation Failed error.
+	 *
+	 * @param prn        the PRN value that failed.
+	 * @param defaultPrn the value used when the fast mode is disabled, known to be safe.
+	 */
+	void onOperationFailed(final int prn, final int defaultPrn) {
+		final SharedPreferences.Editor editor = preferences.edit();
+		editor.putInt(model + KEY_FAILED, prn);
+		editor.putBoolean(model + KEY_LAST_FAILED, true);
+		// If the value that worked before has failed now, start again from the default one
+		final int safe = preferences.getInt(model + KEY_SAFE, defaultPrn);
+		if (safe >= prn)
+			editor.putInt(model + KEY_SAFE, Math.min(defaultPrn, Math.max(1, prn / 2)));
+		editor.apply();
+	}
+}
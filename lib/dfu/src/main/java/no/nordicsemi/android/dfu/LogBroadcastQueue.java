@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.dfu;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+
+import java.util.Locale;
+
+/**
+ * A bounded queue of log events sent by the DFU service when batching is enabled, see
+ * {@link DfuBaseService#EXTRA_LOG_BATCHING}. Instead of sending one broadcast per log line,
+ * the events are collected in a ring buffer and sent in batches from a background thread.
+ * When the buffer is full the oldest events are dropped.
+ */
+/* package */ final class LogBroadcastQueue {
+	private static final String LOG_PREFIX = "[DFU] ";
+	private static final int CAPACITY = 256;
+
+	private final Context mContext;
+	private final HandlerThread mThread;
+	private final Handler mHandler;
+	private final int[] mLevels = new int[CAPACITY];
+	private final String[] mMessages = new String[CAPACITY];
+	private final String[] mAddresses = new String[CAPACITY];
+	private int mHead;
+	private int mCount;
+	private int mDropped;
+	private boolean mDrainScheduled;
+
+	private final Runnable mDrainRunnable = this::drain;
+
+	LogBroadcastQueue(@NonNull final Context context) {
+		mContext = context;
+		mThread = new HandlerThread("DfuLogThread", Process.THREAD_PRIORITY_BACKGROUND);
+		mThread.start();
+		mHandler = new Handler(mThread.getLooper());
+	}
+
+	/**
+	 * Adds the log event to the queue. The event will be sent on the log thread.
+	 *
+	 * @param address the device address.
+	 * @param level   the log level.
+	 * @param message the log message.
+	 */
+	void add(@Nullable final String address, final int level, @NonNull final String message) {
+		synchronized (this) {
+			if (mCount == CAPACITY) {
+				mHead = (mHead + 1) % CAPACITY;
+				mCount--;
+				mDropped++;
+			}
+			final int index = (mHead + mCount) % CAPACITY;
+			mLevels[index] = level;
+			mMessages[index] = message;
+			mAddresses[index] = address;
+			mCount++;
+
+			if (mDrainScheduled)
+				return;
+			mDrainScheduled = true;
+		}
+		mHandler.post(mDrainRunnable);
+	}
+
+	/**
+	 * Sends the remaining log events and stops the log thread.
+	 */
+	void close() {
+		mHandler.post(mDrainRunnable);
+		mThread.quitSafely();
+	}
+
+	/**
+	 * Sends all queued events. Consecutive events for the same device are sent in a single
+	 * broadcast.
+	 */
+	private void drain() {
+		final int[] levels;
+		final String[] messages;
+		final String[] addresses;
+		final int dropped;
+		synchronized (this) {
+			mDrainScheduled = false;
+			if (mCount == 0)
+				return;
+			levels = new int[mCount];
+			messages = new String[mCount];
+			addresses = new String[mCount];
+			for (int i = 0; i < mCount; ++i) {
+				final int index = (mHead + i) % CAPACITY;
+				levels[i] = mLevels[index];
+				messages[i] = mMessages[index];
+				addresses[i] = mAddresses[index];
+				mMessages[index] = null;
+			}
+			dropped = mDropped;
+			mHead = mCount = mDropped = 0;
+		}
+
+		if (dropped > 0) {
+			send(addresses[0], new int[] { DfuBaseService.LOG_LEVEL_WARNING },
+					new String[] { LOG_PREFIX + String.format(Locale.US, "%d log events dropped", dropped) });
+		}
+
+		int start = 0;
+		for (int i = 1; i <= levels.length; ++i) {
+			if (i == levels.length || !equals(addresses[i], addresses[start])) {
+				final int length = i - start;
+				final int[] batchLevels = new int[length];
+				final String[] batchMessages = new String[length];
+				for (int j = 0; j < length; ++j) {
+					batchLevels[j] = levels[start + j];
+					batchMessages[j] = LOG_PREFIX + messages[start + j];
+				}
+				send(addresses[start], batchLevels, batchMessages);
+				start = i;
+			}
+		}
+	}
+
+	private void send(@Nullable final String address, @NonNull final int[] levels, @NonNull final String[] messages) {
+		final Intent broadcast = new Intent(DfuBaseService.BROADCAST_LOG);
+		broadcast.putExtra(DfuBaseService.EXTRA_LOG_MESSAGES, messages);
+		broadcast.putExtra(DfuBaseService.EXTRA_LOG_LEVELS, levels);
+		broadcast.putExtra(DfuBaseService.EXTRA_DEVICE_ADDRESS, address);
+		LocalBroadcastManager.getInstance(mContext).sendBroadcast(broadcast);
+	}
+
+	private static boolean equals(@Nullable final String a, @Nullable final String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+}
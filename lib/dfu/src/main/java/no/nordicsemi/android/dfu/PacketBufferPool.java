@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.dfu;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+
+/**
+ * A pool of packet buffers used to send firmware data to the DFU target.
+ * <p>
+ * The firmware is sent in packets of MTU - 3 bytes, except for the last packet of each object
+ * (in Secure DFU) and the last packet of the firmware, which may be shorter. As the
+ * {@link android.bluetooth.BluetoothGatt#writeCharacteristic} methods send the whole array,
+ * a buffer of exact size is required for each packet. Instead of allocating a new array for
+ * each such packet, the pool keeps a small ring of arrays for each of the few sizes that
+ * are used during the upload, so that after the first object has been sent no more arrays
+ * have to be allocated.
+ * <p>
+ * The data are copied by the Bluetooth stack when the write request is enqueued, so a buffer
+ * may be reused as soon as the write method returns. The ring with {@link #RING_SIZE} buffers
+ * is kept in case the value is still referenced by the characteristic on older Android versions.
+ * <p>
+ * This class is not thread safe. It is used from the DFU thread when the upload starts and
+ * later from the GATT callback thread, but never from both at the same time.
+ */
+/* package */ class PacketBufferPool {
+	/** Number of buffers of the same size that are used one after another. */
+	private static final int RING_SIZE = 2;
+	/** Maximum number of different sizes kept in the pool. */
+	private static final int MAX_SIZES = 8;
+
+	private final int[] mSizes = new int[MAX_SIZES];
+	private final byte[][][] mRings = new byte[MAX_SIZES][][];
+	private final int[] mIndexes = new int[MAX_SIZES];
+	private final long[] mLastUsed = new long[MAX_SIZES];
+	private int mCount;
+	private long mUseCounter;
+	private int mAllocationCount;
+
+	/**
+	 * Ensures that the buffers of given size are allocated. This should be called when
+	 * the packet size is known, e.g. after the MTU has been negotiated.
+	 *
+	 * @param size the packet size in bytes.
+	 */
+	void preallocate(@IntRange(from = 1) final int size) {
+		obtain(size);
+	}
+
+	/**
+	 * Returns a buffer with exactly the given length. The buffer may have been returned before,
+	 * and the content of it is undefined.
+	 *
+	 * @param size the required length of the buffer.
+	 * @return The buffer.
+	 */
+	@NonNull
+	byte[] obtain(@IntRange(from = 1) final int size) {
+		int slot = indexOf(size);
+		if (slot == -1)
+			slot = allocateSlot(size);
+
+		final byte[][] ring = mRings[slot];
+		final int index = mIndexes[slot];
+		mIndexes[slot] = (index + 1) % RING_SIZE;
+		mLastUsed[slot] = ++mUseCounter;
+		return ring[index];
+	}
+
+	/**
+	 * Returns a buffer with exactly the given length, containing first <code>size</code> bytes
+	 * of the given buffer. If the buffer already has the required length, it is returned as is.
+	 *
+	 * @param buffer the source buffer.
+	 * @param size   number of bytes to copy.
+	 * @return The buffer with the data.
+	 */
+	@NonNull
+	byte[] copyOf(@NonNull final byte[] buffer, @IntRange(from = 1) final int size) {
+		if (buffer.length == size)
+			return buffer;
+		final byte[] copy = obtain(size);
+		System.arraycopy(buffer, 0, copy, 0, size);
+		return copy;
+	}
+
+	/**
+	 * Returns the number of arrays allocated by this pool since it was created.
+	 * When the pool is warmed up, this number should not grow while the firmware is being sent.
+	 *
+	 * @return The number of allocations.
+	 */
+	int getAllocationCount() {
+		return mAllocationCount;
+	}
+
+	private int indexOf(final int size) {
+		for (int i = 0; i < mCount; ++i) {
+			if (mSizes[i] == size)
+				return i;
+		}
+		return -1;
+	}
+
+	private int allocateSlot(final int size) {
+		int slot = mCount;
+		if (mCount < MAX_SIZES) {
+			mCount++;
+		} else {
+			// Replace the least recently used size
+			slot = 0;
+			for (int i = 1; i < MAX_SIZES; ++i) {
+				if (mLastUsed[i] < mLastUsed[slot])
+					slot = i;
+			}
+		}
+		final byte[][] ring = new byte[RING_SIZE][];
+		for (int i = 0; i < RING_SIZE; ++i) {
+			ring[i] = new byte[size];
+			mAllocationCount++;
+		}
+		mSizes[slot] = size;
+		mRings[slot] = ring;
+		mIndexes[slot] = 0;
+		return slot;
+	}
+}
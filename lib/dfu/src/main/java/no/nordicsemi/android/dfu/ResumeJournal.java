@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.dfu;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * A small on-disk journal of a Secure DFU upload to a single device.
+ * <p>
+ * After each data object is executed the journal saves its end offset and the CRC32 of all
+ * data up to it, together with the PRN value used to send it. When the upload of the same
+ * firmware is resumed, even by another process, the firmware stream may be moved directly
+ * to the saved offset, instead of reading and hashing all the data sent before.
+ * <p>
+ * The journal is kept per device and firmware. The firmware is identified by the CRC32 of its
+ * Init packet, which contains the hash of the firmware, and is a part of the file name, so a
+ * journal of another package is never read. The journal is always validated by comparing
+ * the CRC with the one reported by the target.
+ */
+/* package */ final class ResumeJournal {
+	private static final String TAG = "DfuResumeJournal";
+	private static final String DIRECTORY = "dfu_journal";
+	private static final String FILE_SUFFIX = ".journal";
+	private static final int FORMAT_VERSION = 2;
+
+	/* package */ static final class Entry {
+		/** The size of the firmware image, in bytes. */
+		final int imageSize;
+		/** The part number, 1 for the SoftDevice and/or Bootloader, 2 for the Application. */
+		final int part;
+		/** The offset of the end of the last executed data object. */
+		final int offset;
+		/** The CRC32 of the data from the beginning of the image up to the offset. */
+		final int crc;
+		/** The Packet Receipt Notification value used. */
+		final int prn;
+
+		Entry(final int imageSize, final int part, final int offset, final int crc, final int prn) {
+			this.imageSize = imageSize;
+			this.part = part;
+			this.offset = offset;
+			this.crc = crc;
+			this.prn = prn;
+		}
+
+		/**
+		 * Returns whether the entry was saved when sending the given image.
+		 */
+		boolean matches(final int imageSize, final int part) {
+			return this.imageSize == imageSize && this.part == part;
+		}
+	}
+
+	@NonNull
+	private final File file;
+	@NonNull
+	private final String devicePrefix;
+	private boolean othersDeleted;
+
+	/**
+	 * Creates the journal of the given device and firmware.
+	 *
+	 * @param filesDir      the app files directory.
+	 * @param address       the device address.
+	 * @param initPacketCrc the CRC32 of the Init packet of the firmware.
+	 */
+	ResumeJournal(@NonNull final File filesDir, @NonNull final String address, final int initPacketCrc) {
+		this.devicePrefix = address.replace(":", "") + "_";
+		this.file = new File(new File(filesDir, DIRECTORY),
+				devicePrefix + String.format(Locale.US, "%08X", initPacketCrc) + FILE_SUFFIX);
+	}
+
+	/**
+	 * Reads the journal.
+	 *
+	 * @return The saved entry, or null if there is none or it is invalid.
+	 */
+	@Nullable
+	Entry read() {
+		if (!file.isFile())
+			return null;
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != FORMAT_VERSION)
+				throw new IOException("Unsupported format");
+			return new Entry(in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt());
+		} catch (final IOException e) {
+			Log.w(TAG, "Reading resume journal failed", e);
+			delete();
+			return null;
+		}
+	}
+
+	/**
+	 * Saves the entry, replacing the previous one. Errors are ignored.
+	 * <p>
+	 * When the first entry is saved, journals of other firmware sent to the same device are
+	 * removed, as the device keeps only the last one.
+	 */
+	void write(@NonNull final Entry entry) {
+		final File directory = file.getParentFile();
+		if (directory == null || (!directory.isDirectory() && !directory.mkdirs()))
+			return;
+
+		final File temp = new File(directory, file.getName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(entry.imageSize);
+			out.writeInt(entry.part);
+			out.writeInt(entry.offset);
+			out.writeInt(entry.crc);
+			out.writeInt(entry.prn);
+		} catch (final IOException e) {
+			Log.w(TAG, "Saving resume journal failed", e);
+			//noinspection ResultOfMethodCallIgnored
+			temp.delete();
+			return;
+		}
+		if (!temp.renameTo(file)) {
+			//noinspection ResultOfMethodCallIgnored
+			temp.delete();
+			return;
+		}
+		if (!othersDeleted) {
+			othersDeleted = true;
+			final File[] journals = directory.listFiles((dir, name) ->
+					name.startsWith(devicePrefix) && name.endsWith(FILE_SUFFIX) && !name.equals(file.getName()));
+			if (journals != null) {
+				for (final File journal : journals) {
+					//noinspection ResultOfMethodCallIgnored
+					journal.delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes the journal.
+	 */
+	void delete() {
+		//noinspection ResultOfMethodCallIgnored
+		file.delete();
+	}
+}
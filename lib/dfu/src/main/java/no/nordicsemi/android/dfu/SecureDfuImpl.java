@@ -61,6 +61,10 @@ class SecureDfuImpl extends BaseCustomDfuImpl {
 
 	private static final int DFU_STATUS_SUCCESS = 1;
 	private static final int MAX_ATTEMPTS = 3;
+	/** The size of a Data object in Secure DFU bootloaders from the nRF5 SDK. */
+	private static final int DEFAULT_DATA_OBJECT_SIZE = 4096;
+	/** The number of times the upload of a single data object may stall before it fails. */
+	private static final int MAX_STALLS = 3;
 
 	// Object types
 	private static final int OBJECT_COMMAND = 0x01;
@@ -83,6 +87,18 @@ class SecureDfuImpl extends BaseCustomDfuImpl {
 	private BluetoothGattCharacteristic mPacketCharacteristic;
 
 	private long prepareObjectDelay;
+	private boolean adaptivePrn;
+	private boolean pipelineDataObjects;
+	/** True when the Execute request was sent but its response was not yet received. */
+	private boolean mExecutePending;
+	private byte[] mExecuteResponse;
+	/** The pipelined Execute request, which may still be waiting in the queue. */
+	private GattRequest mExecuteRequest;
+	/** Whether the upload progress should be saved in a {@link ResumeJournal}. */
+	private boolean mJournalEnabled;
+	/** The journal used to resume the upload in a new session, or null if disabled. */
+	@Nullable
+	private ResumeJournal mJournal;
 
 	private final SecureBluetoothCallback mBluetoothCallback = new SecureBluetoothCallback();
 
@@ -128,6 +144,16 @@ class SecureDfuImpl extends BaseCustomDfuImpl {
 						break;
 					}
 					default: {
+						// Responses to pipelined Execute requests are stored separately, as
+						// the response to the following Create request may be awaited already.
+						if (mExecutePending && requestType == OP_CODE_EXECUTE_KEY) {
+							if (mService.isLogLevelEnabled(DfuBaseService.LOG_LEVEL_INFO))
+								mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_INFO,
+										"Notification received from " + characteristic.getUuid() + ", value (0x): " + parse(value));
+							mExecuteResponse = value;
+							mExecutePending = false;
+							break;
+						}
 						/*
 						 * If the DFU target device is in invalid state (e.g. the Init Packet is
 						 * required but has not been selected), the target will send
@@ -182,7 +208,13 @@ class SecureDfuImpl extends BaseCustomDfuImpl {
 			return false;
 		}
 
-		return super.initialize(intent, gatt, fileType, firmwareStream, initPacketStream);
+		if (!super.initialize(intent, gatt, fileType, firmwareStream, initPacketStream))
+			return false;
+		// Calculate the CRC at each Data object boundary while the Init packet is being sent,
+		// so that the upload may be resumed without hashing the data sent before
+		if (mFirmwareStream instanceof ArchiveInputStream)
+			((ArchiveInputStream) mFirmwareStream).precomputeCrc(DEFAULT_DATA_OBJECT_SIZE);
+		return true;
 	}
 
 	@Override
@@ -214,15 +246,12 @@ class SecureDfuImpl extends BaseCustomDfuImpl {
 
 		final BluetoothGatt gatt = mGatt;
 
-		// Secure DFU since SDK 15 supports higher MTUs.
-		// Let's request the MTU requested by the user. It may be that a lower MTU will be used.
-		if (intent.hasExtra(DfuBaseService.EXTRA_MTU) && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-			final int requiredMtu = intent.getIntExtra(DfuBaseService.EXTRA_MTU, 517);
-			logi("Requesting MTU = " + requiredMtu);
-			requestMtu(requiredMtu);
-		}
+		// Secure DFU since SDK 15 supports higher MTUs and, since SDK 14, LE 2M PHY.
+		negotiateLinkParameters(intent);
 
 		prepareObjectDelay = intent.getLongExtra(DfuBaseService.EXTRA_DATA_OBJECT_DELAY, 0);
+		adaptivePrn = intent.getBooleanExtra(DfuBaseService.EXTRA_PACKET_RECEIPT_NOTIFICATIONS_ADAPTIVE, false);
+		pipelineDataObjects = intent.getBooleanExtra(DfuBaseService.EXTRA_PIPELINE_DATA_OBJECTS, false);
 
 		try {
 			// Enable notifications
@@ -247,6 +276,8 @@ class SecureDfuImpl extends BaseCustomDfuImpl {
 			if (!allowResume) {
 				logi("Resume feature disabled. Performing fresh DFU");
 			}
+			mJournalEnabled = allowResume && intent.getBooleanExtra(DfuBaseService.EXTRA_RESUME_JOURNAL, false);
+			mMetrics.startPhase(DfuMetrics.PHASE_INIT_PACKET);
 			try {
 				sendInitPacket(gatt, allowResume);
 			} catch (final RemoteDfuException e) {
@@ -275,7 +306,10 @@ class SecureDfuImpl extends BaseCustomDfuImpl {
 					throw e;
 				}
 			}
+			mMetrics.endPhase(DfuMetrics.PHASE_INIT_PACKET);
+			mMetrics.startPhase(DfuMetrics.PHASE_FIRMWARE_UPLOAD);
 			sendFirmware(gatt);
+			mMetrics.endPhase(DfuMetrics.PHASE_FIRMWARE_UPLOAD);
 
 			// The device will reset so we don't have to send Disconnect signal.
 			mProgressInfo.setProgress(DfuBaseService.PROGRESS_DISCONNECTING);
@@ -448,6 +482,7 @@ class SecureDfuImpl extends BaseCustomDfuImpl {
 					if (attempt < MAX_ATTEMPTS) {
 						attempt++;
 						logi("CRC does not match! Retrying...(" + attempt + "/" + MAX_ATTEMPTS + ")");
+						mMetrics.addRetry();
 						mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_WARNING, "CRC does not match! Retrying...(" + attempt + "/" + MAX_ATTEMPTS + ")");
 						try {
 							// Go back to the beginning, we will send the whole Init packet again
@@ -471,6 +506,10 @@ class SecureDfuImpl extends BaseCustomDfuImpl {
 			}
 		}
 
+		// The journal is identified by the Init packet, which contains the hash of the firmware
+		mJournal = mJournalEnabled ? new ResumeJournal(mService.getFilesDir(),
+				gatt.getDevice().getAddress(), (int) (crc32.getValue() & 0xFFFFFFFFL)) : null;
+
 		// Execute Init packet. It's better to execute it twice than not execute at all...
 		logi("Executing init packet (Op Code = 4)");
 		writeExecute();
@@ -500,8 +539,16 @@ class SecureDfuImpl extends BaseCustomDfuImpl {
 	 */
 	private void sendFirmware(final BluetoothGatt gatt) throws RemoteDfuException,
             DeviceDisconnectedException, DfuException, UploadAbortedException, UnknownResponseException {
+		// The journal of an earlier upload of the same firmware, if there was one
+		final ResumeJournal.Entry journalEntry = readJournal();
+
 		// Send the number of packets of firmware before receiving a receipt notification
 		int numberOfPacketsBeforeNotification = mPacketsBeforeNotification;
+		if (journalEntry != null && journalEntry.prn > 0 && numberOfPacketsBeforeNotification > 0) {
+			// Reuse the value that was used successfully before
+			numberOfPacketsBeforeNotification = mPacketsBeforeNotification = journalEntry.prn;
+			logi("Resume journal found (Offset = " + journalEntry.offset + ", PRN = " + journalEntry.prn + ")");
+		}
 		if (numberOfPacketsBeforeNotification > 0) {
 			setPacketReceiptNotifications(numberOfPacketsBeforeNotification);
 			mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_APPLICATION,
@@ -517,6 +564,14 @@ class SecureDfuImpl extends BaseCustomDfuImpl {
 		mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_APPLICATION, String.format(Locale.US,
 				"Data object info received (Max size = %d, Offset = %d, CRC = %08X)", info.maxSize, info.offset, info.CRC32));
 		mProgressInfo.setMaxObjectSizeInBytes(info.maxSize);
+		// The CRC table is usually calculated in advance for the default object size. This is
+		// needed if the part has changed since, or the target uses a different object size.
+		((ArchiveInputStream) mFirmwareStream).precomputeCrc(info.maxSize);
+
+		// When adaptive PRNs are enabled the PRN value will be adjusted after each data object
+		final AdaptivePrnController prnController = adaptivePrn ?
+				new AdaptivePrnController(numberOfPacketsBeforeNotification,
+						(info.maxSize + mBuffer.length - 1) / mBuffer.length) : null;
 
 		// Number of chunks in which the data will be sent
 		final int chunkCount = (mImageSizeInBytes + info.maxSize - 1) / info.maxSize;
@@ -537,18 +592,42 @@ class SecureDfuImpl extends BaseCustomDfuImpl {
 					bytesSentNotExecuted = info.maxSize;
 				}
 
-				// Read the same number of bytes from the current init packet to calculate local CRC32
+				// The data up to the offset saved in the journal don't have to be read again,
+				// as their CRC is known
+				final ArchiveInputStream zhis = (ArchiveInputStream) mFirmwareStream;
+				int position = 0;
+				if (journalEntry != null && journalEntry.offset <= bytesSentAndExecuted) {
+					position = zhis.seek(journalEntry.offset, journalEntry.crc & 0xFFFFFFFFL);
+					mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_APPLICATION,
+							"Resume journal used, " + position + " bytes skipped");
+				}
+
+				// Move over the same number of bytes of the firmware to calculate local CRC32
 				if (bytesSentAndExecuted > 0) {
-					//noinspection ResultOfMethodCallIgnored
-					mFirmwareStream.read(new byte[bytesSentAndExecuted]); // Read executed bytes
-					mFirmwareStream.mark(info.maxSize); // Mark here
+					zhis.seek(bytesSentAndExecuted); // Skip executed bytes and mark here
 				}
 				// Here the bytesSentNotExecuted is for sure greater then 0
 				//noinspection ResultOfMethodCallIgnored
-				mFirmwareStream.read(new byte[bytesSentNotExecuted]); // Read the rest
+				mFirmwareStream.skip(bytesSentNotExecuted); // Skip the rest
 
 				// Calculate the CRC32
-				final int crc = (int) (((ArchiveInputStream) mFirmwareStream).getCrc32() & 0xFFFFFFFFL);
+				int crc = (int) (zhis.getCrc32() & 0xFFFFFFFFL);
+
+				// If the CRC does not match, the journal may be out of date. Validate the data
+				// from the beginning, as if there was no journal. Checkpoints saved since are
+				// dropped, only the precomputed ones are used.
+				if (crc != info.CRC32 && position > 0) {
+					logw("CRC does not match, ignoring resume journal");
+					mJournal.delete();
+					zhis.clearMarkedCheckpoints();
+					zhis.fullReset();
+					if (bytesSentAndExecuted > 0) {
+						zhis.seek(bytesSentAndExecuted);
+					}
+					//noinspection ResultOfMethodCallIgnored
+					mFirmwareStream.skip(bytesSentNotExecuted);
+					crc = (int) (zhis.getCrc32() & 0xFFFFFFFFL);
+				}
 
 				if (crc == info.CRC32) {
 					logi(info.offset + " bytes of data sent before, CRC match");
@@ -606,9 +685,17 @@ class SecureDfuImpl extends BaseCustomDfuImpl {
 
 		if (info.offset < mImageSizeInBytes) {
 			int attempt = 1;
+			int stalls = 0;
+			// In pipelined mode the next Data object is created together with executing the previous one
+			boolean objectCreated = false;
 			// Each page will be sent in MAX_ATTEMPTS
 			while (mProgressInfo.getAvailableObjectSizeIsBytes() > 0) {
-				if (!resumeSendingData) {
+				final long createStartTime = SystemClock.elapsedRealtime();
+				if (objectCreated) {
+					objectCreated = false;
+					mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_APPLICATION,
+							"Uploading firmware...");
+				} else if (!resumeSendingData) {
 					// Create the Data object
 					final int availableObjectSizeInBytes = mProgressInfo.getAvailableObjectSizeIsBytes();
 					logi("Creating Data object (Op Code = 1, Type = 2, Size = " + availableObjectSizeInBytes + ") (" + (currentChunk + 1) + "/" + chunkCount + ")");
@@ -630,33 +717,53 @@ class SecureDfuImpl extends BaseCustomDfuImpl {
 				}
 
 				// Send the current object part
+				final long objectStartTime = SystemClock.elapsedRealtime();
+				final int objectStartOffset = mProgressInfo.getBytesSent();
 				try {
 					logi("Uploading firmware...");
 					uploadFirmwareImage(mPacketCharacteristic);
 				} catch (final DeviceDisconnectedException e) {
 					loge("Disconnected while sending data");
 					throw e;
+				} catch (final DfuException e) {
+					if (e.getErrorNumber() != DfuBaseService.ERROR_OPERATION_TIMEOUT)
+						throw e;
+					// A target which stopped responding would otherwise be polled forever
+					if (++stalls >= MAX_STALLS) {
+						loge("Upload stalled " + stalls + " times");
+						mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_ERROR,
+								"Upload stalled " + stalls + " times");
+						throw e;
+					}
+					// The upload has stalled. The Calculate Checksum request below will tell
+					// how many bytes were received, and sending will be resumed from there.
+					mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_WARNING,
+							"Upload stalled, resuming from the last received byte (" + stalls + "/" + MAX_STALLS + ")");
 				}
 
 				// Calculate Checksum
+				final long checksumStartTime = SystemClock.elapsedRealtime();
+				mMetrics.addObjectUploadTime(checksumStartTime - objectStartTime);
 				logi("Sending Calculate Checksum command (Op Code = 3)");
 				final ObjectChecksum checksum = readChecksum();
+				final long executeStartTime = SystemClock.elapsedRealtime();
 				logi(String.format(Locale.US, "Checksum received (Offset = %d, CRC = %08X)", checksum.offset, checksum.CRC32));
 				mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_APPLICATION, String.format(Locale.US,
                         "Checksum received (Offset = %d, CRC = %08X)", checksum.offset, checksum.CRC32));
 
 				// It may happen, that not all bytes that were sent were received by the remote device
 				final int bytesLost = mProgressInfo.getBytesSent() - checksum.offset;
+				mMetrics.addBytesLost(Math.max(0, bytesLost));
 				if (bytesLost > 0) {
 					logw(bytesLost + " bytes were lost!");
 					mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_WARNING,
                             bytesLost + " bytes were lost");
 
 					try {
-						// We have to reset the stream and read 'offset' number of bytes to recalculate the CRC
+						// We have to reset the stream and skip 'offset' number of bytes to recalculate the CRC
 						mFirmwareStream.reset(); // Resets to the beginning of current object
 						//noinspection ResultOfMethodCallIgnored
-						mFirmwareStream.read(new byte[info.maxSize - bytesLost]); // Reads additional bytes that were sent and received in this object
+						mFirmwareStream.skip(checksum.offset % info.maxSize); // Skips additional bytes that were sent and received in this object
 						mProgressInfo.setBytesSent(checksum.offset);
 					} catch (final IOException e) {
 						loge("Error while reading firmware stream", e);
@@ -671,7 +778,8 @@ class SecureDfuImpl extends BaseCustomDfuImpl {
 					}
 					// To decrease the chance of loosing data next time let's set PRN to 1.
 					// This will make the update very long, but perhaps it will succeed.
-					final int newPrn = 1;
+					// In adaptive mode the PRN value is only halved and will grow again later.
+					final int newPrn = prnController != null ? prnController.onBytesLost() : 1;
 					if (mPacketsBeforeNotification == 0 || mPacketsBeforeNotification > newPrn) {
 						numberOfPacketsBeforeNotification = mPacketsBeforeNotification = newPrn;
 						setPacketReceiptNotifications(numberOfPacketsBeforeNotification);
@@ -683,18 +791,69 @@ class SecureDfuImpl extends BaseCustomDfuImpl {
 				// Calculate the CRC32
 				final int crc = (int) (((ArchiveInputStream) mFirmwareStream).getCrc32() & 0xFFFFFFFFL);
 				if (crc == checksum.CRC32) {
-					if (bytesLost > 0) {
+					// Resume if some bytes were lost, or the upload stalled before the object was complete
+					if (bytesLost > 0 || !(mProgressInfo.isObjectComplete() || mProgressInfo.isComplete())) {
 						resumeSendingData = true;
 						continue;
 					}
 					// Execute Init packet
 					logi("Executing data object (Op Code = 4)");
-					writeExecute(mProgressInfo.isComplete());
-					mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_APPLICATION, "Data object executed");
+					if (pipelineDataObjects && !mProgressInfo.isComplete()) {
+						// Create the next object without waiting for the Execute write, nor its response.
+						// The request queue sends Create as soon as Execute has been written, and
+						// the target handles requests in order, so both responses will be received.
+						writeExecuteRequest();
+						final int availableObjectSizeInBytes = mProgressInfo.getAvailableObjectSizeIsBytes();
+						logi("Creating Data object (Op Code = 1, Type = 2, Size = " + availableObjectSizeInBytes + ") (" + (currentChunk + 2) + "/" + chunkCount + ")");
+						try {
+							writeCreateRequest(OBJECT_DATA, availableObjectSizeInBytes);
+						} catch (final RemoteDfuException e) {
+							// If Execute has failed, report its error instead
+							readExecuteResponse();
+							throw e;
+						}
+						readExecuteResponse();
+						mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_APPLICATION, "Data object executed");
+						mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_APPLICATION,
+								"Data object (" + (currentChunk + 2) + "/" + chunkCount + ") created");
+						if (prepareObjectDelay > 0) {
+							mService.waitFor(prepareObjectDelay);
+						}
+						objectCreated = true;
+					} else {
+						writeExecute(mProgressInfo.isComplete());
+						mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_APPLICATION, "Data object executed");
+					}
+					final long executeEndTime = SystemClock.elapsedRealtime();
+					if (mJournal != null && !mProgressInfo.isComplete()) {
+						mJournal.write(new ResumeJournal.Entry(mImageSizeInBytes,
+								mProgressInfo.getCurrentPart(), checksum.offset, checksum.CRC32,
+								mPacketsBeforeNotification));
+					}
+					logi(String.format(Locale.US,
+							"Data object (%d/%d) timing: create %d ms, upload %d ms, checksum %d ms, %s %d ms",
+							currentChunk + 1, chunkCount,
+							objectStartTime - createStartTime, checksumStartTime - objectStartTime,
+							executeStartTime - checksumStartTime,
+							objectCreated ? "execute + create" : "execute", executeEndTime - executeStartTime));
+
+					if (prnController != null) {
+						final int newPrn = prnController.onObjectSent(checksum.offset - objectStartOffset,
+								SystemClock.elapsedRealtime() - objectStartTime);
+						logi(String.format(Locale.US, "Data object sent at %.2f kB/s",
+								prnController.getLastSpeed()));
+						if (newPrn != numberOfPacketsBeforeNotification && !mProgressInfo.isComplete()) {
+							numberOfPacketsBeforeNotification = mPacketsBeforeNotification = newPrn;
+							setPacketReceiptNotifications(newPrn);
+							mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_APPLICATION,
+									"Packet Receipt Notif Req (Op Code = 2) sent (Value = " + newPrn + ")");
+						}
+					}
 
 					// Increment iterator
 					currentChunk++;
 					attempt = 1;
+					stalls = 0;
 					//Mark this location after completion of successful transfer.  In the event of a CRC retry on the next packet we will restart from this point.
 					mFirmwareStream.mark(0);
 				} else {
@@ -702,6 +861,7 @@ class SecureDfuImpl extends BaseCustomDfuImpl {
 					if (attempt < MAX_ATTEMPTS) {
 						attempt++;
 						crcFailMessage += String.format(Locale.US, " Retrying...(%d/%d)", attempt, MAX_ATTEMPTS);
+						mMetrics.addRetry();
 						logi(crcFailMessage);
 						mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_WARNING, crcFailMessage);
 						try {
@@ -728,11 +888,31 @@ class SecureDfuImpl extends BaseCustomDfuImpl {
 			mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_APPLICATION, "Data object executed");
 		}
 
+		// The whole firmware has been executed, the journal is no longer needed
+		if (mJournal != null)
+			mJournal.delete();
+
 		final long endTime = SystemClock.elapsedRealtime();
 		logi("Transfer of " + (mProgressInfo.getBytesSent() - info.offset) + " bytes has taken " + (endTime - startTime) + " ms");
 		mService.sendLogBroadcast(DfuBaseService.LOG_LEVEL_APPLICATION, "Upload completed in " + (endTime - startTime) + " ms");
 	}
 
+	/**
+	 * Returns the journal entry saved when the same firmware was sent before, if the journal
+	 * is enabled.
+	 *
+	 * @return The entry, or null if there is none.
+	 */
+	@Nullable
+	private ResumeJournal.Entry readJournal() {
+		if (mJournal == null)
+			return null;
+		final ResumeJournal.Entry entry = mJournal.read();
+		if (entry == null || !entry.matches(mImageSizeInBytes, mProgressInfo.getCurrentPart()))
+			return null;
+		return entry;
+	}
+
 	/**
 	 * Checks whether the response received is valid and returns the status code.
 	 *
@@ -960,6 +1140,68 @@ class SecureDfuImpl extends BaseCustomDfuImpl {
 			throw new RemoteDfuException("Executing object failed", status);
 	}
 
+	/**
+	 * Enqueues the Execute operation code without waiting for the write to complete, nor for
+	 * the response. The response has to be obtained using {@link #readExecuteResponse()}.
+	 * In the meantime other requests may be enqueued, and will be sent back to back.
+	 *
+	 * @throws DfuException
+	 * @throws DeviceDisconnectedException
+	 * @throws UploadAbortedException
+	 */
+	private void writeExecuteRequest() throws DfuException, DeviceDisconnectedException,
+			UploadAbortedException {
+		if (!mConnected)
+			throw new DeviceDisconnectedException("Unable to execute: device disconnected", mError);
+
+		synchronized (mLock) {
+			mExecuteResponse = null;
+			mExecutePending = true;
+		}
+		mExecuteRequest = mRequestQueue.enqueue(createOpCodeRequest(mControlPointCharacteristic, OP_CODE_EXECUTE, false));
+	}
+
+	/**
+	 * Awaits the response to the Execute request sent using {@link #writeExecuteRequest()}.
+	 *
+	 * @throws DfuException
+	 * @throws DeviceDisconnectedException
+	 * @throws UploadAbortedException
+	 * @throws UnknownResponseException
+	 * @throws RemoteDfuException thrown when the returned status code is not equal to
+	 * {@link #DFU_STATUS_SUCCESS}.
+	 */
+	private void readExecuteResponse() throws DfuException, DeviceDisconnectedException,
+			UploadAbortedException, UnknownResponseException, RemoteDfuException {
+		final GattRequest request = mExecuteRequest;
+		mExecuteRequest = null;
+		try {
+			awaitOperation(() -> (mExecutePending && !(request.isCompleted() && !request.isSuccessful())
+					&& mConnected && mError == 0 && !mAborted) || mPaused, "Executing data object");
+		} finally {
+			// The write callback may come after the notification, but not without a response
+			if (mExecutePending && !request.isCompleted())
+				mRequestQueue.cancel(request);
+		}
+		final byte[] response = mExecuteResponse;
+		mExecutePending = false;
+		if (mAborted)
+			throw new UploadAbortedException();
+		if (!mConnected)
+			throw new DeviceDisconnectedException("Response not received: device disconnected", mError);
+		// The error of the Execute write might have been cleared by the following request
+		if (response == null && !request.isSuccessful())
+			throw new DfuException("Unable to write Op Code " + OP_CODE_EXECUTE[0], DfuBaseService.ERROR_CONNECTION_MASK | request.getStatus());
+		if (mError != 0)
+			throw new DfuException("Response not received", mError);
+
+		final int status = getStatusCode(response, OP_CODE_EXECUTE_KEY);
+		if (status == SecureDfuError.EXTENDED_ERROR)
+			throw new RemoteDfuExtendedErrorException("Executing object failed", response[3]);
+		if (status != DFU_STATUS_SUCCESS)
+			throw new RemoteDfuException("Executing object failed", status);
+	}
+
 	/**
 	 * After the whole firmware image was sent, the last command Execute will cause erasing memory
 	 * and flashing the new firmware. This may result in INVALID_OBJECT error in 2 cases:
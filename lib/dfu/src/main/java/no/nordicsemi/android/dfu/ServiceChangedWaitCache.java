@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.dfu;
+
+import androidx.annotation.NonNull;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers, per device address, how long it took the device to send the Service Changed
+ * indication after the connection was established.
+ * <p>
+ * On bonded devices the service waits for a possible Service Changed indication before starting
+ * service discovery. Once a device has been seen sending the indication, later waits for the same
+ * device are limited to a bound learned from the observed delays, instead of the full wait time.
+ * If the indication arrives after that bound, the margin is doubled.
+ * <p>
+ * The indication is only sent when the services have changed, e.g. after switching to
+ * the bootloader mode, so a device that hasn't sent it yet may still send it later. Only after
+ * {@link #NO_INDICATION_SESSIONS} connections to the bootloader in a row without the indication,
+ * the wait is shortened to a quarter of the full wait time. Connections in the app mode are
+ * not counted, as the indication isn't expected there. If the indication then arrives too late,
+ * the services are discovered again and the next wait is based on its delay instead.
+ * <p>
+ * The cache is kept in memory for the lifetime of the process, which covers reconnections and
+ * multi-part updates. It is used only on Android 12 or newer, where the indication is reported
+ * using {@link android.bluetooth.BluetoothGattCallback#onServiceChanged}. On older versions
+ * a missing callback doesn't mean that the indication wasn't received.
+ */
+/* package */ final class ServiceChangedWaitCache {
+	/** Maximum number of devices kept in the cache. */
+	private static final int MAX_ENTRIES = 32;
+	/** The initial margin added to the longest observed delay, in milliseconds. */
+	private static final long MARGIN = 500;
+	/** The number of connections in a row without the indication after which the wait is shortened. */
+	private static final int NO_INDICATION_SESSIONS = 3;
+
+	private static final class Entry {
+		/** The longest observed delay, or -1 if the indication was never received. */
+		private long maxDelay = -1;
+		private long margin = MARGIN;
+		/** The number of connections in a row in which the indication was not received. */
+		private int sessionsWithoutIndication;
+	}
+
+	private static final Map<String, Entry> sEntries =
+			new LinkedHashMap<String, Entry>(MAX_ENTRIES, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+					return size() > MAX_ENTRIES;
+				}
+			};
+
+	private ServiceChangedWaitCache() {
+		// empty
+	}
+
+	@NonNull
+	private static Entry getEntry(@NonNull final String address) {
+		Entry entry = sEntries.get(address);
+		if (entry == null) {
+			entry = new Entry();
+			sEntries.put(address, entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * Returns the time to wait for the Service Changed indication from the given device.
+	 *
+	 * @param address the device address.
+	 * @param maxWait the maximum wait time, in milliseconds.
+	 * @return The wait time in milliseconds, not greater than maxWait.
+	 */
+	static synchronized long getWaitTime(@NonNull final String address, final long maxWait) {
+		final Entry entry = sEntries.get(address);
+		if (entry == null)
+			return maxWait;
+		long wait = maxWait;
+		if (entry.maxDelay >= 0) {
+			// Wait 1.5 times the longest observed delay, with a margin
+			wait = Math.min(wait, entry.maxDelay + entry.maxDelay / 2 + entry.margin);
+		}
+		if (entry.sessionsWithoutIndication >= NO_INDICATION_SESSIONS) {
+			wait = Math.min(wait, maxWait / 4);
+		}
+		return wait;
+	}
+
+	/**
+	 * Records the delay between the connection and receiving the Service Changed indication.
+	 *
+	 * @param address the device address.
+	 * @param delay   the delay in milliseconds.
+	 */
+	static synchronized void onIndicationReceived(@NonNull final String address, final long delay) {
+		final Entry entry = getEntry(address);
+		entry.maxDelay = Math.max(entry.maxDelay, delay);
+		entry.sessionsWithoutIndication = 0;
+	}
+
+	/**
+	 * Records a connection after switching to the bootloader mode in which the indication was
+	 * not received before the wait has ended.
+	 *
+	 * @param address the device address.
+	 */
+	static synchronized void onNoIndication(@NonNull final String address) {
+		getEntry(address).sessionsWithoutIndication++;
+	}
+
+	/**
+	 * Records the Service Changed indication received after the wait has ended.
+	 * The next wait for this device will be longer.
+	 *
+	 * @param address the device address.
+	 * @param delay   the delay between the connection and the indication, in milliseconds.
+	 */
+	static synchronized void onLateIndication(@NonNull final String address, final long delay) {
+		final Entry entry = getEntry(address);
+		if (entry.maxDelay >= 0 && entry.sessionsWithoutIndication < NO_INDICATION_SESSIONS) {
+			// The learned bound was too short
+			entry.margin *= 2;
+		}
+		entry.maxDelay = Math.max(entry.maxDelay, delay);
+		entry.sessionsWithoutIndication = 0;
+	}
+}
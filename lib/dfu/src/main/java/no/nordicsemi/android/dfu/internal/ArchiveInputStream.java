@@ -32,10 +32,19 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
@@ -77,15 +86,49 @@ public class ArchiveInputStream extends InputStream {
 	private static final String APPLICATION_BIN = "application.bin";
 	private static final String SYSTEM_INIT = "system.dat";
 	private static final String APPLICATION_INIT = "application.dat";
+	/**
+	 * The maximum size of a ZIP file read from a stream, and of a single file decompressed using
+	 * the central directory. It's hard to say what would be considered too big, but 10 MB should
+	 * be enough for any firmware package. If not, fork the library and change this.
+	 */
+	/* package */ static final int MAX_FILE_SIZE = 10 * 1024 * 1024;
 
+	@Nullable
 	private final ZipInputStream zipInputStream;
+	/**
+	 * The central directory of the ZIP file, if the archive was opened from a seekable file.
+	 * In that case only the entries that are used are decompressed.
+	 */
+	@Nullable
+	private final ZipCentralDirectory centralDirectory;
+	private final int mbrSize;
 
 	/**
 	 * Contains bytes arrays with BIN files. HEX files are converted to BIN before being
      * added to this map.
 	 */
 	private final Map<String, byte[]> entries;
+	/**
+	 * Maps validated file names to names of entries in the {@link #centralDirectory}.
+	 */
+	private final Map<String, String> entryNames;
+	/**
+	 * Files that were used to create this stream. Those, together with the manifest,
+	 * are stored in the {@link FirmwareCache}.
+	 */
+	private final Map<String, byte[]> usedEntries;
+	@Nullable
+	private String manifestData;
+	/**
+	 * The CRC32 of bytes read since the last mark or reset. The CRC of all bytes read before
+	 * is kept in {@link #crc32Prefix}. See {@link #getCrc32()}.
+	 */
 	private final CRC32 crc32;
+	private long crc32Prefix;
+	private long crc32Length;
+	/** Matrices used by {@link #combineCrc32(long, long, long)}, kept to avoid allocations. */
+	private final long[] crcEven = new long[32];
+	private final long[] crcOdd = new long[32];
 	private Manifest manifest;
 
 	@Nullable
@@ -112,6 +155,46 @@ public class ArchiveInputStream extends InputStream {
 	@Nullable
 	private byte[] markedSource;
 	private int bytesReadFromMarkedSource;
+	private int bytesReadOnMark;
+	private long crc32OnMark;
+	/**
+	 * True if the CRC32 of the data before the current position was calculated from the data,
+	 * false if it was derived from a value given to {@link #seek(int, long)}, which may be wrong.
+	 */
+	private boolean crc32Calculated = true;
+	private boolean crc32CalculatedOnMark = true;
+	/**
+	 * The CRC32 of the data before each marked position in the current part, used by
+	 * {@link #seek(int)}. Secure DFU marks the stream at each object boundary. Only positions
+	 * at which the CRC was calculated from the data are saved.
+	 * The map is also used as the lock for the fields below.
+	 */
+	private final TreeMap<Integer, Long> checkpoints = new TreeMap<>();
+	/** The CRC32 at each object boundary calculated in advance, see {@link #precomputeCrc(int)}. */
+	private final TreeMap<Integer, Long> crcTable = new TreeMap<>();
+	/** Incremented each time the checkpoints are cleared, to drop results calculated before. */
+	private int checkpointsGeneration;
+	/** The object size of the precomputed CRC table, or 0. */
+	private int crcTableObjectSize;
+	/** Tasks calculating the CRC table, cancelled when the checkpoints are cleared. */
+	private final List<Future<?>> crcTasks = new ArrayList<>();
+
+	/** Number of threads used to calculate CRC tables, shared by all streams. */
+	private static final int CRC_THREADS =
+			Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+	private static final ThreadPoolExecutor CRC_EXECUTOR = new ThreadPoolExecutor(
+			CRC_THREADS, CRC_THREADS, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+			runnable -> {
+				final Thread thread = new Thread(runnable, "DfuCrcTable");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			});
+
+	static {
+		// Threads are stopped when not used
+		CRC_EXECUTOR.allowCoreThreadTimeOut(true);
+	}
 
 	/**
 	 * <p>
@@ -138,15 +221,66 @@ public class ArchiveInputStream extends InputStream {
 	 */
 	public ArchiveInputStream(final InputStream stream, final int mbrSize, final int types)
             throws IOException {
-		// Check if the file is not too big. It's hard to say what would be considered too big, but
-		// 10 MB should be enough for any firmware package. If not, fork the library and change this.
-		if (stream.available() > 10 * 1024 * 1024) {
-			throw new IOException("File too large: " + stream.available() + " bytes (max 10 MB)");
-		}
-		this.zipInputStream = new ZipInputStream(stream);
+		this(openZipInputStream(stream), null, null, null, mbrSize, types);
+	}
+
+	/**
+	 * Creates the ArchiveInputStream reading the ZIP file from a seekable channel, e.g. obtained
+	 * from a {@link java.io.FileInputStream} or a
+	 * {@link android.os.ParcelFileDescriptor.AutoCloseInputStream}.
+	 * <p>
+	 * The file is mapped into memory and only the files selected by the manifest and
+	 * the <b>types</b> parameter are decompressed, so, unlike when reading from a stream,
+	 * the size of the ZIP file is not limited. The channel is closed when the firmware has been read.
+	 * <p>
+	 * The selected files are still decompressed into memory here, not while they are being sent:
+	 * the size of each image must be known before the upload starts, and HEX files have to be
+	 * converted to BIN to learn it. The CRC and seeking also rely on random access to the data.
+	 *
+	 * @param channel the channel to the ZIP file.
+	 * @param mbrSize The size of the MRB segment (Master Boot Record) on the device.
+	 *                The parser will cut data from addresses below that number from all HEX files.
+	 * @param types   File types that are to be read from the ZIP. Use
+	 *                {@link DfuBaseService#TYPE_APPLICATION} etc.
+	 * @throws java.io.IOException Thrown in case of an invalid ZIP file.
+	 * @see #ArchiveInputStream(InputStream, int, int)
+	 */
+	public ArchiveInputStream(@NonNull final FileChannel channel, final int mbrSize, final int types)
+			throws IOException {
+		this(null, openCentralDirectory(channel), null, null, mbrSize, types);
+	}
+
+	/**
+	 * Creates the ArchiveInputStream from files that were already extracted and converted
+	 * to BIN, e.g. by {@link FirmwareCache}.
+	 *
+	 * @param entries      the files, with HEX files already converted to BIN.
+	 * @param manifestData the content of the 'manifest.json' file, or null.
+	 * @param mbrSize      the MBR size. As the files are already converted, this is not used.
+	 * @param types        File types that are to be read from the ZIP.
+	 * @throws java.io.IOException Thrown in case the files are not valid.
+	 */
+	/* package */ ArchiveInputStream(@NonNull final Map<String, byte[]> entries,
+									 @Nullable final String manifestData,
+									 final int mbrSize, final int types)
+			throws IOException {
+		this(null, null, entries, manifestData, mbrSize, types);
+	}
+
+	private ArchiveInputStream(@Nullable final ZipInputStream zipInputStream,
+							   @Nullable final ZipCentralDirectory centralDirectory,
+							   @Nullable final Map<String, byte[]> extractedEntries,
+							   @Nullable final String extractedManifestData,
+							   final int mbrSize, final int types)
+			throws IOException {
+		this.zipInputStream = zipInputStream;
+		this.centralDirectory = centralDirectory;
+		this.mbrSize = mbrSize;
 
 		this.crc32 = new CRC32();
 		this.entries = new HashMap<>();
+		this.entryNames = new HashMap<>();
+		this.usedEntries = new HashMap<>();
 		this.bytesRead = 0;
 		this.bytesReadFromCurrentSource = 0;
 
@@ -154,8 +288,17 @@ public class ArchiveInputStream extends InputStream {
 			/*
 			 * This method reads all entries from the ZIP file and puts them to entries map.
 			 * The 'manifest.json' file, if exists, is converted to the manifestData String.
+			 * If the central directory is available, only the manifest is read here and other
+			 * files are decompressed when needed in getEntry(String).
 			 */
-			parseZip(mbrSize);
+			if (centralDirectory != null) {
+				parseCentralDirectory(centralDirectory);
+			} else if (zipInputStream != null) {
+				parseZip();
+			} else if (extractedEntries != null) {
+				entries.putAll(extractedEntries);
+				parseManifest(extractedManifestData);
+			}
 
 			/*
 			 * Let's read and parse the 'manifest.json' file.
@@ -165,8 +308,8 @@ public class ArchiveInputStream extends InputStream {
 				// Read the application
 				if (manifest.getApplicationInfo() != null && (types == DfuBaseService.TYPE_AUTO || (types & DfuBaseService.TYPE_APPLICATION) > 0)) {
 					final FileInfo application = manifest.getApplicationInfo();
-					applicationBytes = entries.get(application.getBinFileName());
-					applicationInitBytes = entries.get(application.getDatFileName());
+					applicationBytes = getEntry(application.getBinFileName());
+					applicationInitBytes = getEntry(application.getDatFileName());
 
 					if (applicationBytes == null)
 						throw new IOException("Application file " + application.getBinFileName() + " not found.");
@@ -181,8 +324,8 @@ public class ArchiveInputStream extends InputStream {
 						throw new IOException("Manifest: softdevice and bootloader specified. Use softdevice_bootloader instead.");
 
 					final FileInfo bootloader = manifest.getBootloaderInfo();
-					bootloaderBytes = entries.get(bootloader.getBinFileName());
-					systemInitBytes = entries.get(bootloader.getDatFileName());
+					bootloaderBytes = getEntry(bootloader.getBinFileName());
+					systemInitBytes = getEntry(bootloader.getDatFileName());
 
 					if (bootloaderBytes == null)
 						throw new IOException("Bootloader file " + bootloader.getBinFileName() + " not found.");
@@ -194,8 +337,8 @@ public class ArchiveInputStream extends InputStream {
 				// Read the Soft Device
 				if (manifest.getSoftdeviceInfo() != null && (types == DfuBaseService.TYPE_AUTO || (types & DfuBaseService.TYPE_SOFT_DEVICE) > 0)) {
 					final FileInfo softdevice = manifest.getSoftdeviceInfo();
-					softDeviceBytes = entries.get(softdevice.getBinFileName());
-					systemInitBytes = entries.get(softdevice.getDatFileName());
+					softDeviceBytes = getEntry(softdevice.getBinFileName());
+					systemInitBytes = getEntry(softdevice.getDatFileName());
 
 					if (softDeviceBytes == null)
 						throw new IOException("SoftDevice file " + softdevice.getBinFileName() + " not found.");
@@ -211,8 +354,8 @@ public class ArchiveInputStream extends InputStream {
 						throw new IOException("Manifest: The softdevice_bootloader may not be used together with softdevice or bootloader.");
 
 					final SoftDeviceBootloaderFileInfo system = manifest.getSoftdeviceBootloaderInfo();
-					softDeviceAndBootloaderBytes = entries.get(system.getBinFileName());
-					systemInitBytes = entries.get(system.getDatFileName());
+					softDeviceAndBootloaderBytes = getEntry(system.getBinFileName());
+					systemInitBytes = getEntry(system.getDatFileName());
 
 					if (softDeviceAndBootloaderBytes == null)
 						throw new IOException("File " + system.getBinFileName() + " not found.");
@@ -239,12 +382,12 @@ public class ArchiveInputStream extends InputStream {
 				 */
 				// Search for the application
 				if (types == DfuBaseService.TYPE_AUTO || (types & DfuBaseService.TYPE_APPLICATION) > 0) {
-					applicationBytes = entries.get(APPLICATION_HEX); // the entry bytes has already been converted to BIN, just the name remained.
+					applicationBytes = getEntry(APPLICATION_HEX); // the entry bytes has already been converted to BIN, just the name remained.
 					if (applicationBytes == null)
-						applicationBytes = entries.get(APPLICATION_BIN);
+						applicationBytes = getEntry(APPLICATION_BIN);
 					if (applicationBytes != null) {
 						applicationSize = applicationBytes.length;
-						applicationInitBytes = entries.get(APPLICATION_INIT);
+						applicationInitBytes = getEntry(APPLICATION_INIT);
 						currentSource = applicationBytes;
 						valid = true;
 					}
@@ -252,12 +395,12 @@ public class ArchiveInputStream extends InputStream {
 
 				// Search for theBootloader
 				if (types == DfuBaseService.TYPE_AUTO || (types & DfuBaseService.TYPE_BOOTLOADER) > 0) {
-					bootloaderBytes = entries.get(BOOTLOADER_HEX); // the entry bytes has already been converted to BIN, just the name remained.
+					bootloaderBytes = getEntry(BOOTLOADER_HEX); // the entry bytes has already been converted to BIN, just the name remained.
 					if (bootloaderBytes == null)
-						bootloaderBytes = entries.get(BOOTLOADER_BIN);
+						bootloaderBytes = getEntry(BOOTLOADER_BIN);
 					if (bootloaderBytes != null) {
 						bootloaderSize = bootloaderBytes.length;
-						systemInitBytes = entries.get(SYSTEM_INIT);
+						systemInitBytes = getEntry(SYSTEM_INIT);
 						currentSource = bootloaderBytes;
 						valid = true;
 					}
@@ -265,12 +408,12 @@ public class ArchiveInputStream extends InputStream {
 
 				// Search for the Soft Device
 				if (types == DfuBaseService.TYPE_AUTO || (types & DfuBaseService.TYPE_SOFT_DEVICE) > 0) {
-					softDeviceBytes = entries.get(SOFTDEVICE_HEX); // the entry bytes has already been converted to BIN, just the name remained.
+					softDeviceBytes = getEntry(SOFTDEVICE_HEX); // the entry bytes has already been converted to BIN, just the name remained.
 					if (softDeviceBytes == null)
-						softDeviceBytes = entries.get(SOFTDEVICE_BIN);
+						softDeviceBytes = getEntry(SOFTDEVICE_BIN);
 					if (softDeviceBytes != null) {
 						softDeviceSize = softDeviceBytes.length;
-						systemInitBytes = entries.get(SYSTEM_INIT);
+						systemInitBytes = getEntry(SYSTEM_INIT);
 						currentSource = softDeviceBytes;
 						valid = true;
 					}
@@ -283,8 +426,77 @@ public class ArchiveInputStream extends InputStream {
 			mark(0);
 		} finally {
 			type = getContentType();
+			closeArchive();
+		}
+	}
+
+	@NonNull
+	private static ZipInputStream openZipInputStream(@NonNull final InputStream stream) throws IOException {
+		// Check if the file is not too big.
+		// With the central directory this limit applies to each file in the ZIP instead.
+		if (stream.available() > MAX_FILE_SIZE) {
+			throw new IOException("File too large: " + stream.available() + " bytes (max 10 MB)");
+		}
+		return new ZipInputStream(stream);
+	}
+
+	@NonNull
+	private static ZipCentralDirectory openCentralDirectory(@NonNull final FileChannel channel) throws IOException {
+		try {
+			return new ZipCentralDirectory(channel);
+		} catch (final IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private void closeArchive() throws IOException {
+		if (zipInputStream != null)
 			zipInputStream.close();
+		if (centralDirectory != null)
+			centralDirectory.close();
+	}
+
+	/**
+	 * Returns the content of the file with given name. HEX files are converted to BIN.
+	 * When reading from a seekable file, the file is decompressed here on the first access.
+	 *
+	 * @param name the file name.
+	 * @return The content of the file, or <code>null</code> if the ZIP does not contain such file.
+	 * @throws IOException if the file could not be decompressed or is invalid.
+	 */
+	@Nullable
+	private byte[] getEntry(@Nullable final String name) throws IOException {
+		if (name == null)
+			return null;
+		byte[] source = entries.get(name);
+		if (source != null || centralDirectory == null) {
+			if (source != null)
+				usedEntries.put(name, source);
+			return source;
 		}
+
+		final String entryName = entryNames.get(name);
+		if (entryName == null)
+			return null;
+		source = centralDirectory.read(entryName);
+		if (source == null)
+			return null;
+		source = convertIfHex(name, source);
+		entries.put(name, source);
+		usedEntries.put(name, source);
+		return source;
+	}
+
+	/**
+	 * Converts the content of a HEX file to BIN. Other files are returned as is.
+	 */
+	@NonNull
+	private byte[] convertIfHex(@NonNull final String filename, @NonNull final byte[] source) throws IOException {
+		if (filename.toLowerCase(Locale.US).endsWith("hex")) {
+			return HexDecoder.decode(source, mbrSize);
+		}
+		return source;
 	}
 
 	/**
@@ -310,9 +522,11 @@ public class ArchiveInputStream extends InputStream {
 
 		File iD = new File(intendedDir);
 		String canonicalID = iD.getCanonicalPath();
+		if (!canonicalID.endsWith(File.separator))
+			canonicalID += File.separator;
 
 		if (canonicalPath.startsWith(canonicalID)) {
-			return canonicalPath.substring(1); // remove leading "/"
+			return canonicalPath.substring(canonicalID.length()); // path relative to the target directory
 		} else {
 			throw new IllegalStateException("File is outside extraction target directory.");
 		}
@@ -331,7 +545,8 @@ public class ArchiveInputStream extends InputStream {
 	 * To support the init packet such ZIP file should contain also application.dat and/or system.dat
      * (with the CRC16 of a SD, BL or SD+BL together).
 	 */
-	private void parseZip(final int mbrSize) throws IOException {
+	private void parseZip() throws IOException {
+		assert zipInputStream != null;
 		final byte[] buffer = new byte[1024];
 		String manifestData = null;
 
@@ -350,24 +565,13 @@ public class ArchiveInputStream extends InputStream {
 			while ((count = zipInputStream.read(buffer)) != -1) {
 				baos.write(buffer, 0, count);
 			}
-			byte[] source = baos.toByteArray();
 
 			// In case of HEX file convert it to BIN
-			if (filename.toLowerCase(Locale.US).endsWith("hex")) {
-				final HexInputStream is = new HexInputStream(source, mbrSize);
-				source = new byte[is.available()];
-				is.read(source);
-				is.close();
-			}
+			final byte[] source = convertIfHex(filename, baos.toByteArray());
 
 			// Save the file content either as a manifest data or by adding it to entries
 			if (MANIFEST.equals(filename))
-				if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-					manifestData = new String(source, StandardCharsets.UTF_8);
-				} else {
-					//noinspection CharsetObjectCanBeUsed
-					manifestData = new String(source, "UTF-8");
-				}
+				manifestData = toString(source);
 			else
 				entries.put(filename, source);
 		}
@@ -377,7 +581,52 @@ public class ArchiveInputStream extends InputStream {
 			throw new FileNotFoundException("No files found in the ZIP. Check if the URI provided is " +
                     "valid and the ZIP contains required files on root level, not in a directory.");
 		}
+		parseManifest(manifestData);
+	}
+
+	/**
+	 * Validates the names of files in the ZIP and reads the manifest file, if exists.
+	 * Other files will be decompressed when requested using {@link #getEntry(String)}.
+	 *
+	 * @param directory the central directory of the ZIP file.
+	 */
+	private void parseCentralDirectory(@NonNull final ZipCentralDirectory directory) throws IOException {
+		boolean empty = true;
+		for (final String name : directory.getNames()) {
+			final String filename = validateFilename(name, ".");
+
+			if (name.endsWith("/")) {
+				Log.w(TAG, "A directory found in the ZIP: " + filename + "!");
+				continue;
+			}
+			entryNames.put(filename, name);
+			if (!MANIFEST.equals(filename))
+				empty = false;
+		}
+
+		// Some validation
+		if (empty) {
+			throw new FileNotFoundException("No files found in the ZIP. Check if the URI provided is " +
+					"valid and the ZIP contains required files on root level, not in a directory.");
+		}
+
+		final String manifestName = entryNames.get(MANIFEST);
+		final byte[] manifestBytes = manifestName != null ? directory.read(manifestName) : null;
+		parseManifest(manifestBytes != null ? toString(manifestBytes) : null);
+	}
+
+	@NonNull
+	private static String toString(@NonNull final byte[] source) throws IOException {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+			return new String(source, StandardCharsets.UTF_8);
+		} else {
+			//noinspection CharsetObjectCanBeUsed
+			return new String(source, "UTF-8");
+		}
+	}
 
+	private void parseManifest(@Nullable final String manifestData) {
+		this.manifestData = manifestData;
 		if (manifestData != null) {
 			final ManifestFile manifestFile = new Gson().fromJson(manifestData, ManifestFile.class);
 			manifest = manifestFile.getManifest();
@@ -401,12 +650,45 @@ public class ArchiveInputStream extends InputStream {
 		softDeviceSize = bootloaderSize = applicationSize = 0;
 		currentSource = null;
 		bytesRead = bytesReadFromCurrentSource = 0;
-		zipInputStream.close();
+		clearCheckpoints();
+		closeArchive();
 	}
 
+	/**
+	 * Skips the given number of bytes. The CRC is updated directly from the firmware,
+	 * without copying the skipped bytes.
+	 *
+	 * @param n the number of bytes to skip.
+	 * @return The number of bytes skipped.
+	 */
 	@Override
 	public long skip(final long n) {
-		return 0;
+		return advance((int) Math.min(n, Integer.MAX_VALUE), true);
+	}
+
+	/**
+	 * Moves the position forward by the given number of bytes, moving to the next files
+	 * if needed.
+	 *
+	 * @param n         the number of bytes.
+	 * @param updateCrc true to update the CRC with the bytes passed.
+	 * @return The number of bytes passed.
+	 */
+	private int advance(final int n, final boolean updateCrc) {
+		int remaining = n;
+		while (remaining > 0 && currentSource != null) {
+			final int size = Math.min(remaining, currentSource.length - bytesReadFromCurrentSource);
+			if (updateCrc) {
+				crc32.update(currentSource, bytesReadFromCurrentSource, size);
+				crc32Length += size;
+			}
+			bytesReadFromCurrentSource += size;
+			bytesRead += size;
+			remaining -= size;
+			if (remaining > 0 && startNextFile() == null)
+				break;
+		}
+		return n - remaining;
 	}
 
 	@Override
@@ -442,6 +724,7 @@ public class ArchiveInputStream extends InputStream {
 		bytesReadFromCurrentSource += size;
 		bytesRead += size;
 		crc32.update(buffer, offset, size);
+		crc32Length += size;
 		return size;
 	}
 
@@ -457,24 +740,61 @@ public class ArchiveInputStream extends InputStream {
 	 */
 	@Override
 	public void mark(final int readlimit) {
+		markPosition();
+		if (crc32Calculated) {
+			synchronized (checkpoints) {
+				checkpoints.put(bytesRead, crc32OnMark);
+			}
+		}
+	}
+
+	private void markPosition() {
 		markedSource = currentSource;
 		bytesReadFromMarkedSource = bytesReadFromCurrentSource;
+		bytesReadOnMark = bytesRead;
+		crc32CalculatedOnMark = crc32Calculated;
+
+		// Save the CRC so that it can be restored on reset() without hashing the data again.
+		crc32OnMark = crc32Prefix = getCrc32();
+		crc32.reset();
+		crc32Length = 0;
 	}
 
+	/**
+	 * Resets the stream to the position of the last {@link #mark(int)}. The CRC is restored
+	 * to the value saved on mark, so this method takes constant time regardless of the position.
+	 */
 	@Override
 	public void reset() {
 		currentSource = markedSource;
-		bytesRead = bytesReadFromCurrentSource = bytesReadFromMarkedSource;
+		bytesReadFromCurrentSource = bytesReadFromMarkedSource;
+		bytesRead = bytesReadOnMark;
 
 		// Restore the CRC to the value is was on mark.
+		crc32Prefix = crc32OnMark;
+		crc32Calculated = crc32CalculatedOnMark;
 		crc32.reset();
+		crc32Length = 0;
+	}
+
+	/**
+	 * Sets the position to the beginning of the current source and calculates the CRC
+	 * from the beginning of the firmware, that is including the Soft Device if the Bootloader
+	 * is being sent. The new position is marked.
+	 */
+	private void rewind() {
+		bytesRead = bytesReadFromCurrentSource = 0;
+
+		crc32.reset();
+		crc32Prefix = 0;
+		crc32Length = 0;
+		crc32Calculated = true;
 		if (currentSource == bootloaderBytes && softDeviceBytes != null) {
 			crc32.update(softDeviceBytes);
+			crc32Length += softDeviceSize;
 			bytesRead += softDeviceSize;
 		}
-		if (currentSource != null && bytesReadFromCurrentSource > 0) {
-			crc32.update(currentSource, 0, bytesReadFromCurrentSource);
-		}
+		mark(0);
 	}
 
 	/**
@@ -489,9 +809,278 @@ public class ArchiveInputStream extends InputStream {
 			currentSource = softDeviceBytes;
 		}
 		// Reset the bytes count to 0
-		bytesReadFromCurrentSource = 0;
+		rewind();
+	}
+
+	/**
+	 * Moves the stream to the given position in the current part without reading the data
+	 * in between. As the data are not read, the CRC32 of all bytes before the position must
+	 * be known, e.g. saved in a previous session. The new position is marked.
+	 * <p>
+	 * As the given CRC may be wrong, neither this position nor any position marked after it
+	 * is saved as a checkpoint for {@link #seek(int)}, until the stream is reset with
+	 * {@link #fullReset()}.
+	 *
+	 * @param offset the new position, counted the same way as {@link #getBytesRead()}.
+	 * @param crc    the CRC32 of all bytes before the position, see {@link #getCrc32()}.
+	 * @return The new position. It is lower than the offset if the stream has ended before.
+	 */
+	public int seek(final int offset, final long crc) {
+		moveTo(offset, crc);
+		crc32Calculated = false;
+		markPosition();
+		return bytesRead;
+	}
+
+	/**
+	 * Moves the stream to the given position without reading the data in between and sets
+	 * the CRC32 to the given value. The position is not marked.
+	 */
+	private void moveTo(final int offset, final long crc) {
+		if (offset < bytesRead)
+			fullReset();
+		advance(offset - bytesRead, false);
+
+		crc32Prefix = crc;
+		crc32.reset();
+		crc32Length = 0;
+	}
+
+	/**
+	 * Moves the stream to the given position in the current part. The CRC is calculated
+	 * starting from the nearest marked position before the offset, or from the current
+	 * position if it's closer, so only the data after it are hashed. The new position is marked.
+	 *
+	 * @param offset the new position, counted the same way as {@link #getBytesRead()}.
+	 * @return The new position. It is lower than the offset if the stream has ended before.
+	 */
+	public int seek(final int offset) {
+		Map.Entry<Integer, Long> checkpoint;
+		synchronized (checkpoints) {
+			checkpoint = checkpoints.floorEntry(offset);
+			final Map.Entry<Integer, Long> precomputed = crcTable.floorEntry(offset);
+			if (checkpoint == null || (precomputed != null && precomputed.getKey() > checkpoint.getKey()))
+				checkpoint = precomputed;
+		}
+		if (offset < bytesRead || (checkpoint != null && checkpoint.getKey() > bytesRead)) {
+			if (checkpoint != null) {
+				// Checkpoints are only saved when the CRC was calculated from the data
+				moveTo(checkpoint.getKey(), checkpoint.getValue());
+				crc32Calculated = true;
+			} else {
+				fullReset();
+			}
+		}
+		advance(offset - bytesRead, true);
 		mark(0);
-		reset();
+		return bytesRead;
+	}
+
+	/**
+	 * Starts calculating the CRC32 at each object boundary after the current position, until
+	 * the end of the current part, on background threads. When done, the values are used as
+	 * checkpoints by {@link #seek(int)}, so moving to any object boundary will not require
+	 * hashing the data before it. Nothing is calculated if the current CRC was given to
+	 * {@link #seek(int, long)} instead of being calculated from the data.
+	 * <p>
+	 * The CRC of each object is calculated in parallel on a small thread pool shared by all
+	 * streams, and the results are combined at the end. The stream may be used in the meantime.
+	 * If the content type is changed or the stream is closed before the calculation completes,
+	 * the calculation is cancelled. Calling this method again with the same object size
+	 * does nothing.
+	 *
+	 * @param objectSize the size of an object, e.g. the maximum size of a Data object in Secure DFU.
+	 */
+	public void precomputeCrc(final int objectSize) {
+		if (objectSize <= 0 || currentSource == null || !crc32Calculated)
+			return;
+
+		final int generation;
+		synchronized (checkpoints) {
+			if (crcTableObjectSize == objectSize)
+				return;
+			crcTableObjectSize = objectSize;
+			generation = checkpointsGeneration;
+		}
+
+		// Take the snapshot of the files to be read, from the current position to the end of the part
+		final List<byte[]> sources = new ArrayList<>();
+		for (byte[] source = currentSource; source != null; source = getNextFile(source)) {
+			sources.add(source);
+		}
+		final CrcTableCalculation calculation = new CrcTableCalculation(sources,
+				bytesReadFromCurrentSource, bytesRead, getCrc32(), objectSize);
+		if (calculation.objects == 0)
+			return;
+
+		// The CRC of each object is calculated in parallel, the last task to finish combines them
+		final int tasks = Math.min(calculation.objects, CRC_THREADS);
+		synchronized (checkpoints) {
+			if (generation != checkpointsGeneration)
+				return;
+			for (int t = 0; t < tasks; ++t) {
+				final int first = t;
+				crcTasks.add(CRC_EXECUTOR.submit(() -> {
+					if (!calculation.calculate(first, tasks))
+						return;
+					final TreeMap<Integer, Long> table = calculation.combine();
+					synchronized (checkpoints) {
+						if (generation == checkpointsGeneration) {
+							crcTable.putAll(table);
+							crcTasks.clear();
+						}
+					}
+				}));
+			}
+		}
+	}
+
+	/**
+	 * Calculation of the CRC32 at each object boundary in the given data.
+	 */
+	private static final class CrcTableCalculation {
+		private final List<byte[]> sources;
+		private final int firstSourceOffset;
+		private final int start;
+		private final long startCrc;
+		private final int objectSize;
+		/** The position of the first byte of each file, and the end of the data. */
+		private final int[] sourcePositions;
+		private final int firstBoundary;
+		private final int objects;
+		/** The CRC32 of each object. */
+		private final long[] crcs;
+		/** The number of tasks that haven't completed yet. */
+		private final AtomicInteger remaining;
+
+		/**
+		 * @param sources           the files with the data, in order.
+		 * @param firstSourceOffset the offset of the data in the first file.
+		 * @param start             the position of the first byte of the data.
+		 * @param startCrc          the CRC32 of all bytes before the position.
+		 * @param objectSize        the object size.
+		 */
+		CrcTableCalculation(@NonNull final List<byte[]> sources, final int firstSourceOffset,
+							final int start, final long startCrc, final int objectSize) {
+			this.sources = sources;
+			this.firstSourceOffset = firstSourceOffset;
+			this.start = start;
+			this.startCrc = startCrc;
+			this.objectSize = objectSize;
+
+			// Concatenated files are seen as a single sequence of bytes, starting from the given position
+			final int count = sources.size();
+			sourcePositions = new int[count + 1];
+			sourcePositions[0] = start;
+			for (int i = 0; i < count; ++i) {
+				final int offset = i == 0 ? firstSourceOffset : 0;
+				sourcePositions[i + 1] = sourcePositions[i] + sources.get(i).length - offset;
+			}
+			final int end = sourcePositions[count];
+
+			// Objects are aligned to the object size, also the first one if the position isn't
+			firstBoundary = (start / objectSize + 1) * objectSize;
+			objects = end <= start ? 0 : firstBoundary >= end ? 1 : 2 + (end - firstBoundary - 1) / objectSize;
+			crcs = new long[objects];
+			remaining = new AtomicInteger(Math.min(objects, CRC_THREADS));
+		}
+
+		private int objectStart(final int i) {
+			return i == 0 ? start : firstBoundary + (i - 1) * objectSize;
+		}
+
+		private int objectEnd(final int i) {
+			return Math.min(sourcePositions[sources.size()], firstBoundary + i * objectSize);
+		}
+
+		/**
+		 * Calculates the CRC32 of every n-th object, starting from the given one.
+		 *
+		 * @return True if this was the last task to complete, false if other tasks are still
+		 * running or the task was cancelled.
+		 */
+		boolean calculate(final int first, final int step) {
+			final CRC32 crc = new CRC32();
+			for (int i = first; i < objects; i += step) {
+				if (Thread.currentThread().isInterrupted())
+					return false;
+				final int from = objectStart(i);
+				final int to = objectEnd(i);
+				crc.reset();
+				for (int s = 0; s < sources.size(); ++s) {
+					final int lo = Math.max(from, sourcePositions[s]);
+					final int hi = Math.min(to, sourcePositions[s + 1]);
+					if (lo < hi) {
+						final int offset = s == 0 ? firstSourceOffset : 0;
+						crc.update(sources.get(s), offset + lo - sourcePositions[s], hi - lo);
+					}
+				}
+				crcs[i] = crc.getValue();
+			}
+			return remaining.decrementAndGet() == 0;
+		}
+
+		/**
+		 * Combines the CRC of each object into the CRC of all data up to each boundary.
+		 *
+		 * @return The CRC32 at each object boundary and at the end of the data.
+		 */
+		@NonNull
+		TreeMap<Integer, Long> combine() {
+			final long[] even = new long[32];
+			final long[] odd = new long[32];
+			final TreeMap<Integer, Long> table = new TreeMap<>();
+			long crc = startCrc;
+			for (int i = 0; i < objects; ++i) {
+				final int from = objectStart(i);
+				final int to = objectEnd(i);
+				crc = combineCrc32(crc, crcs[i], to - from, even, odd);
+				table.put(to, crc);
+			}
+			return table;
+		}
+	}
+
+	/**
+	 * Removes the checkpoints saved by {@link #mark(int)}, keeping the precomputed ones.
+	 * This should be called when a CRC calculated from the stream did not match the one
+	 * reported by the target, before calculating it again.
+	 */
+	public void clearMarkedCheckpoints() {
+		synchronized (checkpoints) {
+			checkpoints.clear();
+		}
+	}
+
+	/**
+	 * Removes all checkpoints, including the precomputed ones, e.g. when the part has changed.
+	 */
+	private void clearCheckpoints() {
+		synchronized (checkpoints) {
+			for (final Future<?> task : crcTasks)
+				task.cancel(true);
+			crcTasks.clear();
+			checkpoints.clear();
+			crcTable.clear();
+			checkpointsGeneration++;
+			crcTableObjectSize = 0;
+		}
+	}
+
+	/**
+	 * Returns the files that were used to create this stream, with HEX files converted to BIN.
+	 */
+	@NonNull
+	/* package */ Map<String, byte[]> getUsedEntries() {
+		return usedEntries;
+	}
+
+	/**
+	 * Returns the content of the 'manifest.json' file, or null, if the ZIP did not contain one.
+	 */
+	@Nullable
+	/* package */ String getManifestData() {
+		return manifestData;
 	}
 
 	/**
@@ -507,7 +1096,81 @@ public class ArchiveInputStream extends InputStream {
 	 * @return the CRC
 	 */
 	public long getCrc32() {
-		return crc32.getValue();
+		return combineCrc32(crc32Prefix, crc32.getValue(), crc32Length);
+	}
+
+	/**
+	 * Returns the CRC32 of two concatenated blocks of data, given the CRC of each of them
+	 * and the length of the second one. This is a port of <code>crc32_combine()</code>
+	 * from zlib. It takes O(log(length2)) time.
+	 *
+	 * @param crc1    the CRC32 of the first block.
+	 * @param crc2    the CRC32 of the second block.
+	 * @param length2 the length of the second block in bytes.
+	 * @return The CRC32 of both blocks.
+	 */
+	private long combineCrc32(final long crc1, final long crc2, final long length2) {
+		return combineCrc32(crc1, crc2, length2, crcEven, crcOdd);
+	}
+
+	/**
+	 * Returns the CRC32 of two concatenated blocks of data, using the given arrays for
+	 * the matrices. This allows to combine CRCs on another thread.
+	 *
+	 * @param even an array of 32 elements for the even-power-of-two zeros operator.
+	 * @param odd  an array of 32 elements for the odd-power-of-two zeros operator.
+	 * @see #combineCrc32(long, long, long)
+	 */
+	private static long combineCrc32(long crc1, final long crc2, long length2,
+									 @NonNull final long[] even, @NonNull final long[] odd) {
+		// CRC of an empty first block is 0, and so would be the result of shifting it
+		if (crc1 == 0 || length2 <= 0)
+			return crc1 ^ crc2;
+
+		// Put operator for one zero bit in odd
+		odd[0] = 0xEDB88320L; // CRC-32 polynomial
+		long row = 1;
+		for (int n = 1; n < 32; n++) {
+			odd[n] = row;
+			row <<= 1;
+		}
+		// Put operator for two zero bits in even, and for four zero bits in odd
+		gf2MatrixSquare(even, odd);
+		gf2MatrixSquare(odd, even);
+
+		// Apply length2 zeros to crc1 (first square will put the operator for one
+		// zero byte, eight zero bits, in even)
+		do {
+			gf2MatrixSquare(even, odd);
+			if ((length2 & 1) != 0)
+				crc1 = gf2MatrixTimes(even, crc1);
+			length2 >>= 1;
+			if (length2 == 0)
+				break;
+
+			gf2MatrixSquare(odd, even);
+			if ((length2 & 1) != 0)
+				crc1 = gf2MatrixTimes(odd, crc1);
+			length2 >>= 1;
+		} while (length2 != 0);
+		return crc1 ^ crc2;
+	}
+
+	private static long gf2MatrixTimes(@NonNull final long[] mat, long vec) {
+		long sum = 0;
+		int i = 0;
+		while (vec != 0) {
+			if ((vec & 1) != 0)
+				sum ^= mat[i];
+			vec >>>= 1;
+			i++;
+		}
+		return sum;
+	}
+
+	private static void gf2MatrixSquare(@NonNull final long[] square, @NonNull final long[] mat) {
+		for (int n = 0; n < 32; n++)
+			square[n] = gf2MatrixTimes(mat, mat[n]);
 	}
 
 	/**
@@ -568,9 +1231,8 @@ public class ArchiveInputStream extends InputStream {
 			currentSource = bootloaderBytes;
 		else if ((type & DfuBaseService.TYPE_APPLICATION) > 0)
 			currentSource = applicationBytes;
-		bytesReadFromCurrentSource = 0;
-		mark(0);
-		reset();
+		clearCheckpoints();
+		rewind();
 		return this.type;
 	}
 
@@ -581,16 +1243,22 @@ public class ArchiveInputStream extends InputStream {
 	 * @return The new source, the same as {@link #currentSource}.
 	 */
 	private byte[] startNextFile() {
-		byte[] ret;
-		if (currentSource == softDeviceBytes && bootloaderBytes != null && (type & DfuBaseService.TYPE_BOOTLOADER) > 0) {
-			ret = currentSource = bootloaderBytes;
-		} else if (currentSource != applicationBytes && applicationBytes != null && (type & DfuBaseService.TYPE_APPLICATION) > 0) {
-			ret = currentSource = applicationBytes;
-		} else {
-			ret = currentSource = null;
-		}
+		currentSource = getNextFile(currentSource);
 		bytesReadFromCurrentSource = 0;
-		return ret;
+		return currentSource;
+	}
+
+	/**
+	 * Returns the file that is to be sent after the given one, or <code>null</code> if it
+	 * is the last one.
+	 */
+	@Nullable
+	private byte[] getNextFile(@Nullable final byte[] source) {
+		if (source == softDeviceBytes && bootloaderBytes != null && (type & DfuBaseService.TYPE_BOOTLOADER) > 0)
+			return bootloaderBytes;
+		if (source != applicationBytes && applicationBytes != null && (type & DfuBaseService.TYPE_APPLICATION) > 0)
+			return applicationBytes;
+		return null;
 	}
 
 	/**
@@ -0,0 +1,436 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.dfu.internal;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * A cache of firmware packages that were already extracted and converted to BIN.
+ * <p>
+ * The cache key is the SHA-256 of the ZIP file, together with the MBR size and the
+ * requested content types. Only the files that are used by the {@link ArchiveInputStream}
+ * and the manifest are stored.
+ * <p>
+ * Packages are saved in a directory on disk. When the total size of the directory exceeds
+ * the limit, the least recently used packages are removed. Each file ends with the CRC32 of its
+ * content. Files that don't match it, e.g. written only partially, are treated as a miss.
+ * Packages that are in use are also shared in memory by all DFU services in the process,
+ * so that updating multiple devices at the same time with the same package does not duplicate
+ * the firmware.
+ * <p>
+ * When the disk cache is disabled, packages are only shared in memory. The ZIP files are still
+ * hashed: a seekable file is mapped for that, while a stream is read into memory once.
+ * Therefore, the cache should be used only when it is enabled or when the same firmware may be
+ * sent to multiple devices at the same time, e.g. by {@link no.nordicsemi.android.dfu.DfuServicePool}.
+ * @hide
+ */
+public class FirmwareCache {
+	private static final String TAG = "DfuFirmwareCache";
+	private static final String FILE_SUFFIX = ".dfu";
+	private static final String TEMP_FILE_SUFFIX = ".tmp";
+	/** Version 2 added the CRC32 of the content at the end of the file. */
+	private static final int FORMAT_VERSION = 2;
+
+	/** Images in use, shared by all services in the process. */
+	private static final Map<String, WeakReference<FirmwareImage>> sImages = new HashMap<>();
+
+	@Nullable
+	private final File directory;
+	private final long maxSize;
+
+	/**
+	 * Creates a cache which only shares the packages in use in memory, without saving them
+	 * on disk.
+	 */
+	public FirmwareCache() {
+		this(null, 0);
+	}
+
+	/**
+	 * Creates the cache in the given directory.
+	 *
+	 * @param directory the cache directory, e.g. a subdirectory of the app cache directory,
+	 *                  or null to disable the disk cache.
+	 * @param maxSize   the maximum size of all cached packages in bytes.
+	 */
+	public FirmwareCache(@Nullable final File directory, final long maxSize) {
+		this.directory = maxSize > 0 ? directory : null;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Opens the ZIP file from a seekable channel, or returns the cached content.
+	 *
+	 * @param channel the channel to the ZIP file. The channel will be closed.
+	 * @param mbrSize the MBR size.
+	 * @param types   File types that are to be read from the ZIP.
+	 * @return The stream with the firmware.
+	 * @throws IOException Thrown in case of an invalid ZIP file.
+	 * @see ArchiveInputStream#ArchiveInputStream(FileChannel, int, int)
+	 */
+	@NonNull
+	public ArchiveInputStream open(@NonNull final FileChannel channel, final int mbrSize, final int types)
+			throws IOException {
+		final String key;
+		try {
+			final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+			key = getKey(digest, mbrSize, types);
+		} catch (final IOException | NoSuchAlgorithmException e) {
+			Log.w(TAG, "Calculating the hash failed", e);
+			return new ArchiveInputStream(channel, mbrSize, types);
+		}
+
+		final FirmwareImage cached = get(key);
+		if (cached != null) {
+			channel.close();
+			return cached.newStream(mbrSize, types);
+		}
+		return put(key, new ArchiveInputStream(channel, mbrSize, types), mbrSize, types);
+	}
+
+	/**
+	 * Opens the ZIP file from a stream, or returns the cached content. If the disk cache is
+	 * enabled, the stream is copied to a temporary file in the cache directory, while calculating
+	 * the hash, and the file is opened like a seekable channel. Otherwise, the stream is read
+	 * into memory.
+	 *
+	 * @param stream  the ZIP file stream. The stream will be closed.
+	 * @param mbrSize the MBR size.
+	 * @param types   File types that are to be read from the ZIP.
+	 * @return The stream with the firmware.
+	 * @throws IOException Thrown in case of an invalid ZIP file.
+	 * @see ArchiveInputStream#ArchiveInputStream(InputStream, int, int)
+	 */
+	@NonNull
+	public ArchiveInputStream open(@NonNull final InputStream stream, final int mbrSize, final int types)
+			throws IOException {
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (final NoSuchAlgorithmException e) {
+			Log.w(TAG, "Calculating the hash failed", e);
+			return new ArchiveInputStream(stream, mbrSize, types);
+		}
+		if (directory == null)
+			return openInMemory(stream, digest, mbrSize, types);
+
+		final File zip;
+		try {
+			if (!directory.isDirectory() && !directory.mkdirs())
+				throw new IOException("Creating " + directory + " failed");
+			zip = File.createTempFile("zip", TEMP_FILE_SUFFIX, directory);
+		} catch (final IOException e) {
+			Log.w(TAG, "Copying the ZIP file to cache failed", e);
+			return openInMemory(stream, digest, mbrSize, types);
+		}
+
+		try {
+			try (InputStream in = stream; FileOutputStream out = new FileOutputStream(zip)) {
+				final byte[] buffer = new byte[8192];
+				int count;
+				while ((count = in.read(buffer)) != -1) {
+					digest.update(buffer, 0, count);
+					out.write(buffer, 0, count);
+				}
+			}
+			final String key = getKey(digest, mbrSize, types);
+
+			final FirmwareImage cached = get(key);
+			if (cached != null)
+				return cached.newStream(mbrSize, types);
+			// The channel is closed by the ArchiveInputStream
+			final FileChannel channel = new FileInputStream(zip).getChannel();
+			return put(key, new ArchiveInputStream(channel, mbrSize, types), mbrSize, types);
+		} finally {
+			// The needed files have been extracted
+			//noinspection ResultOfMethodCallIgnored
+			zip.delete();
+		}
+	}
+
+	/**
+	 * Reads the ZIP file into memory, calculating the hash, and opens it, or returns the
+	 * shared content.
+	 */
+	@NonNull
+	private ArchiveInputStream openInMemory(@NonNull final InputStream stream,
+											@NonNull final MessageDigest digest,
+											final int mbrSize, final int types)
+			throws IOException {
+		final Buffer data;
+		try (InputStream in = stream) {
+			// The same limit as in ArchiveInputStream, checked before the file is read entirely
+			if (in.available() > ArchiveInputStream.MAX_FILE_SIZE)
+				throw new IOException("File too large: " + in.available() + " bytes (max 10 MB)");
+			data = new Buffer(Math.max(in.available(), 1024));
+			final byte[] buffer = new byte[8192];
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				if (data.size() + count > ArchiveInputStream.MAX_FILE_SIZE)
+					throw new IOException("File too large (max 10 MB)");
+				digest.update(buffer, 0, count);
+				data.write(buffer, 0, count);
+			}
+		}
+		final String key = getKey(digest, mbrSize, types);
+
+		final FirmwareImage cached = get(key);
+		if (cached != null)
+			return cached.newStream(mbrSize, types);
+		return put(key, new ArchiveInputStream(data.toInputStream(), mbrSize, types), mbrSize, types);
+	}
+
+	@NonNull
+	private static String getKey(@NonNull final MessageDigest digest, final int mbrSize, final int types) {
+		final StringBuilder builder = new StringBuilder();
+		for (final byte b : digest.digest())
+			builder.append(String.format(Locale.US, "%02x", b));
+		builder.append('_').append(Integer.toHexString(mbrSize));
+		builder.append('_').append(Integer.toHexString(types));
+		return builder.toString();
+	}
+
+	/**
+	 * Returns the image shared in memory, or reads it from the disk.
+	 *
+	 * @return The image, or null if the package is not in the cache or is invalid.
+	 */
+	@Nullable
+	private FirmwareImage get(@NonNull final String key) {
+		synchronized (sImages) {
+			final WeakReference<FirmwareImage> reference = sImages.get(key);
+			final FirmwareImage image = reference != null ? reference.get() : null;
+			if (image != null)
+				return image;
+			sImages.remove(key);
+		}
+
+		final FirmwareImage image = read(key);
+		if (image != null) {
+			synchronized (sImages) {
+				sImages.put(key, new WeakReference<>(image));
+			}
+		}
+		return image;
+	}
+
+	/**
+	 * Creates an image from the files used by the stream, shares it in memory and saves it
+	 * on disk, if enabled.
+	 *
+	 * @return A new stream reading the image.
+	 */
+	@NonNull
+	private ArchiveInputStream put(@NonNull final String key, @NonNull final ArchiveInputStream stream,
+								   final int mbrSize, final int types) throws IOException {
+		final FirmwareImage image = new FirmwareImage(stream.getUsedEntries(), stream.getManifestData());
+		// The stream may hold files that aren't needed
+		stream.close();
+
+		synchronized (sImages) {
+			sImages.put(key, new WeakReference<>(image));
+		}
+		write(key, image);
+		return image.newStream(mbrSize, types);
+	}
+
+	/**
+	 * Reads the cached package from the disk.
+	 *
+	 * @return The image, or null if the package is not in the cache or is invalid.
+	 */
+	@Nullable
+	FirmwareImage read(@NonNull final String key) {
+		if (directory == null)
+			return null;
+
+		final File file = new File(directory, key + FILE_SUFFIX);
+		if (!file.isFile())
+			return null;
+
+		final CRC32 crc = new CRC32();
+		try (DataInputStream in = new DataInputStream(new CheckedInputStream(
+				new BufferedInputStream(new FileInputStream(file)), crc))) {
+			if (in.readInt() != FORMAT_VERSION)
+				throw new IOException("Unsupported format");
+			String manifestData = null;
+			if (in.readBoolean()) {
+				//noinspection CharsetObjectCanBeUsed
+				manifestData = new String(readBytes(in, file.length()), "UTF-8");
+			}
+			final int count = in.readInt();
+			final Map<String, byte[]> entries = new HashMap<>();
+			for (int i = 0; i < count; ++i) {
+				final String name = in.readUTF();
+				entries.put(name, readBytes(in, file.length()));
+			}
+			final long expectedCrc = crc.getValue();
+			if (in.readLong() != expectedCrc)
+				throw new IOException("CRC mismatch");
+			//noinspection ResultOfMethodCallIgnored
+			file.setLastModified(System.currentTimeMillis());
+			return new FirmwareImage(entries, manifestData);
+		} catch (final IOException e) {
+			Log.w(TAG, "Reading cached firmware failed", e);
+			//noinspection ResultOfMethodCallIgnored
+			file.delete();
+			return null;
+		}
+	}
+
+	/**
+	 * Saves the image on the disk, if enabled. Errors are ignored.
+	 */
+	void write(@NonNull final String key, @NonNull final FirmwareImage image) {
+		if (directory == null || image.getSize() > maxSize)
+			return;
+		if (!directory.isDirectory() && !directory.mkdirs())
+			return;
+
+		final File file = new File(directory, key + FILE_SUFFIX);
+		// A unique name, so that services saving the same package at the same time
+		// don't write to the same file
+		final File temp;
+		try {
+			temp = File.createTempFile(key, TEMP_FILE_SUFFIX, directory);
+		} catch (final IOException e) {
+			Log.w(TAG, "Saving firmware to cache failed", e);
+			return;
+		}
+		final CRC32 crc = new CRC32();
+		try (DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temp)), crc))) {
+			out.writeInt(FORMAT_VERSION);
+			final String manifestData = image.getManifestData();
+			out.writeBoolean(manifestData != null);
+			if (manifestData != null) {
+				//noinspection CharsetObjectCanBeUsed
+				writeBytes(out, manifestData.getBytes("UTF-8"));
+			}
+			final Map<String, byte[]> entries = image.getEntries();
+			out.writeInt(entries.size());
+			for (final Map.Entry<String, byte[]> entry : entries.entrySet()) {
+				out.writeUTF(entry.getKey());
+				writeBytes(out, entry.getValue());
+			}
+			out.writeLong(crc.getValue());
+		} catch (final IOException e) {
+			Log.w(TAG, "Saving firmware to cache failed", e);
+			//noinspection ResultOfMethodCallIgnored
+			temp.delete();
+			return;
+		}
+		if (!temp.renameTo(file)) {
+			//noinspection ResultOfMethodCallIgnored
+			temp.delete();
+			return;
+		}
+		trim(directory);
+	}
+
+	/**
+	 * Removes the least recently used packages until the cache fits in the maximum size.
+	 */
+	private void trim(@NonNull final File directory) {
+		final File[] files = directory.listFiles((dir, name) -> name.endsWith(FILE_SUFFIX));
+		if (files == null)
+			return;
+
+		long size = 0;
+		for (final File file : files)
+			size += file.length();
+		if (size <= maxSize)
+			return;
+
+		Arrays.sort(files, (f1, f2) -> {
+			final long m1 = f1.lastModified();
+			final long m2 = f2.lastModified();
+			return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+		});
+		for (final File file : files) {
+			if (size <= maxSize)
+				break;
+			final long length = file.length();
+			if (file.delete())
+				size -= length;
+		}
+	}
+
+	/**
+	 * A buffer which can be read without copying its content.
+	 */
+	private static final class Buffer extends ByteArrayOutputStream {
+		Buffer(final int size) {
+			super(size);
+		}
+
+		@NonNull
+		InputStream toInputStream() {
+			return new ByteArrayInputStream(buf, 0, count);
+		}
+	}
+
+	@NonNull
+	private static byte[] readBytes(@NonNull final DataInputStream in, final long maxLength) throws IOException {
+		final int length = in.readInt();
+		// A corrupted length would otherwise allocate a huge array before the CRC is checked
+		if (length < 0 || length > maxLength)
+			throw new IOException("Invalid length");
+		final byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	private static void writeBytes(@NonNull final DataOutputStream out, @NonNull final byte[] bytes)
+			throws IOException {
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+}
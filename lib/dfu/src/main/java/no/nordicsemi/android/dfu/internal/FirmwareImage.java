@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.dfu.internal;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Immutable content of a firmware package: the files used for DFU, with HEX files already
+ * converted to BIN, and the manifest.
+ * <p>
+ * The image may be shared by many {@link ArchiveInputStream}s, e.g. when the same package
+ * is sent to multiple devices at the same time. Each stream keeps its own position, mark
+ * and CRC, but the firmware data are not copied.
+ */
+/* package */ final class FirmwareImage {
+	private final Map<String, byte[]> entries;
+	@Nullable
+	private final String manifestData;
+	private final long size;
+
+	/**
+	 * Creates the image. The given arrays must not be modified afterwards.
+	 *
+	 * @param entries      the files.
+	 * @param manifestData the content of the 'manifest.json' file, or null.
+	 */
+	FirmwareImage(@NonNull final Map<String, byte[]> entries, @Nullable final String manifestData) {
+		this.entries = Collections.unmodifiableMap(new HashMap<>(entries));
+		this.manifestData = manifestData;
+
+		long size = 0;
+		for (final byte[] entry : entries.values())
+			size += entry.length;
+		this.size = size;
+	}
+
+	/**
+	 * Returns the files used for DFU.
+	 */
+	@NonNull
+	Map<String, byte[]> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Returns the content of the 'manifest.json' file, or null.
+	 */
+	@Nullable
+	String getManifestData() {
+		return manifestData;
+	}
+
+	/**
+	 * Returns the total size of all files, in bytes.
+	 */
+	long getSize() {
+		return size;
+	}
+
+	/**
+	 * Creates a new stream reading this image.
+	 *
+	 * @param mbrSize the MBR size.
+	 * @param types   File types that are to be read.
+	 * @return The new stream. The stream does not copy the data.
+	 * @throws java.io.IOException Thrown in case the files are not valid.
+	 */
+	@NonNull
+	ArchiveInputStream newStream(final int mbrSize, final int types) throws java.io.IOException {
+		return new ArchiveInputStream(entries, manifestData, mbrSize, types);
+	}
+}
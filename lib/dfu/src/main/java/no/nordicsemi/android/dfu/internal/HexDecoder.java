@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.dfu.internal;
+
+import java.util.Arrays;
+
+import androidx.annotation.NonNull;
+
+import no.nordicsemi.android.dfu.internal.exception.HexFileValidationException;
+
+/**
+ * Converts a HEX file in Intel HEX format to BIN in a single pass.
+ * <p>
+ * Hex digits are decoded using a lookup table. The checksum of each record is validated.
+ * Data from addresses below the MBR size are skipped, the same way as in {@link HexInputStream}.
+ * Only continuous files are supported: if the upper address jumps over a 64 KB segment,
+ * the data following the jump are ignored.
+ */
+/* package */ final class HexDecoder {
+	/** Values of ASCII hex digits, -1 for other characters. */
+	private static final byte[] HEX_VALUES = new byte[256];
+
+	static {
+		Arrays.fill(HEX_VALUES, (byte) -1);
+		for (int i = 0; i < 10; ++i)
+			HEX_VALUES['0' + i] = (byte) i;
+		for (int i = 0; i < 6; ++i) {
+			HEX_VALUES['A' + i] = (byte) (10 + i);
+			HEX_VALUES['a' + i] = (byte) (10 + i);
+		}
+	}
+
+	private HexDecoder() {
+		// empty
+	}
+
+	/**
+	 * Decodes the HEX file.
+	 *
+	 * @param hex     the content of the HEX file.
+	 * @param mbrSize the MBR (Master Boot Record) size in bytes. Data with addresses below than
+	 *                number will be trimmed.
+	 * @return The BIN content.
+	 * @throws HexFileValidationException if the file is not a valid HEX file, or a record
+	 *                                    has invalid checksum.
+	 */
+	@NonNull
+	static byte[] decode(@NonNull final byte[] hex, final int mbrSize) throws HexFileValidationException {
+		// Each data byte takes 2 characters, so the BIN may not be longer than half of the HEX
+		final byte[] bin = new byte[hex.length / 2];
+		int binSize = 0;
+		int lastBaseAddress = 0;
+		int line = 0;
+		int pos = 0;
+
+		while (true) {
+			// Skip end of line
+			while (pos < hex.length && (hex[pos] == '\n' || hex[pos] == '\r'))
+				pos++;
+			line++;
+			if (pos >= hex.length || hex[pos] != ':')
+				throw new HexFileValidationException("Not a HEX file");
+			pos++;
+
+			// The record header: length (1 byte), offset (2 bytes), type (1 byte)
+			if (pos + 8 > hex.length)
+				throw new HexFileValidationException("Unexpected end of HEX file in line " + line);
+			final int lineSize = decodeByte(hex, pos, line);
+			final int offset = decodeByte(hex, pos + 2, line) << 8 | decodeByte(hex, pos + 4, line);
+			final int type = decodeByte(hex, pos + 6, line);
+			pos += 8;
+
+			// Data and the checksum
+			final int recordEnd = pos + lineSize * 2 + 2;
+			if (recordEnd > hex.length)
+				throw new HexFileValidationException("Unexpected end of HEX file in line " + line);
+			// Data bytes are written to the BIN already when validating the checksum, but binSize
+			// is increased only if the record is valid and its address is above the MBR.
+			final boolean data = type == 0x00 && lastBaseAddress + offset >= mbrSize;
+			int checksum = lineSize + (offset >> 8) + (offset & 0xFF) + type;
+			for (int i = pos, j = binSize; i < recordEnd; i += 2) {
+				final int value = decodeByte(hex, i, line);
+				checksum += value;
+				if (data && j < bin.length)
+					bin[j++] = (byte) value;
+			}
+			if ((checksum & 0xFF) != 0)
+				throw new HexFileValidationException("Invalid checksum in line " + line);
+
+			switch (type) {
+				case 0x00:
+					// data type
+					if (data)
+						binSize += lineSize;
+					break;
+				case 0x01:
+					// end of file
+					return Arrays.copyOf(bin, binSize);
+				case 0x02: {
+					// extended segment address
+					final int address = (decodeByte(hex, pos, line) << 8 | decodeByte(hex, pos + 2, line)) << 4;
+					if (binSize > 0 && (address >> 16) != (lastBaseAddress >> 16) + 1)
+						return Arrays.copyOf(bin, binSize);
+					lastBaseAddress = address;
+					break;
+				}
+				case 0x04: {
+					// extended linear address
+					final int address = decodeByte(hex, pos, line) << 8 | decodeByte(hex, pos + 2, line);
+					if (binSize > 0 && address != (lastBaseAddress >> 16) + 1)
+						return Arrays.copyOf(bin, binSize);
+					lastBaseAddress = address << 16;
+					break;
+				}
+				default:
+					// other records are ignored
+					break;
+			}
+			pos = recordEnd;
+		}
+	}
+
+	private static int decodeByte(@NonNull final byte[] hex, final int pos, final int line)
+			throws HexFileValidationException {
+		final int high = HEX_VALUES[hex[pos] & 0xFF];
+		final int low = HEX_VALUES[hex[pos + 1] & 0xFF];
+		if ((high | low) < 0)
+			throw new HexFileValidationException("Invalid character in line " + line);
+		return high << 4 | low;
+	}
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.dfu.internal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Reads entries from a ZIP file using its central directory.
+ * <p>
+ * Unlike {@link java.util.zip.ZipInputStream}, which has to inflate all entries one by one,
+ * this class maps the file into memory and decompresses only the entries that are requested
+ * with {@link #read(String)}. Each entry is inflated directly to an array of its final size.
+ * <p>
+ * ZIP64 archives, encrypted entries and compression methods other than STORED and DEFLATED
+ * are not supported.
+ */
+/* package */ class ZipCentralDirectory implements Closeable {
+	private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+	private static final int CENTRAL_DIRECTORY_SIGNATURE = 0x02014b50;
+	private static final int LOCAL_FILE_HEADER_SIGNATURE = 0x04034b50;
+	private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+	private static final int CENTRAL_DIRECTORY_HEADER_SIZE = 46;
+	private static final int LOCAL_FILE_HEADER_SIZE = 30;
+	private static final int MAX_COMMENT_LENGTH = 0xFFFF;
+	/** The maximum compression ratio of the Deflate algorithm. */
+	private static final int MAX_DEFLATE_RATIO = 1032;
+
+	private static final int METHOD_STORED = 0;
+	private static final int METHOD_DEFLATED = 8;
+
+	private static final class Entry {
+		private final int method;
+		private final int flags;
+		private final long crc;
+		private final long compressedSize;
+		private final long size;
+		private final long localHeaderOffset;
+
+		private Entry(final int method, final int flags, final long crc,
+					  final long compressedSize, final long size, final long localHeaderOffset) {
+			this.method = method;
+			this.flags = flags;
+			this.crc = crc;
+			this.compressedSize = compressedSize;
+			this.size = size;
+			this.localHeaderOffset = localHeaderOffset;
+		}
+	}
+
+	private final FileChannel channel;
+	private final ByteBuffer buffer;
+	private final Map<String, Entry> entries = new HashMap<>();
+
+	/**
+	 * Maps the file into memory and reads the central directory.
+	 *
+	 * @param channel the channel to a seekable ZIP file. The channel will be closed
+	 *                in {@link #close()}.
+	 * @throws IOException if the file could not be mapped or is not a valid ZIP file.
+	 */
+	ZipCentralDirectory(@NonNull final FileChannel channel) throws IOException {
+		this.channel = channel;
+		this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		this.buffer.order(ByteOrder.LITTLE_ENDIAN);
+		parse();
+	}
+
+	/**
+	 * Returns the names of all files in the archive, including directories.
+	 */
+	@NonNull
+	Set<String> getNames() {
+		return entries.keySet();
+	}
+
+	/**
+	 * Decompresses the file with given name.
+	 *
+	 * @param name the name of the file.
+	 * @return The uncompressed content of the file, or <code>null</code> if such file
+	 * does not exist in the archive.
+	 * @throws IOException if the entry is corrupted or not supported.
+	 */
+	@Nullable
+	byte[] read(@NonNull final String name) throws IOException {
+		final Entry entry = entries.get(name);
+		if (entry == null)
+			return null;
+
+		if ((entry.flags & 0x01) != 0)
+			throw new ZipException("Encrypted entries are not supported: " + name);
+
+		// The name and extra field lengths in the local header may differ from those in
+		// the central directory, so the header has to be read to find the data offset.
+		final int headerOffset = checkOffset(entry.localHeaderOffset, LOCAL_FILE_HEADER_SIZE);
+		if (buffer.getInt(headerOffset) != LOCAL_FILE_HEADER_SIGNATURE)
+			throw new ZipException("Invalid local file header: " + name);
+		final int nameLength = buffer.getShort(headerOffset + 26) & 0xFFFF;
+		final int extraLength = buffer.getShort(headerOffset + 28) & 0xFFFF;
+		final int dataOffset = checkOffset(headerOffset + LOCAL_FILE_HEADER_SIZE + nameLength + extraLength, entry.compressedSize);
+
+		// The size is read from the file, so it must be checked before the array is allocated.
+		// The compressed data are in the file, and Deflate can't inflate them more than 1032 times.
+		final long maxSize = entry.method == METHOD_DEFLATED ?
+				entry.compressedSize * MAX_DEFLATE_RATIO : entry.compressedSize;
+		if (entry.size > ArchiveInputStream.MAX_FILE_SIZE)
+			throw new ZipException("File too large: " + name + " (" + entry.size + " bytes)");
+		if (entry.size > maxSize)
+			throw new ZipException("Invalid size of file: " + name);
+
+		final ByteBuffer data = buffer.duplicate();
+		data.position(dataOffset);
+		data.limit(dataOffset + (int) entry.compressedSize);
+
+		final byte[] content = new byte[(int) entry.size];
+		switch (entry.method) {
+			case METHOD_STORED:
+				if (entry.compressedSize != entry.size)
+					throw new ZipException("Invalid size of a stored file: " + name);
+				data.get(content);
+				break;
+			case METHOD_DEFLATED:
+				inflate(data, content);
+				break;
+			default:
+				throw new ZipException("Unsupported compression method " + entry.method + ": " + name);
+		}
+
+		final CRC32 crc32 = new CRC32();
+		crc32.update(content);
+		if (crc32.getValue() != entry.crc)
+			throw new ZipException("CRC mismatch: " + name);
+		return content;
+	}
+
+	@Override
+	public void close() throws IOException {
+		entries.clear();
+		channel.close();
+	}
+
+	private void parse() throws IOException {
+		final int end = findEndOfCentralDirectory();
+		final int count = buffer.getShort(end + 10) & 0xFFFF;
+		final long size = buffer.getInt(end + 12) & 0xFFFFFFFFL;
+		final long offset = buffer.getInt(end + 16) & 0xFFFFFFFFL;
+		if (count == 0xFFFF || size == 0xFFFFFFFFL || offset == 0xFFFFFFFFL)
+			throw new ZipException("ZIP64 archives are not supported");
+
+		int position = checkOffset(offset, size);
+		for (int i = 0; i < count; ++i) {
+			checkOffset(position, CENTRAL_DIRECTORY_HEADER_SIZE);
+			if (buffer.getInt(position) != CENTRAL_DIRECTORY_SIGNATURE)
+				throw new ZipException("Invalid central directory");
+
+			final int flags = buffer.getShort(position + 8) & 0xFFFF;
+			final int method = buffer.getShort(position + 10) & 0xFFFF;
+			final long crc = buffer.getInt(position + 16) & 0xFFFFFFFFL;
+			final long compressedSize = buffer.getInt(position + 20) & 0xFFFFFFFFL;
+			final long uncompressedSize = buffer.getInt(position + 24) & 0xFFFFFFFFL;
+			final int nameLength = buffer.getShort(position + 28) & 0xFFFF;
+			final int extraLength = buffer.getShort(position + 30) & 0xFFFF;
+			final int commentLength = buffer.getShort(position + 32) & 0xFFFF;
+			final long localHeaderOffset = buffer.getInt(position + 42) & 0xFFFFFFFFL;
+			if (compressedSize == 0xFFFFFFFFL || uncompressedSize == 0xFFFFFFFFL || localHeaderOffset == 0xFFFFFFFFL)
+				throw new ZipException("ZIP64 archives are not supported");
+
+			final byte[] name = new byte[nameLength];
+			final ByteBuffer nameBuffer = buffer.duplicate();
+			nameBuffer.position(checkOffset(position + CENTRAL_DIRECTORY_HEADER_SIZE, nameLength));
+			nameBuffer.get(name);
+
+			entries.put(new String(name, StandardCharsets.UTF_8),
+					new Entry(method, flags, crc, compressedSize, uncompressedSize, localHeaderOffset));
+			position += CENTRAL_DIRECTORY_HEADER_SIZE + nameLength + extraLength + commentLength;
+		}
+	}
+
+	/**
+	 * Finds the End of Central Directory record. The record is at the end of the file,
+	 * but may be followed by a comment of variable length.
+	 *
+	 * @return The offset of the record.
+	 * @throws ZipException if the record was not found.
+	 */
+	private int findEndOfCentralDirectory() throws ZipException {
+		final int last = buffer.limit() - END_OF_CENTRAL_DIRECTORY_SIZE;
+		final int first = Math.max(0, last - MAX_COMMENT_LENGTH);
+		for (int position = last; position >= first; --position) {
+			if (buffer.getInt(position) == END_OF_CENTRAL_DIRECTORY_SIGNATURE)
+				return position;
+		}
+		throw new ZipException("Not a ZIP file");
+	}
+
+	private int checkOffset(final long offset, final long length) throws ZipException {
+		if (offset < 0 || length < 0 || offset + length > buffer.limit())
+			throw new ZipException("Invalid ZIP file: offset out of range");
+		return (int) offset;
+	}
+
+	private static void inflate(@NonNull final ByteBuffer data, @NonNull final byte[] content)
+			throws IOException {
+		final byte[] input = new byte[8192];
+		final Inflater inflater = new Inflater(true);
+		try {
+			int offset = 0;
+			// The content array has the exact size, so stop when it's full. The CRC will be
+			// validated afterwards.
+			while (offset < content.length && !inflater.finished()) {
+				if (inflater.needsInput()) {
+					final int length = Math.min(input.length, data.remaining());
+					if (length == 0)
+						throw new ZipException("Unexpected end of compressed data");
+					data.get(input, 0, length);
+					inflater.setInput(input, 0, length);
+				}
+				final int count = inflater.inflate(content, offset, content.length - offset);
+				if (count == 0 && !inflater.needsInput() && !inflater.finished())
+					throw new ZipException("Invalid compressed data");
+				offset += count;
+			}
+			if (offset != content.length)
+				throw new ZipException("Invalid size of the inflated file");
+		} catch (final DataFormatException e) {
+			throw new ZipException("Invalid compressed data: " + e.getMessage());
+		} finally {
+			inflater.end();
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.dfu;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AdaptivePrnControllerTest {
+	private static final int OBJECT_SIZE = 4096;
+	private static final long DURATION = 100; // ms
+
+	@Test
+	public void onObjectSent_noLosses_notAboveInitialPrn() {
+		final AdaptivePrnController controller = new AdaptivePrnController(12, 200);
+		for (int i = 0; i < 10; ++i)
+			assertEquals(12, controller.onObjectSent(OBJECT_SIZE, DURATION));
+	}
+
+	@Test
+	public void onBytesLost_windowHalved() {
+		final AdaptivePrnController controller = new AdaptivePrnController(12, 200);
+		assertEquals(6, controller.onBytesLost());
+		assertEquals(3, controller.onBytesLost());
+		assertEquals(1, controller.onBytesLost());
+		assertEquals(1, controller.onBytesLost());
+		assertEquals(1, controller.getPrn());
+	}
+
+	@Test
+	public void onObjectSent_afterLoss_increasedAfterHoldOff() {
+		final AdaptivePrnController controller = new AdaptivePrnController(12, 200);
+		controller.onBytesLost();
+		// The object in which bytes were lost never increases the window
+		assertEquals(6, controller.onObjectSent(OBJECT_SIZE, DURATION));
+		// Then the window is kept for 3 objects
+		assertEquals(6, controller.onObjectSent(OBJECT_SIZE, DURATION));
+		assertEquals(6, controller.onObjectSent(OBJECT_SIZE, DURATION));
+		assertEquals(6, controller.onObjectSent(OBJECT_SIZE, DURATION));
+		// And increased by one packet after each object
+		assertEquals(7, controller.onObjectSent(OBJECT_SIZE, DURATION));
+		assertEquals(8, controller.onObjectSent(OBJECT_SIZE, DURATION));
+	}
+
+	@Test
+	public void onObjectSent_speedDroppedAfterIncrease_increaseReverted() {
+		final AdaptivePrnController controller = increasedAfterLoss(new AdaptivePrnController(12, 200));
+		assertEquals(7, controller.getPrn());
+
+		// Less than 90% of the previous speed
+		assertEquals(6, controller.onObjectSent(OBJECT_SIZE, DURATION * 2));
+		assertEquals(0.5f * OBJECT_SIZE / DURATION, controller.getLastSpeed(), 0.001f);
+		// And the window is kept again
+		assertEquals(6, controller.onObjectSent(OBJECT_SIZE, DURATION * 2));
+		assertEquals(6, controller.onObjectSent(OBJECT_SIZE, DURATION * 2));
+		assertEquals(6, controller.onObjectSent(OBJECT_SIZE, DURATION * 2));
+		assertEquals(7, controller.onObjectSent(OBJECT_SIZE, DURATION * 2));
+	}
+
+	@Test
+	public void onObjectSent_speedSlightlyLower_increaseKept() {
+		final AdaptivePrnController controller = increasedAfterLoss(new AdaptivePrnController(12, 200));
+		assertEquals(8, controller.onObjectSent(OBJECT_SIZE, DURATION + 5));
+	}
+
+	@Test
+	public void prnDisabled_noLosses_staysDisabled() {
+		final AdaptivePrnController controller = new AdaptivePrnController(0, 10);
+		for (int i = 0; i < 10; ++i)
+			assertEquals(0, controller.onObjectSent(OBJECT_SIZE, DURATION));
+	}
+
+	@Test
+	public void prnDisabled_afterLoss_disabledAgainWhenWindowReachesObject() {
+		final AdaptivePrnController controller = new AdaptivePrnController(0, 10);
+		// Half of the packets in an object
+		assertEquals(5, controller.onBytesLost());
+		for (int i = 0; i < 4; ++i)
+			assertEquals(5, controller.onObjectSent(OBJECT_SIZE, DURATION));
+		assertEquals(6, controller.onObjectSent(OBJECT_SIZE, DURATION));
+		assertEquals(7, controller.onObjectSent(OBJECT_SIZE, DURATION));
+		assertEquals(8, controller.onObjectSent(OBJECT_SIZE, DURATION));
+		assertEquals(9, controller.onObjectSent(OBJECT_SIZE, DURATION));
+		assertEquals(0, controller.onObjectSent(OBJECT_SIZE, DURATION));
+	}
+
+	/**
+	 * Decreases the window to 6 and sends objects until it is increased to 7.
+	 */
+	private static AdaptivePrnController increasedAfterLoss(final AdaptivePrnController controller) {
+		controller.onBytesLost();
+		for (int i = 0; i < 5; ++i)
+			controller.onObjectSent(OBJECT_SIZE, DURATION);
+		return controller;
+	}
+}
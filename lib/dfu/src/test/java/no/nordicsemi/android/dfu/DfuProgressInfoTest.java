@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.dfu;
+
+import android.os.SystemClock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.MockedStatic;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mockStatic;
+
+public class DfuProgressInfoTest {
+	private MockedStatic<SystemClock> clock;
+	private long now = 1000;
+	private int reports;
+	private final DfuProgressInfo info = new DfuProgressInfo(() -> reports++);
+
+	@Before
+	public void setUp() {
+		clock = mockStatic(SystemClock.class);
+		clock.when(SystemClock::elapsedRealtime).thenAnswer(invocation -> now);
+	}
+
+	@After
+	public void tearDown() {
+		clock.close();
+	}
+
+	private void send(final long time, final int bytesSent) {
+		now = time;
+		info.setBytesSent(bytesSent);
+	}
+
+	@Test
+	public void noThresholds_reportedWhenPercentChanges() {
+		info.init(1000, 1, 1);
+		send(1000, 0);
+		assertEquals(1, reports);
+		assertEquals(-1, info.getEtaMillis());
+
+		send(1005, 5);
+		assertEquals(1, reports);
+
+		send(1010, 10);
+		assertEquals(2, reports);
+		assertTrue(info.isPercentChanged());
+		assertEquals(1.0f, info.getSpeed(), 0.001f);
+		assertEquals(1.0f, info.getSmoothedSpeed(), 0.001f);
+		assertEquals(990, info.getEtaMillis());
+	}
+
+	@Test
+	public void thresholds_reportedWhenBothExceeded() {
+		info.init(10_000, 1, 1);
+		info.setReportingThresholds(100, 50);
+		send(1000, 0);
+		assertEquals(0, reports);
+
+		// Not enough time has passed
+		send(1050, 100);
+		assertEquals(0, reports);
+
+		send(1100, 120);
+		assertEquals(1, reports);
+		assertTrue(info.isPercentChanged());
+		assertEquals(1.2f, info.getSpeed(), 0.001f);
+
+		// Not enough bytes were sent
+		send(1300, 150);
+		assertEquals(1, reports);
+
+		send(1300, 170);
+		assertEquals(2, reports);
+		assertFalse(info.isPercentChanged());
+		assertEquals(1, info.getProgress());
+		assertEquals(0.25f, info.getSpeed(), 0.001f);
+	}
+
+	@Test
+	public void thresholds_lastPacketAlwaysReported() {
+		info.init(1000, 1, 1);
+		info.setReportingThresholds(10_000, 10_000);
+		send(1000, 0);
+		send(1010, 1000);
+		assertEquals(1, reports);
+		assertEquals(100, info.getProgress());
+		assertEquals(0, info.getEtaMillis());
+
+		// But only once
+		send(1020, 1000);
+		assertEquals(1, reports);
+	}
+
+	@Test
+	public void smoothedSpeed_exponentialMovingAverage() {
+		info.init(1000, 1, 1);
+		send(1000, 0);
+		send(1010, 10);
+		send(3010, 30);
+
+		assertEquals(0.01f, info.getSpeed(), 0.0001f);
+		// The weight of the new sample depends on the time passed, here 1 - e^-1
+		final float smoothed = (float) (1.0 + (1.0 - Math.exp(-1.0)) * (0.01 - 1.0));
+		assertEquals(smoothed, info.getSmoothedSpeed(), 0.0001f);
+		assertEquals((long) (970 / smoothed), info.getEtaMillis(), 1);
+	}
+
+	@Test
+	public void setProgress_alwaysReported() {
+		info.init(1000, 1, 1);
+		info.setProgress(DfuBaseService.PROGRESS_VALIDATING);
+		info.setProgress(DfuBaseService.PROGRESS_VALIDATING);
+		assertEquals(2, reports);
+		assertTrue(info.isPercentChanged());
+	}
+}
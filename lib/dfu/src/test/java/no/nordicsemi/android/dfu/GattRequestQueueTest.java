@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.dfu;
+
+import android.bluetooth.BluetoothGatt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class GattRequestQueueTest {
+	private static final UUID UUID_A = UUID.fromString("00001111-0000-1000-8000-00805F9B34FB");
+	private static final UUID UUID_B = UUID.fromString("00002222-0000-1000-8000-00805F9B34FB");
+
+	private final List<String> log = new ArrayList<>();
+	private final GattRequestQueue queue = new GattRequestQueue(request -> log.add("completed " + request.getName()));
+
+	private GattRequest write(final String name, final UUID uuid, final boolean accepted) {
+		return new GattRequest(GattRequest.TYPE_WRITE_CHARACTERISTIC, uuid, name, () -> {
+			log.add("started " + name);
+			return accepted;
+		});
+	}
+
+	@Test
+	public void requests_areStartedOneByOne() {
+		final GattRequest first = queue.enqueue(write("first", UUID_A, true));
+		final GattRequest second = queue.enqueue(write("second", UUID_A, true));
+
+		assertTrue(first.isStarted());
+		assertFalse(second.isStarted());
+
+		assertTrue(queue.onCompleted(GattRequest.TYPE_WRITE_CHARACTERISTIC, UUID_A, BluetoothGatt.GATT_SUCCESS, null));
+		assertTrue(first.isSuccessful());
+		assertTrue(second.isStarted());
+		assertFalse(second.isCompleted());
+
+		assertTrue(queue.onCompleted(GattRequest.TYPE_WRITE_CHARACTERISTIC, UUID_A, BluetoothGatt.GATT_SUCCESS, null));
+		assertTrue(second.isSuccessful());
+		assertFalse(queue.isBusy());
+		assertEquals(List.of("started first", "completed first", "started second", "completed second"), log);
+	}
+
+	@Test
+	public void onCompleted_otherAttribute_ignored() {
+		final GattRequest request = queue.enqueue(write("write", UUID_A, true));
+
+		assertFalse(queue.onCompleted(GattRequest.TYPE_WRITE_CHARACTERISTIC, UUID_B, BluetoothGatt.GATT_SUCCESS, null));
+		assertFalse(queue.onCompleted(GattRequest.TYPE_READ_CHARACTERISTIC, UUID_A, BluetoothGatt.GATT_SUCCESS, null));
+		assertFalse(request.isCompleted());
+	}
+
+	@Test
+	public void onCompleted_statusAndValue() {
+		final GattRequest request = queue.enqueue(new GattRequest(GattRequest.TYPE_READ_CHARACTERISTIC, UUID_A, "read", () -> true));
+
+		queue.onCompleted(GattRequest.TYPE_READ_CHARACTERISTIC, UUID_A, 0x05, new byte[] { 1, 2 });
+
+		assertTrue(request.isCompleted());
+		assertFalse(request.isSuccessful());
+		assertEquals(0x05, request.getStatus());
+		assertArrayEquals(new byte[] { 1, 2 }, request.getValue());
+	}
+
+	@Test
+	public void rejectedRequest_failsAndNextIsStarted() {
+		final GattRequest rejected = queue.enqueue(write("rejected", UUID_A, false));
+		final GattRequest next = queue.enqueue(write("next", UUID_A, true));
+
+		assertTrue(rejected.isCompleted());
+		assertFalse(rejected.isStarted());
+		assertEquals(BluetoothGatt.GATT_FAILURE, rejected.getStatus());
+		assertTrue(next.isStarted());
+	}
+
+	@Test
+	public void cancel_currentRequest_startsNext() {
+		final GattRequest current = queue.enqueue(write("current", UUID_A, true));
+		final GattRequest next = queue.enqueue(write("next", UUID_A, true));
+
+		queue.cancel(current);
+
+		assertEquals(BluetoothGatt.GATT_FAILURE, current.getStatus());
+		assertTrue(next.isStarted());
+		// A late callback of the cancelled request completes the next one
+		assertTrue(queue.onCompleted(GattRequest.TYPE_WRITE_CHARACTERISTIC, UUID_A, BluetoothGatt.GATT_SUCCESS, null));
+		assertTrue(next.isCompleted());
+	}
+
+	@Test
+	public void cancelAll_completesAllRequests() {
+		final GattRequest current = queue.enqueue(write("current", UUID_A, true));
+		final GattRequest queued = queue.enqueue(write("queued", UUID_B, true));
+
+		queue.cancelAll();
+
+		assertTrue(current.isCompleted());
+		assertTrue(queued.isCompleted());
+		assertFalse(queued.isStarted());
+		assertFalse(queue.isBusy());
+	}
+
+	@Test
+	public void addCallback_afterCompletion_calledImmediately() {
+		final GattRequest request = queue.enqueue(write("write", UUID_A, true));
+		queue.onCompleted(GattRequest.TYPE_WRITE_CHARACTERISTIC, UUID_A, BluetoothGatt.GATT_SUCCESS, null);
+
+		final List<GattRequest> completed = new ArrayList<>();
+		request.addCallback(completed::add);
+
+		assertEquals(List.of(request), completed);
+	}
+
+	@Test
+	public void await_completedFromAnotherThread() throws Exception {
+		final ExecutorService callbackThread = Executors.newSingleThreadExecutor();
+		try {
+			final GattRequest request = queue.enqueue(new GattRequest(GattRequest.TYPE_MTU, null, "mtu", () -> {
+				callbackThread.execute(() -> queue.onCompleted(GattRequest.TYPE_MTU, null, BluetoothGatt.GATT_SUCCESS, null));
+				return true;
+			}));
+
+			assertTrue(request.await(5000));
+			assertTrue(request.isSuccessful());
+		} finally {
+			callbackThread.shutdown();
+			callbackThread.awaitTermination(1, TimeUnit.SECONDS);
+		}
+	}
+
+	@Test
+	public void await_timeout() throws Exception {
+		final GattRequest request = queue.enqueue(write("write", UUID_A, true));
+
+		assertFalse(request.await(10));
+		assertFalse(request.isCompleted());
+	}
+}
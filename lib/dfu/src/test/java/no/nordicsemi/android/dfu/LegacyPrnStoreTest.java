@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.dfu;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class LegacyPrnStoreTest {
+	private static final int DEFAULT_PRN = 10;
+
+	/** The preferences shared by all stores, as if they were saved on disk. */
+	private final Map<String, Object> values = new HashMap<>();
+	private Context context;
+
+	@Before
+	public void setUp() {
+		final SharedPreferences preferences = mock(SharedPreferences.class);
+		when(preferences.getInt(anyString(), anyInt())).thenAnswer(invocation ->
+				values.getOrDefault(invocation.<String>getArgument(0), invocation.getArgument(1)));
+		when(preferences.getBoolean(anyString(), anyBoolean())).thenAnswer(invocation ->
+				values.getOrDefault(invocation.<String>getArgument(0), invocation.getArgument(1)));
+		when(preferences.edit()).thenAnswer(invocation -> edit());
+
+		context = mock(Context.class);
+		when(context.getSharedPreferences(anyString(), anyInt())).thenReturn(preferences);
+	}
+
+	/**
+	 * Returns an editor which saves the changes when they are applied.
+	 */
+	private SharedPreferences.Editor edit() {
+		final Map<String, Object> changes = new HashMap<>();
+		final SharedPreferences.Editor editor = mock(SharedPreferences.Editor.class);
+		when(editor.putInt(anyString(), anyInt())).thenAnswer(invocation -> {
+			changes.put(invocation.getArgument(0), invocation.getArgument(1));
+			return editor;
+		});
+		when(editor.putBoolean(anyString(), anyBoolean())).thenAnswer(invocation -> {
+			changes.put(invocation.getArgument(0), invocation.getArgument(1));
+			return editor;
+		});
+		when(editor.remove(anyString())).thenAnswer(invocation -> {
+			changes.put(invocation.getArgument(0), null);
+			return editor;
+		});
+		doAnswer(invocation -> {
+			for (final Map.Entry<String, Object> change : changes.entrySet()) {
+				if (change.getValue() == null)
+					values.remove(change.getKey());
+				else
+					values.put(change.getKey(), change.getValue());
+			}
+			return null;
+		}).when(editor).apply();
+		return editor;
+	}
+
+	@Test
+	public void getPrn_unknownModel_higherThanDefault() {
+		assertEquals(15, new LegacyPrnStore(context, "model").getPrn(DEFAULT_PRN));
+	}
+
+	@Test
+	public void onSuccess_higherValueTriedNextTime() {
+		final LegacyPrnStore store = new LegacyPrnStore(context, "model");
+		store.onSuccess(15);
+		// The values survive the store, as if the process was restarted
+		assertEquals(22, new LegacyPrnStore(context, "model").getPrn(DEFAULT_PRN));
+	}
+
+	@Test
+	public void onOperationFailed_lastWorkingValueUsed() {
+		final LegacyPrnStore store = new LegacyPrnStore(context, "model");
+		store.onSuccess(15);
+		store.onOperationFailed(22, DEFAULT_PRN);
+		assertEquals(15, store.getPrn(DEFAULT_PRN));
+	}
+
+	@Test
+	public void onSuccess_afterFailure_convergesBetweenValues() {
+		final LegacyPrnStore store = new LegacyPrnStore(context, "model");
+		store.onSuccess(15);
+		store.onOperationFailed(22, DEFAULT_PRN);
+		store.onSuccess(store.getPrn(DEFAULT_PRN));
+
+		// The value in the middle is tried, until they are next to each other
+		assertEquals(18, store.getPrn(DEFAULT_PRN));
+		store.onSuccess(18);
+		assertEquals(20, store.getPrn(DEFAULT_PRN));
+		store.onSuccess(20);
+		assertEquals(21, store.getPrn(DEFAULT_PRN));
+		store.onSuccess(21);
+		assertEquals(21, store.getPrn(DEFAULT_PRN));
+	}
+
+	@Test
+	public void onOperationFailed_safeValueFailed_startsBelowDefault() {
+		final LegacyPrnStore store = new LegacyPrnStore(context, "model");
+		store.onSuccess(15);
+		store.onOperationFailed(15, DEFAULT_PRN);
+		assertEquals(7, store.getPrn(DEFAULT_PRN));
+	}
+
+	@Test
+	public void getPrn_notAboveMax() {
+		final LegacyPrnStore store = new LegacyPrnStore(context, "model");
+		store.onSuccess(90);
+		assertEquals(100, store.getPrn(DEFAULT_PRN));
+		store.onSuccess(100);
+		assertEquals(100, store.getPrn(DEFAULT_PRN));
+	}
+
+	@Test
+	public void models_independent() {
+		final LegacyPrnStore store = new LegacyPrnStore(context, "model");
+		store.onSuccess(15);
+		store.onOperationFailed(22, DEFAULT_PRN);
+		assertEquals(15, new LegacyPrnStore(context, "other").getPrn(DEFAULT_PRN));
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package no.nordicsemi.android.dfu;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PacketBufferPoolTest {
+	private final PacketBufferPool pool = new PacketBufferPool();
+
+	@Test
+	public void obtain_returnsBufferOfGivenSize() {
+		assertEquals(20, pool.obtain(20).length);
+		assertEquals(244, pool.obtain(244).length);
+	}
+
+	@Test
+	public void obtain_alternatesBetweenTwoBuffers() {
+		final byte[] first = pool.obtain(20);
+		final byte[] second = pool.obtain(20);
+		assertNotSame(first, second);
+		assertSame(first, pool.obtain(20));
+		assertSame(second, pool.obtain(20));
+		assertEquals(2, pool.getAllocationCount());
+	}
+
+	@Test
+	public void preallocate_noAllocationsWhenSending() {
+		pool.preallocate(244);
+		final int allocations = pool.getAllocationCount();
+		for (int i = 0; i < 1000; ++i)
+			pool.obtain(244);
+		assertEquals(allocations, pool.getAllocationCount());
+	}
+
+	@Test
+	public void copyOf_sameLength_returnsSameBuffer() {
+		final byte[] buffer = new byte[20];
+		assertSame(buffer, pool.copyOf(buffer, 20));
+		assertEquals(0, pool.getAllocationCount());
+	}
+
+	@Test
+	public void copyOf_shorterLength_copiesData() {
+		final byte[] buffer = { 1, 2, 3, 4, 5, 6 };
+		final byte[] copy = pool.copyOf(buffer, 4);
+		assertArrayEquals(new byte[] { 1, 2, 3, 4 }, copy);
+
+		// The last packet of the same size reuses the pooled buffer
+		final int allocations = pool.getAllocationCount();
+		pool.copyOf(buffer, 4);
+		assertArrayEquals(new byte[] { 1, 2, 3, 4 }, pool.copyOf(buffer, 4));
+		assertEquals(allocations, pool.getAllocationCount());
+	}
+
+	@Test
+	public void obtain_manySizes_evictsLeastRecentlyUsed() {
+		final byte[] kept = pool.obtain(100);
+		final byte[] evicted = pool.obtain(1);
+		for (int size = 2; size <= 7; ++size)
+			pool.obtain(size);
+		// Size 100 is used again, so size 1 is now the least recently used one
+		pool.obtain(100);
+		assertEquals(16, pool.getAllocationCount());
+
+		// The 9th size replaces size 1
+		pool.obtain(200);
+		assertEquals(18, pool.getAllocationCount());
+		assertSame(kept, pool.obtain(100));
+		assertNotSame(evicted, pool.obtain(1));
+		assertEquals(20, pool.getAllocationCount());
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.dfu;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static org.junit.Assert.*;
+
+public class ResumeJournalTest {
+	private static final String ADDRESS = "AA:BB:CC:DD:EE:FF";
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void read_noJournal_null() {
+		assertNull(new ResumeJournal(folder.getRoot(), ADDRESS, 0x12345678).read());
+	}
+
+	@Test
+	public void write_read_sameEntry() {
+		new ResumeJournal(folder.getRoot(), ADDRESS, 0x12345678)
+				.write(new ResumeJournal.Entry(10_000, 2, 8192, 0xCAFEBABE, 12));
+
+		// The journal is read by another instance, as if the process was restarted
+		final ResumeJournal.Entry entry = new ResumeJournal(folder.getRoot(), ADDRESS, 0x12345678).read();
+		assertNotNull(entry);
+		assertEquals(10_000, entry.imageSize);
+		assertEquals(2, entry.part);
+		assertEquals(8192, entry.offset);
+		assertEquals(0xCAFEBABE, entry.crc);
+		assertEquals(12, entry.prn);
+		assertTrue(entry.matches(10_000, 2));
+		assertFalse(entry.matches(10_000, 1));
+		assertFalse(entry.matches(9_999, 2));
+	}
+
+	@Test
+	public void read_otherFirmware_null() {
+		new ResumeJournal(folder.getRoot(), ADDRESS, 0x12345678)
+				.write(new ResumeJournal.Entry(10_000, 2, 8192, 0xCAFEBABE, 12));
+
+		assertNull(new ResumeJournal(folder.getRoot(), ADDRESS, 0x12345679).read());
+	}
+
+	@Test
+	public void read_otherDevice_null() {
+		new ResumeJournal(folder.getRoot(), ADDRESS, 0x12345678)
+				.write(new ResumeJournal.Entry(10_000, 2, 8192, 0xCAFEBABE, 12));
+
+		assertNull(new ResumeJournal(folder.getRoot(), "AA:BB:CC:DD:EE:00", 0x12345678).read());
+	}
+
+	@Test
+	public void write_otherFirmware_previousJournalRemoved() {
+		final ResumeJournal first = new ResumeJournal(folder.getRoot(), ADDRESS, 1);
+		first.write(new ResumeJournal.Entry(10_000, 2, 4096, 1, 12));
+		final ResumeJournal otherDevice = new ResumeJournal(folder.getRoot(), "AA:BB:CC:DD:EE:00", 1);
+		otherDevice.write(new ResumeJournal.Entry(10_000, 2, 4096, 1, 12));
+
+		new ResumeJournal(folder.getRoot(), ADDRESS, 2)
+				.write(new ResumeJournal.Entry(20_000, 2, 4096, 2, 12));
+
+		// The device keeps only the last firmware, so the journal of the first one is useless
+		assertNull(first.read());
+		assertNotNull(otherDevice.read());
+	}
+
+	@Test
+	public void write_replacesPreviousEntry() {
+		final ResumeJournal journal = new ResumeJournal(folder.getRoot(), ADDRESS, 1);
+		journal.write(new ResumeJournal.Entry(10_000, 2, 4096, 1, 12));
+		journal.write(new ResumeJournal.Entry(10_000, 2, 8192, 2, 12));
+
+		final ResumeJournal.Entry entry = journal.read();
+		assertNotNull(entry);
+		assertEquals(8192, entry.offset);
+		assertEquals(2, entry.crc);
+	}
+
+	@Test
+	public void delete_removesJournal() {
+		final ResumeJournal journal = new ResumeJournal(folder.getRoot(), ADDRESS, 1);
+		journal.write(new ResumeJournal.Entry(10_000, 2, 4096, 1, 12));
+		journal.delete();
+
+		assertNull(journal.read());
+	}
+
+	@Test
+	public void read_corruptedJournal_nullAndRemoved() throws Exception {
+		final ResumeJournal journal = new ResumeJournal(folder.getRoot(), ADDRESS, 1);
+		journal.write(new ResumeJournal.Entry(10_000, 2, 4096, 1, 12));
+		final File[] files = new File(folder.getRoot(), "dfu_journal").listFiles();
+		assertNotNull(files);
+		assertEquals(1, files.length);
+		try (FileOutputStream out = new FileOutputStream(files[0])) {
+			out.write(new byte[] { 0, 0, 0, 2, 0 });
+		}
+
+		assertNull(journal.read());
+		assertFalse(files[0].exists());
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.dfu;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ServiceChangedWaitCacheTest {
+	private static final long MAX_WAIT = 4000;
+
+	@Test
+	public void getWaitTime_unknownDevice_maxWait() {
+		assertEquals(MAX_WAIT, ServiceChangedWaitCache.getWaitTime("00:00:00:00:00:01", MAX_WAIT));
+	}
+
+	@Test
+	public void getWaitTime_afterIndication_learnedBound() {
+		final String address = "00:00:00:00:00:02";
+		ServiceChangedWaitCache.onIndicationReceived(address, 1000);
+		// 1.5 times the delay with a 500 ms margin
+		assertEquals(2000, ServiceChangedWaitCache.getWaitTime(address, MAX_WAIT));
+
+		// The longest delay is used
+		ServiceChangedWaitCache.onIndicationReceived(address, 600);
+		assertEquals(2000, ServiceChangedWaitCache.getWaitTime(address, MAX_WAIT));
+	}
+
+	@Test
+	public void getWaitTime_longDelay_notAboveMaxWait() {
+		final String address = "00:00:00:00:00:03";
+		ServiceChangedWaitCache.onIndicationReceived(address, 3900);
+		assertEquals(MAX_WAIT, ServiceChangedWaitCache.getWaitTime(address, MAX_WAIT));
+	}
+
+	@Test
+	public void getWaitTime_noIndicationFewTimes_maxWait() {
+		final String address = "00:00:00:00:00:04";
+		ServiceChangedWaitCache.onNoIndication(address);
+		ServiceChangedWaitCache.onNoIndication(address);
+		assertEquals(MAX_WAIT, ServiceChangedWaitCache.getWaitTime(address, MAX_WAIT));
+	}
+
+	@Test
+	public void getWaitTime_noIndicationInARow_shortened() {
+		final String address = "00:00:00:00:00:05";
+		ServiceChangedWaitCache.onNoIndication(address);
+		ServiceChangedWaitCache.onNoIndication(address);
+		ServiceChangedWaitCache.onNoIndication(address);
+		assertEquals(MAX_WAIT / 4, ServiceChangedWaitCache.getWaitTime(address, MAX_WAIT));
+
+		// An indication resets the counter
+		ServiceChangedWaitCache.onIndicationReceived(address, 1000);
+		assertEquals(2000, ServiceChangedWaitCache.getWaitTime(address, MAX_WAIT));
+	}
+
+	@Test
+	public void onLateIndication_afterLearnedBound_marginDoubled() {
+		final String address = "00:00:00:00:00:06";
+		ServiceChangedWaitCache.onIndicationReceived(address, 1000);
+		ServiceChangedWaitCache.onLateIndication(address, 1000);
+		// The delay didn't change, but the margin is now 1000 ms
+		assertEquals(2500, ServiceChangedWaitCache.getWaitTime(address, MAX_WAIT));
+	}
+
+	@Test
+	public void onLateIndication_afterShortenedWait_basedOnDelay() {
+		final String address = "00:00:00:00:00:07";
+		ServiceChangedWaitCache.onNoIndication(address);
+		ServiceChangedWaitCache.onNoIndication(address);
+		ServiceChangedWaitCache.onNoIndication(address);
+		ServiceChangedWaitCache.onLateIndication(address, 1200);
+		// The margin is not doubled, as the wait was not learned from the delay
+		assertEquals(1200 + 600 + 500, ServiceChangedWaitCache.getWaitTime(address, MAX_WAIT));
+	}
+}
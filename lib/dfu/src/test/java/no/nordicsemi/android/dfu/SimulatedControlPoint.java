@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.dfu;
+
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sends raw commands to the Control Point of a {@link SimulatedDfuTarget}, to test responses
+ * which the DFU implementations never trigger. Uploads are tested using the implementations
+ * themselves, see {@link SimulatedGatt}.
+ */
+class SimulatedControlPoint implements SimulatedLink.Callback {
+	private static final long TIMEOUT = 5; // s
+
+	private final SimulatedLink mLink;
+	private final UUID mControlPoint;
+	private final UUID mPacket;
+	private final BlockingQueue<Object> mEvents = new LinkedBlockingQueue<>();
+
+	SimulatedControlPoint(@NonNull final SimulatedLink link, @NonNull final UUID controlPoint, @NonNull final UUID packet)
+			throws InterruptedException {
+		mLink = link;
+		mControlPoint = controlPoint;
+		mPacket = packet;
+		link.start(this, null);
+		assertTrue(link.enableNotifications(controlPoint));
+		await(Write.class);
+	}
+
+	/**
+	 * Writes the command and returns the response.
+	 */
+	@NonNull
+	byte[] command(@NonNull final byte[] command) throws InterruptedException {
+		write(command);
+		return awaitNotification();
+	}
+
+	/**
+	 * Writes the command and waits until it has been written.
+	 */
+	void write(@NonNull final byte[] command) throws InterruptedException {
+		assertTrue(mLink.write(mControlPoint, command, true));
+		await(Write.class);
+	}
+
+	/**
+	 * Writes the data to the Packet characteristic without response.
+	 */
+	void writePacket(@NonNull final byte[] data) {
+		assertTrue(mLink.write(mPacket, data, false));
+	}
+
+	@NonNull
+	byte[] awaitNotification() throws InterruptedException {
+		return await(byte[].class);
+	}
+
+	@NonNull
+	private <T> T await(@NonNull final Class<T> type) throws InterruptedException {
+		while (true) {
+			final Object event = mEvents.poll(TIMEOUT, TimeUnit.SECONDS);
+			assertNotNull("No " + type.getSimpleName() + " received", event);
+			if (type.isInstance(event))
+				return type.cast(event);
+		}
+	}
+
+	@Override
+	public void onCharacteristicWrite(@NonNull final UUID characteristic, final int status) {
+		if (mControlPoint.equals(characteristic))
+			mEvents.add(new Write());
+	}
+
+	@Override
+	public void onDescriptorWrite(@NonNull final UUID characteristic, final int status) {
+		mEvents.add(new Write());
+	}
+
+	@Override
+	public void onCharacteristicChanged(@NonNull final UUID characteristic, @NonNull final byte[] value) {
+		mEvents.add(value);
+	}
+
+	@Override
+	public void onDisconnected(final int status) {
+		// The tests using raw commands do not disconnect
+	}
+
+	private static final class Write {
+	}
+}
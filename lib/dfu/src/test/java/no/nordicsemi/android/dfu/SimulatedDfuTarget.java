@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.dfu;
+
+import java.util.UUID;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A DFU target simulated on the JVM, connected to the test using a {@link SimulatedLink}.
+ * <p>
+ * The target keeps its state between connections, so a test may disconnect in the middle of
+ * the update and continue using a new link, like the real bootloader does.
+ */
+interface SimulatedDfuTarget {
+
+	/**
+	 * Methods used by the target to talk back to the phone.
+	 */
+	interface Connection {
+		/**
+		 * Sends a notification. It is delivered only if notifications have been enabled.
+		 */
+		void notify(@NonNull UUID characteristic, @NonNull byte[] value);
+
+		/**
+		 * Disconnects the link, e.g. when the target resets.
+		 */
+		void disconnect();
+	}
+
+	/**
+	 * Called when a new link has been established.
+	 */
+	void onConnected(@NonNull Connection connection);
+
+	/**
+	 * Called when a value was written to a characteristic, with or without response.
+	 */
+	void onWrite(@NonNull UUID characteristic, @NonNull byte[] value);
+
+	/**
+	 * Called when the link was lost.
+	 */
+	void onDisconnected();
+}
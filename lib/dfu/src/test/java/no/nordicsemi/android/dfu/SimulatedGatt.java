@@ -0,0 +1,370 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.dfu;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Intent;
+import android.os.SystemClock;
+
+import org.mockito.Answers;
+import org.mockito.MockedStatic;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import no.nordicsemi.android.dfu.internal.ArchiveInputStream;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.when;
+
+/**
+ * A fake {@link BluetoothGatt} connected to a {@link SimulatedDfuTarget} using a {@link SimulatedLink}.
+ * <p>
+ * The GATT calls made by a DFU implementation are forwarded to the link, and the link events
+ * are delivered to the implementation's {@link DfuCallback#getGattCallback() GATT callback},
+ * the same way {@link DfuBaseService} does it, so the tests exercise the production code.
+ * The service and the intent are mocks; the intent returns the extras set using
+ * {@link #putExtra(String, Object)}.
+ * <p>
+ * The build version is 0 in unit tests, so the MTU is not requested and 20-byte packets are
+ * sent using the pre-Tiramisu API.
+ */
+class SimulatedGatt {
+	static final String DEVICE_ADDRESS = "AA:BB:CC:DD:EE:FF";
+
+	private final SimulatedLink mLink;
+	private final Service mService;
+	private final Map<String, Object> mExtras = new HashMap<>();
+	private final BluetoothGatt mGatt;
+	private final DfuBaseService mDfuService;
+	private final Intent mIntent;
+
+	SimulatedGatt(@NonNull final SimulatedLink link, @NonNull final UUID serviceUuid,
+				  @NonNull final UUID... characteristicUuids) {
+		mLink = link;
+		mService = new Service(serviceUuid);
+		for (final UUID uuid : characteristicUuids)
+			mService.addCharacteristic(new Characteristic(uuid));
+
+		final BluetoothDevice device = mock(BluetoothDevice.class);
+		when(device.getAddress()).thenReturn(DEVICE_ADDRESS);
+		when(device.getBondState()).thenReturn(BluetoothDevice.BOND_NONE);
+
+		mGatt = mock(BluetoothGatt.class, invocation -> {
+			final Object[] args = invocation.getArguments();
+			switch (invocation.getMethod().getName()) {
+				case "getDevice":
+					return device;
+				case "getService":
+					return mService.getUuid().equals(args[0]) ? mService : null;
+				case "getServices":
+					return List.of(mService);
+				case "setCharacteristicNotification":
+					return true;
+				case "writeCharacteristic": {
+					final BluetoothGattCharacteristic characteristic = (BluetoothGattCharacteristic) args[0];
+					if (args.length == 1)
+						return mLink.write(characteristic.getUuid(), characteristic.getValue(),
+								characteristic.getWriteType() != BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+					return mLink.write(characteristic.getUuid(), (byte[]) args[1],
+							(int) args[2] != BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE) ? 0 : 201;
+				}
+				case "writeDescriptor": {
+					final BluetoothGattDescriptor descriptor = (BluetoothGattDescriptor) args[0];
+					final boolean started = mLink.enableNotifications(descriptor.getCharacteristic().getUuid());
+					return args.length == 1 ? started : started ? 0 : 201;
+				}
+				default:
+					return Answers.RETURNS_DEFAULTS.answer(invocation);
+			}
+		});
+
+		mIntent = mock(Intent.class, invocation -> {
+			final Object[] args = invocation.getArguments();
+			switch (invocation.getMethod().getName()) {
+				case "hasExtra":
+					return mExtras.containsKey((String) args[0]);
+				case "getIntExtra":
+				case "getLongExtra":
+				case "getBooleanExtra":
+					return mExtras.getOrDefault((String) args[0], args[1]);
+				case "getStringExtra":
+					return mExtras.get((String) args[0]);
+				default:
+					return Answers.RETURNS_DEFAULTS.answer(invocation);
+			}
+		});
+
+		mDfuService = mock(DfuBaseService.class);
+		mDfuService.mProgressInfo = new DfuProgressInfo(() -> {});
+		mDfuService.mMetrics = new DfuMetrics(DEVICE_ADDRESS);
+	}
+
+	/**
+	 * Sets an extra returned by the intent. Long extras must be given as {@link Long}.
+	 */
+	@NonNull
+	SimulatedGatt putExtra(@NonNull final String name, @NonNull final Object value) {
+		mExtras.put(name, value);
+		return this;
+	}
+
+	@NonNull
+	BluetoothGatt getGatt() {
+		return mGatt;
+	}
+
+	@NonNull
+	Intent getIntent() {
+		return mIntent;
+	}
+
+	/**
+	 * Returns the mocked service, to be passed to the implementation and verified.
+	 */
+	@NonNull
+	DfuBaseService getService() {
+		return mDfuService;
+	}
+
+	@NonNull
+	DfuMetrics getMetrics() {
+		return mDfuService.mMetrics;
+	}
+
+	/**
+	 * Makes {@link SystemClock#elapsedRealtime()} return the real time on the calling thread and
+	 * on the thread of the link, so that timeouts may elapse. By default it returns 0 in unit tests.
+	 * Call this method before {@link #connect(DfuCallback)} and close the returned mock when done.
+	 */
+	@NonNull
+	MockedStatic<SystemClock> useSystemClock() {
+		mLink.onEventThread(SimulatedGatt::mockSystemClock);
+		return mockSystemClock();
+	}
+
+	@NonNull
+	private static MockedStatic<SystemClock> mockSystemClock() {
+		final MockedStatic<SystemClock> clock = mockStatic(SystemClock.class);
+		clock.when(SystemClock::elapsedRealtime).thenAnswer(invocation -> System.nanoTime() / 1_000_000);
+		return clock;
+	}
+
+	/**
+	 * Starts delivering the link events to the GATT callback of the implementation.
+	 * The calling thread is the DFU thread, on which the implementation will wait.
+	 */
+	void connect(@NonNull final DfuCallback impl) {
+		final DfuCallback.DfuGattCallback callback = impl.getGattCallback();
+		mLink.start(new SimulatedLink.Callback() {
+			@Override
+			public void onCharacteristicWrite(@NonNull final UUID characteristic, final int status) {
+				callback.onCharacteristicWrite(mGatt, mService.getCharacteristic(characteristic), status);
+			}
+
+			@Override
+			public void onDescriptorWrite(@NonNull final UUID characteristic, final int status) {
+				final BluetoothGattDescriptor descriptor = mService.getCharacteristic(characteristic)
+						.getDescriptor(BaseDfuImpl.CLIENT_CHARACTERISTIC_CONFIG);
+				callback.onDescriptorWrite(mGatt, descriptor, status);
+			}
+
+			@Override
+			public void onCharacteristicChanged(@NonNull final UUID characteristic, @NonNull final byte[] value) {
+				// Each notification gets its own copy of the characteristic, as on Android 13+
+				final Characteristic snapshot = new Characteristic(characteristic);
+				snapshot.setValue(value);
+				callback.onCharacteristicChanged(mGatt, snapshot, value);
+			}
+
+			@Override
+			public void onDisconnected(final int status) {
+				callback.onDisconnected(DfuBaseService.ERROR_CONNECTION_STATE_MASK | status);
+			}
+		}, Thread.currentThread());
+	}
+
+	/**
+	 * Returns a distribution packet with the application and its init packet, as created by nrfutil
+	 * without the manifest.
+	 */
+	@NonNull
+	static ArchiveInputStream archive(@NonNull final byte[] firmware, @NonNull final byte[] initPacket) throws IOException {
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		try (ZipOutputStream zip = new ZipOutputStream(output)) {
+			zip.putNextEntry(new ZipEntry("application.bin"));
+			zip.write(firmware);
+			zip.closeEntry();
+			zip.putNextEntry(new ZipEntry("application.dat"));
+			zip.write(initPacket);
+			zip.closeEntry();
+		}
+		return new ArchiveInputStream(new ByteArrayInputStream(output.toByteArray()), 0, DfuBaseService.TYPE_AUTO);
+	}
+
+	@NonNull
+	static InputStream initPacket(@NonNull final ArchiveInputStream archive) {
+		return new ByteArrayInputStream(archive.getApplicationInit());
+	}
+
+	/**
+	 * The attributes below keep their state in fields, as the bodies of the Android methods
+	 * are not available in unit tests.
+	 */
+	private static final class Service extends BluetoothGattService {
+		private final UUID mUuid;
+		private final List<BluetoothGattCharacteristic> mCharacteristics = new ArrayList<>();
+
+		Service(@NonNull final UUID uuid) {
+			super(uuid, SERVICE_TYPE_PRIMARY);
+			mUuid = uuid;
+		}
+
+		@Override
+		public UUID getUuid() {
+			return mUuid;
+		}
+
+		@Override
+		public boolean addCharacteristic(final BluetoothGattCharacteristic characteristic) {
+			return mCharacteristics.add(characteristic);
+		}
+
+		@Override
+		public List<BluetoothGattCharacteristic> getCharacteristics() {
+			return mCharacteristics;
+		}
+
+		@Nullable
+		@Override
+		public BluetoothGattCharacteristic getCharacteristic(final UUID uuid) {
+			for (final BluetoothGattCharacteristic characteristic : mCharacteristics)
+				if (characteristic.getUuid().equals(uuid))
+					return characteristic;
+			return null;
+		}
+	}
+
+	private static final class Characteristic extends BluetoothGattCharacteristic {
+		private final UUID mUuid;
+		private final Descriptor mDescriptor;
+		private volatile byte[] mValue;
+		private volatile int mWriteType = WRITE_TYPE_DEFAULT;
+
+		Characteristic(@NonNull final UUID uuid) {
+			super(uuid, PROPERTY_WRITE | PROPERTY_WRITE_NO_RESPONSE | PROPERTY_NOTIFY, PERMISSION_WRITE);
+			mUuid = uuid;
+			mDescriptor = new Descriptor(this);
+		}
+
+		@Override
+		public UUID getUuid() {
+			return mUuid;
+		}
+
+		@Override
+		public byte[] getValue() {
+			return mValue;
+		}
+
+		@Override
+		public boolean setValue(final byte[] value) {
+			mValue = value;
+			return true;
+		}
+
+		@Override
+		public int getWriteType() {
+			return mWriteType;
+		}
+
+		@Override
+		public void setWriteType(final int writeType) {
+			mWriteType = writeType;
+		}
+
+		@Override
+		public BluetoothGattDescriptor getDescriptor(final UUID uuid) {
+			return mDescriptor.getUuid().equals(uuid) ? mDescriptor : null;
+		}
+
+		@Override
+		public Integer getIntValue(final int formatType, final int offset) {
+			final byte[] value = mValue;
+			final int size = formatType & 0xF;
+			if (value == null || offset + size > value.length)
+				return null;
+			int result = 0;
+			for (int i = size - 1; i >= 0; i--)
+				result = (result << 8) | (value[offset + i] & 0xFF);
+			return result;
+		}
+	}
+
+	private static final class Descriptor extends BluetoothGattDescriptor {
+		private final BluetoothGattCharacteristic mCharacteristic;
+		private volatile byte[] mValue;
+
+		Descriptor(@NonNull final BluetoothGattCharacteristic characteristic) {
+			super(BaseDfuImpl.CLIENT_CHARACTERISTIC_CONFIG, PERMISSION_WRITE);
+			mCharacteristic = characteristic;
+		}
+
+		@Override
+		public UUID getUuid() {
+			return BaseDfuImpl.CLIENT_CHARACTERISTIC_CONFIG;
+		}
+
+		@Override
+		public BluetoothGattCharacteristic getCharacteristic() {
+			return mCharacteristic;
+		}
+
+		@Override
+		public byte[] getValue() {
+			return mValue;
+		}
+
+		@Override
+		public boolean setValue(final byte[] value) {
+			mValue = value;
+			return true;
+		}
+	}
+}
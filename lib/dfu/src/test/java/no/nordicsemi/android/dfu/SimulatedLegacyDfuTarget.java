@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.dfu;
+
+import java.io.ByteArrayOutputStream;
+import java.util.UUID;
+
+import androidx.annotation.NonNull;
+import no.nordicsemi.android.error.LegacyDfuError;
+
+/**
+ * A simulated Legacy DFU bootloader (nRF5 SDK 7.0 - 11.0).
+ * <p>
+ * The target implements the Control Point state machine: Start DFU followed by the image sizes,
+ * Initialize DFU Parameters with the init packet, Packet Receipt Notification Request, Receive
+ * Firmware Image, Validate, Activate and Reset, and Reset. The last 2 bytes of the init packet
+ * must contain the CRC16 of the firmware, as in the distribution packets created by nrfutil,
+ * see {@link #initPacket(byte[])}. The firmware is verified when it is validated.
+ * <p>
+ * Unlike Secure DFU, the Legacy bootloader can't resume an update. A disconnection resets it.
+ */
+class SimulatedLegacyDfuTarget implements SimulatedDfuTarget {
+	static final UUID CONTROL_POINT_UUID = new UUID(0x000015311212EFDEL, 0x1523785FEABCD123L);
+	static final UUID PACKET_UUID        = new UUID(0x000015321212EFDEL, 0x1523785FEABCD123L);
+
+	static final int OP_CODE_START_DFU = 0x01;
+	static final int OP_CODE_INIT_DFU_PARAMS = 0x02;
+	static final int OP_CODE_RECEIVE_FIRMWARE_IMAGE = 0x03;
+	static final int OP_CODE_VALIDATE = 0x04;
+	static final int OP_CODE_ACTIVATE_AND_RESET = 0x05;
+	static final int OP_CODE_RESET = 0x06;
+	static final int OP_CODE_PACKET_RECEIPT_NOTIF_REQ = 0x08;
+	static final int OP_CODE_RESPONSE = 0x10;
+	static final int OP_CODE_PACKET_RECEIPT_NOTIF = 0x11;
+	static final int SUCCESS = 1;
+
+	private static final int STATE_IDLE = 0;
+	private static final int STATE_IMAGE_SIZE = 1;
+	private static final int STATE_READY = 2;
+	private static final int STATE_INIT_PACKET = 3;
+	private static final int STATE_INITIALIZED = 4;
+	private static final int STATE_RECEIVING = 5;
+	private static final int STATE_RECEIVED = 6;
+	private static final int STATE_VALIDATED = 7;
+
+	private final int mCapacity;
+	private final ByteArrayOutputStream mInitPacket = new ByteArrayOutputStream();
+	private final ByteArrayOutputStream mImage = new ByteArrayOutputStream();
+	private Connection mConnection;
+	private int mState = STATE_IDLE;
+	private int mImageSize;
+	private int mPrn;
+	private int mPacketsSinceNotification;
+	private boolean mActivated;
+	private int mMaxPrn;
+
+	SimulatedLegacyDfuTarget(final int capacity) {
+		mCapacity = capacity;
+	}
+
+	/**
+	 * Sets the highest PRN value the target can save to flash with. When the image was sent
+	 * with a higher value, or without PRNs, Operation Failed is reported after the last packet,
+	 * like the bootloaders from SDK 6.0.0 or older do. By default any value is accepted.
+	 */
+	void setMaxPrn(final int maxPrn) {
+		mMaxPrn = maxPrn;
+	}
+
+	/**
+	 * Returns the init packet accepted by this target for given firmware. The fields before
+	 * the CRC (device type, revision, application version and the list of SoftDevices) are
+	 * not checked.
+	 */
+	@NonNull
+	static byte[] initPacket(@NonNull final byte[] firmware) {
+		final int crc = crc16(firmware);
+		return new byte[] {
+				(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, // device type and revision
+				(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, // application version
+				0x01, 0x00, (byte) 0xFE, (byte) 0xFF,               // any SoftDevice
+				(byte) crc, (byte) (crc >> 8)
+		};
+	}
+
+	/**
+	 * Calculates the CRC16-CCITT the same way as the nRF5 SDK does.
+	 */
+	static int crc16(@NonNull final byte[] data) {
+		int crc = 0xFFFF;
+		for (final byte b : data) {
+			crc = ((crc >>> 8) & 0xFF) | ((crc << 8) & 0xFFFF);
+			crc ^= b & 0xFF;
+			crc ^= (crc & 0xFF) >> 4;
+			crc ^= (crc << 12) & 0xFFFF;
+			crc ^= ((crc & 0xFF) << 5) & 0xFFFF;
+		}
+		return crc;
+	}
+
+	/**
+	 * Returns true if the firmware has been validated and activated.
+	 */
+	boolean isActivated() {
+		return mActivated;
+	}
+
+	/**
+	 * Returns the firmware received so far.
+	 */
+	@NonNull
+	byte[] getFirmware() {
+		return mImage.toByteArray();
+	}
+
+	@Override
+	public void onConnected(@NonNull final Connection connection) {
+		mConnection = connection;
+	}
+
+	@Override
+	public void onDisconnected() {
+		mConnection = null;
+		reset();
+	}
+
+	@Override
+	public void onWrite(@NonNull final UUID characteristic, @NonNull final byte[] value) {
+		if (PACKET_UUID.equals(characteristic)) {
+			onPacket(value);
+		} else if (CONTROL_POINT_UUID.equals(characteristic)) {
+			onCommand(value);
+		}
+	}
+
+	private void onPacket(@NonNull final byte[] value) {
+		switch (mState) {
+			case STATE_IMAGE_SIZE: {
+				if (value.length != 12) {
+					reset();
+					respond(OP_CODE_START_DFU, LegacyDfuError.OPERATION_FAILED);
+					return;
+				}
+				final int size = getInt(value, 0) + getInt(value, 4) + getInt(value, 8);
+				if (size == 0 || size > mCapacity) {
+					reset();
+					respond(OP_CODE_START_DFU, LegacyDfuError.DATA_SIZE_EXCEEDS_LIMIT);
+					return;
+				}
+				mImageSize = size;
+				mState = STATE_READY;
+				respond(OP_CODE_START_DFU, SUCCESS);
+				break;
+			}
+			case STATE_INIT_PACKET:
+				mInitPacket.write(value, 0, value.length);
+				break;
+			case STATE_RECEIVING: {
+				final int length = Math.min(value.length, mImageSize - mImage.size());
+				mImage.write(value, 0, length);
+				if (mImage.size() == mImageSize) {
+					if (mMaxPrn > 0 && (mPrn == 0 || mPrn > mMaxPrn)) {
+						mState = STATE_IDLE;
+						respond(OP_CODE_RECEIVE_FIRMWARE_IMAGE, LegacyDfuError.OPERATION_FAILED);
+						return;
+					}
+					mState = STATE_RECEIVED;
+					respond(OP_CODE_RECEIVE_FIRMWARE_IMAGE, SUCCESS);
+					return;
+				}
+				if (mPrn > 0 && ++mPacketsSinceNotification >= mPrn) {
+					mPacketsSinceNotification = 0;
+					final byte[] notification = new byte[5];
+					notification[0] = OP_CODE_PACKET_RECEIPT_NOTIF;
+					putInt(notification, 1, mImage.size());
+					mConnection.notify(CONTROL_POINT_UUID, notification);
+				}
+				break;
+			}
+			default:
+				// The real bootloader reports an invalid state for each packet
+				respond(OP_CODE_RECEIVE_FIRMWARE_IMAGE, LegacyDfuError.INVALID_STATE);
+				break;
+		}
+	}
+
+	private void onCommand(@NonNull final byte[] value) {
+		final int opCode = value[0] & 0xFF;
+		switch (opCode) {
+			case OP_CODE_START_DFU:
+				if (mState != STATE_IDLE) {
+					respond(opCode, LegacyDfuError.INVALID_STATE);
+					return;
+				}
+				mState = STATE_IMAGE_SIZE;
+				break;
+			case OP_CODE_INIT_DFU_PARAMS:
+				if (value.length == 2 && value[1] == 0x00 && mState == STATE_READY) {
+					mInitPacket.reset();
+					mState = STATE_INIT_PACKET;
+				} else if (value.length == 2 && value[1] == 0x01 && mState == STATE_INIT_PACKET) {
+					if (mInitPacket.size() < 2) {
+						respond(opCode, LegacyDfuError.OPERATION_FAILED);
+						return;
+					}
+					mState = STATE_INITIALIZED;
+					respond(opCode, SUCCESS);
+				} else {
+					respond(opCode, LegacyDfuError.INVALID_STATE);
+				}
+				break;
+			case OP_CODE_PACKET_RECEIPT_NOTIF_REQ:
+				if (value.length != 3) {
+					respond(opCode, LegacyDfuError.NOT_SUPPORTED);
+					return;
+				}
+				mPrn = (value[1] & 0xFF) | ((value[2] & 0xFF) << 8);
+				mPacketsSinceNotification = 0;
+				break;
+			case OP_CODE_RECEIVE_FIRMWARE_IMAGE:
+				if (mState != STATE_INITIALIZED) {
+					respond(opCode, LegacyDfuError.INVALID_STATE);
+					return;
+				}
+				mImage.reset();
+				mPacketsSinceNotification = 0;
+				mState = STATE_RECEIVING;
+				break;
+			case OP_CODE_VALIDATE: {
+				if (mState != STATE_RECEIVED) {
+					respond(opCode, LegacyDfuError.INVALID_STATE);
+					return;
+				}
+				final byte[] init = mInitPacket.toByteArray();
+				final int expectedCrc = (init[init.length - 2] & 0xFF) | ((init[init.length - 1] & 0xFF) << 8);
+				if (crc16(mImage.toByteArray()) != expectedCrc) {
+					respond(opCode, LegacyDfuError.CRC_ERROR);
+					return;
+				}
+				mState = STATE_VALIDATED;
+				respond(opCode, SUCCESS);
+				break;
+			}
+			case OP_CODE_ACTIVATE_AND_RESET:
+				if (mState != STATE_VALIDATED) {
+					respond(opCode, LegacyDfuError.INVALID_STATE);
+					return;
+				}
+				mActivated = true;
+				mConnection.disconnect();
+				break;
+			case OP_CODE_RESET:
+				mConnection.disconnect();
+				break;
+			default:
+				respond(opCode, LegacyDfuError.NOT_SUPPORTED);
+				break;
+		}
+	}
+
+	private void reset() {
+		if (mState != STATE_VALIDATED)
+			mImage.reset();
+		mInitPacket.reset();
+		mState = STATE_IDLE;
+		mImageSize = 0;
+		mPrn = 0;
+		mPacketsSinceNotification = 0;
+	}
+
+	private void respond(final int opCode, final int status) {
+		mConnection.notify(CONTROL_POINT_UUID, new byte[] { OP_CODE_RESPONSE, (byte) opCode, (byte) status });
+	}
+
+	private static int getInt(@NonNull final byte[] value, final int offset) {
+		return (value[offset] & 0xFF) |
+			  ((value[offset + 1] & 0xFF) << 8) |
+			  ((value[offset + 2] & 0xFF) << 16) |
+			  ((value[offset + 3] & 0xFF) << 24);
+	}
+
+	private static void putInt(@NonNull final byte[] value, final int offset, final int v) {
+		value[offset] = (byte) v;
+		value[offset + 1] = (byte) (v >> 8);
+		value[offset + 2] = (byte) (v >> 16);
+		value[offset + 3] = (byte) (v >> 24);
+	}
+}
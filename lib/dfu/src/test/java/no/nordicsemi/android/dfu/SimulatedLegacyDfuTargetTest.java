@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.dfu;
+
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+
+import org.junit.Test;
+import org.mockito.MockedStatic;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import no.nordicsemi.android.dfu.internal.ArchiveInputStream;
+import no.nordicsemi.android.dfu.internal.exception.DeviceDisconnectedException;
+import no.nordicsemi.android.dfu.internal.exception.DfuException;
+import no.nordicsemi.android.error.LegacyDfuError;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SimulatedLegacyDfuTargetTest {
+	/** Packets are 20 bytes long, as the MTU is not requested in unit tests. */
+	private static final int PACKET_SIZE = 20;
+	private static final long STALL_TIMEOUT = 200; // ms
+
+	private static byte[] firmware(final int size) {
+		final byte[] firmware = new byte[size];
+		new Random(size).nextBytes(firmware);
+		return firmware;
+	}
+
+	private static SimulatedGatt connect(final SimulatedLink link, final int prn) {
+		return new SimulatedGatt(link, LegacyDfuImpl.DFU_SERVICE_UUID,
+				SimulatedLegacyDfuTarget.CONTROL_POINT_UUID, SimulatedLegacyDfuTarget.PACKET_UUID)
+				.putExtra(DfuBaseService.EXTRA_PACKET_RECEIPT_NOTIFICATIONS_ENABLED, prn > 0)
+				.putExtra(DfuBaseService.EXTRA_PACKET_RECEIPT_NOTIFICATIONS_VALUE, prn);
+	}
+
+	/**
+	 * Uploads the firmware using {@link LegacyDfuImpl}, the same way {@link DfuBaseService} does.
+	 */
+	private static void upload(final SimulatedGatt gatt, final byte[] init, final byte[] firmware) throws Exception {
+		final LegacyDfuImpl impl = new LegacyDfuImpl(gatt.getIntent(), gatt.getService());
+		gatt.connect(impl);
+		final ArchiveInputStream archive = SimulatedGatt.archive(firmware, init);
+		assertTrue(impl.isClientCompatible(gatt.getIntent(), gatt.getGatt()));
+		assertTrue(impl.initialize(gatt.getIntent(), gatt.getGatt(), DfuBaseService.TYPE_APPLICATION,
+				archive, SimulatedGatt.initPacket(archive)));
+		impl.performDfu(gatt.getIntent());
+	}
+
+	private static void awaitDisconnection(final SimulatedLink link) throws InterruptedException {
+		while (link.isConnected())
+			Thread.sleep(1);
+	}
+
+	@Test
+	public void crc16_checkValue() {
+		// CRC-16/CCITT-FALSE of "123456789"
+		assertEquals(0x29B1, SimulatedLegacyDfuTarget.crc16("123456789".getBytes(StandardCharsets.US_ASCII)));
+	}
+
+	@Test(timeout = 10_000)
+	public void upload_reliableLink() throws Exception {
+		final byte[] firmware = firmware(5_000);
+		final SimulatedLegacyDfuTarget target = new SimulatedLegacyDfuTarget(65536);
+		final SimulatedLink link = new SimulatedLink(target, 1);
+		final SimulatedGatt gatt = connect(link, 10);
+
+		upload(gatt, SimulatedLegacyDfuTarget.initPacket(firmware), firmware);
+
+		verify(gatt.getService(), never()).terminateConnection(any(), anyInt());
+		assertTrue(target.isActivated());
+		assertArrayEquals(firmware, target.getFirmware());
+		// The target resets after Activate and Reset
+		awaitDisconnection(link);
+	}
+
+	@Test(timeout = 10_000)
+	public void upload_corruptedPacket_crcError() throws Exception {
+		final byte[] firmware = firmware(5_000);
+		final SimulatedLegacyDfuTarget target = new SimulatedLegacyDfuTarget(65536);
+		final SimulatedLink link = new SimulatedLink(target, 2);
+		link.corruptPacket(100);
+		final SimulatedGatt gatt = connect(link, 10);
+
+		upload(gatt, SimulatedLegacyDfuTarget.initPacket(firmware), firmware);
+
+		verify(gatt.getService()).terminateConnection(gatt.getGatt(), DfuBaseService.ERROR_REMOTE_MASK
+				| DfuBaseService.ERROR_REMOTE_TYPE_LEGACY | LegacyDfuError.CRC_ERROR);
+		assertFalse(target.isActivated());
+		// The Reset command was sent after the error
+		awaitDisconnection(link);
+	}
+
+	@Test(timeout = 10_000)
+	public void upload_fastMode_prnTooHigh_restartsWithSafeValue() throws Exception {
+		final byte[] firmware = firmware(5_000);
+		final SimulatedLegacyDfuTarget target = new SimulatedLegacyDfuTarget(65536);
+		target.setMaxPrn(10);
+		final SimulatedLink link = new SimulatedLink(target, 1);
+		final SimulatedGatt gatt = connect(link, 10)
+				.putExtra(DfuBaseService.EXTRA_LEGACY_DFU_FAST_MODE, true);
+		final SharedPreferences preferences = preferences(new HashMap<>());
+		when(gatt.getService().getSharedPreferences(anyString(), anyInt())).thenReturn(preferences);
+
+		// An unknown model is tried with a value higher than 10
+		upload(gatt, SimulatedLegacyDfuTarget.initPacket(firmware), firmware);
+
+		// The error is not reported, the device is reset and the service restarted instead
+		verify(gatt.getService(), never()).terminateConnection(any(), anyInt());
+		verify(gatt.getService()).startService(any());
+		assertFalse(target.isActivated());
+		awaitDisconnection(link);
+		assertEquals(10, new LegacyPrnStore(gatt.getService(), "0_").getPrn(10));
+	}
+
+	/**
+	 * Returns preferences backed by the given map. Changes are saved immediately.
+	 */
+	private static SharedPreferences preferences(final Map<String, Object> values) {
+		final SharedPreferences preferences = mock(SharedPreferences.class);
+		when(preferences.getInt(anyString(), anyInt())).thenAnswer(invocation ->
+				values.getOrDefault(invocation.<String>getArgument(0), invocation.getArgument(1)));
+		when(preferences.getBoolean(anyString(), anyBoolean())).thenAnswer(invocation ->
+				values.getOrDefault(invocation.<String>getArgument(0), invocation.getArgument(1)));
+		final SharedPreferences.Editor editor = mock(SharedPreferences.Editor.class);
+		when(editor.putInt(anyString(), anyInt())).thenAnswer(invocation -> {
+			values.put(invocation.getArgument(0), invocation.getArgument(1));
+			return editor;
+		});
+		when(editor.putBoolean(anyString(), anyBoolean())).thenAnswer(invocation -> {
+			values.put(invocation.getArgument(0), invocation.getArgument(1));
+			return editor;
+		});
+		when(editor.remove(anyString())).thenAnswer(invocation -> {
+			values.remove(invocation.<String>getArgument(0));
+			return editor;
+		});
+		when(preferences.edit()).thenReturn(editor);
+		return preferences;
+	}
+
+	@Test(timeout = 10_000)
+	public void upload_lostPacket_stalls() throws Exception {
+		final byte[] firmware = firmware(5_000);
+		final SimulatedLegacyDfuTarget target = new SimulatedLegacyDfuTarget(65536);
+		final SimulatedLink link = new SimulatedLink(target, 3);
+		link.dropPacket(100);
+		final SimulatedGatt gatt = connect(link, 10)
+				.putExtra(DfuBaseService.EXTRA_PACKET_STALL_TIMEOUT, STALL_TIMEOUT);
+
+		// The target counts packets, so the next notification is never sent
+		try (MockedStatic<SystemClock> ignored = gatt.useSystemClock()) {
+			upload(gatt, SimulatedLegacyDfuTarget.initPacket(firmware), firmware);
+			fail("Stall expected");
+		} catch (final DfuException e) {
+			assertEquals(DfuBaseService.ERROR_OPERATION_TIMEOUT, e.getErrorNumber());
+		}
+		assertEquals(1, link.getPacketsLost());
+		assertFalse(target.isActivated());
+	}
+
+	@Test(timeout = 10_000)
+	public void upload_afterDisconnection_startsFromBeginning() throws Exception {
+		final byte[] firmware = firmware(5_000);
+		final byte[] init = SimulatedLegacyDfuTarget.initPacket(firmware);
+		final SimulatedLegacyDfuTarget target = new SimulatedLegacyDfuTarget(65536);
+		final SimulatedLink link = new SimulatedLink(target, 4);
+		link.disconnectAfterPackets(100);
+		try {
+			upload(connect(link, 10), init, firmware);
+			fail("Disconnection expected");
+		} catch (final DeviceDisconnectedException e) {
+			assertEquals(0, target.getFirmware().length);
+		}
+
+		final SimulatedLink newLink = new SimulatedLink(target, 5);
+		upload(connect(newLink, 10), init, firmware);
+
+		assertTrue(target.isActivated());
+		assertArrayEquals(firmware, target.getFirmware());
+		// Image sizes, init packet and the whole firmware
+		assertEquals(1 + 1 + 5_000 / PACKET_SIZE, newLink.getPacketCount());
+	}
+
+	@Test(timeout = 10_000)
+	public void receive_beforeStart_invalidState() throws Exception {
+		final SimulatedControlPoint controlPoint = connect();
+		final byte[] response = controlPoint.command(new byte[] { 0x03 });
+		assertArrayEquals(new byte[] { 0x10, 0x03, LegacyDfuError.INVALID_STATE }, response);
+	}
+
+	@Test(timeout = 10_000)
+	public void start_tooLarge_dataSizeExceedsLimit() throws Exception {
+		final SimulatedControlPoint controlPoint = connect();
+		controlPoint.write(new byte[] { 0x01, 0x04 });
+		controlPoint.writePacket(new byte[] { 0, 0, 0, 0, 0, 0, 0, 0, 0x00, 0x00, 0x02, 0x00 });
+		assertArrayEquals(new byte[] { 0x10, 0x01, LegacyDfuError.DATA_SIZE_EXCEEDS_LIMIT }, controlPoint.awaitNotification());
+	}
+
+	@Test(timeout = 10_000)
+	public void unknownOpCode_notSupported() throws Exception {
+		final SimulatedControlPoint controlPoint = connect();
+		final byte[] response = controlPoint.command(new byte[] { 0x0F });
+		assertArrayEquals(new byte[] { 0x10, 0x0F, LegacyDfuError.NOT_SUPPORTED }, response);
+	}
+
+	private static SimulatedControlPoint connect() throws Exception {
+		final SimulatedLegacyDfuTarget target = new SimulatedLegacyDfuTarget(65536);
+		return new SimulatedControlPoint(new SimulatedLink(target, 0),
+				SimulatedLegacyDfuTarget.CONTROL_POINT_UUID, SimulatedLegacyDfuTarget.PACKET_UUID);
+	}
+}
@@ -0,0 +1,401 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.dfu;
+
+import android.bluetooth.BluetoothGatt;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * A fake GATT link between the phone and a {@link SimulatedDfuTarget}.
+ * <p>
+ * The link runs on a virtual clock, in microseconds, so the measured time does not depend on
+ * the machine. Each write is delivered to the target after the configured latency. Packets
+ * written without response are sent one after another, each taking the configured packet time,
+ * and the write callback is called when the packet has been sent, like Android does. The link
+ * can drop or corrupt packets and disconnect after a number of packets, either at given indexes
+ * or randomly with a fixed seed.
+ * <p>
+ * Like {@link BluetoothGatt}, the link rejects a write with response, or a descriptor write,
+ * when another one is pending.
+ * <p>
+ * The events are processed on a separate thread, which also calls the {@link Callback}.
+ * Before the clock is moved on after a callback that may have woken up the client thread,
+ * e.g. a notification, the link waits until the client is waiting again, so that the client
+ * may react at the same virtual time, as it would on a real phone.
+ */
+class SimulatedLink {
+	/** The status of a disconnection initiated by the target, e.g. when it resets. */
+	static final int STATUS_TERMINATE_PEER_USER = 0x13;
+	/** The status of a disconnection after a link loss. */
+	static final int STATUS_CONNECTION_TIMEOUT = 0x08;
+
+	/**
+	 * The GATT callbacks of the link.
+	 */
+	interface Callback {
+		void onCharacteristicWrite(@NonNull UUID characteristic, int status);
+
+		void onDescriptorWrite(@NonNull UUID characteristic, int status);
+
+		void onCharacteristicChanged(@NonNull UUID characteristic, @NonNull byte[] value);
+
+		void onDisconnected(int status);
+	}
+
+	/**
+	 * A write with response, as seen by the target.
+	 */
+	static final class Write {
+		final UUID characteristic;
+		final byte[] value;
+		/** True if the write was started from a callback of the link, not by the client thread. */
+		final boolean fromCallback;
+
+		private Write(@NonNull final UUID characteristic, @NonNull final byte[] value, final boolean fromCallback) {
+			this.characteristic = characteristic;
+			this.value = value;
+			this.fromCallback = fromCallback;
+		}
+	}
+
+	private static final class Event implements Comparable<Event> {
+		private final long time;
+		private final long sequence;
+		private final Runnable action;
+
+		private Event(final long time, final long sequence, final Runnable action) {
+			this.time = time;
+			this.sequence = sequence;
+			this.action = action;
+		}
+
+		@Override
+		public int compareTo(final Event other) {
+			if (time != other.time)
+				return Long.compare(time, other.time);
+			return Long.compare(sequence, other.sequence);
+		}
+	}
+
+	private final PriorityQueue<Event> mEvents = new PriorityQueue<>();
+	/** Callbacks to be called by the event thread after an event, without holding the lock. */
+	private final List<Runnable> mCallbacks = new ArrayList<>();
+	private final List<Write> mWrites = new ArrayList<>();
+	private final Set<UUID> mNotificationsEnabled = new HashSet<>();
+	private final Set<Integer> mPacketsToDrop = new HashSet<>();
+	private final Set<Integer> mPacketsToCorrupt = new HashSet<>();
+	private final SimulatedDfuTarget mTarget;
+	private final Random mRandom;
+	private final Thread mEventThread;
+	private Thread mClient;
+	private Callback mCallback;
+	private Runnable mInitializer;
+	private long mTime;
+	private long mSequence;
+	private long mLatency = 7_500;
+	private long mPacketTime = 1_250;
+	private long mBusyUntil;
+	private double mLossRate;
+	private double mCorruptionRate;
+	private int mDropFrom = -1;
+	private int mDisconnectAfterPackets = -1;
+	private int mPacketCount;
+	private int mPacketsLost;
+	private int mPacketsCorrupted;
+	private boolean mRequestPending;
+	private boolean mClientWoken;
+	private boolean mConnected = true;
+
+	SimulatedLink(@NonNull final SimulatedDfuTarget target, final long seed) {
+		mTarget = target;
+		mRandom = new Random(seed);
+		target.onConnected(new SimulatedDfuTarget.Connection() {
+			@Override
+			public void notify(@NonNull final UUID characteristic, @NonNull final byte[] value) {
+				final byte[] copy = value.clone();
+				schedule(mLatency, () -> {
+					if (mNotificationsEnabled.contains(characteristic))
+						post(true, () -> mCallback.onCharacteristicChanged(characteristic, copy));
+				});
+			}
+
+			@Override
+			public void disconnect() {
+				schedule(mLatency, () -> terminate(STATUS_TERMINATE_PEER_USER));
+			}
+		});
+		mEventThread = new Thread(this::run, "SimulatedLink");
+		mEventThread.setDaemon(true);
+	}
+
+	/**
+	 * Sets an action to be run on the event thread before the first event, e.g. to mock
+	 * a static method, as static mocks are thread-local.
+	 */
+	void onEventThread(@NonNull final Runnable initializer) {
+		mInitializer = initializer;
+	}
+
+	/**
+	 * Sets the callback and starts processing events.
+	 *
+	 * @param callback the callback.
+	 * @param client   the thread that waits for the callbacks, or null.
+	 */
+	void start(@NonNull final Callback callback, @Nullable final Thread client) {
+		mCallback = callback;
+		mClient = client;
+		mEventThread.start();
+	}
+
+	/**
+	 * Sets the one-way latency of the link, in microseconds.
+	 */
+	synchronized void setLatency(final long latency) {
+		mLatency = latency;
+	}
+
+	/**
+	 * Sets the time needed to send a single packet without response, in microseconds.
+	 */
+	synchronized void setPacketTime(final long packetTime) {
+		mPacketTime = packetTime;
+	}
+
+	/**
+	 * Sets the probability of dropping a packet written without response.
+	 */
+	synchronized void setLossRate(final double lossRate) {
+		mLossRate = lossRate;
+	}
+
+	/**
+	 * Sets the probability of corrupting a packet written without response.
+	 */
+	synchronized void setCorruptionRate(final double corruptionRate) {
+		mCorruptionRate = corruptionRate;
+	}
+
+	/**
+	 * Drops the packet with given index. Packets are counted from 0 on this link.
+	 */
+	synchronized void dropPacket(final int index) {
+		mPacketsToDrop.add(index);
+	}
+
+	/**
+	 * Drops all packets starting from the one with given index, while writes with response
+	 * are still delivered.
+	 */
+	synchronized void dropPacketsFrom(final int index) {
+		mDropFrom = index;
+	}
+
+	/**
+	 * Corrupts the packet with given index. Packets are counted from 0 on this link.
+	 */
+	synchronized void corruptPacket(final int index) {
+		mPacketsToCorrupt.add(index);
+	}
+
+	/**
+	 * Disconnects the link instead of delivering the packet with given index.
+	 */
+	synchronized void disconnectAfterPackets(final int count) {
+		mDisconnectAfterPackets = count;
+	}
+
+	/**
+	 * Returns the virtual time in microseconds.
+	 */
+	synchronized long getTime() {
+		return mTime;
+	}
+
+	synchronized int getPacketCount() {
+		return mPacketCount;
+	}
+
+	synchronized int getPacketsLost() {
+		return mPacketsLost;
+	}
+
+	synchronized int getPacketsCorrupted() {
+		return mPacketsCorrupted;
+	}
+
+	/**
+	 * Returns the writes with response, in the order they were made.
+	 */
+	@NonNull
+	synchronized List<Write> getWrites() {
+		return new ArrayList<>(mWrites);
+	}
+
+	synchronized boolean isConnected() {
+		return mConnected;
+	}
+
+	/**
+	 * Writes the value to the characteristic of the target.
+	 *
+	 * @return false if the link is disconnected, or a write with response is pending.
+	 */
+	synchronized boolean write(@NonNull final UUID characteristic, @NonNull final byte[] value, final boolean withResponse) {
+		if (!mConnected)
+			return false;
+		final byte[] copy = value.clone();
+		if (withResponse) {
+			if (mRequestPending)
+				return false;
+			mRequestPending = true;
+			mWrites.add(new Write(characteristic, copy, Thread.currentThread() == mEventThread));
+			schedule(mLatency, () -> mTarget.onWrite(characteristic, copy));
+			schedule(2 * mLatency, () -> {
+				mRequestPending = false;
+				post(true, () -> mCallback.onCharacteristicWrite(characteristic, BluetoothGatt.GATT_SUCCESS));
+			});
+			return true;
+		}
+
+		final int index = mPacketCount++;
+		mBusyUntil = Math.max(mBusyUntil, mTime) + mPacketTime;
+		final long sent = mBusyUntil - mTime;
+		schedule(sent, () -> post(false, () -> mCallback.onCharacteristicWrite(characteristic, BluetoothGatt.GATT_SUCCESS)));
+		if (index == mDisconnectAfterPackets) {
+			schedule(sent, () -> terminate(STATUS_CONNECTION_TIMEOUT));
+			return true;
+		}
+		if (mPacketsToDrop.remove(index) || (mDropFrom >= 0 && index >= mDropFrom) || mRandom.nextDouble() < mLossRate) {
+			mPacketsLost++;
+			return true;
+		}
+		if ((mPacketsToCorrupt.remove(index) || mRandom.nextDouble() < mCorruptionRate) && copy.length > 0) {
+			copy[mRandom.nextInt(copy.length)] ^= (byte) (1 << mRandom.nextInt(8));
+			mPacketsCorrupted++;
+		}
+		schedule(sent + mLatency, () -> mTarget.onWrite(characteristic, copy));
+		return true;
+	}
+
+	/**
+	 * Enables notifications for the characteristic.
+	 *
+	 * @return false if the link is disconnected, or a write with response is pending.
+	 */
+	synchronized boolean enableNotifications(@NonNull final UUID characteristic) {
+		if (!mConnected || mRequestPending)
+			return false;
+		mRequestPending = true;
+		schedule(2 * mLatency, () -> {
+			mRequestPending = false;
+			mNotificationsEnabled.add(characteristic);
+			post(true, () -> mCallback.onDescriptorWrite(characteristic, BluetoothGatt.GATT_SUCCESS));
+		});
+		return true;
+	}
+
+	/**
+	 * Terminates the link. Pending events are discarded.
+	 */
+	private void terminate(final int status) {
+		if (!mConnected)
+			return;
+		mConnected = false;
+		mEvents.clear();
+		mTarget.onDisconnected();
+		post(true, () -> mCallback.onDisconnected(status));
+	}
+
+	/**
+	 * Processes the events in order of time, until the link is disconnected.
+	 */
+	private void run() {
+		if (mInitializer != null)
+			mInitializer.run();
+		try {
+			while (true) {
+				final List<Runnable> callbacks;
+				synchronized (this) {
+					while (mConnected && mEvents.isEmpty())
+						wait();
+					if (!mConnected && mCallbacks.isEmpty())
+						return;
+					if (!mEvents.isEmpty()) {
+						final Event event = mEvents.poll();
+						mTime = event.time;
+						event.action.run();
+					}
+					callbacks = new ArrayList<>(mCallbacks);
+					mCallbacks.clear();
+				}
+				for (final Runnable callback : callbacks)
+					callback.run();
+				if (mClientWoken) {
+					mClientWoken = false;
+					awaitClientIdle();
+				}
+			}
+		} catch (final InterruptedException e) {
+			// The test has finished
+		}
+	}
+
+	/**
+	 * Waits until the client thread is waiting for a callback, or has finished.
+	 */
+	private void awaitClientIdle() throws InterruptedException {
+		if (mClient == null)
+			return;
+		// A thread that was notified may still be reported as waiting for a moment
+		int idle = 0;
+		while (idle < 3) {
+			final Thread.State state = mClient.getState();
+			if (state == Thread.State.WAITING || state == Thread.State.TIMED_WAITING || state == Thread.State.TERMINATED)
+				idle++;
+			else
+				idle = 0;
+			Thread.sleep(1);
+		}
+	}
+
+	private void post(final boolean wakesClient, @NonNull final Runnable callback) {
+		mCallbacks.add(callback);
+		mClientWoken |= wakesClient;
+	}
+
+	private void schedule(final long delay, @NonNull final Runnable action) {
+		mEvents.add(new Event(mTime + delay, mSequence++, action));
+		notifyAll();
+	}
+}
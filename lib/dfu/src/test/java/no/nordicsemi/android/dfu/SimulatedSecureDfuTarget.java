@@ -0,0 +1,351 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.dfu;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+import androidx.annotation.NonNull;
+import no.nordicsemi.android.error.SecureDfuError;
+
+/**
+ * A simulated Secure DFU bootloader (nRF5 SDK 12 or newer).
+ * <p>
+ * The target implements the Control Point state machine: Select, Create, Set PRN,
+ * Calculate Checksum and Execute, for both the command and the data objects. Instead of
+ * a signed init packet, the command object must contain the size and the CRC32 of
+ * the firmware, both as little-endian UInt32, see {@link #initPacket(byte[])}. The firmware
+ * is verified when the last data object is executed, after which the target resets.
+ * <p>
+ * The data of the current object survive a disconnection, so the update may be resumed
+ * like with the real bootloader.
+ */
+class SimulatedSecureDfuTarget implements SimulatedDfuTarget {
+	static final UUID CONTROL_POINT_UUID = new UUID(0x8EC90001F3154F60L, 0x9FB8838830DAEA50L);
+	static final UUID PACKET_UUID        = new UUID(0x8EC90002F3154F60L, 0x9FB8838830DAEA50L);
+
+	static final int OBJECT_COMMAND = 0x01;
+	static final int OBJECT_DATA = 0x02;
+
+	static final int OP_CODE_CREATE = 0x01;
+	static final int OP_CODE_SET_PRN = 0x02;
+	static final int OP_CODE_CALCULATE_CHECKSUM = 0x03;
+	static final int OP_CODE_EXECUTE = 0x04;
+	static final int OP_CODE_SELECT = 0x06;
+	static final int OP_CODE_RESPONSE = 0x60;
+	static final int SUCCESS = 1;
+
+	private final int mMaxCommandSize;
+	private final int mMaxDataSize;
+	private final byte[] mCommand;
+	private final byte[] mImage;
+	private Connection mConnection;
+
+	private int mCurrentType;
+	private int mCommandSize;
+	private int mCommandOffset;
+	private boolean mCommandExecuted;
+	private int mExpectedSize;
+	private long mExpectedCrc;
+
+	private int mObjectStart;
+	private int mObjectSize;
+	private int mOffset;
+	private int mExecutedOffset;
+	private boolean mComplete;
+
+	private int mPrn;
+	private int mPacketsSinceNotification;
+	private int mObjectsCreated;
+
+	SimulatedSecureDfuTarget(final int capacity) {
+		this(256, 4096, capacity);
+	}
+
+	SimulatedSecureDfuTarget(final int maxCommandSize, final int maxDataSize, final int capacity) {
+		mMaxCommandSize = maxCommandSize;
+		mMaxDataSize = maxDataSize;
+		mCommand = new byte[maxCommandSize];
+		mImage = new byte[capacity];
+	}
+
+	/**
+	 * Returns the init packet accepted by this target for given firmware.
+	 */
+	@NonNull
+	static byte[] initPacket(@NonNull final byte[] firmware) {
+		final CRC32 crc32 = new CRC32();
+		crc32.update(firmware, 0, firmware.length);
+		final byte[] init = new byte[8];
+		putInt(init, 0, firmware.length);
+		putInt(init, 4, (int) crc32.getValue());
+		return init;
+	}
+
+	/**
+	 * Returns true if the whole firmware has been received, verified and executed.
+	 */
+	boolean isComplete() {
+		return mComplete;
+	}
+
+	/**
+	 * Returns the firmware executed so far.
+	 */
+	@NonNull
+	byte[] getFirmware() {
+		return Arrays.copyOf(mImage, mExecutedOffset);
+	}
+
+	/**
+	 * Returns the number of bytes of firmware received, including the current object.
+	 */
+	int getOffset() {
+		return mOffset;
+	}
+
+	/**
+	 * Returns the number of data objects created, including the ones created again.
+	 */
+	int getObjectsCreated() {
+		return mObjectsCreated;
+	}
+
+	@Override
+	public void onConnected(@NonNull final Connection connection) {
+		mConnection = connection;
+		mPrn = 0;
+		mPacketsSinceNotification = 0;
+	}
+
+	@Override
+	public void onDisconnected() {
+		mConnection = null;
+	}
+
+	@Override
+	public void onWrite(@NonNull final UUID characteristic, @NonNull final byte[] value) {
+		if (PACKET_UUID.equals(characteristic)) {
+			onPacket(value);
+		} else if (CONTROL_POINT_UUID.equals(characteristic)) {
+			onCommand(value);
+		}
+	}
+
+	private void onPacket(@NonNull final byte[] value) {
+		if (mCurrentType == OBJECT_COMMAND) {
+			final int length = Math.min(value.length, mCommandSize - mCommandOffset);
+			System.arraycopy(value, 0, mCommand, mCommandOffset, length);
+			mCommandOffset += length;
+		} else if (mCurrentType == OBJECT_DATA && mObjectSize > 0) {
+			final int length = Math.min(value.length, mObjectStart + mObjectSize - mOffset);
+			System.arraycopy(value, 0, mImage, mOffset, length);
+			mOffset += length;
+		} else {
+			return;
+		}
+		if (mPrn > 0 && ++mPacketsSinceNotification >= mPrn) {
+			mPacketsSinceNotification = 0;
+			respondWithChecksum(OP_CODE_CALCULATE_CHECKSUM);
+		}
+	}
+
+	private void onCommand(@NonNull final byte[] value) {
+		final int opCode = value[0] & 0xFF;
+		switch (opCode) {
+			case OP_CODE_SELECT: {
+				if (value.length != 2) {
+					respond(opCode, SecureDfuError.INVALID_PARAM);
+					return;
+				}
+				final int type = value[1];
+				if (type != OBJECT_COMMAND && type != OBJECT_DATA) {
+					respond(opCode, SecureDfuError.UNSUPPORTED_TYPE);
+					return;
+				}
+				mCurrentType = type;
+				final byte[] response = new byte[15];
+				response[0] = (byte) OP_CODE_RESPONSE;
+				response[1] = (byte) opCode;
+				response[2] = SUCCESS;
+				if (type == OBJECT_COMMAND) {
+					putInt(response, 3, mMaxCommandSize);
+					putInt(response, 7, mCommandOffset);
+					putInt(response, 11, crc(mCommand, mCommandOffset));
+				} else {
+					putInt(response, 3, mMaxDataSize);
+					putInt(response, 7, mOffset);
+					putInt(response, 11, crc(mImage, mOffset));
+				}
+				mConnection.notify(CONTROL_POINT_UUID, response);
+				break;
+			}
+			case OP_CODE_CREATE: {
+				if (value.length != 6) {
+					respond(opCode, SecureDfuError.INVALID_PARAM);
+					return;
+				}
+				final int type = value[1];
+				final int size = getInt(value, 2);
+				if (type == OBJECT_COMMAND) {
+					if (size > mMaxCommandSize) {
+						respond(opCode, SecureDfuError.INSUFFICIENT_RESOURCES);
+						return;
+					}
+					// A new init packet starts the update from the beginning
+					mCommandSize = size;
+					mCommandOffset = 0;
+					mCommandExecuted = false;
+					mObjectStart = mObjectSize = mOffset = mExecutedOffset = 0;
+					mComplete = false;
+				} else if (type == OBJECT_DATA) {
+					if (!mCommandExecuted) {
+						respond(opCode, SecureDfuError.OPERATION_NOT_PERMITTED);
+						return;
+					}
+					if (size > mMaxDataSize || mExecutedOffset + size > mImage.length) {
+						respond(opCode, SecureDfuError.INSUFFICIENT_RESOURCES);
+						return;
+					}
+					// Data of an object that has not been executed are discarded
+					mObjectStart = mOffset = mExecutedOffset;
+					mObjectSize = size;
+					mObjectsCreated++;
+				} else {
+					respond(opCode, SecureDfuError.UNSUPPORTED_TYPE);
+					return;
+				}
+				mCurrentType = type;
+				mPacketsSinceNotification = 0;
+				respond(opCode, SUCCESS);
+				break;
+			}
+			case OP_CODE_SET_PRN: {
+				if (value.length != 3) {
+					respond(opCode, SecureDfuError.INVALID_PARAM);
+					return;
+				}
+				mPrn = (value[1] & 0xFF) | ((value[2] & 0xFF) << 8);
+				mPacketsSinceNotification = 0;
+				respond(opCode, SUCCESS);
+				break;
+			}
+			case OP_CODE_CALCULATE_CHECKSUM:
+				respondWithChecksum(opCode);
+				break;
+			case OP_CODE_EXECUTE:
+				if (mCurrentType == OBJECT_COMMAND) {
+					executeCommand();
+				} else if (mCurrentType == OBJECT_DATA) {
+					executeData();
+				} else {
+					respond(opCode, SecureDfuError.OPERATION_NOT_PERMITTED);
+				}
+				break;
+			default:
+				respond(opCode, SecureDfuError.OP_CODE_NOT_SUPPORTED);
+				break;
+		}
+	}
+
+	private void executeCommand() {
+		if (mCommandSize == 0 || mCommandOffset != mCommandSize) {
+			respond(OP_CODE_EXECUTE, SecureDfuError.OPERATION_NOT_PERMITTED);
+			return;
+		}
+		if (mCommandSize != 8 || getInt(mCommand, 0) > mImage.length) {
+			respondWithExtendedError(SecureDfuError.EXT_ERROR_INIT_COMMAND_INVALID);
+			return;
+		}
+		mExpectedSize = getInt(mCommand, 0);
+		mExpectedCrc = getInt(mCommand, 4) & 0xFFFFFFFFL;
+		mCommandExecuted = true;
+		respond(OP_CODE_EXECUTE, SUCCESS);
+	}
+
+	private void executeData() {
+		if (mObjectSize == 0 || mOffset != mObjectStart + mObjectSize) {
+			respond(OP_CODE_EXECUTE, SecureDfuError.OPERATION_NOT_PERMITTED);
+			return;
+		}
+		mExecutedOffset = mOffset;
+		mObjectSize = 0;
+		if (mExecutedOffset < mExpectedSize) {
+			respond(OP_CODE_EXECUTE, SUCCESS);
+			return;
+		}
+		if (mExecutedOffset != mExpectedSize || (crc(mImage, mExecutedOffset) & 0xFFFFFFFFL) != mExpectedCrc) {
+			respondWithExtendedError(SecureDfuError.EXT_ERROR_VERIFICATION_FAILED);
+			return;
+		}
+		mComplete = true;
+		respond(OP_CODE_EXECUTE, SUCCESS);
+		// The bootloader activates the new firmware and resets
+		mConnection.disconnect();
+	}
+
+	private void respondWithChecksum(final int opCode) {
+		final byte[] response = new byte[11];
+		response[0] = (byte) OP_CODE_RESPONSE;
+		response[1] = (byte) opCode;
+		response[2] = SUCCESS;
+		if (mCurrentType == OBJECT_COMMAND) {
+			putInt(response, 3, mCommandOffset);
+			putInt(response, 7, crc(mCommand, mCommandOffset));
+		} else {
+			putInt(response, 3, mOffset);
+			putInt(response, 7, crc(mImage, mOffset));
+		}
+		mConnection.notify(CONTROL_POINT_UUID, response);
+	}
+
+	private void respondWithExtendedError(final int error) {
+		mConnection.notify(CONTROL_POINT_UUID,
+				new byte[] { (byte) OP_CODE_RESPONSE, OP_CODE_EXECUTE, SecureDfuError.EXTENDED_ERROR, (byte) error });
+	}
+
+	private void respond(final int opCode, final int status) {
+		mConnection.notify(CONTROL_POINT_UUID, new byte[] { (byte) OP_CODE_RESPONSE, (byte) opCode, (byte) status });
+	}
+
+	private static int crc(@NonNull final byte[] data, final int length) {
+		final CRC32 crc32 = new CRC32();
+		crc32.update(data, 0, length);
+		return (int) crc32.getValue();
+	}
+
+	private static int getInt(@NonNull final byte[] value, final int offset) {
+		return (value[offset] & 0xFF) |
+			  ((value[offset + 1] & 0xFF) << 8) |
+			  ((value[offset + 2] & 0xFF) << 16) |
+			  ((value[offset + 3] & 0xFF) << 24);
+	}
+
+	private static void putInt(@NonNull final byte[] value, final int offset, final int v) {
+		value[offset] = (byte) v;
+		value[offset + 1] = (byte) (v >> 8);
+		value[offset + 2] = (byte) (v >> 16);
+		value[offset + 3] = (byte) (v >> 24);
+	}
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.dfu;
+
+import android.os.SystemClock;
+
+import org.junit.Test;
+import org.mockito.MockedStatic;
+
+import java.util.Random;
+
+import no.nordicsemi.android.dfu.internal.ArchiveInputStream;
+import no.nordicsemi.android.dfu.internal.exception.DeviceDisconnectedException;
+import no.nordicsemi.android.dfu.internal.exception.DfuException;
+import no.nordicsemi.android.error.SecureDfuError;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class SimulatedSecureDfuTargetTest {
+	/** Packets are 20 bytes long, as the MTU is not requested in unit tests. */
+	private static final int PACKET_SIZE = 20;
+	private static final long STALL_TIMEOUT = 200; // ms
+
+	private static byte[] firmware(final int size) {
+		final byte[] firmware = new byte[size];
+		new Random(size).nextBytes(firmware);
+		return firmware;
+	}
+
+	private static SimulatedGatt connect(final SimulatedLink link, final int prn) {
+		return new SimulatedGatt(link, SecureDfuImpl.DFU_SERVICE_UUID,
+				SimulatedSecureDfuTarget.CONTROL_POINT_UUID, SimulatedSecureDfuTarget.PACKET_UUID)
+				.putExtra(DfuBaseService.EXTRA_PACKET_RECEIPT_NOTIFICATIONS_ENABLED, prn > 0)
+				.putExtra(DfuBaseService.EXTRA_PACKET_RECEIPT_NOTIFICATIONS_VALUE, prn);
+	}
+
+	/**
+	 * Uploads the firmware using {@link SecureDfuImpl}, the same way {@link DfuBaseService} does.
+	 */
+	private static void upload(final SimulatedGatt gatt, final byte[] init, final byte[] firmware) throws Exception {
+		final SecureDfuImpl impl = new SecureDfuImpl(gatt.getIntent(), gatt.getService());
+		gatt.connect(impl);
+		final ArchiveInputStream archive = SimulatedGatt.archive(firmware, init);
+		assertTrue(impl.isClientCompatible(gatt.getIntent(), gatt.getGatt()));
+		assertTrue(impl.initialize(gatt.getIntent(), gatt.getGatt(), DfuBaseService.TYPE_APPLICATION,
+				archive, SimulatedGatt.initPacket(archive)));
+		impl.performDfu(gatt.getIntent());
+	}
+
+	private static void awaitDisconnection(final SimulatedLink link) throws InterruptedException {
+		while (link.isConnected())
+			Thread.sleep(1);
+	}
+
+	@Test(timeout = 10_000)
+	public void upload_reliableLink() throws Exception {
+		final byte[] firmware = firmware(10_000);
+		final SimulatedSecureDfuTarget target = new SimulatedSecureDfuTarget(65536);
+		final SimulatedLink link = new SimulatedLink(target, 1);
+		final SimulatedGatt gatt = connect(link, 10);
+
+		upload(gatt, SimulatedSecureDfuTarget.initPacket(firmware), firmware);
+
+		verify(gatt.getService(), never()).terminateConnection(any(), anyInt());
+		assertTrue(target.isComplete());
+		assertArrayEquals(firmware, target.getFirmware());
+		assertEquals(3, target.getObjectsCreated());
+		// The init packet and the firmware, each packet sent once
+		assertEquals(1 + (4096 + PACKET_SIZE - 1) / PACKET_SIZE * 2 + (10_000 - 2 * 4096 + PACKET_SIZE - 1) / PACKET_SIZE,
+				link.getPacketCount());
+		// The target resets after the last object has been executed
+		awaitDisconnection(link);
+	}
+
+	@Test(timeout = 10_000)
+	public void upload_pipelinedCreateIsSentRightAfterExecute() throws Exception {
+		final byte[] firmware = firmware(10_000);
+		final SimulatedSecureDfuTarget target = new SimulatedSecureDfuTarget(65536);
+		final SimulatedLink link = new SimulatedLink(target, 1);
+		final SimulatedGatt gatt = connect(link, 10)
+				.putExtra(DfuBaseService.EXTRA_PIPELINE_DATA_OBJECTS, true);
+
+		upload(gatt, SimulatedSecureDfuTarget.initPacket(firmware), firmware);
+
+		verify(gatt.getService(), never()).terminateConnection(any(), anyInt());
+		assertTrue(target.isComplete());
+		assertArrayEquals(firmware, target.getFirmware());
+		assertEquals(3, target.getObjectsCreated());
+		// The second and the third object were created by the request queue from the callback
+		// of the Execute write, not by the DFU thread after the Execute request completed.
+		assertEquals(2, countCreateDataRequestsAfterExecute(link));
+	}
+
+	@Test(timeout = 10_000)
+	public void upload_notPipelined_createIsSentByDfuThread() throws Exception {
+		final byte[] firmware = firmware(10_000);
+		final SimulatedSecureDfuTarget target = new SimulatedSecureDfuTarget(65536);
+		final SimulatedLink link = new SimulatedLink(target, 1);
+		final SimulatedGatt gatt = connect(link, 10);
+
+		upload(gatt, SimulatedSecureDfuTarget.initPacket(firmware), firmware);
+
+		assertTrue(target.isComplete());
+		assertEquals(0, countCreateDataRequestsAfterExecute(link));
+	}
+
+	/**
+	 * Returns the number of Create Data object requests written from the callback thread right
+	 * after an Execute request.
+	 */
+	private static int countCreateDataRequestsAfterExecute(final SimulatedLink link) {
+		int count = 0;
+		SimulatedLink.Write previous = null;
+		for (final SimulatedLink.Write write : link.getWrites()) {
+			if (write.fromCallback && write.value.length == 6 && write.value[0] == 0x01 && write.value[1] == 0x02
+					&& previous != null && previous.value.length == 1 && previous.value[0] == 0x04)
+				count++;
+			previous = write;
+		}
+		return count;
+	}
+
+	@Test(timeout = 10_000)
+	public void upload_corruptedPacketIsSentAgain() throws Exception {
+		final byte[] firmware = firmware(10_000);
+		final SimulatedSecureDfuTarget target = new SimulatedSecureDfuTarget(65536);
+		final SimulatedLink link = new SimulatedLink(target, 2);
+		link.corruptPacket(5);
+		final SimulatedGatt gatt = connect(link, 10);
+
+		upload(gatt, SimulatedSecureDfuTarget.initPacket(firmware), firmware);
+
+		verify(gatt.getService(), never()).terminateConnection(any(), anyInt());
+		assertEquals(1, link.getPacketsCorrupted());
+		// The PRN had a wrong CRC, so the first object was created again
+		assertEquals(4, target.getObjectsCreated());
+		assertEquals(1, gatt.getMetrics().getRetries());
+		assertTrue(target.isComplete());
+		assertArrayEquals(firmware, target.getFirmware());
+	}
+
+	@Test(timeout = 10_000)
+	public void upload_lostPacketIsSentAgainAfterStall() throws Exception {
+		final byte[] firmware = firmware(10_000);
+		final SimulatedSecureDfuTarget target = new SimulatedSecureDfuTarget(65536);
+		final SimulatedLink link = new SimulatedLink(target, 3);
+		link.dropPacket(5);
+		final SimulatedGatt gatt = connect(link, 4)
+				.putExtra(DfuBaseService.EXTRA_PACKET_STALL_TIMEOUT, STALL_TIMEOUT);
+
+		try (MockedStatic<SystemClock> ignored = gatt.useSystemClock()) {
+			upload(gatt, SimulatedSecureDfuTarget.initPacket(firmware), firmware);
+		}
+
+		verify(gatt.getService(), never()).terminateConnection(any(), anyInt());
+		assertEquals(1, link.getPacketsLost());
+		// The target is waiting for the 4th packet, so the PRN never comes. After the stall
+		// the Calculate Checksum request tells which packets were received.
+		assertEquals(PACKET_SIZE, gatt.getMetrics().getBytesLost().getSum());
+		assertTrue(target.isComplete());
+		assertArrayEquals(firmware, target.getFirmware());
+	}
+
+	@Test(timeout = 10_000)
+	public void upload_stallsRepeatedly_fails() throws Exception {
+		final byte[] firmware = firmware(10_000);
+		final SimulatedSecureDfuTarget target = new SimulatedSecureDfuTarget(65536);
+		final SimulatedLink link = new SimulatedLink(target, 3);
+		// The target stops receiving packets in the middle of the first object
+		link.dropPacketsFrom(10);
+		final SimulatedGatt gatt = connect(link, 4)
+				.putExtra(DfuBaseService.EXTRA_PACKET_STALL_TIMEOUT, STALL_TIMEOUT);
+
+		try (MockedStatic<SystemClock> ignored = gatt.useSystemClock()) {
+			upload(gatt, SimulatedSecureDfuTarget.initPacket(firmware), firmware);
+			fail("Stall expected");
+		} catch (final DfuException e) {
+			assertEquals(DfuBaseService.ERROR_OPERATION_TIMEOUT, e.getErrorNumber());
+		}
+
+		assertFalse(target.isComplete());
+		// The checksum of the init packet, and after the first 2 stalls. The 3rd one fails.
+		int checksumRequests = 0;
+		for (final SimulatedLink.Write write : link.getWrites()) {
+			if (write.value.length == 1 && write.value[0] == 0x03)
+				checksumRequests++;
+		}
+		assertEquals(1 + 2, checksumRequests);
+	}
+
+	@Test(timeout = 30_000)
+	public void upload_randomLossAndCorruption() throws Exception {
+		final byte[] firmware = firmware(20_000);
+		final SimulatedSecureDfuTarget target = new SimulatedSecureDfuTarget(65536);
+		final SimulatedLink link = new SimulatedLink(target, 4);
+		link.setLossRate(0.002);
+		link.setCorruptionRate(0.002);
+		final SimulatedGatt gatt = connect(link, 8)
+				.putExtra(DfuBaseService.EXTRA_PACKET_STALL_TIMEOUT, STALL_TIMEOUT)
+				.putExtra(DfuBaseService.EXTRA_PACKET_RECEIPT_NOTIFICATIONS_ADAPTIVE, true);
+
+		try (MockedStatic<SystemClock> ignored = gatt.useSystemClock()) {
+			upload(gatt, SimulatedSecureDfuTarget.initPacket(firmware), firmware);
+		}
+
+		verify(gatt.getService(), never()).terminateConnection(any(), anyInt());
+		assertTrue(link.getPacketsLost() + link.getPacketsCorrupted() > 0);
+		assertTrue(target.getObjectsCreated() > 5 || gatt.getMetrics().getBytesLost().getSum() > 0);
+		assertTrue(target.isComplete());
+		assertArrayEquals(firmware, target.getFirmware());
+	}
+
+	@Test(timeout = 10_000)
+	public void upload_resumesAfterDisconnection() throws Exception {
+		final byte[] firmware = firmware(10_000);
+		final byte[] init = SimulatedSecureDfuTarget.initPacket(firmware);
+		final SimulatedSecureDfuTarget target = new SimulatedSecureDfuTarget(65536);
+
+		// The link is lost in the middle of the second object
+		final SimulatedLink link = new SimulatedLink(target, 5);
+		link.disconnectAfterPackets(300);
+		try {
+			upload(connect(link, 10), init, firmware);
+			fail("Disconnection expected");
+		} catch (final DeviceDisconnectedException e) {
+			assertFalse(target.isComplete());
+		}
+		// Packets in flight when the link was lost are also lost
+		final int offset = target.getOffset();
+		assertTrue(offset > 4096 && offset < 299 * PACKET_SIZE);
+
+		final SimulatedLink newLink = new SimulatedLink(target, 6);
+		final SimulatedGatt gatt = connect(newLink, 10);
+		upload(gatt, init, firmware);
+
+		verify(gatt.getService(), never()).terminateConnection(any(), anyInt());
+		assertTrue(target.isComplete());
+		assertArrayEquals(firmware, target.getFirmware());
+		// Neither the init packet, nor the first object were sent again, and the second object
+		// was continued from the last packet received, not created again.
+		assertEquals(3, target.getObjectsCreated());
+		assertEquals((10_000 - offset + PACKET_SIZE - 1) / PACKET_SIZE, newLink.getPacketCount());
+	}
+
+	@Test(timeout = 10_000)
+	public void upload_invalidFirmwareFailsVerification() throws Exception {
+		final byte[] firmware = firmware(5_000);
+		final byte[] init = SimulatedSecureDfuTarget.initPacket(firmware(5_000 + 1));
+		// Same size, different CRC
+		init[0] = (byte) 5_000;
+		init[1] = (byte) (5_000 >> 8);
+		final SimulatedSecureDfuTarget target = new SimulatedSecureDfuTarget(65536);
+		final SimulatedGatt gatt = connect(new SimulatedLink(target, 7), 10);
+
+		upload(gatt, init, firmware);
+
+		verify(gatt.getService()).terminateConnection(gatt.getGatt(), DfuBaseService.ERROR_REMOTE_MASK
+				| DfuBaseService.ERROR_REMOTE_TYPE_SECURE_EXTENDED | SecureDfuError.EXT_ERROR_VERIFICATION_FAILED);
+		assertFalse(target.isComplete());
+	}
+
+	@Test(timeout = 20_000)
+	public void upload_lowerPrnIsSlower() throws Exception {
+		final byte[] firmware = firmware(4_000);
+		final long[] time = new long[2];
+		final int[] prn = { 1, 0 };
+		for (int i = 0; i < prn.length; i++) {
+			final SimulatedSecureDfuTarget target = new SimulatedSecureDfuTarget(65536);
+			final SimulatedLink link = new SimulatedLink(target, 8);
+			upload(connect(link, prn[i]), SimulatedSecureDfuTarget.initPacket(firmware), firmware);
+			assertArrayEquals(firmware, target.getFirmware());
+			time[i] = link.getTime();
+		}
+		// With PRN = 1 each packet waits for a round trip
+		assertTrue(time[0] > 2 * time[1]);
+	}
+
+	@Test(timeout = 20_000)
+	public void upload_prnSizedFromLink_notSlower() throws Exception {
+		final byte[] firmware = firmware(16_000);
+		final long[] time = new long[2];
+		final boolean[] fromLink = { false, true };
+		for (int i = 0; i < fromLink.length; i++) {
+			final SimulatedSecureDfuTarget target = new SimulatedSecureDfuTarget(65536);
+			final SimulatedLink link = new SimulatedLink(target, 8);
+			upload(connect(link, DfuServiceInitiator.DEFAULT_PRN_VALUE)
+							.putExtra(DfuBaseService.EXTRA_PACKET_RECEIPT_NOTIFICATIONS_FROM_LINK, fromLink[i]),
+					SimulatedSecureDfuTarget.initPacket(firmware), firmware);
+			assertArrayEquals(firmware, target.getFirmware());
+			time[i] = link.getTime();
+		}
+		// 4096 bytes are sent between notifications instead of 12 packets of 20 bytes
+		assertTrue(time[1] <= time[0]);
+	}
+
+	@Test(timeout = 10_000)
+	public void createData_beforeInitPacket_notPermitted() throws Exception {
+		final SimulatedControlPoint controlPoint = connect();
+		final byte[] response = controlPoint.command(new byte[] { 0x01, 0x02, 0x00, 0x10, 0x00, 0x00 });
+		assertArrayEquals(new byte[] { 0x60, 0x01, SecureDfuError.OPERATION_NOT_PERMITTED }, response);
+	}
+
+	@Test(timeout = 10_000)
+	public void create_tooLarge_insufficientResources() throws Exception {
+		final SimulatedControlPoint controlPoint = connect();
+		final byte[] response = controlPoint.command(new byte[] { 0x01, 0x01, 0x00, 0x10, 0x00, 0x00 });
+		assertArrayEquals(new byte[] { 0x60, 0x01, SecureDfuError.INSUFFICIENT_RESOURCES }, response);
+	}
+
+	@Test(timeout = 10_000)
+	public void execute_incompleteObject_notPermitted() throws Exception {
+		final SimulatedControlPoint controlPoint = connect();
+		assertArrayEquals(new byte[] { 0x60, 0x01, 0x01 },
+				controlPoint.command(new byte[] { 0x01, 0x01, 0x08, 0x00, 0x00, 0x00 }));
+		controlPoint.writePacket(new byte[4]);
+		final byte[] response = controlPoint.command(new byte[] { 0x04 });
+		assertArrayEquals(new byte[] { 0x60, 0x04, SecureDfuError.OPERATION_NOT_PERMITTED }, response);
+	}
+
+	@Test(timeout = 10_000)
+	public void unknownOpCode_notSupported() throws Exception {
+		final SimulatedControlPoint controlPoint = connect();
+		final byte[] response = controlPoint.command(new byte[] { 0x0F });
+		assertArrayEquals(new byte[] { 0x60, 0x0F, SecureDfuError.OP_CODE_NOT_SUPPORTED }, response);
+	}
+
+	private static SimulatedControlPoint connect() throws Exception {
+		final SimulatedSecureDfuTarget target = new SimulatedSecureDfuTarget(65536);
+		return new SimulatedControlPoint(new SimulatedLink(target, 0),
+				SimulatedSecureDfuTarget.CONTROL_POINT_UUID, SimulatedSecureDfuTarget.PACKET_UUID);
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.dfu.internal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import no.nordicsemi.android.dfu.DfuBaseService;
+
+/**
+ * Measures {@link ArchiveInputStream#reset()} when the last data object of an image is sent
+ * again, e.g. after a CRC error.
+ * <p>
+ * {@link #reset()} restores the CRC saved on {@link ArchiveInputStream#mark(int) mark()}.
+ * {@link #resetByRehashing()} calculates the CRC of all bytes before the mark, the same way
+ * <code>reset()</code> did before, which takes time proportional to the image size.
+ * <p>
+ * Run the benchmarks using {@link DfuBenchmarks}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ArchiveInputStreamBenchmark {
+	private static final int OBJECT_SIZE = 4096;
+
+	/** The size of the image, in MB. */
+	@Param({ "1", "4", "10" })
+	public int sizeInMegabytes;
+
+	private byte[] firmware;
+	private ArchiveInputStream stream;
+	private int markedOffset;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		firmware = new byte[sizeInMegabytes * 1024 * 1024];
+		new Random(42).nextBytes(firmware);
+
+		final Map<String, byte[]> entries = new HashMap<>();
+		entries.put("application.bin", firmware);
+		entries.put("application.dat", new byte[] { 1, 2, 3, 4 });
+		stream = new ArchiveInputStream(entries, null, 0, DfuBaseService.TYPE_AUTO);
+
+		// Read everything but the last object and mark, as Secure DFU does before each object
+		markedOffset = firmware.length - OBJECT_SIZE;
+		final byte[] buffer = new byte[OBJECT_SIZE];
+		while (stream.getBytesRead() < markedOffset)
+			stream.read(buffer);
+		stream.mark(0);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		stream.close();
+	}
+
+	@Benchmark
+	public long reset() {
+		stream.reset();
+		return stream.getCrc32();
+	}
+
+	@Benchmark
+	public long resetByRehashing() {
+		final CRC32 crc32 = new CRC32();
+		crc32.update(firmware, 0, markedOffset);
+		return crc32.getValue();
+	}
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package no.nordicsemi.android.dfu.internal;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import no.nordicsemi.android.dfu.DfuBaseService;
+
+import static org.junit.Assert.*;
+
+public class ArchiveInputStreamTest {
+	private static final int SIZE = 10000;
+	private static final int OBJECT_SIZE = 4096;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final byte[] firmware = new byte[SIZE];
+	private final byte[] init = { 1, 2, 3, 4 };
+
+	public ArchiveInputStreamTest() {
+		new Random(42).nextBytes(firmware);
+	}
+
+	private ArchiveInputStream open() throws IOException {
+		final Map<String, byte[]> entries = new HashMap<>();
+		entries.put("application.bin", firmware);
+		entries.put("application.dat", init);
+		return new ArchiveInputStream(entries, null, 0, DfuBaseService.TYPE_AUTO);
+	}
+
+	private long crc(final int length) {
+		final CRC32 crc = new CRC32();
+		crc.update(firmware, 0, length);
+		return crc.getValue();
+	}
+
+	@Test
+	public void read_crcMatches() throws IOException {
+		try (ArchiveInputStream stream = open()) {
+			final byte[] buffer = new byte[244];
+			while (stream.read(buffer) > 0) {
+				assertEquals(crc(stream.getBytesRead()), stream.getCrc32());
+			}
+			assertEquals(SIZE, stream.getBytesRead());
+			assertEquals(crc(SIZE), stream.getCrc32());
+		}
+	}
+
+	@Test
+	public void mark_crcCombinedWithPrefix() throws IOException {
+		// Each mark moves the CRC to the prefix, so the CRC is combined from blocks of any length
+		try (ArchiveInputStream stream = open()) {
+			final Random random = new Random(7);
+			final byte[] buffer = new byte[512];
+			while (stream.getBytesRead() < SIZE) {
+				stream.read(buffer, 0, 1 + random.nextInt(buffer.length));
+				assertEquals(crc(stream.getBytesRead()), stream.getCrc32());
+				stream.mark(0);
+				assertEquals(crc(stream.getBytesRead()), stream.getCrc32());
+			}
+		}
+	}
+
+	@Test
+	public void reset_restoresPositionAndCrc() throws IOException {
+		try (ArchiveInputStream stream = open()) {
+			final byte[] buffer = new byte[1000];
+			stream.read(buffer);
+			stream.mark(0);
+			stream.read(buffer);
+			stream.read(buffer);
+
+			stream.reset();
+			assertEquals(1000, stream.getBytesRead());
+			assertEquals(crc(1000), stream.getCrc32());
+
+			stream.read(buffer);
+			assertEquals(crc(2000), stream.getCrc32());
+		}
+	}
+
+	@Test
+	public void fullReset_startsFromBeginning() throws IOException {
+		try (ArchiveInputStream stream = open()) {
+			stream.skip(5000);
+			assertEquals(crc(5000), stream.getCrc32());
+
+			stream.fullReset();
+			assertEquals(0, stream.getBytesRead());
+			assertEquals(0, stream.getCrc32());
+
+			final byte[] buffer = new byte[100];
+			stream.read(buffer);
+			assertEquals(crc(100), stream.getCrc32());
+		}
+	}
+
+	@Test
+	public void seek_backwardAndForward() throws IOException {
+		try (ArchiveInputStream stream = open()) {
+			stream.skip(6000);
+			stream.mark(0);
+			for (final int offset : new int[] { 3000, 8000, 6500, 100, SIZE, 0 }) {
+				assertEquals(offset, stream.seek(offset));
+				assertEquals(offset, stream.getBytesRead());
+				assertEquals(crc(offset), stream.getCrc32());
+			}
+			assertEquals(SIZE, stream.seek(SIZE + 100));
+			assertEquals(crc(SIZE), stream.getCrc32());
+		}
+	}
+
+	@Test
+	public void seekWithCrc_continuesFromGivenCrc() throws IOException {
+		try (ArchiveInputStream stream = open()) {
+			assertEquals(4000, stream.seek(4000, crc(4000)));
+			assertEquals(crc(4000), stream.getCrc32());
+
+			final byte[] buffer = new byte[1000];
+			stream.read(buffer);
+			assertEquals(crc(5000), stream.getCrc32());
+
+			stream.reset();
+			assertEquals(crc(4000), stream.getCrc32());
+		}
+	}
+
+	@Test
+	public void precomputeCrc_seekToObjectBoundaries() throws Exception {
+		try (ArchiveInputStream stream = open()) {
+			stream.skip(100);
+			stream.precomputeCrc(OBJECT_SIZE);
+			// The result must not depend on whether the calculation has completed
+			for (int i = 0; i < 50; ++i) {
+				for (int offset = OBJECT_SIZE; offset < SIZE; offset += OBJECT_SIZE) {
+					assertEquals(offset, stream.seek(offset));
+					assertEquals(crc(offset), stream.getCrc32());
+				}
+				assertEquals(SIZE, stream.seek(SIZE));
+				assertEquals(crc(SIZE), stream.getCrc32());
+				Thread.sleep(1);
+			}
+		}
+	}
+
+	@Test
+	public void clearMarkedCheckpoints_seekStillValid() throws IOException {
+		try (ArchiveInputStream stream = open()) {
+			stream.seek(OBJECT_SIZE);
+			stream.seek(2 * OBJECT_SIZE);
+			stream.clearMarkedCheckpoints();
+
+			assertEquals(OBJECT_SIZE + 10, stream.seek(OBJECT_SIZE + 10));
+			assertEquals(crc(OBJECT_SIZE + 10), stream.getCrc32());
+		}
+	}
+
+	@Test
+	public void fileChannel_readsZip() throws IOException {
+		final File file = folder.newFile("firmware.zip");
+		try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file))) {
+			zip.putNextEntry(new ZipEntry("application.bin"));
+			zip.write(firmware);
+			zip.closeEntry();
+			zip.putNextEntry(new ZipEntry("application.dat"));
+			zip.write(init);
+			zip.closeEntry();
+		}
+
+		try (FileInputStream input = new FileInputStream(file);
+			 ArchiveInputStream stream = new ArchiveInputStream(input.getChannel(), 0, DfuBaseService.TYPE_AUTO)) {
+			assertEquals(SIZE, stream.applicationImageSize());
+			assertArrayEquals(init, stream.getApplicationInit());
+
+			final byte[] content = new byte[SIZE];
+			assertEquals(SIZE, stream.read(content));
+			assertArrayEquals(firmware, content);
+			assertEquals(crc(SIZE), stream.getCrc32());
+		}
+	}
+}
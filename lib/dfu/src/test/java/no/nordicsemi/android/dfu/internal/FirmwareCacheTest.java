@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package no.nordicsemi.android.dfu.internal;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import no.nordicsemi.android.dfu.DfuBaseService;
+
+import static org.junit.Assert.*;
+
+public class FirmwareCacheTest {
+	private static final int SIZE = 1000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static FirmwareImage image(final int seed) {
+		final byte[] firmware = new byte[SIZE];
+		new Random(seed).nextBytes(firmware);
+		final Map<String, byte[]> entries = new HashMap<>();
+		entries.put("application.bin", firmware);
+		entries.put("application.dat", new byte[] { 1, 2, 3, 4 });
+		return new FirmwareImage(entries, null);
+	}
+
+	private static byte[] zip(final int seed) throws IOException {
+		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try (ZipOutputStream out = new ZipOutputStream(baos)) {
+			for (final Map.Entry<String, byte[]> entry : image(seed).getEntries().entrySet()) {
+				out.putNextEntry(new ZipEntry(entry.getKey()));
+				out.write(entry.getValue());
+				out.closeEntry();
+			}
+		}
+		return baos.toByteArray();
+	}
+
+	private static void assertSameEntries(final FirmwareImage expected, final FirmwareImage actual) {
+		assertNotNull(actual);
+		assertEquals(expected.getEntries().keySet(), actual.getEntries().keySet());
+		for (final String name : expected.getEntries().keySet())
+			assertArrayEquals(expected.getEntries().get(name), actual.getEntries().get(name));
+	}
+
+	@Test
+	public void write_renamesTemporaryFile() throws IOException {
+		final File directory = folder.newFolder();
+		final FirmwareCache cache = new FirmwareCache(directory, 1024 * 1024);
+		final FirmwareImage image = image(1);
+
+		cache.write("key", image);
+
+		final String[] files = directory.list();
+		assertNotNull(files);
+		assertArrayEquals(new String[] { "key.dfu" }, files);
+		assertSameEntries(image, cache.read("key"));
+	}
+
+	@Test
+	public void read_missingFile_miss() throws IOException {
+		final FirmwareCache cache = new FirmwareCache(folder.newFolder(), 1024 * 1024);
+		assertNull(cache.read("key"));
+	}
+
+	@Test
+	public void read_otherVersion_missAndDeleted() throws IOException {
+		final File directory = folder.newFolder();
+		final FirmwareCache cache = new FirmwareCache(directory, 1024 * 1024);
+		cache.write("key", image(1));
+
+		final File file = new File(directory, "key.dfu");
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.writeInt(1);
+		}
+
+		assertNull(cache.read("key"));
+		assertFalse(file.exists());
+	}
+
+	@Test
+	public void read_corruptedContent_missAndDeleted() throws IOException {
+		final File directory = folder.newFolder();
+		final FirmwareCache cache = new FirmwareCache(directory, 1024 * 1024);
+		cache.write("key", image(1));
+
+		final File file = new File(directory, "key.dfu");
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(file.length() / 2);
+			final int b = raf.read();
+			raf.seek(file.length() / 2);
+			raf.write(b ^ 0xFF);
+		}
+
+		assertNull(cache.read("key"));
+		assertFalse(file.exists());
+	}
+
+	@Test
+	public void read_truncatedFile_missAndDeleted() throws IOException {
+		final File directory = folder.newFolder();
+		final FirmwareCache cache = new FirmwareCache(directory, 1024 * 1024);
+		cache.write("key", image(1));
+
+		final File file = new File(directory, "key.dfu");
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(file.length() - 8);
+		}
+
+		assertNull(cache.read("key"));
+		assertFalse(file.exists());
+	}
+
+	@Test
+	public void write_overLimit_evictsLeastRecentlyUsed() throws IOException {
+		final File directory = folder.newFolder();
+		// Enough for 2 images
+		final FirmwareCache cache = new FirmwareCache(directory, 2 * SIZE + SIZE / 2);
+		cache.write("first", image(1));
+		cache.write("second", image(2));
+		final long now = System.currentTimeMillis();
+		assertTrue(new File(directory, "first.dfu").setLastModified(now - 20_000));
+		assertTrue(new File(directory, "second.dfu").setLastModified(now - 10_000));
+
+		// Reading marks the image as recently used
+		assertNotNull(cache.read("first"));
+		cache.write("third", image(3));
+
+		assertTrue(new File(directory, "first.dfu").exists());
+		assertFalse(new File(directory, "second.dfu").exists());
+		assertTrue(new File(directory, "third.dfu").exists());
+	}
+
+	@Test
+	public void write_imageLargerThanLimit_notSaved() throws IOException {
+		final File directory = folder.newFolder();
+		final FirmwareCache cache = new FirmwareCache(directory, SIZE / 2);
+		cache.write("key", image(1));
+
+		final String[] files = directory.list();
+		assertNotNull(files);
+		assertEquals(0, files.length);
+	}
+
+	@Test
+	public void open_stream_savesImageAndRemovesTemporaryFiles() throws IOException {
+		final File directory = folder.newFolder();
+		final FirmwareCache cache = new FirmwareCache(directory, 1024 * 1024);
+		final byte[] zip = zip(4);
+
+		try (ArchiveInputStream first = cache.open(new ByteArrayInputStream(zip), 0, DfuBaseService.TYPE_AUTO);
+			 ArchiveInputStream second = cache.open(new ByteArrayInputStream(zip), 0, DfuBaseService.TYPE_AUTO)) {
+			assertArrayEquals(image(4).getEntries().get("application.bin"), readAll(first));
+			assertArrayEquals(image(4).getEntries().get("application.bin"), readAll(second));
+		}
+
+		final String[] files = directory.list();
+		assertNotNull(files);
+		assertEquals(1, files.length);
+		assertTrue(files[0].endsWith(".dfu"));
+	}
+
+	@Test
+	public void open_diskCacheDisabled_sharesImageInMemory() throws IOException {
+		final FirmwareCache cache = new FirmwareCache();
+		final byte[] zip = zip(5);
+		final File file = folder.newFile();
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			out.write(zip);
+		}
+
+		try (ArchiveInputStream first = cache.open(new ByteArrayInputStream(zip), 0, DfuBaseService.TYPE_AUTO);
+			 ArchiveInputStream second = new FirmwareCache().open(new FileInputStream(file).getChannel(), 0, DfuBaseService.TYPE_AUTO)) {
+			assertSame(first.getUsedEntries().get("application.bin"), second.getUsedEntries().get("application.bin"));
+			assertArrayEquals(image(5).getEntries().get("application.bin"), readAll(first));
+			assertArrayEquals(image(5).getEntries().get("application.bin"), readAll(second));
+		}
+	}
+
+	@Test
+	public void open_streamLargerThanLimit_throwsBeforeReadingAll() {
+		// A stream that doesn't know its size, and never ends
+		final InputStream stream = new InputStream() {
+			@Override
+			public int read() {
+				return 0;
+			}
+
+			@Override
+			public int read(final byte[] b, final int off, final int len) {
+				return len;
+			}
+		};
+
+		assertThrows(IOException.class, () -> new FirmwareCache().open(stream, 0, DfuBaseService.TYPE_AUTO));
+	}
+
+	private static byte[] readAll(final ArchiveInputStream stream) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] buffer = new byte[256];
+		int count;
+		while ((count = stream.read(buffer)) > 0)
+			out.write(buffer, 0, count);
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package no.nordicsemi.android.dfu.internal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the conversion of an Intel HEX file into a BIN image.
+ * <p>
+ * {@link #decode()} uses {@link HexDecoder}, which parses the file once. {@link #decodeWithStream()}
+ * uses the {@link LegacyHexInputStream}, the way {@link ArchiveInputStream} did before: the
+ * stream parses the whole file to calculate {@link LegacyHexInputStream#available() available()}
+ * and then again to read the data.
+ * <p>
+ * Run the benchmarks using {@link DfuBenchmarks}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HexDecoderBenchmark {
+	private static final int BYTES_PER_RECORD = 16;
+
+	/** The size of the decoded image, in kB. */
+	@Param({ "256", "1024" })
+	public int sizeInKilobytes;
+
+	private byte[] hex;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		final byte[] firmware = new byte[sizeInKilobytes * 1024];
+		new Random(42).nextBytes(firmware);
+
+		// Data records of 16 bytes with an Extended Linear Address record every 64 kB,
+		// the layout used by nrfutil and the nRF5 SDK.
+		final StringBuilder builder = new StringBuilder(firmware.length * 3);
+		for (int offset = 0; offset < firmware.length; offset += BYTES_PER_RECORD) {
+			if ((offset & 0xFFFF) == 0)
+				appendRecord(builder, 0x04, 0, new byte[] { (byte) (offset >> 24), (byte) (offset >> 16) }, 0, 2);
+			appendRecord(builder, 0x00, offset & 0xFFFF, firmware, offset, BYTES_PER_RECORD);
+		}
+		appendRecord(builder, 0x01, 0, firmware, 0, 0);
+		hex = builder.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+
+	@Benchmark
+	public byte[] decode() throws IOException {
+		return HexDecoder.decode(hex, 0);
+	}
+
+	@Benchmark
+	public byte[] decodeWithStream() throws IOException {
+		final LegacyHexInputStream is = new LegacyHexInputStream(hex, 0);
+		final byte[] bin = new byte[is.available()];
+		is.read(bin);
+		is.close();
+		return bin;
+	}
+
+	private static void appendRecord(final StringBuilder builder, final int type, final int address,
+									 final byte[] data, final int offset, final int length) {
+		int checksum = length + (address >> 8) + address + type;
+		builder.append(String.format(":%02X%04X%02X", length, address, type));
+		for (int i = offset; i < offset + length; ++i) {
+			builder.append(String.format("%02X", data[i]));
+			checksum += data[i];
+		}
+		builder.append(String.format("%02X\r\n", (-checksum) & 0xFF));
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package no.nordicsemi.android.dfu.internal;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import no.nordicsemi.android.dfu.internal.exception.HexFileValidationException;
+
+import static org.junit.Assert.*;
+
+public class HexDecoderTest {
+	private static final String EOF = ":00000001FF\n";
+
+	/**
+	 * Returns the record with a valid checksum.
+	 */
+	private static String record(final int type, final int offset, final int... data) {
+		final StringBuilder builder = new StringBuilder(":");
+		int checksum = data.length + (offset >> 8) + (offset & 0xFF) + type;
+		builder.append(String.format("%02X%04X%02X", data.length, offset, type));
+		for (final int value : data) {
+			builder.append(String.format("%02X", value));
+			checksum += value;
+		}
+		builder.append(String.format("%02X", -checksum & 0xFF));
+		return builder.append('\n').toString();
+	}
+
+	private static String linearAddress(final int address) {
+		return record(0x04, 0, address >> 8, address & 0xFF);
+	}
+
+	private static String segmentAddress(final int segment) {
+		return record(0x02, 0, segment >> 8, segment & 0xFF);
+	}
+
+	private static byte[] decode(final String hex, final int mbrSize) throws HexFileValidationException {
+		return HexDecoder.decode(hex.getBytes(StandardCharsets.US_ASCII), mbrSize);
+	}
+
+	private static void assertInvalid(final String hex, final String message) {
+		try {
+			decode(hex, 0);
+			fail("Invalid HEX file decoded");
+		} catch (final HexFileValidationException e) {
+			assertEquals(message, e.getMessage());
+		}
+	}
+
+	@Test
+	public void decode_dataRecord() throws HexFileValidationException {
+		assertArrayEquals(new byte[] { 1, 2, 3, 4 }, decode(":0400000001020304F2\n" + EOF, 0));
+	}
+
+	@Test
+	public void decode_lowercase() throws HexFileValidationException {
+		final String hex = record(0x00, 0, 0xAB, 0xCD, 0xEF) + EOF;
+		assertArrayEquals(new byte[] { (byte) 0xAB, (byte) 0xCD, (byte) 0xEF }, decode(hex.toLowerCase(), 0));
+	}
+
+	@Test
+	public void decode_crlf() throws HexFileValidationException {
+		final String hex = (record(0x00, 0, 1, 2) + record(0x00, 2, 3, 4) + EOF).replace("\n", "\r\n");
+		assertArrayEquals(new byte[] { 1, 2, 3, 4 }, decode(hex, 0));
+	}
+
+	@Test
+	public void decode_otherRecordsIgnored() throws HexFileValidationException {
+		final String hex = record(0x00, 0, 1, 2) + record(0x05, 0, 0, 0, 0x10, 0) + record(0x00, 2, 3, 4) + EOF;
+		assertArrayEquals(new byte[] { 1, 2, 3, 4 }, decode(hex, 0));
+	}
+
+	@Test
+	public void decode_invalidChecksum_throws() {
+		assertInvalid(record(0x00, 0, 1, 2) + ":0400000001020304F3\n" + EOF, "Invalid checksum in line 2");
+	}
+
+	@Test
+	public void decode_invalidCharacter_throws() {
+		assertInvalid(":04000000010G0304F2\n" + EOF, "Invalid character in line 1");
+	}
+
+	@Test
+	public void decode_notHexFile_throws() {
+		assertInvalid("This is not a HEX file", "Not a HEX file");
+	}
+
+	@Test
+	public void decode_missingEndOfFile_throws() {
+		assertInvalid(record(0x00, 0, 1, 2), "Not a HEX file");
+	}
+
+	@Test
+	public void decode_truncatedRecord_throws() {
+		assertInvalid(":04000000010203", "Unexpected end of HEX file in line 1");
+	}
+
+	@Test
+	public void decode_dataBelowMbrSkipped() throws HexFileValidationException {
+		final String hex = record(0x00, 0x0000, 1, 2) + record(0x00, 0x0FFE, 3, 4)
+				+ record(0x00, 0x1000, 5, 6) + EOF;
+		assertArrayEquals(new byte[] { 5, 6 }, decode(hex, 0x1000));
+		assertArrayEquals(new byte[] { 1, 2, 3, 4, 5, 6 }, decode(hex, 0));
+	}
+
+	@Test
+	public void decode_dataBelowMbrSkipped_withLinearAddress() throws HexFileValidationException {
+		final String hex = record(0x00, 0x0000, 1, 2) + linearAddress(0x0001) + record(0x00, 0x0000, 3, 4) + EOF;
+		assertArrayEquals(new byte[] { 3, 4 }, decode(hex, 0x1000));
+	}
+
+	@Test
+	public void decode_linearAddress_continuousSegment() throws HexFileValidationException {
+		final String hex = linearAddress(0x0000) + record(0x00, 0xFFFE, 1, 2)
+				+ linearAddress(0x0001) + record(0x00, 0x0000, 3, 4) + EOF;
+		assertArrayEquals(new byte[] { 1, 2, 3, 4 }, decode(hex, 0));
+	}
+
+	@Test
+	public void decode_linearAddress_jumpEndsDecoding() throws HexFileValidationException {
+		// e.g. UICR data placed far after the application
+		final String hex = linearAddress(0x0000) + record(0x00, 0xFFFE, 1, 2)
+				+ linearAddress(0x1000) + record(0x00, 0x1014, 3, 4) + EOF;
+		assertArrayEquals(new byte[] { 1, 2 }, decode(hex, 0));
+	}
+
+	@Test
+	public void decode_linearAddress_beforeData_notJump() throws HexFileValidationException {
+		final String hex = linearAddress(0x0002) + record(0x00, 0x0000, 1, 2) + EOF;
+		assertArrayEquals(new byte[] { 1, 2 }, decode(hex, 0));
+	}
+
+	@Test
+	public void decode_segmentAddress_continuousSegment() throws HexFileValidationException {
+		final String hex = segmentAddress(0x0000) + record(0x00, 0xFFFE, 1, 2)
+				+ segmentAddress(0x1000) + record(0x00, 0x0000, 3, 4) + EOF;
+		assertArrayEquals(new byte[] { 1, 2, 3, 4 }, decode(hex, 0));
+	}
+
+	@Test
+	public void decode_segmentAddress_jumpEndsDecoding() throws HexFileValidationException {
+		final String hex = segmentAddress(0x0000) + record(0x00, 0xFFFE, 1, 2)
+				+ segmentAddress(0x3000) + record(0x00, 0x0000, 3, 4) + EOF;
+		assertArrayEquals(new byte[] { 1, 2 }, decode(hex, 0));
+	}
+}
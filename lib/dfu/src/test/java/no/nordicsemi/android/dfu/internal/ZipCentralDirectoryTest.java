@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2018, Nordic Semiconductor
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * 3. Neither the name of the copyright holder nor the names of its contributors may be used to endorse or promote products derived from this
+ * software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ * ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE
+ * USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package no.nordicsemi.android.dfu.internal;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+public class ZipCentralDirectoryTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final byte[] stored = new byte[3000];
+	private final byte[] deflated = new byte[20000];
+
+	public ZipCentralDirectoryTest() {
+		new Random(1).nextBytes(stored);
+		// Compressible content
+		for (int i = 0; i < deflated.length; ++i)
+			deflated[i] = (byte) (i % 37);
+	}
+
+	private File createZip(final String comment) throws IOException {
+		final File file = folder.newFile();
+		try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(file.toPath()))) {
+			final CRC32 crc = new CRC32();
+			crc.update(stored);
+			final ZipEntry storedEntry = new ZipEntry("application.bin");
+			storedEntry.setMethod(ZipEntry.STORED);
+			storedEntry.setSize(stored.length);
+			storedEntry.setCompressedSize(stored.length);
+			storedEntry.setCrc(crc.getValue());
+			zip.putNextEntry(storedEntry);
+			zip.write(stored);
+			zip.closeEntry();
+
+			zip.putNextEntry(new ZipEntry("softdevice.bin"));
+			zip.write(deflated);
+			zip.closeEntry();
+
+			zip.putNextEntry(new ZipEntry("folder/"));
+			zip.closeEntry();
+
+			if (comment != null)
+				zip.setComment(comment);
+		}
+		return file;
+	}
+
+	private ZipCentralDirectory open(final File file) throws IOException {
+		return new ZipCentralDirectory(new RandomAccessFile(file, "r").getChannel());
+	}
+
+	@Test
+	public void getNames_listsAllEntries() throws IOException {
+		try (ZipCentralDirectory directory = open(createZip(null))) {
+			assertEquals(Set.of("application.bin", "softdevice.bin", "folder/"), directory.getNames());
+		}
+	}
+
+	@Test
+	public void read_storedAndDeflatedEntries() throws IOException {
+		try (ZipCentralDirectory directory = open(createZip(null))) {
+			assertArrayEquals(stored, directory.read("application.bin"));
+			assertArrayEquals(deflated, directory.read("softdevice.bin"));
+		}
+	}
+
+	@Test
+	public void read_archiveWithComment() throws IOException {
+		try (ZipCentralDirectory directory = open(createZip("Firmware built for the test"))) {
+			assertArrayEquals(stored, directory.read("application.bin"));
+			assertArrayEquals(deflated, directory.read("softdevice.bin"));
+		}
+	}
+
+	@Test
+	public void read_missingEntry_returnsNull() throws IOException {
+		try (ZipCentralDirectory directory = open(createZip(null))) {
+			assertNull(directory.read("bootloader.bin"));
+		}
+	}
+
+	@Test
+	public void read_corruptedEntry_throws() throws IOException {
+		final File file = createZip(null);
+		// The stored data follow the first local file header
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			final long position = 30 + "application.bin".length() + 100;
+			raf.seek(position);
+			final int value = raf.read();
+			raf.seek(position);
+			raf.write(value ^ 0xFF);
+		}
+
+		try (ZipCentralDirectory directory = open(file)) {
+			directory.read("application.bin");
+			fail("Corrupted entry was read");
+		} catch (final ZipException e) {
+			assertEquals("CRC mismatch: application.bin", e.getMessage());
+		}
+	}
+
+	@Test
+	public void read_sizeAboveLimit_throws() throws IOException {
+		final File file = createZip(null);
+		setSize(file, "softdevice.bin", 0x7FFFFFF0);
+
+		try (ZipCentralDirectory directory = open(file)) {
+			directory.read("softdevice.bin");
+			fail("Entry larger than the limit was read");
+		} catch (final ZipException e) {
+			assertTrue(e.getMessage().startsWith("File too large: softdevice.bin"));
+		}
+	}
+
+	@Test
+	public void read_sizeAboveCompressedData_throws() throws IOException {
+		final File file = createZip(null);
+		// Below the limit, but more than the data in the file may contain
+		setSize(file, "application.bin", stored.length + 1);
+		setSize(file, "softdevice.bin", 9 * 1024 * 1024);
+
+		try (ZipCentralDirectory directory = open(file)) {
+			try {
+				directory.read("application.bin");
+				fail("Stored entry larger than its data was read");
+			} catch (final ZipException e) {
+				assertEquals("Invalid size of file: application.bin", e.getMessage());
+			}
+			try {
+				directory.read("softdevice.bin");
+				fail("Deflated entry larger than its data may inflate to was read");
+			} catch (final ZipException e) {
+				assertEquals("Invalid size of file: softdevice.bin", e.getMessage());
+			}
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void open_notZipFile_throws() throws IOException {
+		final File file = folder.newFile();
+		Files.write(file.toPath(), stored);
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			new ZipCentralDirectory(raf.getChannel());
+		}
+	}
+
+	/**
+	 * Overwrites the uncompressed size of the entry in the central directory.
+	 */
+	private static void setSize(final File file, final String name, final int size) throws IOException {
+		final byte[] content = Files.readAllBytes(file.toPath());
+		final byte[] entryName = name.getBytes(StandardCharsets.UTF_8);
+		for (int position = 0; position + 46 + entryName.length <= content.length; ++position) {
+			// Central directory header signature, followed by the entry name at offset 46
+			if (content[position] == 0x50 && content[position + 1] == 0x4b
+					&& content[position + 2] == 0x01 && content[position + 3] == 0x02
+					&& Arrays.equals(entryName, Arrays.copyOfRange(content, position + 46, position + 46 + entryName.length))) {
+				try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+					raf.seek(position + 24);
+					raf.write(new byte[] { (byte) size, (byte) (size >> 8), (byte) (size >> 16), (byte) (size >> 24) });
+				}
+				return;
+			}
+		}
+		fail("Entry not found: " + name);
+	}
+}
@@ -38,6 +38,15 @@ dependencyResolutionManagement {
         // Use Nordic Gradle Version Catalog with common external libraries versions.
         create("libs") {
             from("no.nordicsemi.android.gradle:version-catalog:2.11.3-1")
+
+            // Libraries used only in unit tests and benchmarks of the DFU library.
+            version("junit4", "4.13.2")
+            version("mockito", "5.11.0")
+            version("jmh", "1.37")
+            library("test-junit4", "junit", "junit").versionRef("junit4")
+            library("test-mockito", "org.mockito", "mockito-core").versionRef("mockito")
+            library("test-jmh-core", "org.openjdk.jmh", "jmh-core").versionRef("jmh")
+            library("test-jmh-generator", "org.openjdk.jmh", "jmh-generator-annprocess").versionRef("jmh")
         }
         // Fixed versions for Nordic libraries.
         create("nordic") {